@@ -0,0 +1,54 @@
+package com.nathan.requests;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what admission control adds to an enqueue: no limits, capacity
+ * limits only, and capacity with a per client rate that is never reached.
+ *
+ * @author Nathan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AdmissionBenchmark {
+    @Param({"OFF", "CAPACITY", "RATE"})
+    public String limits;
+
+    private AdmissionControl admission;
+    private WorkOrder order;
+
+    @Setup(Level.Trial)
+    public void setUpAdmission() {
+        WorkOrderQueue queue = new WorkOrderQueue(Clock.systemUTC(), DivisorRankingPolicy.DEFAULT, 1);
+        AdmissionProperties properties = new AdmissionProperties();
+
+        if (!"OFF".equals(limits)) {
+            properties.setCapacity(1000000);
+            properties.setNormalCapacity(1000000);
+            properties.setVipReserve(1000);
+            properties.setManagerReserve(1000);
+        }
+        if ("RATE".equals(limits)) {
+            properties.setRatePerSecond(1e12);
+        }
+
+        BenchmarkOrders generator = new BenchmarkOrders("natural", System.currentTimeMillis());
+        for (WorkOrder queued : generator.next(10000)) {
+            queue.enqueue(queued);
+        }
+        admission = new AdmissionControl(queue, properties, QueueMetrics.disabled(queue));
+        order = new WorkOrder(1, System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public long admit() {
+        return admission.admit("client", order);
+    }
+}
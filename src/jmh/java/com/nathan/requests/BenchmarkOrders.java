@@ -0,0 +1,102 @@
+package com.nathan.requests;
+
+import java.util.Random;
+
+/**
+ * Generates orders for the benchmarks with a chosen ClassLevel mix.
+ * IDs are unique per generator, dates are spread over the last
+ * few hours so that the levels overtake each other.
+ *
+ * @author Nathan
+ */
+class BenchmarkOrders {
+    // Share of Normal, Priority, VIP and Manager orders.
+    private static final double[] NATURAL = {8 / 15.0, 4 / 15.0, 2 / 15.0, 1 / 15.0};
+    private static final double[] PRIORITY_HEAVY = {0.2, 0.4, 0.3, 0.1};
+    private static final double[] NORMAL_ONLY = {1, 0, 0, 0};
+
+    private static final long SPREAD = 4 * 60 * 60 * 1000;
+
+    private final double[] mix;
+    private final Random random = new Random(42);
+    private final long[] next = {0, 0, 0, 0};
+    private final long epoch;
+
+    /**
+     * CONSTRUCTOR
+     * @param mix "natural" (sequential IDs), "priority-heavy" or "normal-only".
+     * @param epoch newest date to generate.
+     */
+    BenchmarkOrders(String mix, long epoch) {
+        if ("priority-heavy".equals(mix)) {
+            this.mix = PRIORITY_HEAVY;
+        }
+        else if ("normal-only".equals(mix)) {
+            this.mix = NORMAL_ONLY;
+        }
+        else {
+            this.mix = NATURAL;
+        }
+        this.epoch = epoch;
+    }
+
+    /**
+     * @return a new order with an unused ID.
+     */
+    WorkOrder next() {
+        return new WorkOrder(nextId(pickLevel()), epoch - (long) (random.nextDouble() * SPREAD));
+    }
+
+    /**
+     * @param count number of orders.
+     * @return new orders with unused IDs.
+     */
+    WorkOrder[] next(int count) {
+        WorkOrder[] orders = new WorkOrder[count];
+
+        for (int i = 0; i < count; i++) {
+            orders[i] = next();
+        }
+        return orders;
+    }
+
+    private int pickLevel() {
+        double roll = random.nextDouble();
+
+        for (int level = 0; level < mix.length; level++) {
+            roll -= mix[level];
+            if (roll < 0) {
+                return level;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Walks the IDs of one level: Normal IDs are not divisible by 3 or 5,
+     * Priority by 3 only, VIP by 5 only and Manager by 15.
+     */
+    private long nextId(int level) {
+        long ID = next[level];
+
+        do {
+            ID++;
+        } while (levelOf(ID) != level);
+
+        next[level] = ID;
+        return ID;
+    }
+
+    private static int levelOf(long ID) {
+        if (ID % 15 == 0) {
+            return 3;
+        }
+        else if (ID % 5 == 0) {
+            return 2;
+        }
+        else if (ID % 3 == 0) {
+            return 1;
+        }
+        return 0;
+    }
+}
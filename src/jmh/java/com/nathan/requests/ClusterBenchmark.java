@@ -0,0 +1,70 @@
+package com.nathan.requests;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures enqueue and dequeue latency through a cluster of nodes on
+ * loopback sockets, against a standalone queue with nodes = 1.
+ * Orders enter through node 0 and leave through the last node, so
+ * most calls cross to another node.
+ *
+ * @author Nathan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClusterBenchmark {
+    @Param({"1", "3"})
+    public int nodes;
+
+    @Param({"10000"})
+    public int size;
+
+    private final AtomicLong IDs = new AtomicLong();
+    private LoopbackCluster cluster;
+    private WorkOrderQueue producer;
+    private WorkOrderQueue consumer;
+
+    @Setup(Level.Trial)
+    public void startCluster() {
+        if (nodes > 1) {
+            cluster = new LoopbackCluster(nodes, Clock.systemUTC());
+            producer = cluster.queue(0);
+            consumer = cluster.queue(nodes - 1);
+        }
+        else {
+            producer = new WorkOrderQueue(Clock.systemUTC());
+            consumer = producer;
+        }
+
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < size; i++) {
+            producer.enqueue(new WorkOrder(IDs.incrementAndGet(), now - i * 1000L));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stopCluster() {
+        if (cluster != null) {
+            cluster.close();
+        }
+    }
+
+    @Benchmark
+    public WorkOrder enqueueAndDequeue() {
+        producer.enqueue(new WorkOrder(IDs.incrementAndGet(), System.currentTimeMillis()));
+        return consumer.dequeue();
+    }
+
+    @Benchmark
+    public int position() {
+        return consumer.getPositionOfOrder(IDs.get());
+    }
+}
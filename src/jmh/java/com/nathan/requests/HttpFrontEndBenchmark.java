@@ -0,0 +1,97 @@
+package com.nathan.requests;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.embedded.EmbeddedWebApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures end to end latency of the same requests through Spring MVC
+ * and through the lightweight front end, both served by one running
+ * application. Requests go over keep-alive connections of
+ * HttpURLConnection, so client costs are the same for both.
+ * Sample time mode reports the percentiles, p99 included.
+ *
+ * On JDK 9 and later Spring 4 needs java.lang opened to boot, add
+ * -jvmArgsAppend --add-opens=java.base/java.lang=ALL-UNNAMED to jmh.args.
+ *
+ * @author Nathan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpFrontEndBenchmark {
+    @Param({"SPRING", "LIGHTWEIGHT"})
+    public String frontEnd;
+
+    @Param({"10000"})
+    public int size;
+
+    private ConfigurableApplicationContext context;
+    private String base;
+    private long queuedID;
+    private long nextID;
+    private final byte[] sink = new byte[8192];
+
+    @Setup(Level.Trial)
+    public void startApplication() {
+        context = SpringApplication.run(Main.class, "--server.port=0", "--queue.http.enabled=true",
+                "--queue.http.port=0", "--logging.level.root=WARN");
+
+        int port = "SPRING".equals(frontEnd)
+                ? ((EmbeddedWebApplicationContext) context).getEmbeddedServletContainer().getPort()
+                : context.getBean(OrderHttpServer.class).getPort();
+        base = "http://localhost:" + port + "/queue/";
+
+        WorkOrderQueue queue = context.getBean(WorkOrderQueue.class);
+        BenchmarkOrders generator = new BenchmarkOrders("natural", System.currentTimeMillis());
+        for (WorkOrder order : generator.next(size)) {
+            queue.enqueue(new WorkOrder(order.getId(), order.getEpochMillis(), queue.getRankingPolicy()));
+            queuedID = order.getId();
+        }
+        // Normal IDs above every generated one.
+        nextID = 15L * (size + 1) + 1;
+    }
+
+    @TearDown(Level.Trial)
+    public void stopApplication() {
+        context.close();
+    }
+
+    @Benchmark
+    public int position() throws IOException {
+        return call("GET", base + queuedID);
+    }
+
+    @Benchmark
+    public int enqueueAndRemove() throws IOException {
+        long ID = nextID;
+        nextID += 15;
+        return call("POST", base + ID + "/now") + call("DELETE", base + ID);
+    }
+
+    private int call(String method, String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+
+        int status = connection.getResponseCode();
+        // Read the body to the end so the connection is kept alive.
+        try (InputStream body = (status < 400) ? connection.getInputStream() : connection.getErrorStream()) {
+            if (body != null) {
+                while (body.read(sink) >= 0) {
+                    // drain
+                }
+            }
+        }
+        return status;
+    }
+}
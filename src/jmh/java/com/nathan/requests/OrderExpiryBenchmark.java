@@ -0,0 +1,69 @@
+package com.nathan.requests;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures an expiry tick over queues of growing size. A tick with
+ * nothing to evict, and a tick evicting one order, should cost the
+ * same whatever the number of younger orders queued.
+ *
+ * @author Nathan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OrderExpiryBenchmark {
+    private static final long TTL = 24 * 60 * 60 * 1000;
+
+    @Param({"1000", "1000000"})
+    public int size;
+
+    private WorkOrderQueue queue;
+    private OrderExpiry expiry;
+    private long expiredID;
+    private long expiredDate;
+
+    @Setup(Level.Trial)
+    public void fillQueue() {
+        long now = System.currentTimeMillis();
+        ExpiryProperties properties = new ExpiryProperties();
+
+        properties.setNormalTtlMillis(TTL);
+        properties.setPriorityTtlMillis(TTL);
+        properties.setVipTtlMillis(TTL);
+        properties.setManagerTtlMillis(TTL);
+
+        queue = new WorkOrderQueue(Clock.systemUTC(), DivisorRankingPolicy.DEFAULT, 1);
+        expiry = new OrderExpiry(queue, properties, QueueMetrics.disabled(queue));
+
+        BenchmarkOrders generator = new BenchmarkOrders("natural", now);
+        for (int filled = 0; filled < size; ) {
+            WorkOrder[] orders = generator.next(Math.min(4096, size - filled));
+            for (WorkOrder order : orders) {
+                queue.enqueue(order);
+            }
+            filled += orders.length;
+        }
+
+        // a Normal ID above every generated one, dated past the TTL.
+        expiredID = 15L * (size + 1) + 1;
+        expiredDate = now - 2 * TTL;
+    }
+
+    @Benchmark
+    public int expireNothing() {
+        return expiry.tick();
+    }
+
+    @Benchmark
+    public int expireOne() {
+        queue.enqueue(new WorkOrder(expiredID, expiredDate));
+        return expiry.tick();
+    }
+}
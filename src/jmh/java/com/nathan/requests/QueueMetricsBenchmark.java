@@ -0,0 +1,44 @@
+package com.nathan.requests;
+
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost QueueMetrics adds to a request, recording into
+ * the Prometheus registry the actuator uses. Run with -prof gc to
+ * check that recording allocates nothing.
+ *
+ * @author Nathan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueMetricsBenchmark {
+    private QueueMetrics metrics;
+
+    @Setup(Level.Trial)
+    public void createMetrics() {
+        metrics = new QueueMetrics(new PrometheusMeterRegistry(PrometheusConfig.DEFAULT), new WorkOrderQueue());
+    }
+
+    @Benchmark
+    public long clockOnly() {
+        return System.nanoTime();
+    }
+
+    @Benchmark
+    public void record() {
+        metrics.record(QueueMetrics.Endpoint.ENQUEUE, System.nanoTime());
+    }
+
+    @Benchmark
+    public void count() {
+        metrics.count(QueueMetrics.Outcome.CONFLICT);
+    }
+}
@@ -0,0 +1,48 @@
+package com.nathan.requests;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Clock;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a poll of the order list on an unchanged queue, answered
+ * from the ReadCache, against building the list every time.
+ *
+ * @author Nathan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadCacheBenchmark {
+    @Param({"1000", "100000"})
+    public int size;
+
+    private WorkOrderQueue queue;
+    private ReadCache cache;
+
+    @Setup(Level.Trial)
+    public void fillQueue() {
+        queue = new WorkOrderQueue(Clock.systemUTC(), DivisorRankingPolicy.DEFAULT, 1);
+        cache = new ReadCache(queue, 60000);
+
+        BenchmarkOrders generator = new BenchmarkOrders("natural", System.currentTimeMillis());
+        for (WorkOrder order : generator.next(size)) {
+            queue.enqueue(order);
+        }
+    }
+
+    @Benchmark
+    public List<Long> uncachedList() {
+        return queue.getListOfIDs();
+    }
+
+    @Benchmark
+    public byte[] cachedList() {
+        return cache.list().getJson();
+    }
+}
@@ -0,0 +1,68 @@
+package com.nathan.requests;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures writers against concurrent readers of the same queue.
+ * A writer enqueues and removes an order, readers ask for positions
+ * and the mean wait time. Run with -tg 1,N to see how the write
+ * score holds up as readers are added.
+ *
+ * @author Nathan
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadWriteBenchmark {
+    @Param({"100000"})
+    public int size;
+
+    private WorkOrderQueue queue;
+    private long[] queued;
+    private WorkOrder extra;
+
+    @Setup(Level.Trial)
+    public void fillQueue() {
+        BenchmarkOrders generator = new BenchmarkOrders("natural", System.currentTimeMillis());
+
+        queue = new WorkOrderQueue(Clock.systemUTC(), DivisorRankingPolicy.DEFAULT, 1);
+        queued = new long[size];
+        for (int filled = 0; filled < size; ) {
+            for (WorkOrder order : generator.next(Math.min(4096, size - filled))) {
+                queue.enqueue(order);
+                queued[filled++] = order.getId();
+            }
+        }
+        extra = generator.next();
+    }
+
+    /**
+     * Cursor of one reader thread.
+     */
+    @State(Scope.Thread)
+    public static class Reader {
+        int cursor;
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public boolean write() {
+        queue.enqueue(extra);
+        return queue.removeOrder(extra.getId());
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(2)
+    public double read(Reader reader) {
+        int position = queue.getPositionOfOrder(queued[reader.cursor++ % queued.length]);
+        return position + queue.getAverageWaitTime();
+    }
+}
@@ -0,0 +1,71 @@
+package com.nathan.requests;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures enqueue throughput of many producers at different shard
+ * counts. Run with -t to set the number of producer threads.
+ *
+ * Each producer enqueues its own orders and removes them again,
+ * so the queue stays at its configured size.
+ *
+ * @author Nathan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class ShardedQueueBenchmark {
+    @Param({"1", "4", "16"})
+    public int shards;
+
+    @Param({"100000"})
+    public int size;
+
+    private final AtomicLong producers = new AtomicLong();
+    private WorkOrderQueue queue;
+
+    @Setup(Level.Trial)
+    public void fillQueue() {
+        queue = new WorkOrderQueue(Clock.systemUTC(), DivisorRankingPolicy.DEFAULT, shards);
+        BenchmarkOrders generator = new BenchmarkOrders("natural", System.currentTimeMillis());
+
+        for (WorkOrder order : generator.next(size)) {
+            queue.enqueue(order);
+        }
+    }
+
+    /**
+     * Orders of one producer, with IDs no other producer uses.
+     */
+    @State(Scope.Thread)
+    public static class Producer {
+        private WorkOrder[] orders;
+        private int cursor;
+
+        @Setup(Level.Trial)
+        public void createOrders(ShardedQueueBenchmark benchmark) {
+            long base = (benchmark.producers.incrementAndGet() << 40);
+            long now = System.currentTimeMillis();
+            orders = new WorkOrder[4096];
+
+            for (int i = 0; i < orders.length; i++) {
+                orders[i] = new WorkOrder(base + i, now - i * 1000L);
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean enqueueAndRemove(Producer producer) {
+        WorkOrder order = producer.orders[producer.cursor++ & (producer.orders.length - 1)];
+        queue.enqueue(order);
+        return queue.removeOrder(order.getId());
+    }
+}
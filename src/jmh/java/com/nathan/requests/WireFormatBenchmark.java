@@ -0,0 +1,128 @@
+package com.nathan.requests;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.GenericHttpMessageConverter;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares writing response bodies as JSON with the binary layout of
+ * OrderWireConverter, through the converters the controller uses.
+ * Bodies are written to a stream that only counts the bytes.
+ *
+ * @author Nathan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WireFormatBenchmark {
+    private static final Type RESPONSES = new ParameterizedTypeReference<List<WorkOrderResponse>>() {}.getType();
+    private static final Type IDS = new ParameterizedTypeReference<List<Long>>() {}.getType();
+
+    @Param({"json", "binary"})
+    public String format;
+
+    // Orders per list, as a dequeue of count orders or a list of the queue.
+    @Param({"100", "10000"})
+    public int size;
+
+    private GenericHttpMessageConverter<Object> converter;
+    private MediaType mediaType;
+    private WorkOrder[] orders;
+    private List<Long> IDs;
+
+    @Setup(Level.Trial)
+    public void createBodies() {
+        if ("binary".equals(format)) {
+            converter = new OrderWireConverter();
+            mediaType = OrderWireConverter.MEDIA_TYPE;
+        }
+        else {
+            converter = new MappingJackson2HttpMessageConverter();
+            mediaType = MediaType.APPLICATION_JSON;
+        }
+
+        BenchmarkOrders generator = new BenchmarkOrders("natural", System.currentTimeMillis());
+        orders = generator.next(size);
+        IDs = new ArrayList<Long>(size);
+        for (WorkOrder order : orders) {
+            IDs.add(order.getId());
+        }
+    }
+
+    /**
+     * One order, as enqueue and dequeue send it.
+     */
+    @Benchmark
+    public long order() throws IOException {
+        WorkOrderResponse response = new WorkOrderResponse(orders[0]);
+        return write(response, WorkOrderResponse.class);
+    }
+
+    /**
+     * Orders of a dequeue of many.
+     */
+    @Benchmark
+    public long orders() throws IOException {
+        List<WorkOrderResponse> responses = new ArrayList<WorkOrderResponse>(orders.length);
+        for (WorkOrder order : orders) {
+            responses.add(new WorkOrderResponse(order));
+        }
+        return write(responses, RESPONSES);
+    }
+
+    /**
+     * IDs of a list of the queue.
+     */
+    @Benchmark
+    public long list() throws IOException {
+        return write(IDs, IDS);
+    }
+
+    private long write(Object body, Type type) throws IOException {
+        CountingMessage message = new CountingMessage();
+        converter.write(body, type, mediaType, message);
+        return message.count;
+    }
+
+    /**
+     * Response that drops the body, counting its bytes.
+     */
+    private static final class CountingMessage extends OutputStream implements HttpOutputMessage {
+        private final HttpHeaders headers = new HttpHeaders();
+        long count;
+
+        @Override
+        public OutputStream getBody() {
+            return this;
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return headers;
+        }
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            count += length;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.nathan.requests;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures ranking and comparing single orders, the inner loop
+ * of every queue operation.
+ *
+ * @author Nathan
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WorkOrderBenchmark {
+    @Param({"Normal", "Priority", "VIP", "Manager"})
+    public WorkOrder.ClassLevel level;
+
+    private WorkOrder order;
+    private WorkOrder other;
+    private long now;
+
+    @Setup
+    public void createOrders() {
+        now = System.currentTimeMillis();
+        order = new WorkOrder(idOf(level), now - 90000);
+        other = new WorkOrder(2, now - 60000);
+    }
+
+    @Benchmark
+    public double calculateRank() {
+        return order.calculateRank(now);
+    }
+
+    @Benchmark
+    public double calculateRankSystemClock() {
+        return order.calculateRank();
+    }
+
+    @Benchmark
+    public int compareTo() {
+        return order.compareTo(other, now);
+    }
+
+    @Benchmark
+    public int compareRanking() {
+        return OrderRanking.DEFAULT.compare(order, other, now);
+    }
+
+    private static long idOf(WorkOrder.ClassLevel level) {
+        switch (level) {
+            case Priority:
+                return 3;
+            case VIP:
+                return 5;
+            case Manager:
+                return 15;
+            default:
+                return 1;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.nathan.requests;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.Clock;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the WorkOrderQueue operations behind the REST API
+ * at different queue sizes and ClassLevel mixes.
+ *
+ * Each enqueue is paired with the removal of the same order so the
+ * queue stays at its configured size for the whole measurement.
+ *
+ * @author Nathan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class WorkOrderQueueBenchmark {
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int size;
+
+    @Param({"natural", "priority-heavy"})
+    public String mix;
+
+    @Param({"HEAP", "OFF_HEAP"})
+    public OrderStorage storage;
+
+    private WorkOrderQueue queue;
+    private BenchmarkOrders generator;
+    // IDs only, so the benchmark itself keeps no orders on the heap.
+    private long[] queued;
+    private WorkOrder[] fresh;
+    private int cursor;
+
+    @Setup(Level.Trial)
+    public void fillQueue() {
+        queue = new WorkOrderQueue(Clock.systemUTC(), DivisorRankingPolicy.DEFAULT, 1, storage);
+        generator = new BenchmarkOrders(mix, System.currentTimeMillis());
+        queued = new long[size];
+
+        for (int filled = 0; filled < size; ) {
+            for (WorkOrder order : generator.next(Math.min(4096, size - filled))) {
+                queue.enqueue(order);
+                queued[filled++] = order.getId();
+            }
+        }
+        fresh = generator.next(4096);
+    }
+
+    @Benchmark
+    public boolean enqueueAndRemove() {
+        WorkOrder order = fresh[cursor++ & (fresh.length - 1)];
+        queue.enqueue(order);
+        return queue.removeOrder(order.getId());
+    }
+
+    /**
+     * Dequeues the top order and puts it back, the queue keeps its size
+     * and the next call finds the same top order.
+     */
+    @Benchmark
+    public WorkOrder dequeueAndEnqueue() {
+        WorkOrder order = queue.dequeue();
+        queue.enqueue(order);
+        return order;
+    }
+
+    @Benchmark
+    public int getPositionOfOrder() {
+        return queue.getPositionOfOrder(queued[cursor++ % queued.length]);
+    }
+
+    @Benchmark
+    public boolean contains() {
+        return queue.contains(queued[cursor++ % queued.length]);
+    }
+
+    @Benchmark
+    public double getAverageWaitTime() {
+        return queue.getAverageWaitTime();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 10)
+    public void getListOfIDs(Blackhole blackhole) {
+        List<Long> IDs = queue.getListOfIDs();
+        blackhole.consume(IDs);
+    }
+}
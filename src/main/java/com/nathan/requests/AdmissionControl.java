@@ -0,0 +1,341 @@
+package com.nathan.requests;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a new order may be enqueued, before it is.
+ *
+ * The queue holds at most capacity orders, and at most the capacity of
+ * its level for each level. Part of the capacity is reserved: Normal and
+ * Priority orders are refused while the VIP and Manager reserves are all
+ * that is left, and VIP orders while the Manager reserve is, so a flood
+ * of low level orders cannot starve the higher ones. Limits are checked
+ * against the orders already queued, so concurrent requests may overshoot
+ * them by at most their number. In a cluster only the owner of an order
+ * knows how many orders it holds, so admit leaves the capacity to the
+ * owner, which checks it when the order is sent to it by enqueue. The
+ * limits are then per node: a cluster of n nodes holds at most n times
+ * capacity orders.
+ *
+ * Each client may also add ratePerSecond orders a second, with bursts of
+ * up to burst orders after being idle. Its token bucket is kept as the
+ * instant it next becomes full (GCRA), updated with one compareAndSet.
+ * Orders that are admitted but then not added, such as duplicates, give
+ * their token back. At most maxClients buckets are kept: each new client
+ * checks the two longest tracked ones and forgets them if their bucket is
+ * full, and while none can be forgotten new clients share one bucket.
+ *
+ * Refused orders are counted in QueueMetrics.
+ *
+ * @author Nathan
+ */
+final class AdmissionControl {
+    private static final WorkOrder.ClassLevel[] LEVELS = WorkOrder.ClassLevel.values();
+    // Longest tracked clients checked for a full bucket per new client.
+    private static final int EXPIRE_PER_CLIENT = 2;
+
+    private final WorkOrderQueue queue;
+    private final AdmissionProperties properties;
+    private final QueueMetrics metrics;
+    private final boolean enabled;
+    // Instant, in System.nanoTime(), at which each client's bucket is full again.
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<String, AtomicLong>();
+    // Tracked clients, longest tracked first.
+    private final ConcurrentLinkedQueue<String> arrivals = new ConcurrentLinkedQueue<String>();
+    // Bucket shared by the clients not tracked while maxClients are.
+    private final AtomicLong overflow = new AtomicLong(System.nanoTime());
+
+    /**
+     * CONSTRUCTOR
+     * @param queue to admit orders to.
+     * @param properties limits of the queue and clients.
+     * @param metrics counting refused orders.
+     */
+    AdmissionControl(WorkOrderQueue queue, AdmissionProperties properties, QueueMetrics metrics) {
+        this.queue = queue;
+        this.properties = properties;
+        this.metrics = metrics;
+        enabled = properties.isEnabled();
+
+        if (enabled) {
+            queue.limitWith(this);
+        }
+    }
+
+    /**
+     * @return limits of the queue and clients.
+     */
+    AdmissionProperties getProperties() {
+        return properties;
+    }
+
+    /**
+     * Gives back the token taken by admitting an order that was then not
+     * added, so a duplicate does not count against the client's rate.
+     * @param client name of the client that added the order.
+     */
+    void refund(String client) {
+        double rate = properties.getRatePerSecond();
+
+        if (!enabled || (rate <= 0)) {
+            return;
+        }
+
+        long interval = interval(rate);
+        AtomicLong bucket = buckets.getOrDefault(client, overflow);
+        long now = System.nanoTime();
+
+        while (true) {
+            long full = bucket.get();
+
+            if (full - now <= 0) {
+                return;
+            }
+
+            long back = (full - interval - now > 0) ? full - interval : now;
+
+            if (bucket.compareAndSet(full, back)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return number of clients with their own bucket.
+     */
+    int clients() {
+        return buckets.size();
+    }
+
+    /**
+     * @param client name of the client adding the order.
+     * @param order to add.
+     * @return 0 if the order may be enqueued,
+     *         else seconds the client should wait before trying again.
+     */
+    long admit(String client, WorkOrder order) {
+        return admit(client, order, null);
+    }
+
+    /**
+     * Admits one order of a batch. The batch's orders are not queued
+     * yet, so those already admitted are counted in pending. In a
+     * cluster only the client's rate is checked here.
+     * @param client name of the client adding the order.
+     * @param order to add.
+     * @param pending admitted orders of the batch per level ordinal, and
+     *                in total at the end, updated if the order is admitted.
+     *                Null outside of a batch.
+     * @return 0 if the order may be enqueued,
+     *         else seconds the client should wait before trying again.
+     */
+    long admit(String client, WorkOrder order, int[] pending) {
+        if (!enabled) {
+            return 0;
+        }
+
+        WorkOrder.ClassLevel level = order.getClassLevel();
+
+        if (!queue.isClustered() && !hasRoom(level, pending)) {
+            metrics.count(QueueMetrics.Outcome.OVER_CAPACITY);
+            return retryAfterSeconds();
+        }
+
+        long wait = takeToken(client);
+
+        if (wait > 0) {
+            metrics.count(QueueMetrics.Outcome.RATE_LIMITED);
+            return wait;
+        }
+        if (pending != null) {
+            pending[level.ordinal()]++;
+            pending[LEVELS.length]++;
+        }
+        return 0;
+    }
+
+    /**
+     * @return an empty count of pending orders for admitting a batch.
+     */
+    static int[] newPending() {
+        return new int[LEVELS.length + 1];
+    }
+
+    /**
+     * @return seconds a client refused for capacity should wait before trying again.
+     */
+    long retryAfterSeconds() {
+        return Math.max(1, properties.getRetryAfterSeconds());
+    }
+
+    /**
+     * Enqueues an admitted order, see enqueueAll.
+     * @param order admitted by admit.
+     * @return WorkOrderQueue.NOT_ADDED, ADDED or OVER_CAPACITY.
+     */
+    byte enqueue(WorkOrder order) {
+        if (!enabled || !queue.isClustered()) {
+            return queue.enqueue(order) ? WorkOrderQueue.ADDED : WorkOrderQueue.NOT_ADDED;
+        }
+        return enqueueAll(Collections.singletonList(order))[0];
+    }
+
+    /**
+     * Enqueues admitted orders. In a cluster each owner checks its
+     * orders against its capacity before adding them, and refused
+     * orders are counted here.
+     * @param orders admitted by admit.
+     * @return WorkOrderQueue.NOT_ADDED, ADDED or OVER_CAPACITY for each order.
+     */
+    byte[] enqueueAll(List<WorkOrder> orders) {
+        byte[] results = queue.enqueueAllLimited(orders);
+
+        for (byte result : results) {
+            if (result == WorkOrderQueue.OVER_CAPACITY) {
+                metrics.count(QueueMetrics.Outcome.OVER_CAPACITY);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Checks orders sent to this node, their owner, against its capacity.
+     * Orders it already holds and IDs repeated in the batch will not be
+     * added, so they need no room.
+     * @param orders owned by this node.
+     * @return whether there is room for each order.
+     */
+    boolean[] hasRoom(List<WorkOrder> orders) {
+        boolean[] room = new boolean[orders.size()];
+        int[] pending = newPending();
+        Set<Long> seen = new HashSet<Long>();
+
+        for (int i = 0; i < room.length; i++) {
+            WorkOrder order = orders.get(i);
+
+            if (!seen.add(order.getId()) || (queue.getLocal(order.getId()) != null)) {
+                room[i] = true;
+                continue;
+            }
+
+            WorkOrder.ClassLevel level = order.getClassLevel();
+            room[i] = hasRoom(level, pending);
+
+            if (room[i]) {
+                pending[level.ordinal()]++;
+                pending[LEVELS.length]++;
+            }
+        }
+        return room;
+    }
+
+    private boolean hasRoom(WorkOrder.ClassLevel level, int[] pending) {
+        int levelCapacity = properties.capacity(level);
+        int capacity = properties.getCapacity();
+
+        if (levelCapacity > 0) {
+            int held = queue.sizeLocal(level) + ((pending != null) ? pending[level.ordinal()] : 0);
+
+            if (held >= levelCapacity) {
+                return false;
+            }
+        }
+        if (capacity > 0) {
+            int held = queue.sizeLocal() + ((pending != null) ? pending[LEVELS.length] : 0);
+
+            return held < capacity - properties.reserved(level);
+        }
+        return true;
+    }
+
+    /**
+     * @return 0 if the client had a token, else seconds until it has one.
+     */
+    private long takeToken(String client) {
+        double rate = properties.getRatePerSecond();
+
+        if (rate <= 0) {
+            return 0;
+        }
+
+        long interval = interval(rate);
+        long tolerance = interval * Math.max(1, properties.getBurst());
+        long now = System.nanoTime();
+        AtomicLong bucket = bucket(client, now);
+
+        while (true) {
+            long full = bucket.get();
+            long next = Math.max(full - now, 0) + interval;
+
+            if (next > tolerance) {
+                return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(next - tolerance + TimeUnit.SECONDS.toNanos(1) - 1));
+            }
+            if (bucket.compareAndSet(full, now + next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * @return nanoseconds between two tokens.
+     */
+    private static long interval(double rate) {
+        return Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+    }
+
+    /**
+     * @return the client's bucket, tracking it if there is room,
+     *         else the bucket shared by untracked clients.
+     */
+    private AtomicLong bucket(String client, long now) {
+        AtomicLong bucket = buckets.get(client);
+
+        if (bucket != null) {
+            return bucket;
+        }
+
+        expire(now);
+
+        if (buckets.size() >= properties.getMaxClients()) {
+            return overflow;
+        }
+
+        AtomicLong created = new AtomicLong(now);
+        bucket = buckets.putIfAbsent(client, created);
+
+        if (bucket == null) {
+            arrivals.add(client);
+            bucket = created;
+        }
+        return bucket;
+    }
+
+    /**
+     * Forgets the longest tracked clients whose bucket is full, and puts
+     * those still refilling at the back to be checked again later. A
+     * client taking a token from a bucket as it is forgotten gets that
+     * token free, as its new bucket starts full.
+     */
+    private void expire(long now) {
+        for (int i = 0; i < EXPIRE_PER_CLIENT; i++) {
+            String client = arrivals.poll();
+
+            if (client == null) {
+                return;
+            }
+
+            AtomicLong bucket = buckets.get(client);
+
+            if ((bucket != null) && ((bucket.get() - now > 0) || !buckets.remove(client, bucket))) {
+                arrivals.add(client);
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.nathan.requests;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Capacity and rate limits of new orders, bound from queue.admission.* properties.
+ * A limit of 0 is no limit, which is the default for every limit.
+ *
+ * @author Nathan
+ */
+@ConfigurationProperties(prefix = "queue.admission")
+public class AdmissionProperties {
+    private int capacity;
+    private int normalCapacity;
+    private int priorityCapacity;
+    private int vipCapacity;
+    private int managerCapacity;
+    private int vipReserve;
+    private int managerReserve;
+    private double ratePerSecond;
+    private int burst = 20;
+    private long retryAfterSeconds = 1;
+    private String clientHeader = "";
+    private int maxClients = 100000;
+
+    /**
+     * @return whether any limit is set.
+     */
+    public boolean isEnabled() {
+        if ((capacity > 0) || (ratePerSecond > 0)) {
+            return true;
+        }
+        for (WorkOrder.ClassLevel level : WorkOrder.ClassLevel.values()) {
+            if (capacity(level) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param level of the orders.
+     * @return most orders of the level the queue may hold, 0 for no limit.
+     */
+    int capacity(WorkOrder.ClassLevel level) {
+        switch (level) {
+            case Normal:
+                return normalCapacity;
+            case Priority:
+                return priorityCapacity;
+            case VIP:
+                return vipCapacity;
+            default:
+                return managerCapacity;
+        }
+    }
+
+    /**
+     * Normal and Priority orders leave both reserves free,
+     * VIP orders the Manager reserve, Manager orders none.
+     * @param level of the orders.
+     * @return places of the capacity that orders of the level may not take.
+     */
+    int reserved(WorkOrder.ClassLevel level) {
+        switch (level) {
+            case Normal:
+            case Priority:
+                return vipReserve + managerReserve;
+            case VIP:
+                return managerReserve;
+            default:
+                return 0;
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @param capacity most orders the queue may hold, 0 for no limit.
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public int getNormalCapacity() {
+        return normalCapacity;
+    }
+
+    public void setNormalCapacity(int normalCapacity) {
+        this.normalCapacity = normalCapacity;
+    }
+
+    public int getPriorityCapacity() {
+        return priorityCapacity;
+    }
+
+    public void setPriorityCapacity(int priorityCapacity) {
+        this.priorityCapacity = priorityCapacity;
+    }
+
+    public int getVipCapacity() {
+        return vipCapacity;
+    }
+
+    public void setVipCapacity(int vipCapacity) {
+        this.vipCapacity = vipCapacity;
+    }
+
+    public int getManagerCapacity() {
+        return managerCapacity;
+    }
+
+    public void setManagerCapacity(int managerCapacity) {
+        this.managerCapacity = managerCapacity;
+    }
+
+    public int getVipReserve() {
+        return vipReserve;
+    }
+
+    /**
+     * @param vipReserve places of the capacity only VIP and Manager orders may take.
+     */
+    public void setVipReserve(int vipReserve) {
+        this.vipReserve = vipReserve;
+    }
+
+    public int getManagerReserve() {
+        return managerReserve;
+    }
+
+    /**
+     * @param managerReserve places of the capacity only Manager orders may take.
+     */
+    public void setManagerReserve(int managerReserve) {
+        this.managerReserve = managerReserve;
+    }
+
+    public double getRatePerSecond() {
+        return ratePerSecond;
+    }
+
+    /**
+     * @param ratePerSecond orders each client may add per second, 0 for no limit.
+     */
+    public void setRatePerSecond(double ratePerSecond) {
+        this.ratePerSecond = ratePerSecond;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * @param burst orders a client that has been idle may add at once.
+     */
+    public void setBurst(int burst) {
+        this.burst = burst;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    /**
+     * @param retryAfterSeconds Retry-After sent when the queue is full.
+     */
+    public void setRetryAfterSeconds(long retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public String getClientHeader() {
+        return clientHeader;
+    }
+
+    /**
+     * @return whether clients are named by a request header rather than their remote address.
+     */
+    public boolean hasClientHeader() {
+        return (clientHeader != null) && !clientHeader.isEmpty();
+    }
+
+    /**
+     * @param clientHeader request header naming the client, empty to use the remote address.
+     *                     Only for a trusted proxy that overwrites the header, as any caller
+     *                     can otherwise pick a new name to get a new bucket.
+     */
+    public void setClientHeader(String clientHeader) {
+        this.clientHeader = clientHeader;
+    }
+
+    public int getMaxClients() {
+        return maxClients;
+    }
+
+    /**
+     * @param maxClients clients with their own rate bucket, the others share one.
+     */
+    public void setMaxClients(int maxClients) {
+        this.maxClients = maxClients;
+    }
+}
@@ -0,0 +1,40 @@
+package com.nathan.requests;
+
+import org.springframework.http.HttpStatus;
+
+/**
+ * Response object used to send the result of one item of a batch:
+ * the status it would have had as a single request, and the
+ * order's date if it was created.
+ *
+ * @author Nathan
+ */
+public class BatchItemResponse {
+    private long ID;
+    private HttpStatus status;
+    private String date;
+
+    /**
+     * CONSTRUCTOR
+     * @param ID of work order
+     * @param status CREATED, CONFLICT or BAD_REQUEST
+     * @param date created, in string format. Null if not created.
+     */
+    public BatchItemResponse(long ID, HttpStatus status, String date) {
+        this.ID = ID;
+        this.status = status;
+        this.date = date;
+    }
+
+    public long getID() {
+        return ID;
+    }
+
+    public HttpStatus getStatus() {
+        return status;
+    }
+
+    public String getDate() {
+        return date;
+    }
+}
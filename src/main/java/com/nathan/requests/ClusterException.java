@@ -0,0 +1,18 @@
+package com.nathan.requests;
+
+/**
+ * Thrown when another node of the cluster cannot be reached
+ * or fails to carry out a request.
+ *
+ * @author Nathan
+ */
+public class ClusterException extends RuntimeException {
+    /**
+     * CONSTRUCTOR
+     * @param message what failed.
+     * @param cause of the failure, null if none.
+     */
+    public ClusterException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
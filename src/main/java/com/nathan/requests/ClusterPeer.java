@@ -0,0 +1,280 @@
+package com.nathan.requests;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client side of the cluster protocol, talking to one other node.
+ * Each call borrows an idle connection, or opens a new one, and
+ * gives it back when the response has been read. A connection that
+ * fails is closed rather than reused.
+ *
+ * Enqueue and take send a request ID. If their connection fails, the
+ * node may have applied them before its response was lost, so they are
+ * sent again with the same ID on a new connection, up to retries times,
+ * and the node answers with the result it already had.
+ *
+ * @author Nathan
+ */
+final class ClusterPeer implements Closeable {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InetSocketAddress address;
+    private final ClusterProperties properties;
+    private final RankingPolicy policy;
+    private final ArrayBlockingQueue<Connection> idle;
+    // Request IDs are origin plus a count, unique across the senders in practice.
+    private final long origin = ThreadLocalRandom.current().nextLong();
+    private final AtomicLong requests = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * CONSTRUCTOR: No connection is opened until the first call.
+     * @param address of the node's cluster protocol.
+     * @param properties timeouts and number of idle connections.
+     * @param policy to rank orders received from the node by.
+     */
+    ClusterPeer(InetSocketAddress address, ClusterProperties properties, RankingPolicy policy) {
+        this.address = address;
+        this.properties = properties;
+        this.policy = policy;
+        idle = new ArrayBlockingQueue<Connection>(Math.max(1, properties.getConnections()));
+    }
+
+    /**
+     * @param limited whether the node checks the orders against its capacity.
+     * @return result of each order on the node, see WorkOrderQueue.enqueueAllLimited.
+     */
+    byte[] enqueue(List<WorkOrder> orders, boolean limited) {
+        long request = origin + requests.incrementAndGet();
+
+        return call(properties.getRetries(), (out, in) -> {
+            out.writeByte(ClusterProtocol.ENQUEUE);
+            out.writeLong(request);
+            out.writeBoolean(limited);
+            ClusterProtocol.writeOrders(out, orders);
+            ClusterProtocol.awaitResponse(out, in);
+
+            byte[] results = new byte[orders.size()];
+            in.readFully(results);
+            return results;
+        });
+    }
+
+    /**
+     * @param event journal event of the removals.
+     * @return whether each order was removed by the node.
+     */
+    boolean[] take(long[] IDs, int event) {
+        long request = origin + requests.incrementAndGet();
+
+        return call(properties.getRetries(), (out, in) -> {
+            out.writeByte(ClusterProtocol.TAKE);
+            out.writeLong(request);
+            out.writeByte(event);
+            out.writeInt(IDs.length);
+            for (long ID : IDs) {
+                out.writeLong(ID);
+            }
+            ClusterProtocol.awaitResponse(out, in);
+            return ClusterProtocol.readFlags(in, IDs.length);
+        });
+    }
+
+    /**
+     * @return order queued on the node for each ID, null if absent.
+     */
+    WorkOrder[] get(long[] IDs) {
+        return call((out, in) -> {
+            out.writeByte(ClusterProtocol.GET);
+            out.writeInt(IDs.length);
+            for (long ID : IDs) {
+                out.writeLong(ID);
+            }
+            ClusterProtocol.awaitResponse(out, in);
+
+            WorkOrder[] orders = new WorkOrder[IDs.length];
+            for (int i = 0; i < IDs.length; i++) {
+                boolean found = in.readBoolean();
+                long date = in.readLong();
+                orders[i] = found ? new WorkOrder(IDs[i], date, policy) : null;
+            }
+            return orders;
+        });
+    }
+
+    /**
+     * @return up to count of the node's highest ranked orders at now, best first.
+     */
+    WorkOrder[] top(int count, long now) {
+        return call((out, in) -> {
+            out.writeByte(ClusterProtocol.TOP);
+            out.writeInt(count);
+            out.writeLong(now);
+            ClusterProtocol.awaitResponse(out, in);
+            return ClusterProtocol.readOrders(in, policy);
+        });
+    }
+
+    /**
+     * @param targets orders to count ahead of, null entries are skipped.
+     * @return number of the node's orders ahead of each target at now.
+     */
+    int[] countAhead(WorkOrder[] targets, long now) {
+        return call((out, in) -> {
+            out.writeByte(ClusterProtocol.COUNT_AHEAD);
+            out.writeLong(now);
+            out.writeInt(targets.length);
+            for (WorkOrder target : targets) {
+                out.writeLong((target != null) ? target.getId() : 0);
+                out.writeLong((target != null) ? target.getEpochMillis() : 0);
+            }
+            ClusterProtocol.awaitResponse(out, in);
+
+            int[] counts = new int[targets.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = in.readInt();
+            }
+            return counts;
+        });
+    }
+
+    /**
+     * @return {number of orders, total wait time in seconds} of the node at now.
+     */
+    double[] stats(long now) {
+        return call((out, in) -> {
+            out.writeByte(ClusterProtocol.STATS);
+            out.writeLong(now);
+            ClusterProtocol.awaitResponse(out, in);
+            return new double[] {in.readInt(), in.readDouble()};
+        });
+    }
+
+    /**
+     * @return copy of each lane of the node, oldest order first.
+     */
+    WorkOrder[][] lanes() {
+        return call((out, in) -> {
+            out.writeByte(ClusterProtocol.LANES);
+            ClusterProtocol.awaitResponse(out, in);
+
+            WorkOrder[][] lanes = new WorkOrder[ClusterProtocol.readCount(in)][];
+            for (int i = 0; i < lanes.length; i++) {
+                lanes[i] = ClusterProtocol.readOrders(in, policy);
+            }
+            return lanes;
+        });
+    }
+
+    /**
+     * Closes the idle connections, connections in use are
+     * closed when their call returns.
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        for (Connection connection = idle.poll(); connection != null; connection = idle.poll()) {
+            connection.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return address.toString();
+    }
+
+    private <T> T call(Exchange<T> exchange) {
+        return call(0, exchange);
+    }
+
+    /**
+     * @param retries times the exchange is run again on a new connection
+     *                after a failed one, only for exchanges the node replays.
+     */
+    private <T> T call(int retries, Exchange<T> exchange) {
+        for (int attempt = 0; ; attempt++) {
+            Connection connection = (attempt == 0) ? idle.poll() : null;
+
+            try {
+                if (connection == null) {
+                    connection = new Connection();
+                }
+
+                T result;
+                try {
+                    result = exchange.run(connection.out, connection.in);
+                } catch (ClusterException e) {
+                    // the node answered with an error, the connection is still in step.
+                    release(connection);
+                    throw e;
+                }
+                release(connection);
+                return result;
+            } catch (IOException e) {
+                if (connection != null) {
+                    connection.close();
+                }
+                if (closed || (attempt >= retries)) {
+                    throw new ClusterException("Cluster node " + address + " is unavailable", e);
+                }
+            }
+        }
+    }
+
+    private void release(Connection connection) {
+        if (closed || !idle.offer(connection)) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Writes one request and reads its response.
+     */
+    private interface Exchange<T> {
+        T run(DataOutputStream out, DataInputStream in) throws IOException;
+    }
+
+    /**
+     * One open connection to the node.
+     */
+    private final class Connection {
+        final Socket socket;
+        final DataOutputStream out;
+        final DataInputStream in;
+
+        Connection() throws IOException {
+            socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(properties.getReadTimeoutMillis());
+                socket.connect(address, properties.getConnectTimeoutMillis());
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+                out.writeInt(ClusterProtocol.MAGIC);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing left to release.
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.nathan.requests;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Settings of cluster mode, bound from queue.cluster.* properties.
+ * Every node lists the same nodes in the same order, and self is the
+ * position of this node in that list. Cluster mode is off unless
+ * queue.cluster.enabled is true.
+ *
+ * @author Nathan
+ */
+@ConfigurationProperties(prefix = "queue.cluster")
+public class ClusterProperties {
+    private boolean enabled = false;
+    private List<String> nodes = new ArrayList<String>();
+    private int self = 0;
+    private int connectTimeoutMillis = 1000;
+    private int readTimeoutMillis = 5000;
+    private int connections = 4;
+    private int retries = 2;
+    private long replayMillis = 60000;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @param nodes host:port of the cluster protocol of every node.
+     */
+    public void setNodes(List<String> nodes) {
+        this.nodes = nodes;
+    }
+
+    public int getSelf() {
+        return self;
+    }
+
+    /**
+     * @param self index of this node in nodes.
+     */
+    public void setSelf(int self) {
+        this.self = self;
+    }
+
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    public int getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    public void setReadTimeoutMillis(int readTimeoutMillis) {
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    /**
+     * @param connections idle connections kept open to each other node.
+     */
+    public void setConnections(int connections) {
+        this.connections = connections;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * @param retries times an enqueue or take is sent again after its connection failed.
+     */
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    public long getReplayMillis() {
+        return replayMillis;
+    }
+
+    /**
+     * @param replayMillis how long a node remembers the result of an enqueue or take,
+     *                     to answer it again when it is retried. Must exceed the
+     *                     retries times the connect and read timeouts.
+     */
+    public void setReplayMillis(long replayMillis) {
+        this.replayMillis = replayMillis;
+    }
+}
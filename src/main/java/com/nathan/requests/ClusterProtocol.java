@@ -0,0 +1,126 @@
+package com.nathan.requests;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Binary protocol spoken between the nodes of a cluster.
+ *
+ * A client opens a connection by sending MAGIC, then sends requests
+ * one at a time on it. A request is an operation byte followed by its
+ * fields, the response is a status byte followed by the result, or by
+ * a message if the status is ERROR. All numbers are big endian, and
+ * an order is always its ID then its date in epoch milliseconds.
+ *
+ * ENQUEUE and TAKE carry a request ID picked by the sender. The node
+ * remembers their results for a while and answers a request ID it has
+ * seen with the first result, without applying it again, so a sender
+ * whose response was lost can safely send the same request again.
+ * An ENQUEUE sent limited has each order checked against the capacity
+ * of the receiving node first, and answers each with a result of
+ * WorkOrderQueue.enqueueAllLimited.
+ *
+ *   ENQUEUE      request, limited, count, orders  -> count results
+ *   TAKE         request, event, count, IDs       -> count flags
+ *   GET          count, IDs                       -> count (flag, date)
+ *   TOP          count, now                       -> count, orders
+ *   COUNT_AHEAD  now, count, orders               -> count ints
+ *   STATS        now                              -> size, total wait
+ *   LANES                                         -> lanes, (count, orders) per lane
+ *
+ * @author Nathan
+ */
+final class ClusterProtocol {
+    // "WOQ2"
+    static final int MAGIC = 0x574F5132;
+
+    static final int ENQUEUE = 1;
+    static final int TAKE = 2;
+    static final int GET = 3;
+    static final int TOP = 4;
+    static final int COUNT_AHEAD = 5;
+    static final int STATS = 6;
+    static final int LANES = 7;
+
+    static final int OK = 0;
+    static final int ERROR = 1;
+
+    // Largest count accepted in a frame, guards against corrupt input.
+    static final int MAX_COUNT = 1 << 26;
+
+    private ClusterProtocol() {
+    }
+
+    static void writeOrders(DataOutputStream out, List<WorkOrder> orders) throws IOException {
+        out.writeInt(orders.size());
+
+        for (WorkOrder order : orders) {
+            out.writeLong(order.getId());
+            out.writeLong(order.getEpochMillis());
+        }
+    }
+
+    static void writeOrders(DataOutputStream out, WorkOrder[] orders) throws IOException {
+        out.writeInt(orders.length);
+
+        for (WorkOrder order : orders) {
+            out.writeLong(order.getId());
+            out.writeLong(order.getEpochMillis());
+        }
+    }
+
+    /**
+     * @param policy to rank the read orders by.
+     * @return orders preceded by their count.
+     */
+    static WorkOrder[] readOrders(DataInputStream in, RankingPolicy policy) throws IOException {
+        WorkOrder[] orders = new WorkOrder[readCount(in)];
+
+        for (int i = 0; i < orders.length; i++) {
+            orders[i] = new WorkOrder(in.readLong(), in.readLong(), policy);
+        }
+        return orders;
+    }
+
+    static void writeFlags(DataOutputStream out, boolean[] flags) throws IOException {
+        for (boolean flag : flags) {
+            out.writeBoolean(flag);
+        }
+    }
+
+    static boolean[] readFlags(DataInputStream in, int count) throws IOException {
+        boolean[] flags = new boolean[count];
+
+        for (int i = 0; i < count; i++) {
+            flags[i] = in.readBoolean();
+        }
+        return flags;
+    }
+
+    /**
+     * @return a count, checked to be sane.
+     * @throws IOException if the count is negative or too large.
+     */
+    static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+
+        if ((count < 0) || (count > MAX_COUNT)) {
+            throw new IOException("Bad count in cluster frame: " + count);
+        }
+        return count;
+    }
+
+    /**
+     * Sends the written request and reads the status of its response.
+     * @throws ClusterException if the other node answered with an error.
+     */
+    static void awaitResponse(DataOutputStream out, DataInputStream in) throws IOException {
+        out.flush();
+
+        if (in.readUnsignedByte() == ERROR) {
+            throw new ClusterException(in.readUTF(), null);
+        }
+    }
+}
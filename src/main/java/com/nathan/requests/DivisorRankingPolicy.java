@@ -0,0 +1,88 @@
+package com.nathan.requests;
+
+/**
+ * RankingPolicy that picks levels by divisibility of the ID
+ * and gives each level one of the RankFunctions.
+ * IDs divisible by both divisors are Manager, by the VIP divisor VIP,
+ * by the Priority divisor Priority, and the rest are Normal.
+ *
+ * @author Nathan
+ */
+public final class DivisorRankingPolicy implements RankingPolicy {
+    private static final WorkOrder.ClassLevel[] LEVELS = WorkOrder.ClassLevel.values();
+
+    /**
+     * The original rules, used by orders and queues not given a policy.
+     */
+    public static final DivisorRankingPolicy DEFAULT = new DivisorRankingPolicy(new RankingProperties());
+
+    private final long priorityDivisor;
+    private final long vipDivisor;
+    private final WorkOrder.ClassLevel first;
+    // By level ordinal.
+    private final RankFunction[] functions = new RankFunction[LEVELS.length];
+    private final double[] scales = new double[LEVELS.length];
+    private final double[] floors = new double[LEVELS.length];
+
+    /**
+     * CONSTRUCTOR
+     * @param properties divisors and rank functions.
+     * @throws IllegalArgumentException if a divisor is less than 2,
+     *         or a scale is not positive, as ranks could then fall with time.
+     */
+    public DivisorRankingPolicy(RankingProperties properties) {
+        priorityDivisor = properties.getPriorityDivisor();
+        vipDivisor = properties.getVipDivisor();
+        first = properties.getFirst();
+
+        if ((priorityDivisor < 2) || (vipDivisor < 2)) {
+            throw new IllegalArgumentException("Ranking divisors must be at least 2");
+        }
+
+        set(WorkOrder.ClassLevel.Normal, properties.getNormal());
+        set(WorkOrder.ClassLevel.Priority, properties.getPriority());
+        set(WorkOrder.ClassLevel.VIP, properties.getVip());
+        set(WorkOrder.ClassLevel.Manager, properties.getManager());
+    }
+
+    @Override
+    public WorkOrder.ClassLevel levelOf(long ID) {
+        boolean priority = ID % priorityDivisor == 0;
+        boolean vip = ID % vipDivisor == 0;
+
+        if (priority && vip) {
+            return WorkOrder.ClassLevel.Manager;
+        }
+        else if (vip) {
+            return WorkOrder.ClassLevel.VIP;
+        }
+        else if (priority) {
+            return WorkOrder.ClassLevel.Priority;
+        }
+        else {
+            return WorkOrder.ClassLevel.Normal;
+        }
+    }
+
+    @Override
+    public double rank(WorkOrder.ClassLevel level, double waitTime) {
+        int i = level.ordinal();
+        return functions[i].rank(waitTime, scales[i], floors[i]);
+    }
+
+    @Override
+    public boolean isFirst(WorkOrder.ClassLevel level) {
+        return level == first;
+    }
+
+    private void set(WorkOrder.ClassLevel level, RankingProperties.Level settings) {
+        if (!(settings.getScale() > 0) || (settings.getFunction() == null)) {
+            throw new IllegalArgumentException("Rank function of " + level + " must have a positive scale");
+        }
+
+        int i = level.ordinal();
+        functions[i] = settings.getFunction();
+        scales[i] = settings.getScale();
+        floors[i] = settings.getFloor();
+    }
+}
@@ -0,0 +1,61 @@
+package com.nathan.requests;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Settings of the position event streams, bound from queue.events.* properties.
+ *
+ * @author Nathan
+ */
+@ConfigurationProperties(prefix = "queue.events")
+public class EventProperties {
+    private long intervalMillis = 100;
+    private long refreshMillis = 1000;
+    private long minGapMillis = 500;
+    private long timeoutMillis = 30 * 60 * 1000;
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /**
+     * @param intervalMillis how often changes of the queue are looked for.
+     */
+    public void setIntervalMillis(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+    }
+
+    public long getRefreshMillis() {
+        return refreshMillis;
+    }
+
+    /**
+     * @param refreshMillis how often positions are recomputed when the
+     *                      queue has not changed, as ranks still move with time.
+     */
+    public void setRefreshMillis(long refreshMillis) {
+        this.refreshMillis = refreshMillis;
+    }
+
+    public long getMinGapMillis() {
+        return minGapMillis;
+    }
+
+    /**
+     * @param minGapMillis shortest time between two events to one subscriber.
+     */
+    public void setMinGapMillis(long minGapMillis) {
+        this.minGapMillis = minGapMillis;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * @param timeoutMillis how long a stream stays open.
+     */
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+}
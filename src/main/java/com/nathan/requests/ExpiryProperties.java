@@ -0,0 +1,92 @@
+package com.nathan.requests;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Time to live of queued orders per level, bound from queue.expiry.* properties.
+ * A TTL of 0 keeps the level's orders until they are dequeued or removed,
+ * which is the default for every level.
+ *
+ * @author Nathan
+ */
+@ConfigurationProperties(prefix = "queue.expiry")
+public class ExpiryProperties {
+    private long tickMillis = 1000;
+    private long normalTtlMillis;
+    private long priorityTtlMillis;
+    private long vipTtlMillis;
+    private long managerTtlMillis;
+
+    /**
+     * @return whether any level has a TTL.
+     */
+    public boolean isEnabled() {
+        for (WorkOrder.ClassLevel level : WorkOrder.ClassLevel.values()) {
+            if (ttlMillis(level) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param level of orders.
+     * @return TTL of the level's orders, 0 if they never expire.
+     */
+    public long ttlMillis(WorkOrder.ClassLevel level) {
+        switch (level) {
+            case Priority:
+                return priorityTtlMillis;
+            case VIP:
+                return vipTtlMillis;
+            case Manager:
+                return managerTtlMillis;
+            default:
+                return normalTtlMillis;
+        }
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * @param tickMillis how often expired orders are evicted, so also
+     *                   how long an order may outlive its TTL.
+     */
+    public void setTickMillis(long tickMillis) {
+        this.tickMillis = tickMillis;
+    }
+
+    public long getNormalTtlMillis() {
+        return normalTtlMillis;
+    }
+
+    public void setNormalTtlMillis(long normalTtlMillis) {
+        this.normalTtlMillis = normalTtlMillis;
+    }
+
+    public long getPriorityTtlMillis() {
+        return priorityTtlMillis;
+    }
+
+    public void setPriorityTtlMillis(long priorityTtlMillis) {
+        this.priorityTtlMillis = priorityTtlMillis;
+    }
+
+    public long getVipTtlMillis() {
+        return vipTtlMillis;
+    }
+
+    public void setVipTtlMillis(long vipTtlMillis) {
+        this.vipTtlMillis = vipTtlMillis;
+    }
+
+    public long getManagerTtlMillis() {
+        return managerTtlMillis;
+    }
+
+    public void setManagerTtlMillis(long managerTtlMillis) {
+        this.managerTtlMillis = managerTtlMillis;
+    }
+}
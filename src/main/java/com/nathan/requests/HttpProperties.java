@@ -0,0 +1,46 @@
+package com.nathan.requests;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Settings of the lightweight HTTP front end, bound from queue.http.* properties.
+ * The front end is off unless queue.http.enabled is true.
+ *
+ * @author Nathan
+ */
+@ConfigurationProperties(prefix = "queue.http")
+public class HttpProperties {
+    private boolean enabled = false;
+    private int port = 8081;
+    private int bufferSize = 8192;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @param port to listen on, 0 for any free port.
+     */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @param bufferSize bytes read per connection, the longest request head accepted.
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+}
@@ -0,0 +1,17 @@
+package com.nathan.requests;
+
+/**
+ * Thrown when an order date is not in the yyyy-MM-dd_HH:mm layout
+ * or does not name a real date.
+ *
+ * @author Nathan
+ */
+public class InvalidOrderDateException extends IllegalArgumentException {
+    /**
+     * CONSTRUCTOR
+     * @param dateString the rejected date.
+     */
+    public InvalidOrderDateException(String dateString) {
+        super("Invalid order date: " + dateString);
+    }
+}
@@ -0,0 +1,96 @@
+package com.nathan.requests;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Settings of the order journal, bound from queue.journal.* properties.
+ * The journal is off unless queue.journal.enabled is true.
+ *
+ * @author Nathan
+ */
+@ConfigurationProperties(prefix = "queue.journal")
+public class JournalProperties {
+    /**
+     * When the journal forces written events to disk.
+     */
+    public enum FsyncPolicy {
+        // Every change waits for its event to be on disk. Concurrent
+        // changes share one force.
+        ALWAYS,
+        // Force once every batchSize events.
+        BATCH,
+        // Force from a background thread every intervalMillis.
+        INTERVAL
+    }
+
+    private boolean enabled = false;
+    private String directory = "journal";
+    private FsyncPolicy fsync = FsyncPolicy.BATCH;
+    private int batchSize = 256;
+    private long intervalMillis = 100;
+    private long snapshotIntervalMillis = 60000;
+    private int fileSize = 64 * 1024 * 1024;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    public FsyncPolicy getFsync() {
+        return fsync;
+    }
+
+    public void setFsync(FsyncPolicy fsync) {
+        this.fsync = fsync;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public void setIntervalMillis(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+    }
+
+    public long getSnapshotIntervalMillis() {
+        return snapshotIntervalMillis;
+    }
+
+    /**
+     * @param snapshotIntervalMillis time between snapshots, 0 to only
+     *                               snapshot on shutdown.
+     */
+    public void setSnapshotIntervalMillis(long snapshotIntervalMillis) {
+        this.snapshotIntervalMillis = snapshotIntervalMillis;
+    }
+
+    public int getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * @param fileSize size in bytes of each mapped log file.
+     */
+    public void setFileSize(int fileSize) {
+        this.fileSize = fileSize;
+    }
+}
@@ -0,0 +1,297 @@
+package com.nathan.requests;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Fields of the nodes of an OrderLane, addressed by int handle.
+ * Handle 0 is the empty subtree and is never written, so its
+ * links and size read as 0.
+ *
+ * Heap nodes keep the queued WorkOrders in parallel arrays. Slab
+ * nodes keep only the date, ID and tree fields, in direct buffers
+ * outside the heap, and rebuild a WorkOrder when one is read.
+ *
+ * @author Nathan
+ */
+abstract class LaneNodes {
+    static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * @param storage where the nodes are kept.
+     * @param policy of the orders, to rebuild orders of slab nodes.
+     * @return empty nodes of the storage.
+     */
+    static LaneNodes of(OrderStorage storage, RankingPolicy policy) {
+        return (storage == OrderStorage.OFF_HEAP) ? new Slab(policy) : new Heap();
+    }
+
+    abstract WorkOrder order(int node);
+    abstract long date(int node);
+    abstract long id(int node);
+    abstract int left(int node);
+    abstract int right(int node);
+    abstract int size(int node);
+    abstract int priority(int node);
+
+    abstract void left(int node, int value);
+    abstract void right(int node, int value);
+    abstract void size(int node, int value);
+
+    /**
+     * Makes the node a leaf holding the order.
+     */
+    abstract void set(int node, WorkOrder order, int priority);
+
+    /**
+     * Drops the node's order, keeping only its left link for the free list.
+     */
+    abstract void clear(int node, int next);
+
+    /**
+     * @return number of handles, including handle 0.
+     */
+    abstract int capacity();
+
+    /**
+     * Adds room for more handles, keeping the existing ones.
+     */
+    abstract void grow();
+
+    /**
+     * Nodes in heap arrays, holding the queued orders themselves.
+     */
+    static final class Heap extends LaneNodes {
+        private WorkOrder[] orders = new WorkOrder[INITIAL_CAPACITY];
+        private long[] dates = new long[INITIAL_CAPACITY];
+        private long[] ids = new long[INITIAL_CAPACITY];
+        private int[] left = new int[INITIAL_CAPACITY];
+        private int[] right = new int[INITIAL_CAPACITY];
+        private int[] size = new int[INITIAL_CAPACITY];
+        private int[] priority = new int[INITIAL_CAPACITY];
+
+        @Override
+        WorkOrder order(int node) {
+            return orders[node];
+        }
+
+        @Override
+        long date(int node) {
+            return dates[node];
+        }
+
+        @Override
+        long id(int node) {
+            return ids[node];
+        }
+
+        @Override
+        int left(int node) {
+            return left[node];
+        }
+
+        @Override
+        int right(int node) {
+            return right[node];
+        }
+
+        @Override
+        int size(int node) {
+            return size[node];
+        }
+
+        @Override
+        int priority(int node) {
+            return priority[node];
+        }
+
+        @Override
+        void left(int node, int value) {
+            left[node] = value;
+        }
+
+        @Override
+        void right(int node, int value) {
+            right[node] = value;
+        }
+
+        @Override
+        void size(int node, int value) {
+            size[node] = value;
+        }
+
+        @Override
+        void set(int node, WorkOrder order, int priority) {
+            orders[node] = order;
+            dates[node] = order.getEpochMillis();
+            ids[node] = order.getId();
+            left[node] = 0;
+            right[node] = 0;
+            size[node] = 1;
+            this.priority[node] = priority;
+        }
+
+        @Override
+        void clear(int node, int next) {
+            orders[node] = null;
+            left[node] = next;
+            right[node] = 0;
+            size[node] = 0;
+        }
+
+        @Override
+        int capacity() {
+            return orders.length;
+        }
+
+        @Override
+        void grow() {
+            int capacity = orders.length * 2;
+
+            orders = Arrays.copyOf(orders, capacity);
+            dates = Arrays.copyOf(dates, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+            left = Arrays.copyOf(left, capacity);
+            right = Arrays.copyOf(right, capacity);
+            size = Arrays.copyOf(size, capacity);
+            priority = Arrays.copyOf(priority, capacity);
+        }
+    }
+
+    /**
+     * Nodes in direct buffer slabs of SLAB_NODES records each, so the
+     * heap holds one slab reference per SLAB_NODES orders. The first
+     * slab starts small and doubles until full size, later slabs are
+     * added whole and existing records are never copied.
+     */
+    static final class Slab extends LaneNodes {
+        // Record layout: date, ID, left, right, size, priority.
+        private static final int DATE = 0;
+        private static final int ID = 8;
+        private static final int LEFT = 16;
+        private static final int RIGHT = 20;
+        private static final int SIZE = 24;
+        private static final int PRIORITY = 28;
+        private static final int RECORD_SHIFT = 5;
+        // 4096 records, 128 KB per slab.
+        private static final int SLAB_SHIFT = 12;
+        private static final int SLAB_NODES = 1 << SLAB_SHIFT;
+        private static final int SLAB_MASK = SLAB_NODES - 1;
+
+        private final RankingPolicy policy;
+        private ByteBuffer[] slabs = new ByteBuffer[1];
+        private int capacity = INITIAL_CAPACITY;
+
+        Slab(RankingPolicy policy) {
+            this.policy = policy;
+            slabs[0] = allocate(INITIAL_CAPACITY);
+        }
+
+        @Override
+        WorkOrder order(int node) {
+            return (node != 0) ? new WorkOrder(id(node), date(node), policy) : null;
+        }
+
+        @Override
+        long date(int node) {
+            return slabs[node >>> SLAB_SHIFT].getLong(offset(node) + DATE);
+        }
+
+        @Override
+        long id(int node) {
+            return slabs[node >>> SLAB_SHIFT].getLong(offset(node) + ID);
+        }
+
+        @Override
+        int left(int node) {
+            return slabs[node >>> SLAB_SHIFT].getInt(offset(node) + LEFT);
+        }
+
+        @Override
+        int right(int node) {
+            return slabs[node >>> SLAB_SHIFT].getInt(offset(node) + RIGHT);
+        }
+
+        @Override
+        int size(int node) {
+            return slabs[node >>> SLAB_SHIFT].getInt(offset(node) + SIZE);
+        }
+
+        @Override
+        int priority(int node) {
+            return slabs[node >>> SLAB_SHIFT].getInt(offset(node) + PRIORITY);
+        }
+
+        @Override
+        void left(int node, int value) {
+            slabs[node >>> SLAB_SHIFT].putInt(offset(node) + LEFT, value);
+        }
+
+        @Override
+        void right(int node, int value) {
+            slabs[node >>> SLAB_SHIFT].putInt(offset(node) + RIGHT, value);
+        }
+
+        @Override
+        void size(int node, int value) {
+            slabs[node >>> SLAB_SHIFT].putInt(offset(node) + SIZE, value);
+        }
+
+        @Override
+        void set(int node, WorkOrder order, int priority) {
+            ByteBuffer slab = slabs[node >>> SLAB_SHIFT];
+            int offset = offset(node);
+
+            slab.putLong(offset + DATE, order.getEpochMillis());
+            slab.putLong(offset + ID, order.getId());
+            slab.putInt(offset + LEFT, 0);
+            slab.putInt(offset + RIGHT, 0);
+            slab.putInt(offset + SIZE, 1);
+            slab.putInt(offset + PRIORITY, priority);
+        }
+
+        @Override
+        void clear(int node, int next) {
+            ByteBuffer slab = slabs[node >>> SLAB_SHIFT];
+            int offset = offset(node);
+
+            slab.putInt(offset + LEFT, next);
+            slab.putInt(offset + RIGHT, 0);
+            slab.putInt(offset + SIZE, 0);
+        }
+
+        @Override
+        int capacity() {
+            return capacity;
+        }
+
+        @Override
+        void grow() {
+            if (capacity < SLAB_NODES) {
+                ByteBuffer larger = allocate(capacity * 2);
+                slabs[0].clear();
+                larger.put(slabs[0]);
+                slabs[0] = larger;
+                capacity *= 2;
+            }
+            else {
+                int count = capacity >>> SLAB_SHIFT;
+
+                if (count == slabs.length) {
+                    slabs = Arrays.copyOf(slabs, count * 2);
+                }
+                slabs[count] = allocate(SLAB_NODES);
+                capacity += SLAB_NODES;
+            }
+        }
+
+        private static int offset(int node) {
+            return (node & SLAB_MASK) << RECORD_SHIFT;
+        }
+
+        private static ByteBuffer allocate(int records) {
+            return ByteBuffer.allocateDirect(records << RECORD_SHIFT).order(ByteOrder.nativeOrder());
+        }
+    }
+}
@@ -0,0 +1,687 @@
+package com.nathan.requests;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Connects a WorkOrderQueue to the other nodes of a cluster.
+ *
+ * Every ID is owned by exactly one node, picked by a hash of the ID,
+ * so duplicate checks hold across the cluster. Changes are sent to
+ * the owner. Dequeue asks every node for its best orders at one
+ * instant, merges them, and takes the winners from their owners,
+ * trying again if another node took one first. Positions add up the
+ * orders each node has ahead of the target. All calls to other nodes
+ * use the binary ClusterProtocol over pooled TCP connections.
+ *
+ * Each node also serves the protocol for the others, one thread per
+ * incoming connection, on the address listed for it. The protocol has
+ * no authentication, so that address must only be reachable from a
+ * private network.
+ *
+ * A lost response to an enqueue or take does not lose its order: the
+ * sender retries with the same request ID, and this node answers it
+ * from the results it kept for replay-millis rather than applying it
+ * a second time. Results are kept in memory only, so a retry reaching
+ * a restarted node is applied again, as a duplicate enqueue or a take
+ * of an order already gone.
+ *
+ * @author Nathan
+ */
+final class OrderCluster implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(OrderCluster.class);
+    private static final int BUFFER_SIZE = 8192;
+    // Pauses of the accept loop after failures in a row, doubling up to the maximum.
+    private static final long MIN_BACKOFF_MILLIS = 10;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+
+    private final int self;
+    private final InetSocketAddress[] nodes;
+    // Client of each other node, null for this node.
+    private final ClusterPeer[] peers;
+    private final ServerSocket server;
+    private final ExecutorService workers;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private final long replayNanos;
+    // Results of the enqueues and takes served, by request ID, and from oldest to newest.
+    private final ConcurrentHashMap<Long, Replay> replays = new ConcurrentHashMap<Long, Replay>();
+    private final ConcurrentLinkedQueue<Replay> replayOrder = new ConcurrentLinkedQueue<Replay>();
+    private final ReentrantLock expiryLock = new ReentrantLock();
+
+    // Set by start, before the server accepts connections.
+    private volatile WorkOrderQueue queue;
+    private volatile boolean closed;
+
+    /**
+     * CONSTRUCTOR: Binds the protocol port of this node, on the host
+     * listed for it rather than every interface. Other nodes
+     * are not contacted until they are needed.
+     * @param properties nodes of the cluster and connection settings.
+     * @param policy to rank orders received from other nodes by,
+     *               the same on every node.
+     * @throws IOException if the port cannot be bound.
+     * @throws IllegalArgumentException if a node address is invalid
+     *         or self is not in the node list.
+     */
+    OrderCluster(ClusterProperties properties, RankingPolicy policy) throws IOException {
+        List<String> addresses = properties.getNodes();
+        self = properties.getSelf();
+
+        if ((self < 0) || (self >= addresses.size())) {
+            throw new IllegalArgumentException("queue.cluster.self must index queue.cluster.nodes");
+        }
+
+        nodes = new InetSocketAddress[addresses.size()];
+        peers = new ClusterPeer[nodes.length];
+        replayNanos = TimeUnit.MILLISECONDS.toNanos(properties.getReplayMillis());
+
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = parse(addresses.get(i));
+
+            if (i != self) {
+                peers[i] = new ClusterPeer(nodes[i], properties, policy);
+            }
+        }
+
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(nodes[self]);
+
+        AtomicInteger threads = new AtomicInteger();
+        workers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "cluster-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts serving the other nodes from the queue's local orders.
+     * @param queue this node's queue.
+     */
+    void start(WorkOrderQueue queue) {
+        this.queue = queue;
+        workers.execute(this::accept);
+    }
+
+    /**
+     * @return index of the node owning the ID.
+     */
+    int owner(long ID) {
+        long hash = ID * 0xC2B2AE3D27D4EB4FL;
+        return (int) Long.remainderUnsigned(hash ^ (hash >>> 29), nodes.length);
+    }
+
+    /**
+     * @return index of this node.
+     */
+    int self() {
+        return self;
+    }
+
+    /**
+     * @return whether the owner added the order.
+     */
+    boolean enqueue(WorkOrder order) {
+        int owner = owner(order.getId());
+
+        if (owner == self) {
+            return queue.enqueueLocal(order);
+        }
+        return peers[owner].enqueue(Arrays.asList(order), false)[0] == WorkOrderQueue.ADDED;
+    }
+
+    /**
+     * @param limited whether each owner checks its orders against its capacity.
+     * @return result of each order on its owner, see WorkOrderQueue.enqueueAllLimited.
+     */
+    byte[] enqueueAll(List<WorkOrder> orders, boolean limited) {
+        byte[] results = new byte[orders.size()];
+        long[] IDs = new long[orders.size()];
+
+        for (int i = 0; i < IDs.length; i++) {
+            IDs[i] = orders.get(i).getId();
+        }
+
+        int[][] owned = byOwner(IDs);
+        for (int node = 0; node < nodes.length; node++) {
+            if (owned[node].length == 0) {
+                continue;
+            }
+
+            List<WorkOrder> batch = new ArrayList<WorkOrder>(owned[node].length);
+            for (int i : owned[node]) {
+                batch.add(orders.get(i));
+            }
+
+            byte[] result = (node == self) ? enqueueLocal(batch, limited) : peers[node].enqueue(batch, limited);
+            for (int i = 0; i < result.length; i++) {
+                results[owned[node][i]] = result[i];
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @param event journal event of the removal.
+     * @return whether the owner removed the order.
+     */
+    boolean take(long ID, int event) {
+        return take(new long[] {ID}, event)[0];
+    }
+
+    /**
+     * Removes up to count of the highest ranked orders of the cluster.
+     * @param count maximum number of orders.
+     * @param now instant the ranks are compared at.
+     * @return removed orders from highest rank to lowest.
+     */
+    List<WorkOrder> dequeue(int count, long now) {
+        List<WorkOrder> taken = new ArrayList<WorkOrder>();
+        boolean raced = true;
+
+        while (raced && (taken.size() < count)) {
+            int wanted = count - taken.size();
+            WorkOrder[][] tops = new WorkOrder[nodes.length][];
+
+            // the best wanted of the cluster are among the best wanted of each node.
+            for (int node = 0; node < nodes.length; node++) {
+                tops[node] = (node == self) ? queue.topLocal(wanted, now) : peers[node].top(wanted, now);
+            }
+
+            OrderCursor cursor = new OrderCursor(tops, now, queue.ranking());
+            long[] IDs = new long[Math.min(wanted, cursor.remaining())];
+            WorkOrder[] candidates = new WorkOrder[IDs.length];
+
+            for (int i = 0; i < IDs.length; i++) {
+                candidates[i] = cursor.next();
+                IDs[i] = candidates[i].getId();
+            }
+
+            boolean[] removed = take(IDs, OrderJournal.DEQUEUE);
+            raced = false;
+
+            for (int i = 0; i < removed.length; i++) {
+                if (removed[i]) {
+                    taken.add(candidates[i]);
+                }
+                else {
+                    // removed by someone else since it was reported.
+                    raced = true;
+                }
+            }
+        }
+        return taken;
+    }
+
+    /**
+     * @return lanes of every node, each from oldest to newest.
+     */
+    WorkOrder[][] lanes() {
+        List<WorkOrder[]> lanes = new ArrayList<WorkOrder[]>();
+
+        for (int node = 0; node < nodes.length; node++) {
+            WorkOrder[][] copies = (node == self) ? queue.copyLanes() : peers[node].lanes();
+            lanes.addAll(Arrays.asList(copies));
+        }
+        return lanes.toArray(new WorkOrder[lanes.size()][]);
+    }
+
+    /**
+     * @param IDs of orders to query.
+     * @param now instant the ranks are compared at.
+     * @return position of each order in the cluster, -1 if absent.
+     */
+    int[] positions(long[] IDs, long now) {
+        WorkOrder[] targets = get(IDs);
+        int[] positions = new int[IDs.length];
+
+        for (int node = 0; node < nodes.length; node++) {
+            int[] counts = (node == self) ? queue.countAheadLocal(targets, now)
+                    : peers[node].countAhead(targets, now);
+
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] += counts[i];
+            }
+        }
+        for (int i = 0; i < positions.length; i++) {
+            if (targets[i] == null) {
+                positions[i] = -1;
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * @return order of each ID from its owner, null if absent.
+     */
+    WorkOrder[] get(long[] IDs) {
+        WorkOrder[] orders = new WorkOrder[IDs.length];
+        int[][] owned = byOwner(IDs);
+
+        for (int node = 0; node < nodes.length; node++) {
+            if (owned[node].length == 0) {
+                continue;
+            }
+            if (node == self) {
+                for (int i : owned[node]) {
+                    orders[i] = queue.getLocal(IDs[i]);
+                }
+                continue;
+            }
+
+            WorkOrder[] found = peers[node].get(select(IDs, owned[node]));
+            for (int i = 0; i < found.length; i++) {
+                orders[owned[node][i]] = found[i];
+            }
+        }
+        return orders;
+    }
+
+    /**
+     * @param now current time in milliseconds.
+     * @return {number of orders, total wait time in seconds} of the cluster.
+     */
+    double[] stats(long now) {
+        double[] stats = new double[2];
+
+        for (int node = 0; node < nodes.length; node++) {
+            double[] one = (node == self) ? queue.statsLocal(now) : peers[node].stats(now);
+            stats[0] += one[0];
+            stats[1] += one[1];
+        }
+        return stats;
+    }
+
+    /**
+     * Stops serving the other nodes and closes every connection.
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        try {
+            server.close();
+        } catch (IOException e) {
+            LOG.warn("Could not close cluster port", e);
+        }
+        for (Socket connection : connections) {
+            closeQuietly(connection);
+        }
+        for (ClusterPeer peer : peers) {
+            if (peer != null) {
+                peer.close();
+            }
+        }
+        workers.shutdownNow();
+    }
+
+    /**
+     * Adds orders owned by this node, first checking them against its
+     * capacity if limited and the node has an AdmissionControl.
+     * @return result of each order, see WorkOrderQueue.enqueueAllLimited.
+     */
+    private byte[] enqueueLocal(List<WorkOrder> orders, boolean limited) {
+        AdmissionControl admission = limited ? queue.admission() : null;
+        boolean[] room = (admission != null) ? admission.hasRoom(orders) : null;
+        List<WorkOrder> admitted = orders;
+
+        if (room != null) {
+            admitted = new ArrayList<WorkOrder>(orders.size());
+            for (int i = 0; i < room.length; i++) {
+                if (room[i]) {
+                    admitted.add(orders.get(i));
+                }
+            }
+        }
+
+        boolean[] added = queue.enqueueAllLocal(admitted);
+        byte[] results = new byte[orders.size()];
+
+        for (int i = 0, next = 0; i < results.length; i++) {
+            if ((room != null) && !room[i]) {
+                results[i] = WorkOrderQueue.OVER_CAPACITY;
+            }
+            else {
+                results[i] = added[next++] ? WorkOrderQueue.ADDED : WorkOrderQueue.NOT_ADDED;
+            }
+        }
+        return results;
+    }
+
+    private boolean[] take(long[] IDs, int event) {
+        boolean[] taken = new boolean[IDs.length];
+        int[][] owned = byOwner(IDs);
+
+        for (int node = 0; node < nodes.length; node++) {
+            if (owned[node].length == 0) {
+                continue;
+            }
+
+            long[] batch = select(IDs, owned[node]);
+            boolean[] result = (node == self) ? queue.takeLocal(batch, event) : peers[node].take(batch, event);
+
+            for (int i = 0; i < result.length; i++) {
+                taken[owned[node][i]] = result[i];
+            }
+        }
+        return taken;
+    }
+
+    /**
+     * @return for each node, the indexes of the IDs it owns.
+     */
+    private int[][] byOwner(long[] IDs) {
+        int[] owners = new int[IDs.length];
+        int[] counts = new int[nodes.length];
+
+        for (int i = 0; i < IDs.length; i++) {
+            owners[i] = owner(IDs[i]);
+            counts[owners[i]]++;
+        }
+
+        int[][] owned = new int[nodes.length][];
+        for (int node = 0; node < nodes.length; node++) {
+            owned[node] = new int[counts[node]];
+            counts[node] = 0;
+        }
+        for (int i = 0; i < IDs.length; i++) {
+            owned[owners[i]][counts[owners[i]]++] = i;
+        }
+        return owned;
+    }
+
+    private static long[] select(long[] IDs, int[] indexes) {
+        long[] selected = new long[indexes.length];
+
+        for (int i = 0; i < indexes.length; i++) {
+            selected[i] = IDs[indexes[i]];
+        }
+        return selected;
+    }
+
+    /**
+     * Hands each incoming connection to a worker. Failures such as running
+     * out of file descriptors tend to repeat, so after each one the loop
+     * pauses, longer every time, and only logs when the pause doubles.
+     */
+    private void accept() {
+        long backoff = 0;
+
+        while (!closed) {
+            Socket connection;
+            try {
+                connection = server.accept();
+                backoff = 0;
+            } catch (IOException e) {
+                if (closed) {
+                    return;
+                }
+                if (backoff < MAX_BACKOFF_MILLIS) {
+                    backoff = Math.min(MAX_BACKOFF_MILLIS, Math.max(MIN_BACKOFF_MILLIS, backoff * 2));
+                    LOG.warn("Cluster port failed to accept, pausing " + backoff + " ms", e);
+                }
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                continue;
+            }
+
+            connections.add(connection);
+            try {
+                workers.execute(() -> serve(connection));
+            } catch (RejectedExecutionException e) {
+                // closed meanwhile.
+                connections.remove(connection);
+                closeQuietly(connection);
+            }
+        }
+    }
+
+    /**
+     * Answers the requests of one connection until the other node closes it.
+     */
+    private void serve(Socket connection) {
+        try {
+            connection.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(connection.getInputStream(), BUFFER_SIZE));
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(connection.getOutputStream(), BUFFER_SIZE));
+
+            if (in.readInt() != ClusterProtocol.MAGIC) {
+                LOG.warn("Rejected cluster connection from {}", connection.getRemoteSocketAddress());
+                return;
+            }
+
+            for (int operation = in.read(); operation >= 0; operation = in.read()) {
+                try {
+                    handle(operation, in, out);
+                } catch (RuntimeException e) {
+                    // results are complete before anything is written, so the frame is still in step.
+                    LOG.warn("Cluster request failed", e);
+                    out.writeByte(ClusterProtocol.ERROR);
+                    out.writeUTF(String.valueOf(e.getMessage()));
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                LOG.debug("Cluster connection closed", e);
+            }
+        } finally {
+            connections.remove(connection);
+            closeQuietly(connection);
+        }
+    }
+
+    private void handle(int operation, DataInputStream in, DataOutputStream out) throws IOException {
+        RankingPolicy policy = queue.getRankingPolicy();
+
+        switch (operation) {
+            case ClusterProtocol.ENQUEUE: {
+                long request = in.readLong();
+                boolean limited = in.readBoolean();
+                WorkOrder[] orders = ClusterProtocol.readOrders(in, policy);
+                byte[] results = replay(request, () -> enqueueLocal(Arrays.asList(orders), limited));
+
+                out.writeByte(ClusterProtocol.OK);
+                out.write(results);
+                break;
+            }
+            case ClusterProtocol.TAKE: {
+                long request = in.readLong();
+                int event = in.readUnsignedByte();
+                long[] IDs = readIDs(in);
+
+                if ((event != OrderJournal.DEQUEUE) && (event != OrderJournal.REMOVE)) {
+                    throw new IOException("Unknown removal event " + event);
+                }
+                boolean[] taken = replay(request, () -> queue.takeLocal(IDs, event));
+
+                out.writeByte(ClusterProtocol.OK);
+                ClusterProtocol.writeFlags(out, taken);
+                break;
+            }
+            case ClusterProtocol.GET: {
+                long[] IDs = readIDs(in);
+
+                out.writeByte(ClusterProtocol.OK);
+                for (long ID : IDs) {
+                    WorkOrder order = queue.getLocal(ID);
+                    out.writeBoolean(order != null);
+                    out.writeLong((order != null) ? order.getEpochMillis() : 0);
+                }
+                break;
+            }
+            case ClusterProtocol.TOP: {
+                int count = ClusterProtocol.readCount(in);
+                WorkOrder[] top = queue.topLocal(count, in.readLong());
+
+                out.writeByte(ClusterProtocol.OK);
+                ClusterProtocol.writeOrders(out, top);
+                break;
+            }
+            case ClusterProtocol.COUNT_AHEAD: {
+                long now = in.readLong();
+                WorkOrder[] targets = ClusterProtocol.readOrders(in, policy);
+
+                for (int i = 0; i < targets.length; i++) {
+                    if (targets[i].getId() < 1) {
+                        targets[i] = null;
+                    }
+                }
+                int[] counts = queue.countAheadLocal(targets, now);
+
+                out.writeByte(ClusterProtocol.OK);
+                for (int count : counts) {
+                    out.writeInt(count);
+                }
+                break;
+            }
+            case ClusterProtocol.STATS: {
+                double[] stats = queue.statsLocal(in.readLong());
+
+                out.writeByte(ClusterProtocol.OK);
+                out.writeInt((int) stats[0]);
+                out.writeDouble(stats[1]);
+                break;
+            }
+            case ClusterProtocol.LANES: {
+                WorkOrder[][] lanes = queue.copyLanes();
+
+                out.writeByte(ClusterProtocol.OK);
+                out.writeInt(lanes.length);
+                for (WorkOrder[] lane : lanes) {
+                    ClusterProtocol.writeOrders(out, lane);
+                }
+                break;
+            }
+            default:
+                throw new IOException("Unknown cluster operation " + operation);
+        }
+    }
+
+    /**
+     * Applies a request the first time its ID is seen, and answers any
+     * repeat with that first result, waiting for it if still applying.
+     * A request that failed is forgotten, so its retry applies it again.
+     * @param request ID picked by the sender.
+     * @param operation applying the request.
+     * @return result of the first time the request was applied.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T replay(long request, Supplier<T> operation) {
+        long now = System.nanoTime();
+        Replay replay = new Replay(request, now);
+        Replay first = replays.putIfAbsent(request, replay);
+
+        expireReplays(now);
+
+        if (first != null) {
+            return (T) first.result.join();
+        }
+        replayOrder.add(replay);
+
+        try {
+            T result = operation.get();
+            replay.result.complete(result);
+            return result;
+        } catch (RuntimeException e) {
+            replays.remove(request, replay);
+            replay.result.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Forgets the results older than replayNanos. Only one thread
+     * expires at a time, the others leave it to that one.
+     */
+    private void expireReplays(long now) {
+        if (!expiryLock.tryLock()) {
+            return;
+        }
+        try {
+            for (Replay oldest = replayOrder.peek(); (oldest != null) && (now - oldest.created > replayNanos);
+                 oldest = replayOrder.peek()) {
+                replayOrder.poll();
+                replays.remove(oldest.request, oldest);
+            }
+        } finally {
+            expiryLock.unlock();
+        }
+    }
+
+    private static long[] readIDs(DataInputStream in) throws IOException {
+        long[] IDs = new long[ClusterProtocol.readCount(in)];
+
+        for (int i = 0; i < IDs.length; i++) {
+            IDs[i] = in.readLong();
+        }
+        return IDs;
+    }
+
+    /**
+     * @param address host:port
+     */
+    private static InetSocketAddress parse(String address) {
+        int colon = address.lastIndexOf(':');
+
+        try {
+            return new InetSocketAddress(address.substring(0, colon).trim(),
+                    Integer.parseInt(address.substring(colon + 1).trim()));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Cluster node must be host:port, was " + address, e);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing left to release.
+        }
+    }
+
+    /**
+     * Result of one enqueue or take, kept to answer its retries.
+     */
+    private static final class Replay {
+        final long request;
+        // System.nanoTime() when the request was first seen.
+        final long created;
+        final CompletableFuture<Object> result = new CompletableFuture<Object>();
+
+        Replay(long request, long created) {
+            this.request = request;
+            this.created = created;
+        }
+    }
+}
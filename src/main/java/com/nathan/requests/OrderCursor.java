@@ -0,0 +1,78 @@
+package com.nathan.requests;
+
+/**
+ * Walks a copy of the queue from the highest ranked order to the lowest.
+ * The copied lanes are merged lazily by a tournament between their heads,
+ * with every rank compared at the instant the copy was taken, so no
+ * ranked list of the whole queue is ever built.
+ *
+ * A cursor is used by one thread at a time.
+ *
+ * @author Nathan
+ */
+final class OrderCursor {
+    private final WorkOrder[][] lanes;
+    private final int[] positions;
+    private final WorkOrder[] heads;
+    private final OrderTournament tournament;
+    private int remaining;
+
+    /**
+     * CONSTRUCTOR
+     * @param lanes orders of each lane, each in ranked order,
+     *              which is oldest to newest for queue lanes.
+     * @param now instant the ranks are compared at.
+     * @param ranking of the orders' policy.
+     */
+    OrderCursor(WorkOrder[][] lanes, long now, OrderRanking ranking) {
+        this.lanes = lanes;
+        positions = new int[lanes.length];
+        heads = new WorkOrder[lanes.length];
+
+        for (int i = 0; i < lanes.length; i++) {
+            remaining += lanes[i].length;
+            heads[i] = (lanes[i].length > 0) ? lanes[i][0] : null;
+        }
+        tournament = new OrderTournament(heads, ranking);
+        tournament.reset(now);
+    }
+
+    /**
+     * @return next order by rank, or null if there are no more.
+     */
+    WorkOrder next() {
+        int best = tournament.best();
+
+        if (best < 0) {
+            return null;
+        }
+
+        WorkOrder order = heads[best];
+        int next = ++positions[best];
+        heads[best] = (next < lanes[best].length) ? lanes[best][next] : null;
+        tournament.update(best);
+        remaining--;
+        return order;
+    }
+
+    /**
+     * Skips over the next orders by rank.
+     * @param count number of orders to skip.
+     * @return number of orders skipped, less than count if the cursor ran out.
+     */
+    long skip(long count) {
+        long skipped = 0;
+
+        while ((skipped < count) && (next() != null)) {
+            skipped++;
+        }
+        return skipped;
+    }
+
+    /**
+     * @return number of orders not yet returned.
+     */
+    int remaining() {
+        return remaining;
+    }
+}
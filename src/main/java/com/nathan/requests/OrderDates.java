@@ -0,0 +1,115 @@
+package com.nathan.requests;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Parses and formats order dates in the yyyy-MM-dd_HH:mm layout,
+ * in the default time zone of the server.
+ *
+ * All state is immutable or safely shared, so it can be used from
+ * every request thread without locking. Parsing reads the fixed layout digit by digit,
+ * and formatting keeps a small cache of recently formatted minutes
+ * since most orders of a burst share the same few minutes.
+ *
+ * @author Nathan
+ */
+final class OrderDates {
+    static final String PATTERN = "yyyy-MM-dd_HH:mm";
+    static final String NOW = "now";
+
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern(PATTERN);
+    private static final int CACHE_SIZE = 256;
+    private static final long MILLIS_PER_MINUTE = 60000;
+
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+    // Direct mapped by epoch minute, entries are immutable so racy reads are safe.
+    private static final Minute[] CACHE = new Minute[CACHE_SIZE];
+
+    private OrderDates() {
+    }
+
+    /**
+     * Parses a date in format yyyy-MM-dd_HH:mm, or "now".
+     * @param dateString string representation of date.
+     * @return epoch milliseconds.
+     * @throws InvalidOrderDateException if the date does not match the layout
+     *         or is not a valid date.
+     */
+    static long parse(String dateString) {
+        if (NOW.equalsIgnoreCase(dateString)) {
+            return System.currentTimeMillis();
+        }
+        else if ((dateString == null) || (dateString.length() != PATTERN.length())) {
+            throw new InvalidOrderDateException(dateString);
+        }
+
+        int year = digits(dateString, 0, 4);
+        int month = digits(dateString, 5, 2);
+        int day = digits(dateString, 8, 2);
+        int hour = digits(dateString, 11, 2);
+        int minute = digits(dateString, 14, 2);
+
+        if ((year < 0) || (month < 0) || (day < 0) || (hour < 0) || (minute < 0) ||
+                (dateString.charAt(4) != '-') || (dateString.charAt(7) != '-') ||
+                (dateString.charAt(10) != '_') || (dateString.charAt(13) != ':')) {
+            throw new InvalidOrderDateException(dateString);
+        }
+
+        try {
+            return LocalDateTime.of(year, month, day, hour, minute)
+                    .atZone(ZONE).toInstant().toEpochMilli();
+        } catch (DateTimeException e) {
+            throw new InvalidOrderDateException(dateString);
+        }
+    }
+
+    /**
+     * Formats a date as yyyy-MM-dd_HH:mm.
+     * @param epochMillis date to format.
+     * @return date as string.
+     */
+    static String format(long epochMillis) {
+        long minute = Math.floorDiv(epochMillis, MILLIS_PER_MINUTE);
+        int slot = (int) (minute & (CACHE_SIZE - 1));
+        Minute cached = CACHE[slot];
+
+        if ((cached == null) || (cached.minute != minute)) {
+            String text = FORMATTER.format(LocalDateTime.ofInstant(
+                    Instant.ofEpochMilli(minute * MILLIS_PER_MINUTE), ZONE));
+            cached = new Minute(minute, text);
+            CACHE[slot] = cached;
+        }
+        return cached.text;
+    }
+
+    /**
+     * @return value of the decimal digits, or -1 if any is not a digit.
+     */
+    private static int digits(String text, int start, int count) {
+        int value = 0;
+
+        for (int i = start; i < start + count; i++) {
+            int digit = text.charAt(i) - '0';
+
+            if ((digit < 0) || (digit > 9)) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static final class Minute {
+        final long minute;
+        final String text;
+
+        Minute(long minute, String text) {
+            this.minute = minute;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.nathan.requests;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evicts queued orders that outlived the TTL of their level.
+ *
+ * One background thread ticks every tickMillis. Each tick asks the
+ * queue to expire the oldest orders of every level with a TTL, which
+ * only looks at lane heads, so a tick with nothing to evict costs one
+ * peek per lane however many orders are queued. Evictions are counted
+ * by level in QueueMetrics. In a cluster each node evicts its own orders.
+ *
+ * @author Nathan
+ */
+final class OrderExpiry implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(OrderExpiry.class);
+    private static final WorkOrder.ClassLevel[] LEVELS = WorkOrder.ClassLevel.values();
+
+    private final WorkOrderQueue queue;
+    private final ExpiryProperties properties;
+    private final QueueMetrics metrics;
+
+    // Started by start if any level has a TTL, guarded by this.
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * CONSTRUCTOR
+     * @param queue to evict orders from.
+     * @param properties TTL of each level.
+     * @param metrics counting the evictions.
+     */
+    OrderExpiry(WorkOrderQueue queue, ExpiryProperties properties, QueueMetrics metrics) {
+        this.queue = queue;
+        this.properties = properties;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Evicts the expired orders of every level with a TTL.
+     * @return number of orders evicted.
+     */
+    int tick() {
+        int total = 0;
+
+        for (WorkOrder.ClassLevel level : LEVELS) {
+            long ttl = properties.ttlMillis(level);
+
+            if (ttl > 0) {
+                int expired = queue.expireLocal(level, ttl);
+
+                if (expired > 0) {
+                    metrics.expired(level, expired);
+                    total += expired;
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Starts ticking, unless no level has a TTL.
+     */
+    synchronized void start() {
+        if ((scheduler != null) || !properties.isEnabled()) {
+            return;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "order-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, properties.getTickMillis());
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                tick();
+            } catch (RuntimeException e) {
+                LOG.error("Order expiry failed", e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background thread.
+     */
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+}
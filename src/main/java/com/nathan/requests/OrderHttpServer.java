@@ -0,0 +1,817 @@
+package com.nathan.requests;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Minimal HTTP/1.1 front end serving the six core routes of the queue
+ * without Spring MVC: the list, a position, the mean wait time, creating
+ * an order, dequeueing and removing one. Answers are the same as those
+ * of QueueController, in JSON. Other routes answer NOT_FOUND, they are
+ * only served by the controller.
+ *
+ * One selector thread accepts, reads and answers every connection with
+ * non-blocking NIO. Requests are parsed from the connection's read
+ * buffer and answers are written into its write buffer, both kept for
+ * the life of the connection. Keep-alive and pipelined requests are
+ * supported, request bodies are skipped. The list and mean wait time
+ * come from the ReadCache, with ETags, and If-None-Match is honored.
+ * New orders go through the same AdmissionControl as the controller.
+ *
+ * Queue calls run on the selector thread, so with a cluster a slow node
+ * holds up every connection until its read timeout.
+ *
+ * @author Nathan
+ */
+final class OrderHttpServer implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(OrderHttpServer.class);
+    private static final String PREFIX = "/queue";
+    private static final String JSON = "Content-Type: application/json;charset=UTF-8\r\n";
+    private static final String[] NO_SEGMENTS = {};
+    private static final int MIN_BUFFER = 256;
+    // Write buffers grown past this many times their size are dropped once sent.
+    private static final int MAX_GROWTH = 64;
+
+    private final WorkOrderQueue queue;
+    private final ReadCache readCache;
+    private final AdmissionControl admission;
+    private final HttpProperties properties;
+    private final QueueMetrics metrics;
+    private final int bufferSize;
+    // Body of the answer being written, used by the selector thread only.
+    private Output body;
+
+    // Set by start, guarded by this.
+    private Selector selector;
+    private ServerSocketChannel server;
+    private Thread thread;
+    private volatile boolean running;
+
+    /**
+     * CONSTRUCTOR
+     * @param queue to serve.
+     * @param readCache cached reads of the same queue.
+     * @param admission limits of new orders in the same queue.
+     * @param properties port and buffer size.
+     * @param metrics meters of the requests.
+     */
+    OrderHttpServer(WorkOrderQueue queue, ReadCache readCache, AdmissionControl admission,
+                    HttpProperties properties, QueueMetrics metrics) {
+        this.queue = queue;
+        this.readCache = readCache;
+        this.admission = admission;
+        this.properties = properties;
+        this.metrics = metrics;
+        bufferSize = Math.max(MIN_BUFFER, properties.getBufferSize());
+        body = new Output(bufferSize);
+    }
+
+    /**
+     * Binds the port and starts the selector thread, unless disabled.
+     * @throws IOException if the port cannot be bound.
+     */
+    synchronized void start() throws IOException {
+        if ((thread != null) || !properties.isEnabled()) {
+            return;
+        }
+
+        selector = Selector.open();
+        try {
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(properties.getPort()));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            closeQuietly(server);
+            closeQuietly(selector);
+            throw e;
+        }
+
+        running = true;
+        thread = new Thread(this::run, "order-http");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return port listened on, -1 if not started.
+     */
+    synchronized int getPort() {
+        return (server != null) ? server.socket().getLocalPort() : -1;
+    }
+
+    /**
+     * Stops the selector thread and closes every connection.
+     */
+    @Override
+    public synchronized void close() {
+        if (thread == null) {
+            return;
+        }
+
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    try {
+                        handle(key);
+                    } catch (IOException e) {
+                        closeConnection(key);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.error("HTTP front end stopped", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key.channel());
+            }
+            closeQuietly(selector);
+        }
+    }
+
+    private void handle(SelectionKey key) throws IOException {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isAcceptable()) {
+            accept();
+            return;
+        }
+
+        Connection connection = (Connection) key.attachment();
+
+        if (key.isReadable()) {
+            read(key, connection);
+        }
+        if (key.isValid() && key.isWritable()) {
+            flush(key, connection);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        String address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+        channel.register(selector, SelectionKey.OP_READ, new Connection(channel, address, bufferSize));
+    }
+
+    /**
+     * Reads what arrived and answers every complete request in it.
+     */
+    private void read(SelectionKey key, Connection connection) throws IOException {
+        ByteBuffer in = connection.in;
+
+        if (connection.channel.read(in) < 0) {
+            closeConnection(key);
+            return;
+        }
+
+        in.flip();
+        while (!connection.closing) {
+            int start = in.position();
+            int end = headEnd(in);
+
+            if (end < 0) {
+                if (in.limit() - start == in.capacity()) {
+                    connection.closing = true;
+                    respond(connection, HttpStatus.REQUEST_HEADER_FIELDS_TOO_LARGE, null);
+                }
+                break;
+            }
+
+            String head = new String(in.array(), start, end - start, StandardCharsets.ISO_8859_1);
+            long length = contentLength(head);
+
+            if ((length < 0) || (length > in.capacity() - (end - start))) {
+                connection.closing = true;
+                respond(connection, (length < 0) ? HttpStatus.BAD_REQUEST : HttpStatus.PAYLOAD_TOO_LARGE, null);
+                break;
+            }
+            if (end + length > in.limit()) {
+                // Wait for the rest of the body.
+                break;
+            }
+
+            in.position(end + (int) length);
+            serve(connection, head);
+        }
+        in.compact();
+        flush(key, connection);
+    }
+
+    /**
+     * Writes what can be written, then waits for the socket to take
+     * the rest before reading further requests.
+     */
+    private void flush(SelectionKey key, Connection connection) throws IOException {
+        ByteBuffer out = connection.out.buffer;
+
+        out.flip();
+        connection.channel.write(out);
+        boolean sent = !out.hasRemaining();
+        out.compact();
+
+        if (sent && connection.closing) {
+            closeConnection(key);
+            return;
+        }
+        if (sent) {
+            connection.out.trim(bufferSize);
+        }
+        key.interestOps(sent ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * @return index just past the blank line ending the request head, or -1.
+     */
+    private static int headEnd(ByteBuffer in) {
+        byte[] bytes = in.array();
+
+        for (int i = in.position(), last = in.limit() - 4; i <= last; i++) {
+            if ((bytes[i] == '\r') && (bytes[i + 1] == '\n') && (bytes[i + 2] == '\r') && (bytes[i + 3] == '\n')) {
+                return i + 4;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return length of the body, 0 if none, -1 if it cannot be told.
+     */
+    private static long contentLength(String head) {
+        if (header(head, "Transfer-Encoding") != null) {
+            return -1;
+        }
+
+        String length = header(head, "Content-Length");
+        try {
+            return (length != null) ? Long.parseLong(length) : 0;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return value of the first header of the name, trimmed, or null if absent.
+     */
+    private static String header(String head, String name) {
+        for (int line = head.indexOf("\r\n") + 2; line < head.length(); ) {
+            int end = head.indexOf("\r\n", line);
+            int colon = head.indexOf(':', line);
+
+            if ((colon > 0) && (colon < end) && (colon - line == name.length())
+                    && head.regionMatches(true, line, name, 0, name.length())) {
+                return head.substring(colon + 1, end).trim();
+            }
+            line = end + 2;
+        }
+        return null;
+    }
+
+    private void serve(Connection connection, String head) {
+        String line = head.substring(0, head.indexOf("\r\n"));
+        int first = line.indexOf(' ');
+        int last = line.lastIndexOf(' ');
+
+        if ((first < 0) || (last <= first)) {
+            connection.closing = true;
+            respond(connection, HttpStatus.BAD_REQUEST, null);
+            return;
+        }
+
+        String method = line.substring(0, first);
+        String target = line.substring(first + 1, last);
+        String keepAlive = header(head, "Connection");
+
+        if ("HTTP/1.1".equals(line.substring(last + 1))) {
+            connection.closing = "close".equalsIgnoreCase(keepAlive);
+        }
+        else {
+            connection.closing = !"keep-alive".equalsIgnoreCase(keepAlive);
+        }
+
+        try {
+            route(connection, method, target, head);
+        } catch (ClusterException e) {
+            respond(connection, HttpStatus.SERVICE_UNAVAILABLE, null);
+        } catch (RuntimeException e) {
+            LOG.error("Request {} failed", line, e);
+            respond(connection, HttpStatus.INTERNAL_SERVER_ERROR, null);
+        }
+    }
+
+    private void route(Connection connection, String method, String target, String head) {
+        int query = target.indexOf('?');
+        String path = (query < 0) ? target : target.substring(0, query);
+        String[] segments = segments(path);
+
+        if (segments == null) {
+            respond(connection, HttpStatus.NOT_FOUND, null);
+        }
+        else if (segments.length == 0) {
+            if ("GET".equals(method)) {
+                list(connection, header(head, "If-None-Match"));
+            }
+            else if ("DELETE".equals(method)) {
+                String parameters = (query < 0) ? "" : target.substring(query + 1);
+                String count = parameter(parameters, "count");
+
+                if (parameter(parameters, "timeout") != null) {
+                    // waiting parks the request, which only the controller does.
+                    if (count != null) {
+                        metrics.count(QueueMetrics.Outcome.BAD_REQUEST);
+                        respond(connection, HttpStatus.BAD_REQUEST, null);
+                    }
+                    else {
+                        respond(connection, HttpStatus.NOT_IMPLEMENTED, null);
+                    }
+                }
+                else if (count != null) {
+                    dequeue(connection, count);
+                }
+                else {
+                    dequeue(connection);
+                }
+            }
+            else {
+                respond(connection, HttpStatus.NOT_FOUND, null);
+            }
+        }
+        else if ((segments.length == 1) && "GET".equals(method) && !"stream".equals(segments[0])) {
+            if ("meantime".equals(segments[0])) {
+                waitTime(connection, header(head, "If-None-Match"));
+            }
+            else {
+                position(connection, segments[0]);
+            }
+        }
+        else if ((segments.length == 1) && "DELETE".equals(method)) {
+            remove(connection, segments[0]);
+        }
+        else if ((segments.length == 2) && "POST".equals(method)) {
+            AdmissionProperties properties = admission.getProperties();
+            String client = properties.hasClientHeader() ? header(head, properties.getClientHeader()) : null;
+            enqueue(connection, segments[0], segments[1], (client != null) ? client : connection.address);
+        }
+        else {
+            respond(connection, HttpStatus.NOT_FOUND, null);
+        }
+    }
+
+    /**
+     * @return decoded segments of the path after /queue, null if the path is not under /queue.
+     */
+    private static String[] segments(String path) {
+        if (!path.startsWith(PREFIX)) {
+            return null;
+        }
+
+        String rest = path.substring(PREFIX.length());
+        if (rest.isEmpty() || "/".equals(rest)) {
+            return NO_SEGMENTS;
+        }
+        if (rest.charAt(0) != '/') {
+            return null;
+        }
+
+        String[] segments = rest.substring(1).split("/");
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = decode(segments[i]);
+
+            if ((segments[i] == null) || segments[i].isEmpty()) {
+                return null;
+            }
+        }
+        return segments;
+    }
+
+    private static String decode(String segment) {
+        if (segment.indexOf('%') < 0) {
+            return segment;
+        }
+        try {
+            return URLDecoder.decode(segment.replace("+", "%2B"), "UTF-8");
+        } catch (IllegalArgumentException | UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return decoded value of the query parameter, empty if it has none
+     *         or cannot be decoded, null if it is absent.
+     */
+    private static String parameter(String query, String name) {
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+
+            if (name.equals(decode((equals < 0) ? pair : pair.substring(0, equals)))) {
+                String value = (equals < 0) ? null : decode(pair.substring(equals + 1));
+                return (value != null) ? value : "";
+            }
+        }
+        return null;
+    }
+
+    private static Long parseId(String segment) {
+        try {
+            return Long.parseLong(segment);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void list(Connection connection, String ifNoneMatch) {
+        long start = System.nanoTime();
+        ReadCache.Answer<List<Long>> answer;
+
+        try {
+            answer = readCache.list();
+        } finally {
+            metrics.record(QueueMetrics.Endpoint.LIST, start);
+        }
+        respondCached(connection, answer, ifNoneMatch);
+    }
+
+    private void position(Connection connection, String segment) {
+        Long id = parseId(segment);
+
+        if (id == null) {
+            respond(connection, HttpStatus.BAD_REQUEST, null);
+            return;
+        }
+
+        long start = System.nanoTime();
+        int position;
+
+        try {
+            position = queue.getPositionOfOrder(id);
+        } finally {
+            metrics.record(QueueMetrics.Endpoint.POSITION, start);
+        }
+        respond(connection, HttpStatus.OK, body().number(position));
+    }
+
+    private void waitTime(Connection connection, String ifNoneMatch) {
+        long start = System.nanoTime();
+        ReadCache.Answer<Double> answer;
+
+        try {
+            answer = readCache.waitTime();
+        } finally {
+            metrics.record(QueueMetrics.Endpoint.MEANTIME, start);
+        }
+        respondCached(connection, answer, ifNoneMatch);
+    }
+
+    private void respondCached(Connection connection, ReadCache.Answer<?> answer, String ifNoneMatch) {
+        String eTag = answer.getETag();
+
+        if (ReadCache.matches(ifNoneMatch, eTag)) {
+            respond(connection, HttpStatus.NOT_MODIFIED, null, HttpHeaders.ETAG, eTag);
+        }
+        else {
+            respond(connection, HttpStatus.OK, body().put(answer.getJson()), HttpHeaders.ETAG, eTag);
+        }
+    }
+
+    private void enqueue(Connection connection, String idSegment, String date, String client) {
+        Long id = parseId(idSegment);
+        WorkOrder order;
+
+        if (id == null) {
+            respond(connection, HttpStatus.BAD_REQUEST, null);
+            return;
+        }
+
+        try {
+            order = new WorkOrder(id, date, queue.getRankingPolicy());
+        } catch (InvalidOrderDateException e) {
+            metrics.count(QueueMetrics.Outcome.BAD_REQUEST);
+            respond(connection, HttpStatus.BAD_REQUEST, null);
+            return;
+        }
+
+        if (id < 1) {
+            metrics.count(QueueMetrics.Outcome.BAD_REQUEST);
+            respond(connection, HttpStatus.BAD_REQUEST, null);
+            return;
+        }
+
+        long retryAfter = admission.admit(client, order);
+
+        if (retryAfter > 0) {
+            respond(connection, HttpStatus.TOO_MANY_REQUESTS, null, HttpHeaders.RETRY_AFTER, Long.toString(retryAfter));
+            return;
+        }
+
+        long start = System.nanoTime();
+        byte result;
+
+        try {
+            result = admission.enqueue(order);
+        } finally {
+            metrics.record(QueueMetrics.Endpoint.ENQUEUE, start);
+        }
+
+        if (result == WorkOrderQueue.ADDED) {
+            respond(connection, HttpStatus.CREATED, body().order(order));
+        }
+        else if (result == WorkOrderQueue.OVER_CAPACITY) {
+            admission.refund(client);
+            respond(connection, HttpStatus.TOO_MANY_REQUESTS, null,
+                    HttpHeaders.RETRY_AFTER, Long.toString(admission.retryAfterSeconds()));
+        }
+        else {
+            admission.refund(client);
+            metrics.count(QueueMetrics.Outcome.CONFLICT);
+            respond(connection, HttpStatus.CONFLICT, null);
+        }
+    }
+
+    private void dequeue(Connection connection) {
+        long start = System.nanoTime();
+        WorkOrder order;
+
+        try {
+            order = queue.dequeue();
+        } finally {
+            metrics.record(QueueMetrics.Endpoint.DEQUEUE, start);
+        }
+
+        if (order != null) {
+            respond(connection, HttpStatus.OK, body().order(order));
+        }
+        else {
+            metrics.count(QueueMetrics.Outcome.EMPTY_DEQUEUE);
+            respond(connection, HttpStatus.NOT_FOUND, null);
+        }
+    }
+
+    private void dequeue(Connection connection, String parameter) {
+        int count;
+
+        try {
+            count = Integer.parseInt(parameter);
+        } catch (NumberFormatException e) {
+            respond(connection, HttpStatus.BAD_REQUEST, null);
+            return;
+        }
+        if (count < 1) {
+            metrics.count(QueueMetrics.Outcome.BAD_REQUEST);
+            respond(connection, HttpStatus.BAD_REQUEST, null);
+            return;
+        }
+
+        long start = System.nanoTime();
+        List<WorkOrder> orders;
+
+        try {
+            orders = queue.dequeue(count);
+        } finally {
+            metrics.record(QueueMetrics.Endpoint.DEQUEUE, start);
+        }
+
+        if (orders.isEmpty()) {
+            metrics.count(QueueMetrics.Outcome.EMPTY_DEQUEUE);
+            respond(connection, HttpStatus.NOT_FOUND, null);
+            return;
+        }
+
+        Output out = body().put('[');
+        for (int i = 0; i < orders.size(); i++) {
+            if (i > 0) {
+                out.put(',');
+            }
+            out.order(orders.get(i));
+        }
+        respond(connection, HttpStatus.OK, out.put(']'));
+    }
+
+    private void remove(Connection connection, String segment) {
+        Long id = parseId(segment);
+
+        if (id == null) {
+            respond(connection, HttpStatus.BAD_REQUEST, null);
+            return;
+        }
+        if (id < 0) {
+            metrics.count(QueueMetrics.Outcome.BAD_REQUEST);
+            respond(connection, HttpStatus.BAD_REQUEST, body().number(id));
+            return;
+        }
+
+        long start = System.nanoTime();
+        HttpStatus result;
+
+        try {
+            result = queue.removeOrder(id) ? HttpStatus.OK : HttpStatus.NOT_FOUND;
+        } finally {
+            metrics.record(QueueMetrics.Endpoint.REMOVE, start);
+        }
+        respond(connection, result, body().number(id));
+    }
+
+    /**
+     * @return the emptied body buffer, trimmed if a large answer grew it.
+     */
+    private Output body() {
+        body.clear();
+        body.trim(bufferSize);
+        return body;
+    }
+
+    private static void respond(Connection connection, HttpStatus status, Output body) {
+        respond(connection, status, body, null, null);
+    }
+
+    /**
+     * Appends an answer to the connection's write buffer.
+     * @param body JSON body, null for none.
+     * @param header name of one more header, null for none.
+     * @param value of the header.
+     */
+    private static void respond(Connection connection, HttpStatus status, Output body, String header, String value) {
+        Output out = connection.out;
+
+        out.ascii("HTTP/1.1 ").number(status.value()).put(' ').ascii(status.getReasonPhrase()).ascii("\r\n");
+        if (body != null) {
+            out.ascii(JSON);
+        }
+        if (header != null) {
+            out.ascii(header).ascii(": ").ascii(value).ascii("\r\n");
+        }
+        out.ascii("Content-Length: ").number((body != null) ? body.length() : 0).ascii("\r\n");
+        if (connection.closing) {
+            out.ascii("Connection: close\r\n");
+        }
+        out.ascii("\r\n");
+        if (body != null) {
+            out.put(body);
+        }
+    }
+
+    private static void closeConnection(SelectionKey key) {
+        key.cancel();
+        closeQuietly(key.channel());
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            LOG.debug("Close failed", e);
+        }
+    }
+
+    /**
+     * Buffers of one client connection.
+     */
+    private static final class Connection {
+        final SocketChannel channel;
+        // Remote address, names the client unless the request does.
+        final String address;
+        // Received bytes not yet parsed, in write mode between reads.
+        final ByteBuffer in;
+        // Answers not yet sent, in write mode between flushes.
+        final Output out;
+        // Whether the connection is closed once the answers are sent.
+        boolean closing;
+
+        Connection(SocketChannel channel, String address, int bufferSize) {
+            this.channel = channel;
+            this.address = address;
+            in = ByteBuffer.allocate(bufferSize);
+            out = new Output(bufferSize);
+        }
+    }
+
+    /**
+     * Growable byte buffer written with ASCII text and numbers.
+     */
+    private static final class Output {
+        private final byte[] digits = new byte[20];
+        ByteBuffer buffer;
+
+        Output(int size) {
+            buffer = ByteBuffer.allocate(size);
+        }
+
+        int length() {
+            return buffer.position();
+        }
+
+        void clear() {
+            buffer.clear();
+        }
+
+        /**
+         * Drops a buffer grown far past its size, if it is empty.
+         */
+        void trim(int size) {
+            if ((buffer.position() == 0) && (buffer.capacity() > MAX_GROWTH * size)) {
+                buffer = ByteBuffer.allocate(size);
+            }
+        }
+
+        Output put(char c) {
+            ensure(1);
+            buffer.put((byte) c);
+            return this;
+        }
+
+        Output put(Output other) {
+            ensure(other.length());
+            buffer.put(other.buffer.array(), 0, other.length());
+            return this;
+        }
+
+        Output put(byte[] bytes) {
+            ensure(bytes.length);
+            buffer.put(bytes);
+            return this;
+        }
+
+        Output ascii(String text) {
+            ensure(text.length());
+            for (int i = 0; i < text.length(); i++) {
+                buffer.put((byte) text.charAt(i));
+            }
+            return this;
+        }
+
+        Output number(long value) {
+            if (value == Long.MIN_VALUE) {
+                return ascii(Long.toString(value));
+            }
+
+            ensure(digits.length);
+            if (value < 0) {
+                buffer.put((byte) '-');
+                value = -value;
+            }
+
+            int first = digits.length;
+            do {
+                digits[--first] = (byte) ('0' + (value % 10));
+                value /= 10;
+            } while (value != 0);
+            buffer.put(digits, first, digits.length - first);
+            return this;
+        }
+
+        /**
+         * Writes the order as WorkOrderResponse is sent in JSON.
+         */
+        Output order(WorkOrder order) {
+            return ascii("{\"id\":").number(order.getId())
+                    .ascii(",\"date\":\"").ascii(OrderDates.format(order.getEpochMillis())).ascii("\"}");
+        }
+
+        private void ensure(int more) {
+            if (buffer.remaining() < more) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + more));
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+        }
+    }
+}
@@ -0,0 +1,465 @@
+package com.nathan.requests;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Hash index from order ID to the queued WorkOrder.
+ * IDs are kept as primitive longs in open addressing tables,
+ * so lookups, inserts and removals never box or allocate.
+ *
+ * The index is split into segments by ID hash. Each segment has
+ * its own lock, and readers use optimistic reads so they do not
+ * block writers. Writers lock the segment of an ID to change the
+ * index together with the lane holding the order.
+ *
+ * With OFF_HEAP storage a table is a direct buffer of ID and date
+ * pairs, and lookups rebuild the WorkOrder from them.
+ *
+ * @author Nathan
+ */
+class OrderIndex {
+    // Never a valid order ID, marks a free slot.
+    private static final long EMPTY = 0;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Segment[] segments;
+    private final int segmentShift;
+
+    /**
+     * CONSTRUCTOR: Sizes the segment count to the number of cores.
+     */
+    OrderIndex() {
+        this(4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * CONSTRUCTOR: Keeps the orders on the heap.
+     * @param concurrency expected number of concurrent writers,
+     *                    rounded up to a power of two.
+     */
+    OrderIndex(int concurrency) {
+        this(concurrency, OrderStorage.HEAP, DivisorRankingPolicy.DEFAULT);
+    }
+
+    /**
+     * CONSTRUCTOR
+     * @param concurrency expected number of concurrent writers,
+     *                    rounded up to a power of two.
+     * @param storage where the tables are kept.
+     * @param policy of the orders, to rebuild orders of off-heap tables.
+     */
+    OrderIndex(int concurrency, OrderStorage storage, RankingPolicy policy) {
+        int count = Integer.highestOneBit(Math.max(1, Math.min(concurrency, 1 << 12)) * 2 - 1);
+
+        segments = new Segment[count];
+        segmentShift = 64 - Integer.numberOfTrailingZeros(count);
+
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment((storage == OrderStorage.OFF_HEAP) ? new SlabTable(INITIAL_CAPACITY, policy)
+                    : new HeapTable(INITIAL_CAPACITY));
+        }
+    }
+
+    /**
+     * @param ID of order.
+     * @return segment that owns the ID.
+     */
+    Segment segment(long ID) {
+        // the top bits pick the segment, the low bits pick the slot.
+        return (segments.length == 1) ? segments[0] : segments[(int) (hash(ID) >>> segmentShift)];
+    }
+
+    /**
+     * @param ID of order.
+     * @return the queued order, or null if not present.
+     */
+    WorkOrder get(long ID) {
+        return segment(ID).read(ID);
+    }
+
+    boolean contains(long ID) {
+        return segment(ID).readContains(ID);
+    }
+
+    /**
+     * Off-heap lookups return a new WorkOrder each time, so whether
+     * an order is still queued is told by its date, not its identity.
+     * @param order to look for.
+     * @return whether the ID is indexed with the order's date.
+     */
+    boolean holds(WorkOrder order) {
+        return segment(order.getId()).readHolds(order.getId(), order.getEpochMillis());
+    }
+
+    /**
+     * Sum of all segment sizes. Exact when no writer is active.
+     * @return number of indexed orders.
+     */
+    int size() {
+        int size = 0;
+
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    private static long hash(long ID) {
+        long hash = ID * 0x9E3779B97F4A7C15L;
+        return hash ^ (hash >>> 32);
+    }
+
+    /**
+     * Slots of one segment, replaced as a whole on resize so
+     * an optimistic reader always sees a consistent capacity.
+     */
+    private abstract static class Table {
+        abstract int capacity();
+        abstract long key(int slot);
+        abstract long date(int slot);
+        abstract WorkOrder order(int slot);
+        abstract void set(int slot, long ID, WorkOrder order);
+        abstract void move(int from, int to);
+        // Copies a slot of another table of the same kind.
+        abstract void copy(Table from, int fromSlot, int slot);
+        abstract void clear(int slot);
+        abstract Table create(int capacity);
+    }
+
+    /**
+     * Keys and orders in heap arrays.
+     */
+    private static final class HeapTable extends Table {
+        private final long[] keys;
+        private final WorkOrder[] values;
+
+        HeapTable(int capacity) {
+            keys = new long[capacity];
+            values = new WorkOrder[capacity];
+        }
+
+        @Override
+        int capacity() {
+            return keys.length;
+        }
+
+        @Override
+        long key(int slot) {
+            return keys[slot];
+        }
+
+        @Override
+        long date(int slot) {
+            return values[slot].getEpochMillis();
+        }
+
+        @Override
+        WorkOrder order(int slot) {
+            return values[slot];
+        }
+
+        @Override
+        void set(int slot, long ID, WorkOrder order) {
+            keys[slot] = ID;
+            values[slot] = order;
+        }
+
+        @Override
+        void move(int from, int to) {
+            keys[to] = keys[from];
+            values[to] = values[from];
+        }
+
+        @Override
+        void copy(Table from, int fromSlot, int slot) {
+            keys[slot] = from.key(fromSlot);
+            values[slot] = ((HeapTable) from).values[fromSlot];
+        }
+
+        @Override
+        void clear(int slot) {
+            keys[slot] = EMPTY;
+            values[slot] = null;
+        }
+
+        @Override
+        Table create(int capacity) {
+            return new HeapTable(capacity);
+        }
+    }
+
+    /**
+     * ID and date pairs in a direct buffer. A replaced buffer is left
+     * to the garbage collector rather than freed, as optimistic readers
+     * may still be reading it.
+     */
+    private static final class SlabTable extends Table {
+        private static final int SLOT_SHIFT = 4;
+        private static final int DATE = 8;
+
+        private final ByteBuffer slots;
+        private final int capacity;
+        private final RankingPolicy policy;
+
+        SlabTable(int capacity, RankingPolicy policy) {
+            this.capacity = capacity;
+            this.policy = policy;
+            slots = ByteBuffer.allocateDirect(capacity << SLOT_SHIFT).order(ByteOrder.nativeOrder());
+        }
+
+        @Override
+        int capacity() {
+            return capacity;
+        }
+
+        @Override
+        long key(int slot) {
+            return slots.getLong(slot << SLOT_SHIFT);
+        }
+
+        @Override
+        long date(int slot) {
+            return slots.getLong((slot << SLOT_SHIFT) + DATE);
+        }
+
+        @Override
+        WorkOrder order(int slot) {
+            return new WorkOrder(key(slot), date(slot), policy);
+        }
+
+        @Override
+        void set(int slot, long ID, WorkOrder order) {
+            slots.putLong((slot << SLOT_SHIFT) + DATE, order.getEpochMillis());
+            slots.putLong(slot << SLOT_SHIFT, ID);
+        }
+
+        @Override
+        void move(int from, int to) {
+            slots.putLong((to << SLOT_SHIFT) + DATE, date(from));
+            slots.putLong(to << SLOT_SHIFT, key(from));
+        }
+
+        @Override
+        void copy(Table from, int fromSlot, int slot) {
+            slots.putLong((slot << SLOT_SHIFT) + DATE, from.date(fromSlot));
+            slots.putLong(slot << SLOT_SHIFT, from.key(fromSlot));
+        }
+
+        @Override
+        void clear(int slot) {
+            slots.putLong(slot << SLOT_SHIFT, EMPTY);
+        }
+
+        @Override
+        Table create(int capacity) {
+            return new SlabTable(capacity, policy);
+        }
+    }
+
+    /**
+     * Linear probing table guarded by a StampedLock.
+     * put and remove must be called while holding the write lock.
+     */
+    static final class Segment {
+        private final StampedLock lock = new StampedLock();
+        private Table table;
+        private volatile int size;
+
+        Segment(Table table) {
+            this.table = table;
+        }
+
+        long lock() {
+            return lock.writeLock();
+        }
+
+        void unlock(long stamp) {
+            lock.unlockWrite(stamp);
+        }
+
+        /**
+         * Lookup that retries under the read lock if a writer
+         * changed the segment while it was being read.
+         */
+        WorkOrder read(long ID) {
+            long stamp = lock.tryOptimisticRead();
+            WorkOrder order = get(ID);
+
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    order = get(ID);
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return order;
+        }
+
+        /**
+         * Like read, without building the order.
+         */
+        boolean readContains(long ID) {
+            long stamp = lock.tryOptimisticRead();
+            boolean found = find(table, ID) >= 0;
+
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    found = find(table, ID) >= 0;
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return found;
+        }
+
+        /**
+         * Like read, checking the date of the entry instead of building the order.
+         */
+        boolean readHolds(long ID, long date) {
+            long stamp = lock.tryOptimisticRead();
+            boolean held = holds(ID, date);
+
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    held = holds(ID, date);
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return held;
+        }
+
+        /**
+         * Unsynchronized lookup, call with the lock held
+         * or validate the result afterwards.
+         */
+        WorkOrder get(long ID) {
+            Table current = table;
+            int slot = find(current, ID);
+
+            return (slot >= 0) ? current.order(slot) : null;
+        }
+
+        /**
+         * Unsynchronized, like get.
+         */
+        boolean contains(long ID) {
+            return find(table, ID) >= 0;
+        }
+
+        /**
+         * Unsynchronized, like get.
+         * @return whether the ID is indexed with the date.
+         */
+        boolean holds(long ID, long date) {
+            Table current = table;
+            int slot = find(current, ID);
+
+            return (slot >= 0) && (current.date(slot) == date);
+        }
+
+        /**
+         * Adds or replaces the order of an ID.
+         */
+        void put(long ID, WorkOrder order) {
+            if ((size + 1) * 2 > table.capacity()) {
+                resize(table.capacity() * 2);
+            }
+
+            Table current = table;
+            int mask = current.capacity() - 1;
+            int slot = (int) hash(ID) & mask;
+
+            while ((current.key(slot) != EMPTY) && (current.key(slot) != ID)) {
+                slot = (slot + 1) & mask;
+            }
+            if (current.key(slot) == EMPTY) {
+                size++;
+            }
+            current.set(slot, ID, order);
+        }
+
+        /**
+         * Removes an ID, shifting later entries of its probe
+         * chain back so no tombstones are left behind.
+         * @return the removed order, or null if not present.
+         */
+        WorkOrder remove(long ID) {
+            Table current = table;
+            int mask = current.capacity() - 1;
+            int slot = find(current, ID);
+
+            if (slot < 0) {
+                return null;
+            }
+
+            WorkOrder removed = current.order(slot);
+            int free = slot;
+
+            for (int next = (free + 1) & mask; current.key(next) != EMPTY; next = (next + 1) & mask) {
+                int home = (int) hash(current.key(next)) & mask;
+
+                // move the entry back if its home slot is not between the hole and itself.
+                if (((next - home) & mask) >= ((next - free) & mask)) {
+                    current.move(next, free);
+                    free = next;
+                }
+            }
+
+            current.clear(free);
+            size--;
+            return removed;
+        }
+
+        /**
+         * @return slot of the ID in the table, or -1 if not present.
+         */
+        private static int find(Table current, long ID) {
+            if (ID == EMPTY) {
+                return -1;
+            }
+
+            int capacity = current.capacity();
+            int mask = capacity - 1;
+            int slot = (int) hash(ID) & mask;
+
+            for (int probes = 0; probes < capacity; probes++) {
+                long key = current.key(slot);
+
+                if (key == ID) {
+                    return slot;
+                }
+                else if (key == EMPTY) {
+                    return -1;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private void resize(int capacity) {
+            Table old = table;
+            Table resized = old.create(capacity);
+            int mask = capacity - 1;
+
+            for (int i = 0; i < old.capacity(); i++) {
+                long key = old.key(i);
+
+                if (key != EMPTY) {
+                    int slot = (int) hash(key) & mask;
+
+                    while (resized.key(slot) != EMPTY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    resized.copy(old, i, slot);
+                }
+            }
+            table = resized;
+        }
+    }
+}
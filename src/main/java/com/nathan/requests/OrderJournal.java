@@ -0,0 +1,752 @@
+package com.nathan.requests;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Append only journal of queue changes, so the queue survives a restart.
+ *
+ * Every enqueue, dequeue and remove is written to a memory mapped log
+ * file as one 16 byte record, in the order the queue applied them to
+ * each ID. Appending only copies into the mapping. Forcing the records
+ * to disk follows the fsync policy and is done after the queue has
+ * released its locks, so one force covers every record written so far
+ * by any thread.
+ *
+ * The next log file is mapped ahead of time by the journal thread, so a
+ * rollover only renames it and swaps mappings. The full file is forced
+ * by the next commit or sync, not by the append that rolled over. When
+ * the next file is not mapped yet, appends are held in memory instead of
+ * waiting for it under the queue locks, and the next commit or sync
+ * waits for the file and writes them out once the locks are released.
+ *
+ * A snapshot holds the ID and date of every queued order as of the start
+ * of one log file. Recovery loads the latest snapshot and replays only
+ * the logs from that file on. Older files are deleted once a newer
+ * snapshot is on disk.
+ *
+ * @author Nathan
+ */
+final class OrderJournal implements Closeable {
+    static final int ENQUEUE = 1;
+    static final int DEQUEUE = 2;
+    static final int REMOVE = 3;
+
+    private static final Logger LOG = LoggerFactory.getLogger(OrderJournal.class);
+
+    private static final String LOG_PREFIX = "journal-";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".dat";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final String SPARE_PREFIX = "spare-";
+
+    private static final long LOG_MAGIC = 0x574F4A4C4F470001L;
+    private static final long SNAPSHOT_MAGIC = 0x574F4A534E500001L;
+    // Header and records are aligned, so no record straddles a disk sector.
+    private static final int LOG_HEADER = 16;
+    private static final int RECORD_SIZE = 16;
+    // magic, order count, log sequence.
+    private static final int SNAPSHOT_HEADER = 24;
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    // The record type shares its word with the date, 0 marks the end of a log.
+    private static final int TYPE_SHIFT = 56;
+    private static final long DATE_MASK = (1L << TYPE_SHIFT) - 1;
+
+    private final Path directory;
+    private final JournalProperties.FsyncPolicy policy;
+    private final long batchBytes;
+    private final long intervalMillis;
+    private final long snapshotIntervalMillis;
+    private final int fileSize;
+
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+
+    // Current log file, guarded by appendLock.
+    private MappedByteBuffer log;
+    private long sequence;
+    private int offset;
+    // Next log file being mapped by the journal thread, guarded by appendLock.
+    private Future<Spare> spare;
+    // Full log files not yet forced, guarded by appendLock.
+    private final List<MappedByteBuffer> retired = new ArrayList<MappedByteBuffer>();
+    private volatile boolean rolledOver;
+    // Records appended while the log was full and the next one not mapped,
+    // ID and word pairs from overflowStart to overflowEnd, guarded by appendLock.
+    private long[] overflow = new long[64];
+    private int overflowStart;
+    private int overflowEnd;
+    private volatile boolean overflowing;
+
+    // Bytes appended since opening, only written under appendLock.
+    private volatile long written;
+    // Bytes known to be on disk, only written under syncLock.
+    private volatile long durable;
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * CONSTRUCTOR: Opens the journal directory, creating it if needed.
+     * Nothing is read or written until replay and start are called.
+     * @param properties journal settings.
+     * @throws IOException if the directory cannot be created.
+     */
+    OrderJournal(JournalProperties properties) throws IOException {
+        directory = Paths.get(properties.getDirectory());
+        policy = properties.getFsync();
+        batchBytes = (long) Math.max(1, properties.getBatchSize()) * RECORD_SIZE;
+        intervalMillis = Math.max(1, properties.getIntervalMillis());
+        snapshotIntervalMillis = properties.getSnapshotIntervalMillis();
+        fileSize = Math.max(LOG_HEADER + RECORD_SIZE, properties.getFileSize() / RECORD_SIZE * RECORD_SIZE);
+
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Loads the latest snapshot into the queue, then replays every log
+     * written after it. Must be called once, before start.
+     * @param queue to restore, not yet attached to this journal.
+     * @throws IOException if a file cannot be read or the snapshot is corrupt.
+     */
+    void replay(WorkOrderQueue queue) throws IOException {
+        try (DirectoryStream<Path> spares = Files.newDirectoryStream(directory, SPARE_PREFIX + "*" + TEMPORARY_SUFFIX)) {
+            for (Path unused : spares) {
+                Files.deleteIfExists(unused);
+            }
+        }
+
+        List<Long> snapshots = sequences(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        long first = 0;
+
+        if (!snapshots.isEmpty()) {
+            first = snapshots.get(snapshots.size() - 1);
+            readSnapshot(path(SNAPSHOT_PREFIX, first, SNAPSHOT_SUFFIX), queue);
+        }
+        sequence = first;
+
+        for (long log : sequences(LOG_PREFIX, LOG_SUFFIX)) {
+            if (log >= first) {
+                readLog(path(LOG_PREFIX, log, LOG_SUFFIX), queue);
+                sequence = log;
+            }
+        }
+    }
+
+    /**
+     * Opens a new log file for appends and starts the journal thread,
+     * which maps the next log file ahead and runs the background force
+     * and snapshot tasks, if any are configured.
+     * @param snapshot task that snapshots the queue.
+     */
+    void start(Runnable snapshot) {
+        boolean flush = policy == JournalProperties.FsyncPolicy.INTERVAL;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "order-journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        appendLock.lock();
+        try {
+            mapAhead();
+        } finally {
+            appendLock.unlock();
+        }
+        do {
+            awaitNextLog();
+        } while (roll() < 0);
+
+        if (flush) {
+            scheduler.scheduleWithFixedDelay(logged(this::sync), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+        if (snapshotIntervalMillis > 0) {
+            scheduler.scheduleWithFixedDelay(logged(snapshot), snapshotIntervalMillis, snapshotIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes one event to the current log. The caller holds the
+     * queue locks of the order, so events of an ID are in order.
+     * Never waits for the next log file: when the current one is full
+     * and the next is not mapped yet, the event is held until commit.
+     * @param type ENQUEUE, DEQUEUE or REMOVE.
+     * @param ID of the order.
+     * @param epochMillis date of the order, only read back for ENQUEUE.
+     */
+    void append(int type, long ID, long epochMillis) {
+        long word = ((long) type << TYPE_SHIFT) | (epochMillis & DATE_MASK);
+
+        appendLock.lock();
+        try {
+            if (!overflowing && (offset + RECORD_SIZE > fileSize)) {
+                Spare next = readySpare();
+
+                if (next != null) {
+                    openLog(sequence + 1, next);
+                } else {
+                    overflowing = true;
+                }
+            }
+            if (overflowing) {
+                hold(ID, word);
+            } else {
+                write(ID, word);
+            }
+            written += RECORD_SIZE;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Makes the appended events as durable as the fsync policy asks,
+     * and forces the log files filled since the last sync whatever the
+     * policy. Events held while the next log was being mapped are
+     * written out first. Called after the queue has released its locks.
+     */
+    void commit() {
+        if (overflowing) {
+            drain();
+        }
+        if (rolledOver || (policy == JournalProperties.FsyncPolicy.ALWAYS) ||
+                ((policy == JournalProperties.FsyncPolicy.BATCH) && (written - durable >= batchBytes))) {
+            sync();
+        }
+    }
+
+    /**
+     * Forces every event appended so far to disk. Threads that arrive
+     * while another one is forcing usually find their events already
+     * covered and return without forcing again.
+     */
+    void sync() {
+        if (overflowing) {
+            drain();
+        }
+        long target = written;
+
+        if ((durable >= target) && !rolledOver) {
+            return;
+        }
+
+        syncLock.lock();
+        try {
+            if ((durable >= target) && !rolledOver) {
+                return;
+            }
+
+            MappedByteBuffer current;
+            MappedByteBuffer[] full;
+            long upTo;
+
+            appendLock.lock();
+            try {
+                current = log;
+                full = retired.toArray(new MappedByteBuffer[retired.size()]);
+                upTo = written;
+                rolledOver = false;
+            } finally {
+                appendLock.unlock();
+            }
+            for (MappedByteBuffer old : full) {
+                old.force();
+            }
+            current.force();
+
+            appendLock.lock();
+            try {
+                // files retired meanwhile were appended after these.
+                retired.subList(0, full.length).clear();
+            } finally {
+                appendLock.unlock();
+            }
+            durable = upTo;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the events held back are written and the next log file
+     * is mapped, so that roll can switch to it without waiting. Called
+     * before taking the queue locks.
+     */
+    void awaitNextLog() {
+        Future<Spare> pending;
+
+        drain();
+        appendLock.lock();
+        try {
+            pending = spare;
+        } finally {
+            appendLock.unlock();
+        }
+        awaitSpare(pending);
+    }
+
+    /**
+     * Starts a new log file, events appended from now on go to it.
+     * Never waits, call awaitNextLog first.
+     * @return sequence number of the new log, or -1 if the next log is
+     *         not ready, as appends rolled over since awaitNextLog.
+     */
+    long roll() {
+        appendLock.lock();
+        try {
+            if (overflowing) {
+                return -1;
+            }
+            Spare next = readySpare();
+
+            if (next == null) {
+                return -1;
+            }
+            openLog(sequence + 1, next);
+            return sequence;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Writes a snapshot of the queue as of the start of a log file,
+     * then deletes the files it replaces. The snapshot only becomes
+     * visible to recovery once it is completely on disk.
+     * @param sequence of the log that follows the snapshot, from roll.
+     * @param lanes orders of each lane, copied at the roll.
+     */
+    void writeSnapshot(long sequence, WorkOrder[][] lanes) {
+        snapshotLock.lock();
+        try {
+            Path temporary = directory.resolve(SNAPSHOT_PREFIX + sequence + TEMPORARY_SUFFIX);
+            long count = 0;
+
+            for (WorkOrder[] lane : lanes) {
+                count += lane.length;
+            }
+
+            try (FileChannel channel = FileChannel.open(temporary, CREATE, WRITE, TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+                CRC32 checksum = new CRC32();
+
+                buffer.putLong(SNAPSHOT_MAGIC).putLong(count).putLong(sequence);
+                write(channel, buffer, null);
+
+                for (WorkOrder[] lane : lanes) {
+                    for (WorkOrder order : lane) {
+                        if (buffer.remaining() < RECORD_SIZE) {
+                            write(channel, buffer, checksum);
+                        }
+                        buffer.putLong(order.getId()).putLong(order.getEpochMillis());
+                    }
+                }
+                write(channel, buffer, checksum);
+
+                buffer.putLong(checksum.getValue());
+                write(channel, buffer, null);
+                channel.force(true);
+            }
+            Files.move(temporary, path(SNAPSHOT_PREFIX, sequence, SNAPSHOT_SUFFIX), ATOMIC_MOVE);
+
+            for (long log : sequences(LOG_PREFIX, LOG_SUFFIX)) {
+                if (log < sequence) {
+                    Files.deleteIfExists(path(LOG_PREFIX, log, LOG_SUFFIX));
+                }
+            }
+            for (long snapshot : sequences(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+                if (snapshot < sequence) {
+                    Files.deleteIfExists(path(SNAPSHOT_PREFIX, snapshot, SNAPSHOT_SUFFIX));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Stops the background tasks, forces what is left to disk and
+     * deletes the unused next log file.
+     */
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        sync();
+
+        appendLock.lock();
+        try {
+            if (spare != null) {
+                Path unused = await(spare).path;
+                spare = null;
+                Files.deleteIfExists(unused);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            LOG.warn("Could not delete the unused log file", e);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the events held back to the next log files, waiting for each
+     * file to be mapped without holding appendLock.
+     */
+    private void drain() {
+        while (true) {
+            Future<Spare> pending;
+
+            appendLock.lock();
+            try {
+                while (overflowing && (offset + RECORD_SIZE <= fileSize)) {
+                    write(overflow[overflowStart], overflow[overflowStart + 1]);
+                    overflowStart += 2;
+
+                    if (overflowStart == overflowEnd) {
+                        overflowStart = 0;
+                        overflowEnd = 0;
+                        overflowing = false;
+                    }
+                }
+                if (!overflowing) {
+                    return;
+                }
+                Spare next = readySpare();
+
+                if (next != null) {
+                    openLog(sequence + 1, next);
+                    continue;
+                }
+                pending = spare;
+            } finally {
+                appendLock.unlock();
+            }
+            awaitSpare(pending);
+        }
+    }
+
+    /**
+     * Waits for the next log file being mapped, or maps one here once the
+     * journal thread has stopped. appendLock must not be held.
+     * @param pending next log file, or null if the journal thread has stopped.
+     */
+    private void awaitSpare(Future<Spare> pending) {
+        if (pending != null) {
+            await(pending);
+            return;
+        }
+        Spare mapped = newSpare();
+
+        appendLock.lock();
+        try {
+            if (spare == null) {
+                spare = CompletableFuture.completedFuture(mapped);
+                mapped = null;
+            }
+        } finally {
+            appendLock.unlock();
+        }
+        if (mapped != null) {
+            try {
+                Files.deleteIfExists(mapped.path);
+            } catch (IOException e) {
+                LOG.warn("Could not delete the unused log file", e);
+            }
+        }
+    }
+
+    /**
+     * Takes the next log file if it is mapped, without waiting. A failed
+     * mapping is logged and tried again. appendLock.
+     * @return the next log file, or null if not mapped yet.
+     */
+    private Spare readySpare() {
+        Future<Spare> next = spare;
+
+        if ((next == null) || !next.isDone()) {
+            return null;
+        }
+        spare = null;
+
+        try {
+            return await(next);
+        } catch (UncheckedIOException e) {
+            LOG.warn("Could not map the next log ahead", e);
+            mapAhead();
+            return null;
+        }
+    }
+
+    /**
+     * Has the journal thread map the next log file, unless it stopped. appendLock.
+     */
+    private void mapAhead() {
+        if ((scheduler != null) && !scheduler.isShutdown()) {
+            spare = scheduler.submit(this::newSpare);
+        }
+    }
+
+    /**
+     * Copies one record into the current log, which has room for it. appendLock.
+     */
+    private void write(long ID, long word) {
+        // the type goes in last, a record without it reads as the end of the log.
+        log.putLong(offset, ID);
+        log.putLong(offset + 8, word);
+        offset += RECORD_SIZE;
+    }
+
+    /**
+     * Keeps one record until drain writes it to the next log. appendLock.
+     */
+    private void hold(long ID, long word) {
+        if (overflowEnd + 2 > overflow.length) {
+            overflow = Arrays.copyOf(overflow, overflow.length * 2);
+        }
+        overflow[overflowEnd++] = ID;
+        overflow[overflowEnd++] = word;
+    }
+
+    /**
+     * Switches appends to the next log file, mapped ahead by the journal
+     * thread, and has the one after it mapped. The previous file is left
+     * for sync to force. appendLock.
+     */
+    private void openLog(long next, Spare mapped) {
+        try {
+            Files.move(mapped.path, path(LOG_PREFIX, next, LOG_SUFFIX), ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (log != null) {
+            retired.add(log);
+            rolledOver = true;
+        }
+        // a log without its magic reads as empty, should a crash come first.
+        mapped.buffer.putLong(0, LOG_MAGIC);
+
+        log = mapped.buffer;
+        sequence = next;
+        offset = LOG_HEADER;
+        mapAhead();
+    }
+
+    /**
+     * Creates and maps a zero filled file, named so recovery ignores it
+     * until openLog renames it to a log. Never called under appendLock.
+     */
+    private Spare newSpare() {
+        try {
+            Path path = Files.createTempFile(directory, SPARE_PREFIX, TEMPORARY_SUFFIX);
+
+            try (FileChannel channel = FileChannel.open(path, READ, WRITE)) {
+                return new Spare(path, channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Waits for the next log file, even if interrupted, as the journal
+     * thread may still be creating it.
+     */
+    private static Spare await(Future<Spare> next) {
+        boolean interrupted = false;
+
+        try {
+            while (true) {
+                try {
+                    return next.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof UncheckedIOException) {
+                        throw (UncheckedIOException) e.getCause();
+                    }
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void readLog(Path path, WorkOrderQueue queue) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if ((buffer.capacity() < LOG_HEADER) || (buffer.getLong(0) != LOG_MAGIC)) {
+                // created just before a crash, nothing was appended.
+                return;
+            }
+
+            for (int at = LOG_HEADER; at + RECORD_SIZE <= buffer.capacity(); at += RECORD_SIZE) {
+                long ID = buffer.getLong(at);
+                long word = buffer.getLong(at + 8);
+                int type = (int) (word >>> TYPE_SHIFT);
+
+                if (type == ENQUEUE) {
+                    long date = (word << (64 - TYPE_SHIFT)) >> (64 - TYPE_SHIFT);
+                    queue.enqueue(new WorkOrder(ID, date, queue.getRankingPolicy()));
+                }
+                else if ((type == DEQUEUE) || (type == REMOVE)) {
+                    queue.removeOrder(ID);
+                }
+                else {
+                    // end of the log, or a record torn by a crash.
+                    return;
+                }
+            }
+        }
+    }
+
+    private void readSnapshot(Path path, WorkOrderQueue queue) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            CRC32 checksum = new CRC32();
+            long size = channel.size();
+
+            read(channel, buffer, SNAPSHOT_HEADER);
+            long magic = buffer.getLong();
+            long count = buffer.getLong();
+
+            if ((magic != SNAPSHOT_MAGIC) || (size != SNAPSHOT_HEADER + count * RECORD_SIZE + 8)) {
+                throw new IOException("Corrupt snapshot: " + path);
+            }
+
+            for (long remaining = count; remaining > 0; ) {
+                int records = (int) Math.min(remaining, CHUNK_SIZE / RECORD_SIZE);
+                read(channel, buffer, records * RECORD_SIZE);
+                checksum.update(buffer.duplicate());
+
+                for (int i = 0; i < records; i++) {
+                    queue.enqueue(new WorkOrder(buffer.getLong(), buffer.getLong(), queue.getRankingPolicy()));
+                }
+                remaining -= records;
+            }
+
+            read(channel, buffer, 8);
+            if (buffer.getLong() != checksum.getValue()) {
+                throw new IOException("Corrupt snapshot: " + path);
+            }
+        }
+    }
+
+    /**
+     * Reads exactly length bytes and flips the buffer for reading them.
+     */
+    private static void read(FileChannel channel, ByteBuffer buffer, int length) throws IOException {
+        buffer.clear().limit(length);
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Unexpected end of snapshot");
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Writes out what was put in the buffer and clears it.
+     * @param checksum to add the written bytes to, or null.
+     */
+    private static void write(FileChannel channel, ByteBuffer buffer, CRC32 checksum) throws IOException {
+        buffer.flip();
+
+        if (checksum != null) {
+            checksum.update(buffer.duplicate());
+        }
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private Path path(String prefix, long sequence, String suffix) {
+        return directory.resolve(prefix + sequence + suffix);
+    }
+
+    /**
+     * @return sequence numbers of the files with the prefix and suffix, ascending.
+     */
+    private List<Long> sequences(String prefix, String suffix) throws IOException {
+        List<Long> result = new ArrayList<Long>();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+
+                try {
+                    result.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    // not one of ours.
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private static Runnable logged(Runnable task) {
+        return () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOG.error("Order journal task failed", e);
+            }
+        };
+    }
+
+    /**
+     * A mapped file waiting to become the next log.
+     */
+    private static final class Spare {
+        final Path path;
+        final MappedByteBuffer buffer;
+
+        Spare(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+}
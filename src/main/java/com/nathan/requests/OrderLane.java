@@ -0,0 +1,365 @@
+package com.nathan.requests;
+
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Holds all queued orders of a single ClassLevel.
+ *
+ * Within one level an order's rank only grows with its wait time,
+ * so the lane is kept sorted by date (oldest first) and its head
+ * is always the highest ranked order of that level.
+ *
+ * The lane is an order statistic tree: a treap whose nodes know
+ * the size of their subtree. Nodes live in LaneNodes, on the heap
+ * or in off-heap slabs, and are addressed by int handles, freed
+ * handles are reused.
+ *
+ * Each lane has its own lock. Methods other than the lock methods
+ * must be called while holding the read or write lock as noted.
+ * Read methods may also run under an optimistic stamp, whose result
+ * is only used once validate accepts the stamp. A writer changing the
+ * lane meanwhile can make them return garbage or throw, but never
+ * loop forever: walks longer than any path of a consistent tree
+ * give up with a ConcurrentModificationException.
+ *
+ * @author Nathan
+ */
+class OrderLane {
+    // Handle 0 is the empty subtree, its size is always 0.
+    private static final int NIL = 0;
+    // Deepest subtree copy recursion. Far above the height of any treap of
+    // random priorities, so only reached on a torn optimistic read.
+    private static final int MAX_DEPTH = 1024;
+
+    private final StampedLock lock = new StampedLock();
+    // Dates are summed relative to the creation of the lane so the sum stays small.
+    private final long base = System.currentTimeMillis();
+    private long dateSum;
+    // Counts changes, read without the lock to see if the lane changed.
+    private volatile long version;
+
+    // Level of every order in the lane.
+    private final int level;
+    private final LaneNodes nodes;
+
+    private int root = NIL;
+    private int freeList = NIL;
+    private int unused = 1;
+    private int seed = 0x2545F491;
+
+    // Handle found by the last delete, NIL if none.
+    private int deleted;
+
+    /**
+     * CONSTRUCTOR: Creates an empty lane of Normal orders on the heap.
+     */
+    OrderLane() {
+        this(WorkOrder.ClassLevel.Normal, OrderStorage.HEAP, DivisorRankingPolicy.DEFAULT);
+    }
+
+    /**
+     * CONSTRUCTOR: Creates an empty lane.
+     * @param level of every order added to the lane.
+     * @param storage where the nodes are kept.
+     * @param policy of the orders.
+     */
+    OrderLane(WorkOrder.ClassLevel level, OrderStorage storage, RankingPolicy policy) {
+        this.level = level.ordinal();
+        nodes = LaneNodes.of(storage, policy);
+    }
+
+    long lock() {
+        return lock.writeLock();
+    }
+
+    void unlock(long stamp) {
+        lock.unlockWrite(stamp);
+    }
+
+    long readLock() {
+        return lock.readLock();
+    }
+
+    void unlockRead(long stamp) {
+        lock.unlockRead(stamp);
+    }
+
+    /**
+     * @return stamp for an optimistic read, 0 if the lane is write locked.
+     */
+    long tryOptimisticRead() {
+        return lock.tryOptimisticRead();
+    }
+
+    /**
+     * @param stamp from tryOptimisticRead.
+     * @return whether the lane has not been write locked since the stamp.
+     */
+    boolean validate(long stamp) {
+        return lock.validate(stamp);
+    }
+
+    /**
+     * Inserts the order at its date position. Write lock.
+     * @param order to add.
+     */
+    void add(WorkOrder order) {
+        int node = allocate(order);
+        root = insert(root, node);
+        dateSum += order.getEpochMillis() - base;
+        version++;
+    }
+
+    /**
+     * Removes the order with the same date and ID. Write lock.
+     * @param order to remove.
+     * @return whether the order was present.
+     */
+    boolean remove(WorkOrder order) {
+        deleted = NIL;
+        root = delete(root, order.getEpochMillis(), order.getId());
+
+        if (deleted == NIL) {
+            return false;
+        }
+        dateSum -= nodes.date(deleted) - base;
+        release(deleted);
+        version++;
+        return true;
+    }
+
+    /**
+     * Read lock.
+     * @return oldest order of the lane, or null if empty.
+     */
+    WorkOrder peek() {
+        int node = root;
+
+        if (node == NIL) {
+            return null;
+        }
+        for (int steps = nodes.capacity(); nodes.left(node) != NIL; steps--) {
+            node = nodes.left(node);
+            checkSteps(steps);
+        }
+        return nodes.order(node);
+    }
+
+    /**
+     * Counts the orders of this lane that come before the target
+     * at the given instant. Orders that outrank the target always
+     * form a prefix of the lane, so this is one walk down the tree,
+     * comparing dates and IDs without reading the orders themselves.
+     * Read lock.
+     *
+     * @param target order to compare against, from any lane.
+     * @param now instant the ranks are compared at.
+     * @param ranking of the queue's policy.
+     * @return number of orders ahead of the target.
+     */
+    int countAhead(WorkOrder target, long now, OrderRanking ranking) {
+        int count = 0;
+        int node = root;
+
+        for (int steps = nodes.capacity(); node != NIL; steps--) {
+            checkSteps(steps);
+
+            if (ranking.compare(level, nodes.date(node), nodes.id(node), target.getLevelOrdinal(),
+                    target.getEpochMillis(), target.getId(), now) < 0) {
+                count += nodes.size(nodes.left(node)) + 1;
+                node = nodes.right(node);
+            }
+            else {
+                node = nodes.left(node);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Sum of the wait times of all orders, from the running
+     * sum of their dates. Read lock.
+     * @param now current time in milliseconds.
+     * @return total wait time in seconds.
+     */
+    double totalWaitTime(long now) {
+        return ((double) nodes.size(root) * (now - base) - dateSum) / 1000;
+    }
+
+    /**
+     * Copies the orders from oldest to newest. Read lock.
+     * @return orders of the lane.
+     */
+    WorkOrder[] toArray() {
+        return toArray(nodes.size(root));
+    }
+
+    /**
+     * Copies the oldest orders. Read lock.
+     * @param count maximum number of orders.
+     * @return up to count orders of the lane, oldest first.
+     */
+    WorkOrder[] toArray(int count) {
+        WorkOrder[] result = new WorkOrder[Math.min(Math.max(count, 0), nodes.size(root))];
+        copy(root, result, 0, MAX_DEPTH);
+        return result;
+    }
+
+    /**
+     * No lock needed.
+     * @return number of changes made to the lane so far.
+     */
+    long version() {
+        return version;
+    }
+
+    /**
+     * Read lock.
+     * @return number of orders in the lane.
+     */
+    int size() {
+        return nodes.size(root);
+    }
+
+    private int copy(int node, WorkOrder[] into, int offset, int depth) {
+        checkSteps(depth);
+
+        while ((node != NIL) && (offset < into.length)) {
+            offset = copy(nodes.left(node), into, offset, depth - 1);
+
+            if (offset < into.length) {
+                into[offset++] = nodes.order(node);
+            }
+            node = nodes.right(node);
+        }
+        return offset;
+    }
+
+    /**
+     * A walk has gone on longer than a consistent tree allows,
+     * so a writer changed the lane under an optimistic read.
+     */
+    private static void checkSteps(int steps) {
+        if (steps < 0) {
+            throw new ConcurrentModificationException("Lane changed while read");
+        }
+    }
+
+    private int insert(int tree, int node) {
+        if (tree == NIL) {
+            return node;
+        }
+
+        if (before(nodes.date(node), nodes.id(node), tree)) {
+            nodes.left(tree, insert(nodes.left(tree), node));
+
+            if (nodes.priority(nodes.left(tree)) > nodes.priority(tree)) {
+                tree = rotateRight(tree);
+            }
+        }
+        else {
+            nodes.right(tree, insert(nodes.right(tree), node));
+
+            if (nodes.priority(nodes.right(tree)) > nodes.priority(tree)) {
+                tree = rotateLeft(tree);
+            }
+        }
+        update(tree);
+        return tree;
+    }
+
+    private int delete(int tree, long date, long ID) {
+        if (tree == NIL) {
+            return NIL;
+        }
+
+        if ((nodes.date(tree) == date) && (nodes.id(tree) == ID)) {
+            deleted = tree;
+            return merge(nodes.left(tree), nodes.right(tree));
+        }
+        else if (before(date, ID, tree)) {
+            nodes.left(tree, delete(nodes.left(tree), date, ID));
+        }
+        else {
+            nodes.right(tree, delete(nodes.right(tree), date, ID));
+        }
+        update(tree);
+        return tree;
+    }
+
+    private int merge(int first, int second) {
+        if (first == NIL) {
+            return second;
+        }
+        else if (second == NIL) {
+            return first;
+        }
+        else if (nodes.priority(first) > nodes.priority(second)) {
+            nodes.right(first, merge(nodes.right(first), second));
+            update(first);
+            return first;
+        }
+        else {
+            nodes.left(second, merge(first, nodes.left(second)));
+            update(second);
+            return second;
+        }
+    }
+
+    private int rotateRight(int tree) {
+        int pivot = nodes.left(tree);
+        nodes.left(tree, nodes.right(pivot));
+        nodes.right(pivot, tree);
+        update(tree);
+        return pivot;
+    }
+
+    private int rotateLeft(int tree) {
+        int pivot = nodes.right(tree);
+        nodes.right(tree, nodes.left(pivot));
+        nodes.left(pivot, tree);
+        update(tree);
+        return pivot;
+    }
+
+    private void update(int node) {
+        nodes.size(node, nodes.size(nodes.left(node)) + nodes.size(nodes.right(node)) + 1);
+    }
+
+    // Oldest date first, ID breaks ties between orders made at the same time.
+    private boolean before(long date, long ID, int node) {
+        long nodeDate = nodes.date(node);
+        return (date < nodeDate) || ((date == nodeDate) && (ID < nodes.id(node)));
+    }
+
+    private int allocate(WorkOrder order) {
+        int node = freeList;
+
+        if (node != NIL) {
+            freeList = nodes.left(node);
+        }
+        else {
+            if (unused == nodes.capacity()) {
+                nodes.grow();
+            }
+            node = unused++;
+        }
+
+        nodes.set(node, order, nextPriority());
+        return node;
+    }
+
+    private void release(int node) {
+        nodes.clear(node, freeList);
+        freeList = node;
+    }
+
+    // xorshift, good enough to keep the treap balanced.
+    private int nextPriority() {
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return seed;
+    }
+}
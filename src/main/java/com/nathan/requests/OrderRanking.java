@@ -0,0 +1,233 @@
+package com.nathan.requests;
+
+/**
+ * Orders WorkOrders of one RankingPolicy exactly like
+ * WorkOrder.compareTo, without evaluating rank functions
+ * for nearly every comparison.
+ *
+ * Rank functions never decrease with the wait, so orders of one level
+ * are in date order at any instant and comparing them needs no rank.
+ * For two levels, the waits are cut into cells, SUB_CELLS per power of
+ * two. For each cell of the first order's wait, two crossover waits of
+ * the second level are precomputed from the policy: below the first,
+ * the second order ranks lower than any wait in the cell, from the
+ * second on it ranks higher. Only a wait falling between the two,
+ * a near tie, is settled by computing both ranks.
+ *
+ * @author Nathan
+ */
+final class OrderRanking {
+    private static final WorkOrder.ClassLevel[] LEVELS = WorkOrder.ClassLevel.values();
+
+    // Cells from 2^MIN_EXPONENT to 2^MAX_EXPONENT seconds (about 1 ms to
+    // 136 years), plus cell 0 for waits from -MAX_WAIT up to 2^MIN_EXPONENT.
+    private static final int SUB_BITS = 5;
+    private static final int SUB_CELLS = 1 << SUB_BITS;
+    private static final int MIN_EXPONENT = -10;
+    private static final int MAX_EXPONENT = 32;
+    private static final int CELLS = 1 + ((MAX_EXPONENT - MIN_EXPONENT) << SUB_BITS);
+    private static final double MIN_WAIT = Math.scalb(1.0, MIN_EXPONENT);
+    private static final double MAX_WAIT = Math.scalb(1.0, MAX_EXPONENT);
+    // Enough halvings for a crossover well under a millisecond.
+    private static final int SEARCH_STEPS = 64;
+
+    /**
+     * Ranking of the default policy, built once.
+     */
+    static final OrderRanking DEFAULT = new OrderRanking(DivisorRankingPolicy.DEFAULT);
+
+    private final RankingPolicy policy;
+    private final boolean[] first = new boolean[LEVELS.length];
+    // By LEVELS.length * a + b, for levels a < b of the same firstness.
+    private final double[][] lower = new double[LEVELS.length * LEVELS.length][];
+    private final double[][] upper = new double[LEVELS.length * LEVELS.length][];
+
+    /**
+     * CONSTRUCTOR: Precomputes the crossover waits of every pair of levels.
+     * @param policy of the ordered orders.
+     */
+    OrderRanking(RankingPolicy policy) {
+        this.policy = policy;
+
+        for (WorkOrder.ClassLevel level : LEVELS) {
+            first[level.ordinal()] = policy.isFirst(level);
+        }
+
+        double[] bounds = new double[CELLS + 1];
+        for (int cell = 0; cell <= CELLS; cell++) {
+            bounds[cell] = bound(cell);
+        }
+
+        for (WorkOrder.ClassLevel a : LEVELS) {
+            for (WorkOrder.ClassLevel b : LEVELS) {
+                if ((a.ordinal() < b.ordinal()) && (first[a.ordinal()] == first[b.ordinal()])) {
+                    int pair = LEVELS.length * a.ordinal() + b.ordinal();
+                    lower[pair] = new double[CELLS];
+                    upper[pair] = new double[CELLS];
+
+                    for (int cell = 0; cell < CELLS; cell++) {
+                        lower[pair][cell] = below(b, policy.rank(a, bounds[cell]));
+                        upper[pair][cell] = above(b, policy.rank(a, bounds[cell + 1]));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param policy of the ordered orders.
+     * @return the shared ranking of the default policy, or a new one.
+     */
+    static OrderRanking of(RankingPolicy policy) {
+        return (policy == DEFAULT.policy) ? DEFAULT : new OrderRanking(policy);
+    }
+
+    RankingPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Same result as x.compareTo(y, now) for orders of this policy.
+     * @return negative if x comes first.
+     */
+    int compare(WorkOrder x, WorkOrder y, long now) {
+        return compare(x.getLevelOrdinal(), x.getEpochMillis(), x.getId(),
+                y.getLevelOrdinal(), y.getEpochMillis(), y.getId(), now);
+    }
+
+    /**
+     * Same as compare, for orders given by their fields, so orders
+     * that are not held as WorkOrder objects can be compared.
+     * @param a level ordinal of x.
+     * @param b level ordinal of y.
+     * @return negative if x comes first.
+     */
+    int compare(int a, long xDate, long xID, int b, long yDate, long yID, long now) {
+        if (a == b) {
+            int result = Long.compare(xDate, yDate);
+            return (result != 0) ? result : Long.compare(xID, yID);
+        }
+        else if (first[a] != first[b]) {
+            return first[a] ? -1 : 1;
+        }
+        else if (a > b) {
+            return -compare(b, yDate, yID, a, xDate, xID, now);
+        }
+
+        double xWait = waitTime(xDate, now);
+        double yWait = waitTime(yDate, now);
+        int cell = cell(xWait);
+
+        if (cell >= 0) {
+            int pair = LEVELS.length * a + b;
+
+            if (yWait <= lower[pair][cell]) {
+                return -1;
+            }
+            else if (yWait >= upper[pair][cell]) {
+                return 1;
+            }
+        }
+
+        // a near tie, settled like WorkOrder.compareTo.
+        int result = Double.compare(policy.rank(LEVELS[b], yWait), policy.rank(LEVELS[a], xWait));
+
+        if (result == 0) {
+            result = Long.compare(xDate, yDate);
+        }
+        return (result != 0) ? result : Long.compare(xID, yID);
+    }
+
+    // Same arithmetic as WorkOrder.getWaitTime.
+    private static double waitTime(long date, long now) {
+        double timeDifference = now - date;
+        return timeDifference / 1000;
+    }
+
+    /**
+     * @param wait in seconds.
+     * @return cell holding the wait, or -1 if outside the table.
+     */
+    private static int cell(double wait) {
+        if (!(wait >= -MAX_WAIT) || (wait >= MAX_WAIT)) {
+            return -1;
+        }
+        else if (wait < MIN_WAIT) {
+            return 0;
+        }
+
+        int sub = (int) (Double.doubleToRawLongBits(wait) >>> (52 - SUB_BITS)) & (SUB_CELLS - 1);
+        return 1 + (((Math.getExponent(wait) - MIN_EXPONENT) << SUB_BITS) | sub);
+    }
+
+    /**
+     * @return lowest wait of a cell, or the highest of the last one.
+     */
+    private static double bound(int cell) {
+        if (cell == 0) {
+            return -MAX_WAIT;
+        }
+
+        int exponent = MIN_EXPONENT + ((cell - 1) >> SUB_BITS);
+        int sub = (cell - 1) & (SUB_CELLS - 1);
+        return Math.scalb(1.0 + (double) sub / SUB_CELLS, exponent);
+    }
+
+    /**
+     * @return a wait at which the level ranks below the rank,
+     *         as high as found, or -infinity if there is none.
+     */
+    private double below(WorkOrder.ClassLevel level, double rank) {
+        double low = -MAX_WAIT;
+        double high = MAX_WAIT;
+
+        if (!(policy.rank(level, low) < rank)) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        else if (policy.rank(level, high) < rank) {
+            return high;
+        }
+
+        // rank(low) < rank <= rank(high)
+        for (int i = 0; i < SEARCH_STEPS; i++) {
+            double middle = low + (high - low) / 2;
+
+            if (policy.rank(level, middle) < rank) {
+                low = middle;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return a wait from which the level ranks above the rank,
+     *         as low as found, or infinity if there is none.
+     */
+    private double above(WorkOrder.ClassLevel level, double rank) {
+        double low = -MAX_WAIT;
+        double high = MAX_WAIT;
+
+        if (!(policy.rank(level, high) > rank)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        else if (policy.rank(level, low) > rank) {
+            return low;
+        }
+
+        // rank(low) <= rank < rank(high)
+        for (int i = 0; i < SEARCH_STEPS; i++) {
+            double middle = low + (high - low) / 2;
+
+            if (policy.rank(level, middle) > rank) {
+                high = middle;
+            }
+            else {
+                low = middle;
+            }
+        }
+        return high;
+    }
+}
@@ -0,0 +1,19 @@
+package com.nathan.requests;
+
+/**
+ * Where a WorkOrderQueue keeps its queued orders.
+ *
+ * @author Nathan
+ */
+public enum OrderStorage {
+    /**
+     * WorkOrder objects on the heap, the fastest to read.
+     */
+    HEAP,
+    /**
+     * ID and date records in direct buffer slabs outside the heap.
+     * Heap use does not grow with the number of queued orders, orders
+     * are rebuilt as WorkOrder objects when they are read.
+     */
+    OFF_HEAP
+}
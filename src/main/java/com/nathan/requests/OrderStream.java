@@ -0,0 +1,123 @@
+package com.nathan.requests;
+
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Response body that writes order IDs straight from an OrderCursor
+ * to the response. IDs are encoded into one small reused buffer,
+ * so memory stays bounded however many orders are written.
+ *
+ * @author Nathan
+ */
+final class OrderStream implements StreamingResponseBody {
+    /**
+     * Encodings of the ID stream.
+     */
+    enum Format {
+        // [1,2,3]
+        JSON(MediaType.APPLICATION_JSON),
+        // one ID per line.
+        NDJSON(MediaType.valueOf("application/x-ndjson")),
+        // 8 byte big endian IDs, nothing else.
+        BINARY(MediaType.APPLICATION_OCTET_STREAM);
+
+        private final MediaType mediaType;
+
+        Format(MediaType mediaType) {
+            this.mediaType = mediaType;
+        }
+
+        MediaType getMediaType() {
+            return mediaType;
+        }
+    }
+
+    private static final int BUFFER_SIZE = 8192;
+    // Longest encoded ID: a separator and 19 digits.
+    private static final int MAX_ID_LENGTH = 20;
+
+    private final OrderCursor cursor;
+    private final long limit;
+    private final Format format;
+
+    /**
+     * CONSTRUCTOR
+     * @param cursor positioned at the first order to write.
+     * @param limit maximum number of IDs to write.
+     * @param format encoding of the IDs.
+     */
+    OrderStream(OrderCursor cursor, long limit, Format format) {
+        this.cursor = cursor;
+        this.limit = limit;
+        this.format = format;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int length = 0;
+        long count = 0;
+
+        if (format == Format.JSON) {
+            buffer[length++] = '[';
+        }
+
+        for (WorkOrder order = (limit > 0) ? cursor.next() : null; order != null;
+             order = (count < limit) ? cursor.next() : null) {
+            if (length > BUFFER_SIZE - MAX_ID_LENGTH) {
+                out.write(buffer, 0, length);
+                length = 0;
+            }
+
+            long ID = order.getId();
+
+            if (format == Format.BINARY) {
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    buffer[length++] = (byte) (ID >>> shift);
+                }
+            }
+            else {
+                if ((format == Format.JSON) && (count > 0)) {
+                    buffer[length++] = ',';
+                }
+                length = digits(ID, buffer, length);
+
+                if (format == Format.NDJSON) {
+                    buffer[length++] = '\n';
+                }
+            }
+            count++;
+        }
+
+        if (format == Format.JSON) {
+            if (length == BUFFER_SIZE) {
+                out.write(buffer, 0, length);
+                length = 0;
+            }
+            buffer[length++] = ']';
+        }
+        out.write(buffer, 0, length);
+        out.flush();
+    }
+
+    /**
+     * Writes the decimal digits of a positive ID.
+     * @return length of the buffer after the digits.
+     */
+    private static int digits(long ID, byte[] buffer, int length) {
+        int end = length + 1;
+
+        for (long rest = ID / 10; rest > 0; rest /= 10) {
+            end++;
+        }
+        for (int i = end - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' + ID % 10);
+            ID /= 10;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,80 @@
+package com.nathan.requests;
+
+/**
+ * Tournament tree over the heads of many lanes, compared at one instant.
+ * Each inner node holds the lane that won the match of its two children,
+ * so the best head is at the root, and changing one head only replays
+ * the matches on its path to the root: log2 of the lane count
+ * comparisons rather than one per lane.
+ *
+ * A tournament is used by one thread at a time.
+ *
+ * @author Nathan
+ */
+final class OrderTournament {
+    private final WorkOrder[] heads;
+    private final OrderRanking ranking;
+    private final int leaves;
+    // tree[1] is the root, tree[leaves + i] the leaf of lane i, -1 for no head.
+    private final int[] tree;
+    private long now;
+
+    /**
+     * CONSTRUCTOR
+     * @param heads head of each lane, null for empty lanes, changed
+     *              by the caller before calling reset or update.
+     * @param ranking of the orders' policy.
+     */
+    OrderTournament(WorkOrder[] heads, OrderRanking ranking) {
+        this.heads = heads;
+        this.ranking = ranking;
+        leaves = (heads.length > 1) ? Integer.highestOneBit(heads.length - 1) << 1 : 1;
+        tree = new int[2 * leaves];
+    }
+
+    /**
+     * Replays every match.
+     * @param now instant the ranks are compared at until the next reset.
+     */
+    void reset(long now) {
+        this.now = now;
+
+        for (int i = 0; i < leaves; i++) {
+            tree[leaves + i] = leaf(i);
+        }
+        for (int node = leaves - 1; node > 0; node--) {
+            tree[node] = match(tree[2 * node], tree[2 * node + 1]);
+        }
+    }
+
+    /**
+     * Replays the matches of one lane whose head changed.
+     * @param lane index of the lane.
+     */
+    void update(int lane) {
+        int node = leaves + lane;
+        tree[node] = leaf(lane);
+
+        for (node >>= 1; node > 0; node >>= 1) {
+            tree[node] = match(tree[2 * node], tree[2 * node + 1]);
+        }
+    }
+
+    /**
+     * @return index of the lane with the best head, or -1 if all are empty.
+     */
+    int best() {
+        return tree[1];
+    }
+
+    private int leaf(int lane) {
+        return ((lane < heads.length) && (heads[lane] != null)) ? lane : -1;
+    }
+
+    private int match(int a, int b) {
+        if ((a < 0) || (b < 0)) {
+            return (a < 0) ? b : a;
+        }
+        return (ranking.compare(heads[b], heads[a], now) < 0) ? b : a;
+    }
+}
@@ -0,0 +1,19 @@
+package com.nathan.requests;
+
+/**
+ * A consumer parked on a WorkOrderQueue until an order is available.
+ * The queue hands each waiter at most one order, oldest waiter first.
+ *
+ * @author Nathan
+ */
+public interface OrderWaiter {
+    /**
+     * Hands a dequeued order to the waiter. Called by the thread that
+     * made the order available, so it must not block.
+     * @param order highest ranked order at the time.
+     * @return false if the waiter no longer wants an order, for example
+     *         because it timed out. The order is then offered to the
+     *         next waiter or put back in the queue.
+     */
+    boolean offer(WorkOrder order);
+}
@@ -0,0 +1,144 @@
+package com.nathan.requests;
+
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractGenericHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.List;
+
+/**
+ * Writes orders in a fixed width binary layout, for clients that
+ * send Accept: application/x-work-orders.
+ *
+ *   WorkOrderResponse          8 byte ID, 8 byte epoch millis
+ *   List of WorkOrderResponse  the same 16 byte records, one after another
+ *   List of Long               8 byte IDs, as the binary order stream
+ *
+ * Numbers are big endian and nothing else is sent, the number of
+ * records follows from Content-Length. Records are encoded straight
+ * from the responses into one small buffer, so no text or tree of
+ * the body is ever built. Only writing is supported.
+ *
+ * @author Nathan
+ */
+final class OrderWireConverter extends AbstractGenericHttpMessageConverter<Object> {
+    static final MediaType MEDIA_TYPE = MediaType.valueOf("application/x-work-orders");
+
+    static final int ID_LENGTH = 8;
+    static final int RECORD_LENGTH = 16;
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * CONSTRUCTOR
+     */
+    OrderWireConverter() {
+        super(MEDIA_TYPE);
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return clazz == WorkOrderResponse.class;
+    }
+
+    /**
+     * Also takes lists of responses and of IDs, told apart by their declared type.
+     */
+    @Override
+    public boolean canWrite(Type type, Class<?> clazz, MediaType mediaType) {
+        if (type instanceof ParameterizedType) {
+            ParameterizedType parameterized = (ParameterizedType) type;
+            Type element = parameterized.getActualTypeArguments()[0];
+
+            return (parameterized.getRawType() instanceof Class) &&
+                    List.class.isAssignableFrom((Class<?>) parameterized.getRawType()) &&
+                    ((element == WorkOrderResponse.class) || (element == Long.class)) &&
+                    canWrite(mediaType);
+        }
+        return super.canWrite(type, clazz, mediaType);
+    }
+
+    @Override
+    public boolean canRead(Type type, Class<?> contextClass, MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected boolean canRead(MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    public Object read(Type type, Class<?> contextClass, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("Binary orders are only written");
+    }
+
+    @Override
+    protected Object readInternal(Class<?> clazz, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("Binary orders are only written");
+    }
+
+    @Override
+    protected Long getContentLength(Object body, MediaType contentType) {
+        if (body instanceof WorkOrderResponse) {
+            return (long) RECORD_LENGTH;
+        }
+
+        List<?> list = (List<?>) body;
+        return list.isEmpty() ? 0L : (long) list.size() * length(list.get(0));
+    }
+
+    @Override
+    protected void writeInternal(Object body, Type type, HttpOutputMessage outputMessage) throws IOException {
+        OutputStream out = outputMessage.getBody();
+
+        if (body instanceof WorkOrderResponse) {
+            byte[] record = new byte[RECORD_LENGTH];
+            put(record, 0, (WorkOrderResponse) body);
+            out.write(record);
+            return;
+        }
+
+        List<?> list = (List<?>) body;
+        byte[] buffer = new byte[Math.min(BUFFER_SIZE, getContentLength(body, MEDIA_TYPE).intValue())];
+        int length = 0;
+
+        for (int i = 0; i < list.size(); i++) {
+            Object element = list.get(i);
+
+            if (length > buffer.length - RECORD_LENGTH) {
+                out.write(buffer, 0, length);
+                length = 0;
+            }
+            length = (element instanceof WorkOrderResponse) ? put(buffer, length, (WorkOrderResponse) element)
+                    : put(buffer, length, (Long) element);
+        }
+        out.write(buffer, 0, length);
+    }
+
+    private static int length(Object element) {
+        return (element instanceof WorkOrderResponse) ? RECORD_LENGTH : ID_LENGTH;
+    }
+
+    /**
+     * @return length of the buffer after the record.
+     */
+    private static int put(byte[] buffer, int length, WorkOrderResponse response) {
+        return put(buffer, put(buffer, length, response.getID()), response.getEpochMillis());
+    }
+
+    /**
+     * @return length of the buffer after the big endian value.
+     */
+    private static int put(byte[] buffer, int length, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer[length++] = (byte) (value >>> shift);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,208 @@
+package com.nathan.requests;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes the position of an order to clients subscribed to it,
+ * as server-sent events, whenever the position changes.
+ *
+ * One background thread looks at the queue every interval. When the
+ * queue changed since the last look, or refreshMillis have passed,
+ * the positions of all subscribed orders are computed in one pass
+ * with getPositionsOfOrders. Each subscriber is sent only its latest
+ * position, and at most one event every minGapMillis.
+ *
+ * @author Nathan
+ */
+final class PositionEvents implements Closeable {
+    static final String EVENT_NAME = "position";
+
+    private static final Logger LOG = LoggerFactory.getLogger(PositionEvents.class);
+
+    private final WorkOrderQueue queue;
+    private final EventProperties properties;
+    private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+
+    // Started with the first subscriber, guarded by this.
+    private ScheduledExecutorService scheduler;
+    private boolean closed;
+
+    // Only used by the thread running tick.
+    private long lastVersion = -1;
+    private long lastPass;
+
+    /**
+     * CONSTRUCTOR
+     * @param queue to report positions in.
+     * @param properties intervals of the events.
+     */
+    PositionEvents(WorkOrderQueue queue, EventProperties properties) {
+        this.queue = queue;
+        this.properties = properties;
+    }
+
+    /**
+     * Opens a stream of the order's position. The current position is
+     * sent at once, later ones when they change.
+     * @param ID of order to follow.
+     * @return event stream, or null if the order is not in the queue.
+     */
+    SseEmitter subscribe(long ID) {
+        int position = queue.getPositionOfOrder(ID);
+
+        if (position < 0) {
+            return null;
+        }
+
+        SseEmitter emitter = new SseEmitter(properties.getTimeoutMillis());
+        Subscriber subscriber = new Subscriber(ID, emitter);
+
+        emitter.onCompletion(() -> subscribers.remove(subscriber));
+        emitter.onTimeout(() -> subscribers.remove(subscriber));
+
+        if (subscriber.send(position, System.currentTimeMillis())) {
+            subscribers.add(subscriber);
+            start();
+        }
+        return emitter;
+    }
+
+    /**
+     * Recomputes the subscribed positions if the queue may have
+     * changed, and sends those that are due. Run every interval.
+     */
+    void tick() {
+        Subscriber[] current = subscribers.toArray(new Subscriber[0]);
+
+        if (current.length == 0) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long version = queue.version();
+
+        if ((version != lastVersion) || (now - lastPass >= properties.getRefreshMillis())) {
+            long[] IDs = new long[current.length];
+
+            for (int i = 0; i < current.length; i++) {
+                IDs[i] = current[i].ID;
+            }
+
+            int[] positions = queue.getPositionsOfOrders(IDs);
+
+            for (int i = 0; i < current.length; i++) {
+                current[i].latest = positions[i];
+            }
+            lastVersion = version;
+            lastPass = now;
+        }
+
+        for (Subscriber subscriber : current) {
+            subscriber.flush(now);
+        }
+    }
+
+    /**
+     * @return number of open streams.
+     */
+    int size() {
+        return subscribers.size();
+    }
+
+    /**
+     * Stops the background thread and ends every stream.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+            }
+        }
+        for (Subscriber subscriber : subscribers) {
+            subscriber.emitter.complete();
+        }
+        subscribers.clear();
+    }
+
+    private synchronized void start() {
+        if ((scheduler != null) || closed) {
+            return;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "position-events");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, properties.getIntervalMillis());
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                tick();
+            } catch (RuntimeException e) {
+                LOG.error("Position events failed", e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * One open stream. After subscribe, only used by the thread running tick.
+     */
+    private final class Subscriber {
+        final long ID;
+        final SseEmitter emitter;
+        int latest;
+        int sent;
+        long sentAt;
+
+        Subscriber(long ID, SseEmitter emitter) {
+            this.ID = ID;
+            this.emitter = emitter;
+        }
+
+        /**
+         * Sends the latest position if it changed and the last event
+         * is old enough. A removed order is reported at once.
+         */
+        void flush(long now) {
+            if ((latest != sent) && ((latest < 0) || (now - sentAt >= properties.getMinGapMillis()))) {
+                send(latest, now);
+            }
+        }
+
+        /**
+         * Sends a position, and ends the stream if the order is gone.
+         * @return whether the stream is still open.
+         */
+        boolean send(int position, long now) {
+            try {
+                emitter.send(SseEmitter.event().name(EVENT_NAME).data(position));
+                latest = position;
+                sent = position;
+                sentAt = now;
+            } catch (IOException | IllegalStateException e) {
+                // the client went away, the container completes the emitter.
+                subscribers.remove(this);
+                return false;
+            }
+
+            if (position < 0) {
+                subscribers.remove(this);
+                emitter.complete();
+                return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.nathan.requests;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.util.List;
+
+/**
+ * Creates the WorkOrderQueue shared by the controllers,
+ * and the position event streams and metrics of that queue.
+ * The queue has queue.shards shards, one per processor by default,
+ * and keeps its orders on the heap unless queue.storage is OFF_HEAP.
+ * With queue.cluster.enabled the queue becomes one node of a cluster
+ * and holds only the orders of the IDs this node owns.
+ * Orders of a level are evicted once they have waited
+ * queue.expiry.<level>-ttl-millis, if set.
+ * With queue.journal.enabled the queue is restored from its journal
+ * on startup and snapshotted on shutdown.
+ * With queue.http.enabled, the core routes are also served on queue.http.port
+ * by a lightweight NIO front end.
+ * Orders are ranked by a DivisorRankingPolicy built from queue.ranking.*,
+ * unless the context defines its own RankingPolicy bean.
+ * Orders are sent as JSON, or in a binary layout to clients that
+ * accept application/x-work-orders.
+ *
+ * @author Nathan
+ */
+@Configuration
+@EnableConfigurationProperties({QueueProperties.class, JournalProperties.class, EventProperties.class,
+        RankingProperties.class, ClusterProperties.class, ExpiryProperties.class,
+        HttpProperties.class, AdmissionProperties.class})
+public class QueueConfiguration extends WebMvcConfigurerAdapter {
+
+    /**
+     * @param rankingProperties divisors and rank functions of the levels.
+     * @return policy ranking the orders of the queue.
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    public RankingPolicy rankingPolicy(RankingProperties rankingProperties) {
+        return new DivisorRankingPolicy(rankingProperties);
+    }
+
+    /**
+     * @param queueProperties settings of the queue.
+     * @param rankingPolicy policy ranking the orders.
+     * @param journalProperties settings of the order journal.
+     * @param clusterProperties nodes of the cluster.
+     * @return the queue, durable if the journal is enabled.
+     * @throws IOException if the journal cannot be opened or read,
+     *         or the cluster port cannot be bound.
+     */
+    @Bean(destroyMethod = "close")
+    public WorkOrderQueue workOrderQueue(QueueProperties queueProperties, RankingPolicy rankingPolicy,
+                                         JournalProperties journalProperties,
+                                         ClusterProperties clusterProperties) throws IOException {
+        int shards = queueProperties.shardCount();
+        OrderStorage storage = queueProperties.getStorage();
+        WorkOrderQueue queue;
+
+        if (!journalProperties.isEnabled()) {
+            queue = new WorkOrderQueue(Clock.systemUTC(), rankingPolicy, shards, storage);
+        }
+        else {
+            queue = new WorkOrderQueue(Clock.systemUTC(), rankingPolicy, shards, storage,
+                    new OrderJournal(journalProperties));
+        }
+
+        if (clusterProperties.isEnabled()) {
+            queue.joinCluster(new OrderCluster(clusterProperties, rankingPolicy));
+        }
+        return queue;
+    }
+
+    /**
+     * @param workOrderQueue queue to report positions in.
+     * @param eventProperties intervals of the events.
+     * @return position event streams of the queue.
+     */
+    @Bean(destroyMethod = "close")
+    PositionEvents positionEvents(WorkOrderQueue workOrderQueue, EventProperties eventProperties) {
+        return new PositionEvents(workOrderQueue, eventProperties);
+    }
+
+    /**
+     * @param workOrderQueue queue to read.
+     * @param queueProperties cache time of the reads.
+     * @return cached list and mean wait time answers of the queue.
+     */
+    @Bean
+    ReadCache readCache(WorkOrderQueue workOrderQueue, QueueProperties queueProperties) {
+        return new ReadCache(workOrderQueue, queueProperties.getCacheMillis());
+    }
+
+    /**
+     * @param registry the actuator's meter registry.
+     * @param workOrderQueue queue to report on.
+     * @return meters of the requests and the queue.
+     */
+    @Bean
+    QueueMetrics queueMetrics(MeterRegistry registry, WorkOrderQueue workOrderQueue) {
+        return new QueueMetrics(registry, workOrderQueue);
+    }
+
+    /**
+     * @param workOrderQueue queue to admit orders to.
+     * @param admissionProperties limits of the queue and clients.
+     * @param queueMetrics meters counting refused orders.
+     * @return admission control of new orders, admitting all unless limits are set.
+     */
+    @Bean
+    AdmissionControl admissionControl(WorkOrderQueue workOrderQueue, AdmissionProperties admissionProperties,
+                                      QueueMetrics queueMetrics) {
+        return new AdmissionControl(workOrderQueue, admissionProperties, queueMetrics);
+    }
+
+    /**
+     * @param workOrderQueue queue to evict orders from.
+     * @param expiryProperties TTL of each level.
+     * @param queueMetrics meters counting the evictions.
+     * @return expiry of the queue's orders, idle if no level has a TTL.
+     */
+    @Bean(initMethod = "start", destroyMethod = "close")
+    OrderExpiry orderExpiry(WorkOrderQueue workOrderQueue, ExpiryProperties expiryProperties,
+                            QueueMetrics queueMetrics) {
+        return new OrderExpiry(workOrderQueue, expiryProperties, queueMetrics);
+    }
+
+    /**
+     * @param workOrderQueue queue to serve.
+     * @param readCache cached reads of the queue.
+     * @param admissionControl admission control of new orders.
+     * @param httpProperties port and buffer size.
+     * @param queueMetrics meters of the requests.
+     * @return lightweight front end of the queue, idle unless enabled.
+     */
+    @Bean(initMethod = "start", destroyMethod = "close")
+    OrderHttpServer orderHttpServer(WorkOrderQueue workOrderQueue, ReadCache readCache,
+                                    AdmissionControl admissionControl, HttpProperties httpProperties,
+                                    QueueMetrics queueMetrics) {
+        return new OrderHttpServer(workOrderQueue, readCache, admissionControl, httpProperties, queueMetrics);
+    }
+
+    /**
+     * Adds the binary converter after the defaults, so requests
+     * accepting anything still get JSON.
+     */
+    @Override
+    public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+        converters.add(new OrderWireConverter());
+    }
+}
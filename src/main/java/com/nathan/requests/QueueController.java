@@ -1,33 +1,160 @@
 package com.nathan.requests;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import javax.servlet.http.HttpServletRequest;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 
 /**
  * Handles all requests made to the REST service.
- * Contains a WorkOrderQueue object that holds all orders.
+ * Uses the WorkOrderQueue bean that holds all orders.
  *
  * @author Nathan
  */
 @RestController
 @RequestMapping(value = "queue")
 public class QueueController {
-    private static WorkOrderQueue workOrderQueue = new WorkOrderQueue();
+    private static final String TOTAL_COUNT = "X-Total-Count";
+    // Longest a dequeue may wait for an order.
+    static final long MAX_WAIT_MILLIS = 60000;
+
+    private WorkOrderQueue workOrderQueue;
+    private PositionEvents positionEvents;
+    private ReadCache readCache;
+    private AdmissionControl admission;
+    private final QueueMetrics metrics;
+
+    /**
+     * CONSTRUCTOR: Uses a new, empty queue.
+     */
+    public QueueController() {
+        this(new WorkOrderQueue());
+    }
+
+    /**
+     * CONSTRUCTOR: Uses default event settings.
+     * @param workOrderQueue queue that holds all orders.
+     */
+    public QueueController(WorkOrderQueue workOrderQueue) {
+        this(workOrderQueue, new PositionEvents(workOrderQueue, new EventProperties()),
+                QueueMetrics.disabled(workOrderQueue));
+    }
+
+    /**
+     * CONSTRUCTOR: Uses the default cache time of the reads.
+     * @param workOrderQueue queue that holds all orders.
+     * @param positionEvents position streams of the same queue.
+     * @param metrics meters of the requests and the same queue.
+     */
+    public QueueController(WorkOrderQueue workOrderQueue, PositionEvents positionEvents, QueueMetrics metrics) {
+        this(workOrderQueue, positionEvents, new ReadCache(workOrderQueue, new QueueProperties().getCacheMillis()),
+                new AdmissionControl(workOrderQueue, new AdmissionProperties(), metrics), metrics);
+    }
+
+    /**
+     * CONSTRUCTOR
+     * @param workOrderQueue queue that holds all orders.
+     * @param positionEvents position streams of the same queue.
+     * @param readCache cached reads of the same queue.
+     * @param admission limits of new orders in the same queue.
+     * @param metrics meters of the requests and the same queue.
+     */
+    @Autowired
+    public QueueController(WorkOrderQueue workOrderQueue, PositionEvents positionEvents, ReadCache readCache,
+                           AdmissionControl admission, QueueMetrics metrics) {
+        this.workOrderQueue = workOrderQueue;
+        this.positionEvents = positionEvents;
+        this.readCache = readCache;
+        this.admission = admission;
+        this.metrics = metrics;
+    }
 
     /**
      * Gets a list of order IDs, sorted from highest rank
-     * to lowest.
-     * @return List of longs.
-     *         Or empty list if no orders.
+     * to lowest, as the cached JSON body.
+     * @return OK and the JSON array of IDs, with its ETag.
+     *         NOT_MODIFIED if If-None-Match holds the ETag.
+     */
+    @RequestMapping(method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+    public ResponseEntity<byte[]> listJson() {
+        ReadCache.Answer<List<Long>> answer = cachedList();
+
+        return ResponseEntity.status(HttpStatus.OK).eTag(answer.getETag())
+                .contentType(MediaType.APPLICATION_JSON_UTF8).body(answer.getJson());
+    }
+
+    /**
+     * Gets a list of order IDs, sorted from highest rank
+     * to lowest, in any other format.
+     * @return OK and list of longs, or empty list if no orders.
+     *         NOT_MODIFIED if If-None-Match holds the ETag.
      */
     @RequestMapping(method = RequestMethod.GET)
-    @ResponseBody
-    @ResponseStatus(HttpStatus.OK)
-    public List<Long> list() {
-        return workOrderQueue.getListOfIDs();
+    public ResponseEntity<List<Long>> list() {
+        ReadCache.Answer<List<Long>> answer = cachedList();
+
+        return ResponseEntity.status(HttpStatus.OK).eTag(answer.getETag("wire")).body(answer.getValue());
+    }
+
+    private ReadCache.Answer<List<Long>> cachedList() {
+        long start = System.nanoTime();
+        try {
+            return readCache.list();
+        } finally {
+            metrics.record(QueueMetrics.Endpoint.LIST, start);
+        }
+    }
+
+    /**
+     * Streams order IDs, sorted from highest rank to lowest, straight
+     * from a copy of the queue. Unlike list, no list of IDs is built,
+     * so memory stays bounded for very large queues.
+     * @param offset number of top orders to skip.
+     * @param limit maximum number of IDs to send, all if absent.
+     * @param format json (an array, as list), ndjson (one ID per line)
+     *               or binary (8 byte big endian IDs).
+     * @return OK code and the IDs, with the queue size in X-Total-Count.
+     *         BAD_REQUEST if offset or limit is negative or the format is unknown.
+     */
+    @RequestMapping(value = "/stream", method = RequestMethod.GET)
+    public ResponseEntity<StreamingResponseBody> stream(@RequestParam(value = "offset", defaultValue = "0") long offset,
+                                                        @RequestParam(value = "limit", required = false) Long limit,
+                                                        @RequestParam(value = "format", defaultValue = "json") String format) {
+        OrderStream.Format streamFormat;
+
+        try {
+            streamFormat = OrderStream.Format.valueOf(format.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            metrics.count(QueueMetrics.Outcome.BAD_REQUEST);
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(null);
+        }
+
+        if ((offset < 0) || ((limit != null) && (limit < 0))) {
+            metrics.count(QueueMetrics.Outcome.BAD_REQUEST);
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(null);
+        }
+
+        OrderCursor cursor = workOrderQueue.cursor();
+        int total = cursor.remaining();
+        cursor.skip(offset);
+
+        return ResponseEntity.status(HttpStatus.OK)
+                .contentType(streamFormat.getMediaType())
+                .header(TOTAL_COUNT, Integer.toString(total))
+                .body(new OrderStream(cursor, (limit != null) ? limit : Long.MAX_VALUE, streamFormat));
     }
 
     /**
@@ -39,45 +166,220 @@ public class QueueController {
     @ResponseStatus(HttpStatus.OK)
     @ResponseBody
     public int position(@PathVariable("id") long id) {
-        return workOrderQueue.getPositionOfOrder(id);
+        long start = System.nanoTime();
+        try {
+            return workOrderQueue.getPositionOfOrder(id);
+        } finally {
+            metrics.record(QueueMetrics.Endpoint.POSITION, start);
+        }
+    }
+
+    /**
+     * Streams the position of an order as server-sent "position" events.
+     * The current position is sent at once, then every change of it,
+     * at most one event per subscriber every queue.events.min-gap-millis.
+     * A final -1 is sent when the order leaves the queue.
+     * @param id of order to follow.
+     * @return OK and the event stream.
+     *         NOT_FOUND if the order is not in the queue.
+     */
+    @RequestMapping(value = "/{id}/events", method = RequestMethod.GET)
+    public ResponseEntity<SseEmitter> events(@PathVariable("id") long id) {
+        SseEmitter emitter = positionEvents.subscribe(id);
+
+        if (emitter == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(null);
+        }
+        return ResponseEntity.status(HttpStatus.OK).body(emitter);
     }
 
     /**
      * Get average wait time of all orders.
-     * @return wait time, or zero if empty.
+     * @return OK and wait time, or zero if empty, with its ETag.
+     *         NOT_MODIFIED if If-None-Match holds the ETag.
      */
-    @RequestMapping(value = "/meantime", method = RequestMethod.GET)
-    @ResponseStatus(HttpStatus.OK)
-    @ResponseBody
-    public double waitTime() {
-        return workOrderQueue.getAverageWaitTime();
+    @RequestMapping(value = "/meantime", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+    public ResponseEntity<byte[]> waitTime() {
+        long start = System.nanoTime();
+        ReadCache.Answer<Double> answer;
+
+        try {
+            answer = readCache.waitTime();
+        } finally {
+            metrics.record(QueueMetrics.Endpoint.MEANTIME, start);
+        }
+        return ResponseEntity.status(HttpStatus.OK).eTag(answer.getETag())
+                .contentType(MediaType.APPLICATION_JSON_UTF8).body(answer.getJson());
     }
 
     /**
      * Takes in ID and Date and creates new order.
      * @param id of the user making the order
      * @param date of order. Use "now" for current time.
+     * @param request naming the client, by header or remote address.
      * @return CREATED code and the created order.
-     *         BAD_REQUEST code and empty body if ID is less than 1.
+     *         BAD_REQUEST code and empty body if ID is less than 1
+     *         or the date is not in yyyy-MM-dd_HH:mm format.
      *         CONFLICT if the ID is already present.
+     *         TOO_MANY_REQUESTS and Retry-After if the queue is full
+     *         for the order's level or the client is over its rate.
      */
     @RequestMapping(value = "/{id}/{date}", method = RequestMethod.POST)
     @ResponseBody
-    public ResponseEntity<WorkOrderResponse> enqueue(@PathVariable("id") long id, @PathVariable("date") String date) {
-        WorkOrder order = new WorkOrder(id, date);
+    public ResponseEntity<WorkOrderResponse> enqueue(@PathVariable("id") long id, @PathVariable("date") String date,
+                                                     HttpServletRequest request) {
+        WorkOrder order;
+
+        try {
+            order = new WorkOrder(id, date, workOrderQueue.getRankingPolicy());
+        } catch (InvalidOrderDateException e) {
+            metrics.count(QueueMetrics.Outcome.BAD_REQUEST);
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(null);
+        }
 
         if (id < 1) {
+            metrics.count(QueueMetrics.Outcome.BAD_REQUEST);
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(null);
         }
-        else if (workOrderQueue.enqueue(order)) {
-            WorkOrderResponse response = new WorkOrderResponse(order.getId(), order.getDateString());
+
+        String client = client(request);
+        long retryAfter = admission.admit(client, order);
+
+        if (retryAfter > 0) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, Long.toString(retryAfter)).body(null);
+        }
+
+        long start = System.nanoTime();
+        byte result;
+
+        try {
+            result = admission.enqueue(order);
+        } finally {
+            metrics.record(QueueMetrics.Endpoint.ENQUEUE, start);
+        }
+
+        if (result == WorkOrderQueue.ADDED) {
+            WorkOrderResponse response = new WorkOrderResponse(order);
             return ResponseEntity.status(HttpStatus.CREATED).body(response);
         }
+        else if (result == WorkOrderQueue.OVER_CAPACITY) {
+            admission.refund(client);
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, Long.toString(admission.retryAfterSeconds())).body(null);
+        }
         else {
+            admission.refund(client);
+            metrics.count(QueueMetrics.Outcome.CONFLICT);
             return ResponseEntity.status(HttpStatus.CONFLICT).body(null);
         }
     }
 
+    /**
+     * Takes in many ID and Date pairs and creates an order for each,
+     * in one pass over the queue.
+     * @param requests orders to create. Use "now" for current time.
+     * @param request naming the client, by header or remote address.
+     * @return OK code and one result per request, in the same order.
+     *         Each result has the code the single enqueue would give:
+     *         CREATED, CONFLICT, BAD_REQUEST or TOO_MANY_REQUESTS,
+     *         with the longest Retry-After of the refused orders.
+     *         An ID repeated in the batch is only admitted once, and
+     *         an order not added gives its token back.
+     */
+    @RequestMapping(value = "/batch", method = RequestMethod.POST)
+    @ResponseBody
+    public ResponseEntity<List<BatchItemResponse>> enqueueAll(@RequestBody List<WorkOrderRequest> requests,
+                                                              HttpServletRequest request) {
+        List<WorkOrder> orders = new ArrayList<WorkOrder>(requests.size());
+        WorkOrder[] valid = new WorkOrder[requests.size()];
+        boolean[] refused = new boolean[valid.length];
+        boolean[] charged = new boolean[valid.length];
+        String client = client(request);
+        int[] pending = AdmissionControl.newPending();
+        Set<Long> seen = new HashSet<Long>();
+        long retryAfter = 0;
+
+        for (int i = 0; i < valid.length; i++) {
+            WorkOrderRequest item = requests.get(i);
+
+            try {
+                if (item.getID() >= 1) {
+                    valid[i] = new WorkOrder(item.getID(), item.getDate(), workOrderQueue.getRankingPolicy());
+                    // Repeating an admitted ID is a conflict, so it takes no token or place.
+                    long wait = seen.contains(item.getID()) ? 0 : admission.admit(client, valid[i], pending);
+
+                    if (wait > 0) {
+                        refused[i] = true;
+                        retryAfter = Math.max(retryAfter, wait);
+                    }
+                    else {
+                        charged[i] = seen.add(item.getID());
+                        orders.add(valid[i]);
+                    }
+                }
+            } catch (InvalidOrderDateException e) {
+                valid[i] = null;
+            }
+        }
+
+        long start = System.nanoTime();
+        byte[] added;
+
+        try {
+            added = admission.enqueueAll(orders);
+        } finally {
+            metrics.record(QueueMetrics.Endpoint.BATCH, start);
+        }
+
+        List<BatchItemResponse> results = new ArrayList<BatchItemResponse>(valid.length);
+        int next = 0;
+
+        for (int i = 0; i < valid.length; i++) {
+            WorkOrder order = valid[i];
+
+            if (order == null) {
+                metrics.count(QueueMetrics.Outcome.BAD_REQUEST);
+                results.add(new BatchItemResponse(requests.get(i).getID(), HttpStatus.BAD_REQUEST, null));
+            }
+            else if (refused[i]) {
+                results.add(new BatchItemResponse(order.getId(), HttpStatus.TOO_MANY_REQUESTS, null));
+            }
+            else if (added[next] == WorkOrderQueue.ADDED) {
+                next++;
+                results.add(new BatchItemResponse(order.getId(), HttpStatus.CREATED, order.getDateString()));
+            }
+            else if (added[next++] == WorkOrderQueue.OVER_CAPACITY) {
+                if (charged[i]) {
+                    admission.refund(client);
+                }
+                retryAfter = Math.max(retryAfter, admission.retryAfterSeconds());
+                results.add(new BatchItemResponse(order.getId(), HttpStatus.TOO_MANY_REQUESTS, null));
+            }
+            else {
+                if (charged[i]) {
+                    admission.refund(client);
+                }
+                metrics.count(QueueMetrics.Outcome.CONFLICT);
+                results.add(new BatchItemResponse(order.getId(), HttpStatus.CONFLICT, null));
+            }
+        }
+        if (retryAfter > 0) {
+            return ResponseEntity.status(HttpStatus.OK)
+                    .header(HttpHeaders.RETRY_AFTER, Long.toString(retryAfter)).body(results);
+        }
+        return ResponseEntity.status(HttpStatus.OK).body(results);
+    }
+
+    /**
+     * @return the client named in the configured client header, else the remote address.
+     */
+    private String client(HttpServletRequest request) {
+        AdmissionProperties properties = admission.getProperties();
+        String client = properties.hasClientHeader() ? request.getHeader(properties.getClientHeader()) : null;
+        return (client != null) ? client : request.getRemoteAddr();
+    }
+
     /**
      * Removes the first order in the queue and returns it.
      * @return The first order and OK.
@@ -86,15 +388,101 @@ public class QueueController {
     @RequestMapping(method = RequestMethod.DELETE)
     @ResponseBody
     public ResponseEntity<WorkOrderResponse> dequeue() {
-        WorkOrder order = workOrderQueue.dequeue();
+        long start = System.nanoTime();
+        WorkOrder order;
+
+        try {
+            order = workOrderQueue.dequeue();
+        } finally {
+            metrics.record(QueueMetrics.Endpoint.DEQUEUE, start);
+        }
 
         if (order != null) {
-            WorkOrderResponse response = new WorkOrderResponse(order.getId(), order.getDateString());
+            WorkOrderResponse response = new WorkOrderResponse(order);
             return ResponseEntity.status(HttpStatus.OK).body(response);
         }
         else {
+            metrics.count(QueueMetrics.Outcome.EMPTY_DEQUEUE);
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(null);
+        }
+    }
+
+    /**
+     * Removes the first orders in the queue and returns them.
+     * @param count maximum number of orders to remove.
+     * @return The removed orders, highest rank first, and OK.
+     *         NOT_FOUND if queue is empty.
+     *         BAD_REQUEST if count is less than 1.
+     */
+    @RequestMapping(method = RequestMethod.DELETE, params = {"count", "!timeout"})
+    @ResponseBody
+    public ResponseEntity<List<WorkOrderResponse>> dequeue(@RequestParam("count") int count) {
+        if (count < 1) {
+            metrics.count(QueueMetrics.Outcome.BAD_REQUEST);
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(null);
+        }
+
+        long start = System.nanoTime();
+        List<WorkOrder> orders;
+
+        try {
+            orders = workOrderQueue.dequeue(count);
+        } finally {
+            metrics.record(QueueMetrics.Endpoint.DEQUEUE, start);
+        }
+
+        if (orders.isEmpty()) {
+            metrics.count(QueueMetrics.Outcome.EMPTY_DEQUEUE);
             return ResponseEntity.status(HttpStatus.NOT_FOUND).body(null);
         }
+
+        List<WorkOrderResponse> responses = new ArrayList<WorkOrderResponse>(orders.size());
+        for (WorkOrder order : orders) {
+            responses.add(new WorkOrderResponse(order));
+        }
+        return ResponseEntity.status(HttpStatus.OK).body(responses);
+    }
+
+    /**
+     * Removes the first order in the queue and returns it, waiting up to
+     * timeout milliseconds for one to arrive if the queue is empty.
+     * The request is parked without holding a servlet thread, and waiting
+     * requests are served in the order they arrived. The dequeue is timed,
+     * wait included, when it gets an order or times out.
+     * @param timeout longest wait in milliseconds, at most MAX_WAIT_MILLIS.
+     * @return The first order and OK.
+     *         NOT_FOUND if no order arrived in time.
+     *         BAD_REQUEST if timeout is not between 1 and MAX_WAIT_MILLIS.
+     */
+    @RequestMapping(method = RequestMethod.DELETE, params = {"timeout", "!count"})
+    public DeferredResult<ResponseEntity<WorkOrderResponse>> dequeue(@RequestParam("timeout") long timeout) {
+        if ((timeout < 1) || (timeout > MAX_WAIT_MILLIS)) {
+            metrics.count(QueueMetrics.Outcome.BAD_REQUEST);
+            DeferredResult<ResponseEntity<WorkOrderResponse>> result = new DeferredResult<ResponseEntity<WorkOrderResponse>>();
+            result.setResult(ResponseEntity.status(HttpStatus.BAD_REQUEST).body(null));
+            return result;
+        }
+
+        WorkOrderQueue queue = workOrderQueue;
+        DeferredOrder result = new DeferredOrder(timeout, metrics);
+        result.onTimeout(() -> {
+            metrics.count(QueueMetrics.Outcome.EMPTY_DEQUEUE);
+            result.record();
+        });
+        result.onCompletion(() -> queue.cancelAwait(result));
+        queue.awaitOrder(result);
+        return result;
+    }
+
+    /**
+     * Waiting for several orders is not supported.
+     * @return BAD_REQUEST code.
+     */
+    @RequestMapping(method = RequestMethod.DELETE, params = {"count", "timeout"})
+    @ResponseBody
+    public ResponseEntity<List<WorkOrderResponse>> dequeueCountWait() {
+        metrics.count(QueueMetrics.Outcome.BAD_REQUEST);
+        return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(null);
     }
 
     /**
@@ -107,17 +495,73 @@ public class QueueController {
     @RequestMapping(value = "/{id}", method = RequestMethod.DELETE)
     public ResponseEntity<Long> remove(@PathVariable("id") long id) {
         if (id < 0) {
+            metrics.count(QueueMetrics.Outcome.BAD_REQUEST);
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(id);
         }
 
-        HttpStatus result = workOrderQueue.removeOrder(id) ? HttpStatus.OK : HttpStatus.NOT_FOUND;
+        long start = System.nanoTime();
+        HttpStatus result;
+
+        try {
+            result = workOrderQueue.removeOrder(id) ? HttpStatus.OK : HttpStatus.NOT_FOUND;
+        } finally {
+            metrics.record(QueueMetrics.Endpoint.REMOVE, start);
+        }
         return ResponseEntity.status(result).body(id);
     }
 
+    /**
+     * Response of a waiting dequeue, completed by the queue when it
+     * hands over an order, or with NOT_FOUND when the wait times out.
+     */
+    private static class DeferredOrder extends DeferredResult<ResponseEntity<WorkOrderResponse>>
+            implements OrderWaiter {
+        private final QueueMetrics metrics;
+        private final long start = System.nanoTime();
+
+        DeferredOrder(long timeout, QueueMetrics metrics) {
+            super(timeout, ResponseEntity.status(HttpStatus.NOT_FOUND).body(null));
+            this.metrics = metrics;
+        }
+
+        @Override
+        public boolean offer(WorkOrder order) {
+            WorkOrderResponse response = new WorkOrderResponse(order);
+
+            if (setResult(ResponseEntity.status(HttpStatus.OK).body(response))) {
+                record();
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Times the dequeue from its arrival.
+         */
+        void record() {
+            metrics.record(QueueMetrics.Endpoint.DEQUEUE, start);
+        }
+    }
+
+    /**
+     * A node of the cluster holding part of the orders could not be reached.
+     * @return SERVICE_UNAVAILABLE code.
+     */
+    @ExceptionHandler(ClusterException.class)
+    public ResponseEntity<Void> clusterUnavailable() {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+    }
+
     /**
      * Resets the contents of the queue.
      */
     public void clearQueue() {
-        workOrderQueue = new WorkOrderQueue();
+        positionEvents.close();
+        workOrderQueue = new WorkOrderQueue(Clock.systemUTC(), workOrderQueue.getRankingPolicy(),
+                workOrderQueue.getShards(), workOrderQueue.getStorage());
+        positionEvents = new PositionEvents(workOrderQueue, new EventProperties());
+        readCache = new ReadCache(workOrderQueue, readCache.getRefreshMillis());
+        admission = new AdmissionControl(workOrderQueue, admission.getProperties(), metrics);
+        metrics.watch(workOrderQueue);
     }
 }
@@ -0,0 +1,141 @@
+package com.nathan.requests;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Meters of the REST service, exported through the actuator's
+ * /prometheus endpoint.
+ *
+ *   queue.requests      timer with latency histogram, by endpoint
+ *   queue.outcomes      counter of conflict, bad_request, empty_dequeue,
+ *                       over_capacity and rate_limited
+ *   queue.expired       counter of orders evicted by their TTL, by level
+ *   queue.depth         gauge of queued orders, by level
+ *   queue.oldest.age    gauge of the oldest order's wait in seconds, by level
+ *
+ * Meters are built once and looked up by ordinal, so recording is a
+ * clock read and a timer update with no allocation. Gauges are only
+ * computed when scraped. In a cluster they count this node's orders.
+ *
+ * @author Nathan
+ */
+final class QueueMetrics {
+    /**
+     * Timed endpoints of the controller.
+     */
+    enum Endpoint {
+        ENQUEUE,
+        BATCH,
+        DEQUEUE,
+        REMOVE,
+        POSITION,
+        LIST,
+        MEANTIME
+    }
+
+    /**
+     * Counted results of requests.
+     */
+    enum Outcome {
+        CONFLICT,
+        BAD_REQUEST,
+        EMPTY_DEQUEUE,
+        OVER_CAPACITY,
+        RATE_LIMITED
+    }
+
+    // Range of the histogram buckets, fewer buckets make smaller scrapes.
+    private static final Duration MIN_LATENCY = Duration.ofNanos(1000);
+    private static final Duration MAX_LATENCY = Duration.ofSeconds(10);
+
+    private final Timer[] timers = new Timer[Endpoint.values().length];
+    private final Counter[] counters = new Counter[Outcome.values().length];
+    private final Counter[] expired = new Counter[WorkOrder.ClassLevel.values().length];
+    private volatile WorkOrderQueue queue;
+
+    /**
+     * CONSTRUCTOR: Registers every meter.
+     * @param registry to register the meters in.
+     * @param queue whose depth and oldest orders are reported.
+     */
+    QueueMetrics(MeterRegistry registry, WorkOrderQueue queue) {
+        this.queue = queue;
+
+        for (Endpoint endpoint : Endpoint.values()) {
+            timers[endpoint.ordinal()] = Timer.builder("queue.requests")
+                    .description("Time spent serving queue requests")
+                    .tag("endpoint", endpoint.name().toLowerCase(Locale.ROOT))
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(MIN_LATENCY)
+                    .maximumExpectedValue(MAX_LATENCY)
+                    .register(registry);
+        }
+        for (Outcome outcome : Outcome.values()) {
+            counters[outcome.ordinal()] = Counter.builder("queue.outcomes")
+                    .description("Requests that did not change the queue")
+                    .tag("outcome", outcome.name().toLowerCase(Locale.ROOT))
+                    .register(registry);
+        }
+        for (WorkOrder.ClassLevel level : WorkOrder.ClassLevel.values()) {
+            String name = level.name().toLowerCase(Locale.ROOT);
+
+            expired[level.ordinal()] = Counter.builder("queue.expired")
+                    .description("Orders evicted after their time to live")
+                    .tag("level", name)
+                    .register(registry);
+            Gauge.builder("queue.depth", this, metrics -> metrics.queue.sizeLocal(level))
+                    .description("Orders in the queue")
+                    .tag("level", name)
+                    .register(registry);
+            Gauge.builder("queue.oldest.age", this, metrics -> metrics.queue.oldestWaitTimeLocal(level))
+                    .description("Wait time of the oldest order")
+                    .tag("level", name)
+                    .baseUnit("seconds")
+                    .register(registry);
+        }
+    }
+
+    /**
+     * @param queue whose meters record nothing.
+     * @return metrics of the queue kept in no registry.
+     */
+    static QueueMetrics disabled(WorkOrderQueue queue) {
+        return new QueueMetrics(new CompositeMeterRegistry(), queue);
+    }
+
+    /**
+     * Reports on another queue from now on.
+     * @param queue whose depth and oldest orders are reported.
+     */
+    void watch(WorkOrderQueue queue) {
+        this.queue = queue;
+    }
+
+    /**
+     * @param endpoint that served the request.
+     * @param startNanos System.nanoTime() when the request started.
+     */
+    void record(Endpoint endpoint, long startNanos) {
+        timers[endpoint.ordinal()].record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void count(Outcome outcome) {
+        counters[outcome.ordinal()].increment();
+    }
+
+    /**
+     * @param level of the evicted orders.
+     * @param count number of orders evicted.
+     */
+    void expired(WorkOrder.ClassLevel level, int count) {
+        expired[level.ordinal()].increment(count);
+    }
+}
@@ -0,0 +1,57 @@
+package com.nathan.requests;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Settings of the queue itself, bound from queue.* properties.
+ *
+ * @author Nathan
+ */
+@ConfigurationProperties(prefix = "queue")
+public class QueueProperties {
+    private int shards = 0;
+    private OrderStorage storage = OrderStorage.HEAP;
+    private long cacheMillis = 1000;
+
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * @param shards number of shards the lanes are split into,
+     *               0 for one per available processor.
+     */
+    public void setShards(int shards) {
+        this.shards = shards;
+    }
+
+    public OrderStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * @param storage where the queued orders are kept.
+     */
+    public void setStorage(OrderStorage storage) {
+        this.storage = storage;
+    }
+
+    public long getCacheMillis() {
+        return cacheMillis;
+    }
+
+    /**
+     * @param cacheMillis longest the list and mean wait time answers
+     *                    are reused while the queue is unchanged.
+     */
+    public void setCacheMillis(long cacheMillis) {
+        this.cacheMillis = cacheMillis;
+    }
+
+    /**
+     * @return number of shards to create.
+     */
+    int shardCount() {
+        return (shards > 0) ? shards : Runtime.getRuntime().availableProcessors();
+    }
+}
@@ -0,0 +1,32 @@
+package com.nathan.requests;
+
+/**
+ * Rank functions a level can use in DivisorRankingPolicy.
+ * Each one grows with the wait time n, times a scale,
+ * and is never below the floor.
+ *
+ * @author Nathan
+ */
+public enum RankFunction {
+    /**
+     * max(floor, scale * n)
+     */
+    LINEAR {
+        @Override
+        double rank(double waitTime, double scale, double floor) {
+            return Math.max(floor, scale * waitTime);
+        }
+    },
+    /**
+     * max(floor, scale * n log n). n log n is not positive for a wait of
+     * one second or less, so the floor is returned directly.
+     */
+    N_LOG_N {
+        @Override
+        double rank(double waitTime, double scale, double floor) {
+            return (waitTime > 1) ? Math.max(floor, scale * waitTime * Math.log(waitTime)) : floor;
+        }
+    };
+
+    abstract double rank(double waitTime, double scale, double floor);
+}
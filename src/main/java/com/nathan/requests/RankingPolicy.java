@@ -0,0 +1,33 @@
+package com.nathan.requests;
+
+/**
+ * Decides the ClassLevel of an order and how its rank grows while it waits.
+ *
+ * Rank functions must never decrease as the wait grows. The queue relies
+ * on it to keep each level in date order, and to precompute when the
+ * orders of one level overtake those of another (see OrderRanking).
+ * Implementations must be immutable and thread safe.
+ *
+ * @author Nathan
+ */
+public interface RankingPolicy {
+    /**
+     * @param ID of the order.
+     * @return level of the order.
+     */
+    WorkOrder.ClassLevel levelOf(long ID);
+
+    /**
+     * @param level of the order.
+     * @param waitTime seconds the order has waited, negative for future dates.
+     * @return rank of the order, higher ranks come first.
+     */
+    double rank(WorkOrder.ClassLevel level, double waitTime);
+
+    /**
+     * @param level of orders.
+     * @return whether orders of the level come before every order of
+     *         the levels that are not first, whatever their ranks.
+     */
+    boolean isFirst(WorkOrder.ClassLevel level);
+}
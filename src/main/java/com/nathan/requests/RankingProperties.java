@@ -0,0 +1,135 @@
+package com.nathan.requests;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Settings of the DivisorRankingPolicy, bound from queue.ranking.* properties.
+ * The defaults are the original rules: IDs divisible by 3 are Priority,
+ * by 5 VIP, by both Manager. Normal and Manager rank by wait time,
+ * Priority by max(3, n log n), VIP by max(4, 2n log n), and Managers
+ * always come first.
+ *
+ * @author Nathan
+ */
+@ConfigurationProperties(prefix = "queue.ranking")
+public class RankingProperties {
+    /**
+     * Rank function of one level.
+     */
+    public static class Level {
+        private RankFunction function;
+        private double scale;
+        private double floor;
+
+        /**
+         * CONSTRUCTOR: Used when binding properties.
+         */
+        public Level() {
+            this(RankFunction.LINEAR, 1, Double.NEGATIVE_INFINITY);
+        }
+
+        /**
+         * CONSTRUCTOR
+         * @param function of the wait time.
+         * @param scale positive factor of the function.
+         * @param floor lowest rank of the level.
+         */
+        public Level(RankFunction function, double scale, double floor) {
+            this.function = function;
+            this.scale = scale;
+            this.floor = floor;
+        }
+
+        public RankFunction getFunction() {
+            return function;
+        }
+
+        public void setFunction(RankFunction function) {
+            this.function = function;
+        }
+
+        public double getScale() {
+            return scale;
+        }
+
+        public void setScale(double scale) {
+            this.scale = scale;
+        }
+
+        public double getFloor() {
+            return floor;
+        }
+
+        public void setFloor(double floor) {
+            this.floor = floor;
+        }
+    }
+
+    private long priorityDivisor = 3;
+    private long vipDivisor = 5;
+    private WorkOrder.ClassLevel first = WorkOrder.ClassLevel.Manager;
+
+    private Level normal = new Level();
+    private Level priority = new Level(RankFunction.N_LOG_N, 1, 3);
+    private Level vip = new Level(RankFunction.N_LOG_N, 2, 4);
+    private Level manager = new Level();
+
+    public long getPriorityDivisor() {
+        return priorityDivisor;
+    }
+
+    public void setPriorityDivisor(long priorityDivisor) {
+        this.priorityDivisor = priorityDivisor;
+    }
+
+    public long getVipDivisor() {
+        return vipDivisor;
+    }
+
+    public void setVipDivisor(long vipDivisor) {
+        this.vipDivisor = vipDivisor;
+    }
+
+    public WorkOrder.ClassLevel getFirst() {
+        return first;
+    }
+
+    /**
+     * @param first level that always comes first, null for none.
+     */
+    public void setFirst(WorkOrder.ClassLevel first) {
+        this.first = first;
+    }
+
+    public Level getNormal() {
+        return normal;
+    }
+
+    public void setNormal(Level normal) {
+        this.normal = normal;
+    }
+
+    public Level getPriority() {
+        return priority;
+    }
+
+    public void setPriority(Level priority) {
+        this.priority = priority;
+    }
+
+    public Level getVip() {
+        return vip;
+    }
+
+    public void setVip(Level vip) {
+        this.vip = vip;
+    }
+
+    public Level getManager() {
+        return manager;
+    }
+
+    public void setManager(Level manager) {
+        this.manager = manager;
+    }
+}
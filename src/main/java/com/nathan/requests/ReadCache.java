@@ -0,0 +1,197 @@
+package com.nathan.requests;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the answers of the list and mean wait time reads, so clients
+ * polling an unchanged queue share one answer, JSON body included.
+ *
+ * An answer is kept while the queue's version is unchanged, for at most
+ * refreshMillis, as ranks and wait times also move with time alone.
+ * Concurrent reads of a stale answer wait for one of them to rebuild it.
+ * Each answer carries an ETag that only changes when its JSON body does,
+ * so clients sending it back in If-None-Match get NOT_MODIFIED for as
+ * long as the body would be the same.
+ *
+ * In a cluster the version only counts this node's changes, so answers
+ * are rebuilt on every read and only the ETag saves bandwidth.
+ *
+ * @author Nathan
+ */
+final class ReadCache {
+    private final WorkOrderQueue queue;
+    private final long refreshMillis;
+    // Tells apart the ETags of another cache, or of a restarted application.
+    private final String instance = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    private final AtomicLong generation = new AtomicLong();
+
+    private final Object listLock = new Object();
+    private final Object waitTimeLock = new Object();
+    private volatile Answer<List<Long>> list;
+    private volatile Answer<Double> waitTime;
+
+    /**
+     * CONSTRUCTOR
+     * @param queue to read.
+     * @param refreshMillis longest an answer is kept while the queue is unchanged.
+     */
+    ReadCache(WorkOrderQueue queue, long refreshMillis) {
+        this.queue = queue;
+        this.refreshMillis = refreshMillis;
+    }
+
+    /**
+     * @return longest an answer is kept while the queue is unchanged.
+     */
+    long getRefreshMillis() {
+        return refreshMillis;
+    }
+
+    /**
+     * @return order IDs from highest rank to lowest, as getListOfIDs.
+     */
+    Answer<List<Long>> list() {
+        Answer<List<Long>> answer = list;
+
+        if (isFresh(answer)) {
+            return answer;
+        }
+        if (queue.isClustered()) {
+            return list = rebuildList(answer);
+        }
+
+        synchronized (listLock) {
+            answer = list;
+            return isFresh(answer) ? answer : (list = rebuildList(answer));
+        }
+    }
+
+    /**
+     * @return average wait time, as getAverageWaitTime.
+     */
+    Answer<Double> waitTime() {
+        Answer<Double> answer = waitTime;
+
+        if (isFresh(answer)) {
+            return answer;
+        }
+        if (queue.isClustered()) {
+            return waitTime = rebuildWaitTime(answer);
+        }
+
+        synchronized (waitTimeLock) {
+            answer = waitTime;
+            return isFresh(answer) ? answer : (waitTime = rebuildWaitTime(answer));
+        }
+    }
+
+    /**
+     * @param ifNoneMatch value of the If-None-Match header, may be null.
+     * @param eTag current ETag of the answer.
+     * @return whether the client already has the answer.
+     */
+    static boolean matches(String ifNoneMatch, String eTag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if ("*".equals(tag) || tag.equals(eTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isFresh(Answer<?> answer) {
+        return (answer != null) && !queue.isClustered() && (answer.version == queue.version())
+                && (System.currentTimeMillis() - answer.built < refreshMillis);
+    }
+
+    private Answer<List<Long>> rebuildList(Answer<List<Long>> last) {
+        // Read before the list, so a change made meanwhile makes the answer stale.
+        long version = queue.version();
+        List<Long> IDs = queue.getListOfIDs();
+        StringBuilder json = new StringBuilder(IDs.size() * 8 + 2).append('[');
+
+        for (int i = 0; i < IDs.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(IDs.get(i).longValue());
+        }
+        json.append(']');
+
+        return next(last, version, Collections.unmodifiableList(IDs), json.toString());
+    }
+
+    private Answer<Double> rebuildWaitTime(Answer<Double> last) {
+        long version = queue.version();
+        double waitTime = queue.getAverageWaitTime();
+
+        return next(last, version, waitTime, Double.toString(waitTime));
+    }
+
+    private <T> Answer<T> next(Answer<T> last, long version, T value, String json) {
+        byte[] body = json.getBytes(StandardCharsets.US_ASCII);
+        String tag = ((last != null) && Arrays.equals(last.json, body)) ? last.tag
+                : instance + "-" + version + "-" + generation.incrementAndGet();
+
+        return new Answer<T>(version, System.currentTimeMillis(), tag, value, body);
+    }
+
+    /**
+     * One cached answer. Shared between readers, so never modified.
+     */
+    static final class Answer<T> {
+        private final long version;
+        private final long built;
+        private final String tag;
+        private final T value;
+        private final byte[] json;
+
+        private Answer(long version, long built, String tag, T value, byte[] json) {
+            this.version = version;
+            this.built = built;
+            this.tag = tag;
+            this.value = value;
+            this.json = json;
+        }
+
+        /**
+         * @return ETag of the JSON body, quoted.
+         */
+        String getETag() {
+            return "\"" + tag + "\"";
+        }
+
+        /**
+         * @param variant name of another representation of the value.
+         * @return ETag of that representation, quoted.
+         */
+        String getETag(String variant) {
+            return "\"" + tag + "-" + variant + "\"";
+        }
+
+        T getValue() {
+            return value;
+        }
+
+        /**
+         * @return JSON body, not to be modified.
+         */
+        byte[] getJson() {
+            return json;
+        }
+    }
+}
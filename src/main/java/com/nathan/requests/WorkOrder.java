@@ -1,17 +1,19 @@
 package com.nathan.requests;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
 
 /**
  * Represents a work order request.
  * A work order consists of an ID, date of creation,
- * and class level, calculated using ID.
+ * and class level, calculated from the ID by a RankingPolicy.
  *
  * Implements comparable interface to allow a
  * custom sorting method.
  *
+ * Orders are immutable. The date is kept as epoch milliseconds
+ * and the class level ordinal is precomputed, so comparing and
+ * ranking orders never allocates.
+ *
  * @author Nathan
  */
 public class WorkOrder implements Comparable<WorkOrder> {
@@ -25,17 +27,13 @@ public class WorkOrder implements Comparable<WorkOrder> {
         Manager
     }
 
-    // Used in calculating an order's class level.
-    private static final int PRIORITY = 3;
-    private static final int VIP = 5;
-
-    // Pattern for extracting Date
-    private static final String dateFormat = "yyyy-MM-dd_HH:mm";
-
     // Member variables.
-    private long ID;
-    private Date date;
-    private ClassLevel level;
+    private final long ID;
+    private final long date;
+    private final RankingPolicy policy;
+    private final ClassLevel level;
+    private final int levelOrdinal;
+    private final boolean first;
 
     /**
      * CONSTRUCTOR: Create a new order with ID and specified Date.
@@ -45,23 +43,52 @@ public class WorkOrder implements Comparable<WorkOrder> {
      *
      * @param ID of person who made request.
      * @param dateString string representation of date.
+     * @throws InvalidOrderDateException if the date cannot be parsed.
      */
     public WorkOrder(long ID, String dateString) {
-        this.ID = ID;
-        level = calculateLevel();
-        SimpleDateFormat simpleDateFormat = new SimpleDateFormat(dateFormat);
+        this(ID, OrderDates.parse(dateString), DivisorRankingPolicy.DEFAULT);
+    }
 
-        if (dateString.equalsIgnoreCase("now")) {
-            date = new Date();
-        }
-        else {
-            try {
-                date = simpleDateFormat.parse(dateString);
-            } catch (ParseException e) {
-                date = new Date();
-                e.printStackTrace();
-            }
-        }
+    /**
+     * CONSTRUCTOR: Create a new order with ID and specified Date,
+     * ranked by the given policy.
+     *
+     * @param ID of person who made request.
+     * @param dateString string representation of date.
+     * @param policy deciding the level and rank of the order.
+     * @throws InvalidOrderDateException if the date cannot be parsed.
+     */
+    public WorkOrder(long ID, String dateString, RankingPolicy policy) {
+        this(ID, OrderDates.parse(dateString), policy);
+    }
+
+    /**
+     * CONSTRUCTOR: Create a new order with ID and a date
+     * given in epoch milliseconds.
+     * ClassLevel is calculated based on ID.
+     *
+     * @param ID of person who made request.
+     * @param epochMillis date of the order.
+     */
+    public WorkOrder(long ID, long epochMillis) {
+        this(ID, epochMillis, DivisorRankingPolicy.DEFAULT);
+    }
+
+    /**
+     * CONSTRUCTOR: Create a new order with ID and a date
+     * given in epoch milliseconds, ranked by the given policy.
+     *
+     * @param ID of person who made request.
+     * @param epochMillis date of the order.
+     * @param policy deciding the level and rank of the order.
+     */
+    public WorkOrder(long ID, long epochMillis, RankingPolicy policy) {
+        this.ID = ID;
+        this.date = epochMillis;
+        this.policy = policy;
+        level = policy.levelOf(ID);
+        levelOrdinal = level.ordinal();
+        first = policy.isFirst(level);
     }
 
     /**
@@ -70,34 +97,62 @@ public class WorkOrder implements Comparable<WorkOrder> {
      * @return wait time
      */
     public double getWaitTime() {
-        Date now = new Date();
+        return getWaitTime(System.currentTimeMillis());
+    }
+
+    /**
+     * Calculates how long the order has waited at the given instant.
+     *
+     * @param now current time in milliseconds.
+     * @return wait time in seconds.
+     */
+    public double getWaitTime(long now) {
         // gets difference in milliseconds.
-        double timeDifference = now.getTime() - date.getTime();
+        double timeDifference = now - date;
 
         return timeDifference / 1000; // return time in seconds.
     }
 
     /**
      * Custom compare for sorting WorkOrders.
-     * Management IDs are always higher than non-management.
-     * If both orders are management, or both are not, then
-     * sort by rank.
+     * Orders of the policy's first level, Managers by default,
+     * are always higher than the rest. If both orders are of
+     * the first level, or both are not, then sort by rank.
      */
     @Override
     public int compareTo(WorkOrder order) {
+        return compareTo(order, System.currentTimeMillis());
+    }
+
+    /**
+     * Compares both orders at the same instant, so the ranks
+     * of both sides are calculated against one "now".
+     * Equal ranks are ordered by date, then by ID, which keeps
+     * the order consistent with the date order of each level.
+     *
+     * @param order to compare against.
+     * @param now current time in milliseconds.
+     * @return negative if this order comes first.
+     */
+    public int compareTo(WorkOrder order, long now) {
         // if compared order is less than this, return negative value
         // if compared order is greater than this, return positive value
-        if ((level == ClassLevel.Manager) &&
-                (order.getClassLevel() != ClassLevel.Manager)) {
+        if (first && !order.first) {
             return -1;
         }
-        else if ((order.getClassLevel() == ClassLevel.Manager) &&
-                (level != ClassLevel.Manager)) {
+        else if (order.first && !first) {
             return 1;
         }
-        else {
-            return Double.compare(order.calculateRank(), this.calculateRank());
+
+        int result = Double.compare(order.calculateRank(now), this.calculateRank(now));
+
+        if (result == 0) {
+            result = Long.compare(date, order.date);
+        }
+        if (result == 0) {
+            result = Long.compare(ID, order.getId());
         }
+        return result;
     }
 
     /**
@@ -119,26 +174,31 @@ public class WorkOrder implements Comparable<WorkOrder> {
         }
     }
 
+    @Override
+    public int hashCode() {
+        return Long.hashCode(ID);
+    }
+
     /**
      * Calculate an orders rank based on class level and wait time.
-     * Priority orders rank is equal to max(3, n log n),
-     * where n is waitTime.
+     * With the default policy, Priority orders rank is equal
+     * to max(3, n log n), where n is waitTime.
      * VIP orders rank is equal to max(4, 2n log n)
      * Management and normal orders rank is equal to wait time.
      * @return rank
      */
     public double calculateRank() {
-        double waitTime = getWaitTime();
+        return calculateRank(System.currentTimeMillis());
+    }
 
-        if (level == ClassLevel.Priority) {
-            return Math.max(3, waitTime * Math.log(waitTime));
-        }
-        else if (level == ClassLevel.VIP) {
-            return Math.max(4, 2 * waitTime * Math.log(waitTime));
-        }
-        else {
-            return waitTime;
-        }
+    /**
+     * Calculate an orders rank at the given instant.
+     *
+     * @param now current time in milliseconds.
+     * @return rank
+     */
+    public double calculateRank(long now) {
+        return policy.rank(level, getWaitTime(now));
     }
 
     /*
@@ -152,43 +212,37 @@ public class WorkOrder implements Comparable<WorkOrder> {
         return level;
     }
 
-    public Date getDate() {
-        return date;
+    public int getLevelOrdinal() {
+        return levelOrdinal;
+    }
+
+    public RankingPolicy getRankingPolicy() {
+        return policy;
     }
 
     /**
-     * Get the date as a string in specified format.
-     * @return date as string.
+     * @return whether the order's level comes before the other levels.
      */
-    public String getDateString() {
-        String dateString = "";
-        SimpleDateFormat sdf = new SimpleDateFormat(dateFormat);
+    public boolean isFirst() {
+        return first;
+    }
 
-        dateString = sdf.format(date);
+    public long getEpochMillis() {
+        return date;
+    }
 
-        return dateString;
+    /**
+     * @return a new Date holding the order's date.
+     */
+    public Date getDate() {
+        return new Date(date);
     }
 
     /**
-     * IDs divisible by 3 are priority.
-     * Divisible by 5 are VIP.
-     * Divisible by 3 and 5 are manager.
-     * The rest are normal.
-     *
-     * @return ClassLevel
+     * Get the date as a string in specified format.
+     * @return date as string.
      */
-    private ClassLevel calculateLevel() {
-        if ((ID % PRIORITY == 0) && (ID % VIP == 0)) {
-            return ClassLevel.Manager;
-        }
-        else if (ID % VIP == 0) {
-            return ClassLevel.VIP;
-        }
-        else if (ID % PRIORITY == 0) {
-            return ClassLevel.Priority;
-        }
-        else {
-            return ClassLevel.Normal;
-        }
+    public String getDateString() {
+        return OrderDates.format(date);
     }
 }
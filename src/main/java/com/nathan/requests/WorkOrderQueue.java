@@ -1,123 +1,655 @@
 package com.nathan.requests;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Clock;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Represents the queue of work order requests.
- * Consists of an ArrayList of WorkOrder objects and
- * various methods to manipulate this list.
+ * Orders are kept in one date ordered lane per ClassLevel
+ * and shard. The shard of an order is a hash of its ID, so
+ * producers of different IDs rarely contend for the same lane.
+ * Since rank only grows with wait time inside a level, the
+ * highest ranked order is always one of the lane heads, and
+ * the queue never needs to be re-sorted. Levels and ranks come from
+ * the queue's RankingPolicy, and heads are compared through the
+ * crossover tables of an OrderRanking rather than by computing ranks.
+ *
+ * The queue is safe for use by many threads. Producers only
+ * lock the lane of their level and one segment of the ID index,
+ * consumers are serialized among themselves. A lane is always
+ * locked before the index segment of an ID, so batches can hold
+ * a lane while they visit the segments of many IDs. Readers of
+ * positions, wait times and the list do not lock: they read the
+ * lanes optimistically and keep the result only if no lane changed
+ * meanwhile, so they see one instant of the queue and never hold
+ * up writers. Nothing is retained for them, so there are no old
+ * versions to reclaim.
+ *
+ * enqueue and dequeue do not allocate once the lanes and index
+ * have grown to the working size of the queue.
+ *
+ * With OFF_HEAP storage the lanes and index keep ID and date records
+ * in direct buffers rather than WorkOrder objects, so heap use does
+ * not grow with the queue. Orders read from the queue are rebuilt,
+ * so they are equal to, but not the same objects as, those enqueued.
+ *
+ * Consumers that find the queue empty can park an OrderWaiter instead
+ * of polling. Producers hand new orders straight to the waiters,
+ * oldest waiter first.
+ *
+ * A queue may be backed by an OrderJournal, in which case every
+ * change is logged while its locks are held and committed to disk
+ * after they are released, and the queue is restored from the
+ * journal when it is created.
+ *
+ * Orders of a level may be given a time to live, after which an
+ * OrderExpiry evicts them through expireLocal.
+ *
+ * A queue may also be one node of an OrderCluster. Each node then
+ * holds the orders of the IDs it owns, and the public methods work
+ * on the whole cluster: changes go to the owner of the ID, dequeue
+ * and positions merge what every node reports. The package-private
+ * local methods are what the cluster calls on this node's orders.
  *
  * @author Nathan
  */
-public class WorkOrderQueue {
-    private List<WorkOrder> queue;
-    private static final String currentTime = "now";
+public class WorkOrderQueue implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(WorkOrderQueue.class);
+    private static final WorkOrder.ClassLevel[] LEVELS = WorkOrder.ClassLevel.values();
+    private static final int INDEX_CONCURRENCY = 4 * Runtime.getRuntime().availableProcessors();
+    // Unlocked tries of a read of the lanes before it locks them.
+    private static final int OPTIMISTIC_READS = 4;
+    // Most expired orders evicted from a lane under one lock.
+    private static final int EXPIRE_BATCH = 256;
+
+    // Results of enqueueAllLimited.
+    static final byte NOT_ADDED = 0;
+    static final byte ADDED = 1;
+    static final byte OVER_CAPACITY = 2;
+
+    private final OrderLane[] lanes;
+    // ID -> queued order, the source of truth for membership.
+    private final OrderIndex index;
+    private final int shards;
+    private final OrderStorage storage;
+    // Serializes consumers, producers never take it.
+    private final ReentrantLock consumerLock = new ReentrantLock();
+    // Lane heads as of each lane's version in headVersions, and the
+    // tournament dequeue plays between them, guarded by consumerLock.
+    private final WorkOrder[] heads;
+    private final long[] headVersions;
+    private final OrderTournament tournament;
+
+    // Parked consumers, oldest first, guarded by waiterLock.
+    private final ArrayDeque<OrderWaiter> waiters = new ArrayDeque<OrderWaiter>();
+    private final ReentrantLock waiterLock = new ReentrantLock();
+    // Size of waiters, so producers only take waiterLock when someone waits.
+    private volatile int waiting;
+
+    // Read once per operation, every rank is compared at that instant.
+    private final Clock clock;
+    // Compares orders of the queue's policy.
+    private final OrderRanking ranking;
+    // Log of changes, null if the queue is not durable.
+    private final OrderJournal journal;
+    // Other nodes, null unless the queue has joined a cluster.
+    private volatile OrderCluster cluster;
+    // Limits of the orders other nodes send here to be admitted, null for none.
+    private volatile AdmissionControl admission;
 
     /**
-     * CONSTRUCTOR: Instantiates queue.
+     * CONSTRUCTOR: Instantiates one lane per ClassLevel.
      */
     public WorkOrderQueue() {
-        queue = new ArrayList<WorkOrder>();
+        this(Clock.systemUTC());
     }
 
     /**
-     * Adds a new order to the queue, then sorts.
-     * Queue is sorted after every add to recalculate order's rank.
+     * CONSTRUCTOR: Instantiates one lane per ClassLevel.
+     * @param clock source of the current time for wait times and ranks.
+     */
+    public WorkOrderQueue(Clock clock) {
+        this(clock, DivisorRankingPolicy.DEFAULT);
+    }
+
+    /**
+     * CONSTRUCTOR: Instantiates one lane per ClassLevel, for orders
+     * ranked by the given policy.
+     * @param clock source of the current time for wait times and ranks.
+     * @param policy of every order added to the queue.
+     */
+    public WorkOrderQueue(Clock clock, RankingPolicy policy) {
+        this(clock, policy, 1);
+    }
+
+    /**
+     * CONSTRUCTOR: Instantiates one lane per ClassLevel in each shard.
+     * @param clock source of the current time for wait times and ranks.
+     * @param policy of every order added to the queue.
+     * @param shards number of shards, usually one per core.
+     * @throws IllegalArgumentException if shards is less than 1.
+     */
+    public WorkOrderQueue(Clock clock, RankingPolicy policy, int shards) {
+        this(clock, policy, shards, OrderStorage.HEAP);
+    }
+
+    /**
+     * CONSTRUCTOR: Instantiates one lane per ClassLevel in each shard,
+     * keeping the orders in the given storage.
+     * @param clock source of the current time for wait times and ranks.
+     * @param policy of every order added to the queue.
+     * @param shards number of shards, usually one per core.
+     * @param storage where the queued orders are kept.
+     * @throws IllegalArgumentException if shards is less than 1.
+     */
+    public WorkOrderQueue(Clock clock, RankingPolicy policy, int shards, OrderStorage storage) {
+        this.clock = clock;
+        this.shards = checkShards(shards);
+        this.storage = storage;
+        ranking = OrderRanking.of(policy);
+        index = new OrderIndex(INDEX_CONCURRENCY, storage, policy);
+        lanes = newLanes(shards, storage, policy);
+        heads = new WorkOrder[lanes.length];
+        headVersions = new long[lanes.length];
+        tournament = new OrderTournament(heads, ranking);
+        journal = null;
+    }
+
+    /**
+     * CONSTRUCTOR: Restores the queue from the journal, then logs
+     * every change to it.
+     * @param clock source of the current time for wait times and ranks.
+     * @param policy of every order added to the queue.
+     * @param shards number of shards, usually one per core.
+     * @param journal to restore from and log to.
+     * @throws IOException if the journal cannot be read.
+     */
+    WorkOrderQueue(Clock clock, RankingPolicy policy, int shards, OrderJournal journal) throws IOException {
+        this(clock, policy, shards, OrderStorage.HEAP, journal);
+    }
+
+    /**
+     * CONSTRUCTOR: Restores the queue from the journal, then logs
+     * every change to it.
+     * @param clock source of the current time for wait times and ranks.
+     * @param policy of every order added to the queue.
+     * @param shards number of shards, usually one per core.
+     * @param storage where the queued orders are kept.
+     * @param journal to restore from and log to.
+     * @throws IOException if the journal cannot be read.
+     */
+    WorkOrderQueue(Clock clock, RankingPolicy policy, int shards, OrderStorage storage,
+                   OrderJournal journal) throws IOException {
+        this.clock = clock;
+        this.shards = checkShards(shards);
+        this.storage = storage;
+        ranking = OrderRanking.of(policy);
+        index = new OrderIndex(INDEX_CONCURRENCY, storage, policy);
+        lanes = newLanes(shards, storage, policy);
+        heads = new WorkOrder[lanes.length];
+        headVersions = new long[lanes.length];
+        tournament = new OrderTournament(heads, ranking);
+
+        journal.replay(this);
+        // attached after the replay, so replayed events are not logged again.
+        this.journal = journal;
+        journal.start(this::snapshot);
+    }
+
+    /**
+     * Adds a new order to the lane of its ClassLevel and shard.
      * Only one order from each ID is allowed in queue.
      * ID must be positive.
+     * The index entry and lane entry are added together
+     * under the lane lock and the index segment lock of the ID.
      * @param order to add to queue.
      * @return whether enqueue was successful.
+     * @throws IllegalArgumentException if the order has another ranking policy.
      */
     public boolean enqueue(WorkOrder order) {
-        boolean result;
+        checkPolicy(order);
+        OrderCluster cluster = this.cluster;
 
-        if (queue.contains(order) || (order.getId() < 1)) {
-            result =  false;
+        if ((cluster != null) && (order.getId() >= 1)) {
+            return clustered(cluster.enqueue(order));
         }
-        else {
-            result = queue.add(order);
-            Collections.sort(queue);
+        return enqueueLocal(order);
+    }
+
+    /**
+     * Adds a new order to this node, as enqueue does without a cluster.
+     * @param order to add.
+     * @return whether the order was added.
+     */
+    boolean enqueueLocal(WorkOrder order) {
+        long ID = order.getId();
+
+        if ((ID < 1) || index.contains(ID)) {
+            return false;
+        }
+
+        OrderLane lane = laneOf(order);
+        boolean added;
+        long stamp = lane.lock();
+        try {
+            added = add(lane, order);
+        } finally {
+            lane.unlock(stamp);
         }
 
-        return result;
+        if (added) {
+            enqueued();
+        }
+        return added;
+    }
+
+    /**
+     * Adds many orders in one pass. Orders are grouped by lane and
+     * each lane is locked once for all of its orders, instead of
+     * once per order. The same rules as enqueue apply to each order,
+     * an ID repeated within the batch is only added the first time.
+     * @param orders to add to queue.
+     * @return whether each order was added, in the same order.
+     * @throws IllegalArgumentException if an order has another ranking
+     *         policy, in which case none are added.
+     */
+    public boolean[] enqueueAll(List<WorkOrder> orders) {
+        for (WorkOrder order : orders) {
+            checkPolicy(order);
+        }
+
+        OrderCluster cluster = this.cluster;
+
+        if (cluster != null) {
+            byte[] results = clustered(cluster.enqueueAll(orders, false));
+            boolean[] added = new boolean[results.length];
+
+            for (int i = 0; i < added.length; i++) {
+                added[i] = (results[i] == ADDED);
+            }
+            return added;
+        }
+        return enqueueAllLocal(orders);
+    }
+
+    /**
+     * Adds many orders like enqueueAll, except that in a cluster each
+     * owner first checks the orders against the capacity of its own
+     * AdmissionControl, see limitWith, as only the owner knows how
+     * many orders it holds. Outside a cluster nothing is checked.
+     * @param orders to add to queue.
+     * @return NOT_ADDED, ADDED or OVER_CAPACITY for each order, in the same order.
+     * @throws IllegalArgumentException if an order has another ranking
+     *         policy, in which case none are added.
+     */
+    byte[] enqueueAllLimited(List<WorkOrder> orders) {
+        for (WorkOrder order : orders) {
+            checkPolicy(order);
+        }
+
+        OrderCluster cluster = this.cluster;
+
+        if (cluster != null) {
+            return clustered(cluster.enqueueAll(orders, true));
+        }
+
+        boolean[] added = enqueueAllLocal(orders);
+        byte[] results = new byte[added.length];
+
+        for (int i = 0; i < results.length; i++) {
+            results[i] = added[i] ? ADDED : NOT_ADDED;
+        }
+        return results;
+    }
+
+    /**
+     * Adds many orders to this node, as enqueueAll does without a cluster.
+     * @param orders to add.
+     * @return whether each order was added, in the same order.
+     */
+    boolean[] enqueueAllLocal(List<WorkOrder> orders) {
+        boolean[] added = new boolean[orders.size()];
+        // positions of the batch grouped by lane, laneStart[i] to laneStart[i + 1].
+        int[] laneStart = new int[lanes.length + 1];
+        int[] grouped = new int[added.length];
+
+        for (WorkOrder order : orders) {
+            laneStart[laneIndex(order) + 1]++;
+        }
+        for (int i = 0; i < lanes.length; i++) {
+            laneStart[i + 1] += laneStart[i];
+        }
+        int[] next = Arrays.copyOf(laneStart, lanes.length);
+        for (int j = 0; j < added.length; j++) {
+            grouped[next[laneIndex(orders.get(j))]++] = j;
+        }
+
+        for (int i = 0; i < lanes.length; i++) {
+            if (laneStart[i] == laneStart[i + 1]) {
+                continue;
+            }
+
+            OrderLane lane = lanes[i];
+            long stamp = lane.lock();
+            try {
+                for (int k = laneStart[i]; k < laneStart[i + 1]; k++) {
+                    WorkOrder order = orders.get(grouped[k]);
+
+                    if (order.getId() >= 1) {
+                        added[grouped[k]] = add(lane, order);
+                    }
+                }
+            } finally {
+                lane.unlock(stamp);
+            }
+        }
+
+        enqueued();
+        return added;
     }
 
     /**
      * Removes the highest ranked order from the queue.
+     * Only the lane heads are compared, all at the same instant,
+     * in a tournament. Heads are kept between calls and only the
+     * lanes that changed since are peeked again.
+     * Consumers are serialized so the chosen head is only lost
+     * to a concurrent removeOrder, in which case the next best
+     * head is tried.
      * If queue is empty, return null.
      * @return top order
      */
     public WorkOrder dequeue() {
-        if (queue.size() == 0) {
-            return null;
+        OrderCluster cluster = this.cluster;
+
+        if (cluster != null) {
+            List<WorkOrder> taken = cluster.dequeue(1, clock.millis());
+            return taken.isEmpty() ? null : taken.get(0);
+        }
+
+        consumerLock.lock();
+        try {
+            while (true) {
+                for (int i = 0; i < lanes.length; i++) {
+                    if (lanes[i].version() != headVersions[i]) {
+                        long stamp = lanes[i].readLock();
+                        try {
+                            heads[i] = lanes[i].peek();
+                            headVersions[i] = lanes[i].version();
+                        } finally {
+                            lanes[i].unlockRead(stamp);
+                        }
+                    }
+                }
+
+                tournament.reset(clock.millis());
+                int best = tournament.best();
+
+                if (best < 0) {
+                    return null;
+                }
+
+                WorkOrder order = heads[best];
+
+                if (claim(order, OrderJournal.DEQUEUE)) {
+                    commit();
+                    return order;
+                }
+            }
+        } finally {
+            consumerLock.unlock();
         }
-        else {
-            WorkOrder order = queue.remove(0);
-            Collections.sort(queue);
-            return order;
+    }
+
+    /**
+     * Parks a consumer until an order is available. If the queue is
+     * not empty the waiter is handed an order at once, otherwise the
+     * next enqueue hands one to the oldest waiter.
+     * @param waiter to hand one order to.
+     */
+    public void awaitOrder(OrderWaiter waiter) {
+        waiterLock.lock();
+        try {
+            waiters.addLast(waiter);
+            waiting = waiters.size();
+        } finally {
+            waiterLock.unlock();
         }
+        // an order enqueued before waiting was raised has to be handed out here.
+        wakeWaiters();
+    }
+
+    /**
+     * Stops waiting for an order, for example when the waiter timed out.
+     * @param waiter passed to awaitOrder.
+     * @return whether the waiter was still parked.
+     */
+    public boolean cancelAwait(OrderWaiter waiter) {
+        waiterLock.lock();
+        try {
+            boolean removed = waiters.remove(waiter);
+            waiting = waiters.size();
+            return removed;
+        } finally {
+            waiterLock.unlock();
+        }
+    }
+
+    /**
+     * Removes up to count of the highest ranked orders in one pass.
+     * Every lane is write locked for the whole pass, so the heads
+     * cannot be taken by anyone else and all ranks are compared
+     * at the same instant.
+     * @param count maximum number of orders to remove.
+     * @return removed orders from highest rank to lowest,
+     *         empty if queue is empty.
+     */
+    public List<WorkOrder> dequeue(int count) {
+        List<WorkOrder> removed = new ArrayList<WorkOrder>(Math.min(Math.max(count, 0), 1024));
+
+        if (count < 1) {
+            return removed;
+        }
+
+        OrderCluster cluster = this.cluster;
+
+        if (cluster != null) {
+            return cluster.dequeue(count, clock.millis());
+        }
+
+        consumerLock.lock();
+        try {
+            long[] stamps = new long[lanes.length];
+
+            for (int i = 0; i < lanes.length; i++) {
+                stamps[i] = lanes[i].lock();
+            }
+            try {
+                long now = clock.millis();
+
+                for (int i = 0; i < lanes.length; i++) {
+                    heads[i] = lanes[i].peek();
+                    headVersions[i] = lanes[i].version();
+                }
+
+                tournament.reset(now);
+                int best = tournament.best();
+
+                while ((best > -1) && (removed.size() < count)) {
+                    WorkOrder order = heads[best];
+                    remove(lanes[best], order, OrderJournal.DEQUEUE);
+                    removed.add(order);
+
+                    heads[best] = lanes[best].peek();
+                    headVersions[best] = lanes[best].version();
+                    tournament.update(best);
+                    best = tournament.best();
+                }
+            } finally {
+                for (int i = lanes.length - 1; i >= 0; i--) {
+                    lanes[i].unlock(stamps[i]);
+                }
+            }
+        } finally {
+            consumerLock.unlock();
+        }
+
+        if (!removed.isEmpty()) {
+            commit();
+        }
+        return removed;
     }
 
     /**
      * Gets a list of all order IDs,
      * sorted by highest rank to lowest.
+     * The lanes are merged by repeatedly taking the best head.
      * @return ArrayList<long>
      */
     public List<Long> getListOfIDs() {
-        List<Long> IDs = new ArrayList<Long>();
+        OrderCursor cursor = cursor();
+        List<Long> IDs = new ArrayList<Long>(cursor.remaining());
 
-        for (WorkOrder order : queue) {
+        for (WorkOrder order = cursor.next(); order != null; order = cursor.next()) {
             IDs.add(order.getId());
         }
-
         return IDs;
     }
 
     /**
-     * Removes specified order if ID is positive
-     * and queue is not empty.
+     * Copies the lanes and walks them in ranked order without
+     * building the ranked list. The copy is of one instant of
+     * this node's lanes, see copyLanes.
+     * @return cursor over the queued orders, highest rank first.
+     */
+    OrderCursor cursor() {
+        OrderCluster cluster = this.cluster;
+        WorkOrder[][] copies = (cluster != null) ? cluster.lanes() : copyLanes();
+
+        return new OrderCursor(copies, clock.millis(), ranking);
+    }
+
+    /**
+     * Removes specified order if it is in the queue.
      * @param ID of order to remove
      * @return whether removal was successful or not
      */
     public boolean removeOrder(long ID) {
-        boolean result = false;
+        OrderCluster cluster = this.cluster;
 
-        if ((queue.size() > -1) || (ID > 0)) {
-            result = queue.remove(new WorkOrder(ID, currentTime));
-            Collections.sort(queue);
+        if (cluster != null) {
+            return cluster.take(ID, OrderJournal.REMOVE);
         }
 
-        return result;
+        WorkOrder order = index.get(ID);
+
+        if ((order != null) && claim(order, OrderJournal.REMOVE)) {
+            commit();
+            return true;
+        }
+        return false;
     }
 
     /**
      * Get an orders current position in the queue.
+     * The position is the number of orders that outrank it,
+     * counted in O(log n) per lane over one instant's view of all
+     * lanes, so it always matches the order of getListOfIDs. The lanes
+     * are read without locking them, see readLanes.
      * @param ID of order to query.
      * @return position of order, indexed from 0.
      *         -1 if ID is not present.
      */
     public int getPositionOfOrder(long ID) {
-        return queue.indexOf(new WorkOrder(ID, currentTime));
+        OrderCluster cluster = this.cluster;
+
+        if (cluster != null) {
+            return cluster.positions(new long[] {ID}, clock.millis())[0];
+        }
+
+        WorkOrder order = index.get(ID);
+
+        if (order == null) {
+            return -1;
+        }
+
+        return readLanes(now -> {
+            if (!index.holds(order)) {
+                // removed before the lanes were read.
+                return -1;
+            }
+
+            int position = 0;
+
+            for (OrderLane lane : lanes) {
+                position += lane.countAhead(order, now, ranking);
+            }
+            return position;
+        });
+    }
+
+    /**
+     * Get the current positions of many orders at once.
+     * The lanes are read once for all of them and every rank is
+     * compared at the same instant, so the positions are consistent
+     * with each other.
+     * @param IDs of orders to query.
+     * @return position of each order, indexed from 0.
+     *         -1 for IDs that are not present.
+     */
+    public int[] getPositionsOfOrders(long[] IDs) {
+        OrderCluster cluster = this.cluster;
+
+        if (cluster != null) {
+            return cluster.positions(IDs, clock.millis());
+        }
+
+        WorkOrder[] orders = new WorkOrder[IDs.length];
+
+        for (int i = 0; i < IDs.length; i++) {
+            orders[i] = index.get(IDs[i]);
+        }
+
+        return readLanes(now -> {
+            int[] positions = new int[IDs.length];
+
+            for (int i = 0; i < IDs.length; i++) {
+                WorkOrder order = orders[i];
+
+                if ((order == null) || !index.holds(order)) {
+                    positions[i] = -1;
+                    continue;
+                }
+                for (OrderLane lane : lanes) {
+                    positions[i] += lane.countAhead(order, now, ranking);
+                }
+            }
+            return positions;
+        });
     }
 
     /**
      * Get the average wait time of all orders.
+     * Each lane keeps a running sum of its dates, so this is
+     * O(1) and does not look at the orders themselves.
      * @return average wait time.
      *         0 if empty list
      */
     public double getAverageWaitTime() {
-        double total = 0;
-
-        if (queue.size() != 0) {
-            for (WorkOrder order : queue) {
-                total += order.getWaitTime();
-            }
+        OrderCluster cluster = this.cluster;
+        long now = clock.millis();
+        double[] stats = (cluster != null) ? cluster.stats(now) : statsLocal(now);
 
-            total /= queue.size();
-        }
-        return total;
+        return (stats[0] != 0) ? stats[1] / stats[0] : 0;
     }
 
     /**
@@ -126,14 +658,633 @@ public class WorkOrderQueue {
      * @return true if it's in queue
      */
     public boolean contains(long ID) {
-        return queue.contains(new WorkOrder(ID, currentTime));
+        OrderCluster cluster = this.cluster;
+
+        if (cluster != null) {
+            return cluster.get(new long[] {ID})[0] != null;
+        }
+        return index.contains(ID);
     }
 
     /**
      * @return number of orders in queue.
      */
     public int size() {
-        return queue.size();
+        OrderCluster cluster = this.cluster;
+
+        if (cluster != null) {
+            return (int) cluster.stats(clock.millis())[0];
+        }
+        return index.size();
+    }
+
+    /**
+     * @return number of orders held by this node.
+     */
+    int sizeLocal() {
+        return index.size();
+    }
+
+    /**
+     * @return number of shards the lanes are split into.
+     */
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * @return where the queued orders are kept.
+     */
+    public OrderStorage getStorage() {
+        return storage;
     }
-}
 
+    /**
+     * @return policy every order of the queue must be ranked by.
+     */
+    public RankingPolicy getRankingPolicy() {
+        return ranking.getPolicy();
+    }
+
+    /**
+     * Changes whenever an order is added or removed. Positions can
+     * also change with time alone, as ranks of different levels grow
+     * at different rates. In a cluster only changes to this node's
+     * orders are counted.
+     * @return number of changes made to the queue so far.
+     */
+    long version() {
+        long version = 0;
+
+        for (OrderLane lane : lanes) {
+            version += lane.version();
+        }
+        return version;
+    }
+
+    /**
+     * Leaves the cluster, then snapshots the queue and flushes the
+     * journal, so the next start does not have to replay the log.
+     */
+    @Override
+    public void close() {
+        OrderCluster cluster = this.cluster;
+
+        if (cluster != null) {
+            cluster.close();
+        }
+        if (journal != null) {
+            snapshot();
+            journal.close();
+        }
+    }
+
+    /**
+     * Makes this queue a node of the cluster and starts serving the
+     * other nodes. From then on the public methods work on the whole
+     * cluster.
+     * @param cluster to join.
+     */
+    void joinCluster(OrderCluster cluster) {
+        cluster.start(this);
+        this.cluster = cluster;
+    }
+
+    /**
+     * @return whether the queue is a node of a cluster.
+     */
+    boolean isClustered() {
+        return cluster != null;
+    }
+
+    /**
+     * Checks the orders other nodes send here through enqueueAllLimited
+     * against the capacity of the admission control.
+     * @param admission limits of this node.
+     */
+    void limitWith(AdmissionControl admission) {
+        this.admission = admission;
+    }
+
+    /**
+     * @return limits of this node, null if there are none.
+     */
+    AdmissionControl admission() {
+        return admission;
+    }
+
+    OrderRanking ranking() {
+        return ranking;
+    }
+
+    /**
+     * @return this node's order of the ID, null if absent.
+     */
+    WorkOrder getLocal(long ID) {
+        return index.get(ID);
+    }
+
+    /**
+     * Removes orders of this node by ID.
+     * @param IDs of orders to remove.
+     * @param event journal event of the removals.
+     * @return whether each order was removed.
+     */
+    boolean[] takeLocal(long[] IDs, int event) {
+        boolean[] taken = new boolean[IDs.length];
+
+        for (int i = 0; i < IDs.length; i++) {
+            WorkOrder order = index.get(IDs[i]);
+            taken[i] = (order != null) && claim(order, event);
+        }
+        commit();
+        return taken;
+    }
+
+    /**
+     * @param count maximum number of orders.
+     * @param now instant the ranks are compared at.
+     * @return up to count of this node's highest ranked orders, best first.
+     */
+    WorkOrder[] topLocal(int count, long now) {
+        WorkOrder[][] copies = readLanes(ignored -> {
+            WorkOrder[][] top = new WorkOrder[lanes.length][];
+
+            for (int i = 0; i < lanes.length; i++) {
+                top[i] = lanes[i].toArray(count);
+            }
+            return top;
+        });
+
+        OrderCursor cursor = new OrderCursor(copies, now, ranking);
+        WorkOrder[] top = new WorkOrder[Math.min(count, cursor.remaining())];
+
+        for (int i = 0; i < top.length; i++) {
+            top[i] = cursor.next();
+        }
+        return top;
+    }
+
+    /**
+     * @param targets orders from any node, null entries are skipped.
+     * @param now instant the ranks are compared at.
+     * @return number of this node's orders ahead of each target.
+     */
+    int[] countAheadLocal(WorkOrder[] targets, long now) {
+        return readLanes(ignored -> {
+            int[] counts = new int[targets.length];
+
+            for (int i = 0; i < targets.length; i++) {
+                if (targets[i] == null) {
+                    continue;
+                }
+                for (OrderLane lane : lanes) {
+                    counts[i] += lane.countAhead(targets[i], now, ranking);
+                }
+            }
+            return counts;
+        });
+    }
+
+    /**
+     * Each lane keeps a running sum of its dates, so this is
+     * O(1) and does not look at the orders themselves.
+     * @param now current time in milliseconds.
+     * @return {number of orders, total wait time in seconds} of this node.
+     */
+    double[] statsLocal(long now) {
+        return readLanes(ignored -> {
+            double total = 0;
+            int count = 0;
+
+            for (OrderLane lane : lanes) {
+                total += lane.totalWaitTime(now);
+                count += lane.size();
+            }
+            return new double[] {count, total};
+        });
+    }
+
+    /**
+     * Locks the level's lanes one at a time, so the sum may mix
+     * instants when orders are added or removed meanwhile.
+     * @return number of this node's orders of the level.
+     */
+    int sizeLocal(WorkOrder.ClassLevel level) {
+        int count = 0;
+
+        for (int i = level.ordinal(); i < lanes.length; i += LEVELS.length) {
+            long stamp = lanes[i].readLock();
+            try {
+                count += lanes[i].size();
+            } finally {
+                lanes[i].unlockRead(stamp);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Orders of one lane are in date order, so the oldest of a level
+     * is the oldest of its lanes' heads.
+     * @return wait time in seconds of this node's oldest order of the level, 0 if none.
+     */
+    double oldestWaitTimeLocal(WorkOrder.ClassLevel level) {
+        long now = clock.millis();
+        double oldest = 0;
+
+        for (int i = level.ordinal(); i < lanes.length; i += LEVELS.length) {
+            long stamp = lanes[i].readLock();
+            try {
+                WorkOrder head = lanes[i].peek();
+
+                if (head != null) {
+                    oldest = Math.max(oldest, head.getWaitTime(now));
+                }
+            } finally {
+                lanes[i].unlockRead(stamp);
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * Evicts this node's orders of the level that have waited ttlMillis
+     * or more. Lanes are in date order, so those are the heads of the
+     * level's lanes, and no order younger than the TTL is looked at.
+     * Each lane is locked for at most EXPIRE_BATCH evictions at a time.
+     * Evictions are logged as removals.
+     * @param level of orders to evict.
+     * @param ttlMillis time to live of the level's orders.
+     * @return number of orders evicted.
+     */
+    int expireLocal(WorkOrder.ClassLevel level, long ttlMillis) {
+        long cutoff = clock.millis() - ttlMillis;
+        int expired = 0;
+
+        for (int i = level.ordinal(); i < lanes.length; i += LEVELS.length) {
+            OrderLane lane = lanes[i];
+            int batch = EXPIRE_BATCH;
+
+            while (batch == EXPIRE_BATCH) {
+                batch = 0;
+                long stamp = lane.lock();
+                try {
+                    for (WorkOrder head = lane.peek(); (head != null) && (head.getEpochMillis() <= cutoff) &&
+                            (batch < EXPIRE_BATCH) && remove(lane, head, OrderJournal.REMOVE); head = lane.peek()) {
+                        batch++;
+                    }
+                } finally {
+                    lane.unlock(stamp);
+                }
+                expired += batch;
+            }
+        }
+
+        if (expired > 0) {
+            commit();
+        }
+        return expired;
+    }
+
+    /**
+     * Writes the queued orders to a journal snapshot. The lanes are
+     * write locked only while the journal rolls over to a new log and
+     * the lanes are copied, the copy is written after they are released.
+     * The next log is mapped before the lanes are locked, and mapped
+     * again should appends use it up in between.
+     */
+    synchronized void snapshot() {
+        long[] stamps = new long[lanes.length];
+        WorkOrder[][] copies = new WorkOrder[lanes.length][];
+        long sequence = -1;
+
+        while (sequence < 0) {
+            journal.awaitNextLog();
+
+            for (int i = 0; i < lanes.length; i++) {
+                stamps[i] = lanes[i].lock();
+            }
+            try {
+                // every change holds a lane lock while it is logged, so none is half done.
+                sequence = journal.roll();
+
+                if (sequence >= 0) {
+                    for (int i = 0; i < lanes.length; i++) {
+                        copies[i] = lanes[i].toArray();
+                    }
+                }
+            } finally {
+                for (int i = lanes.length - 1; i >= 0; i--) {
+                    lanes[i].unlock(stamps[i]);
+                }
+            }
+        }
+
+        journal.writeSnapshot(sequence, copies);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the order is ranked by another policy.
+     */
+    private void checkPolicy(WorkOrder order) {
+        if (order.getRankingPolicy() != ranking.getPolicy()) {
+            throw new IllegalArgumentException("Order " + order.getId() + " has another ranking policy");
+        }
+    }
+
+    private static int checkShards(int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("A queue needs at least one shard");
+        }
+        return shards;
+    }
+
+    private static OrderLane[] newLanes(int shards, OrderStorage storage, RankingPolicy policy) {
+        OrderLane[] lanes = new OrderLane[shards * LEVELS.length];
+
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new OrderLane(LEVELS[i % LEVELS.length], storage, policy);
+        }
+        return lanes;
+    }
+
+    private OrderLane laneOf(WorkOrder order) {
+        return lanes[laneIndex(order)];
+    }
+
+    /**
+     * Lanes are grouped by shard, the shard mixes all bits of the ID
+     * so consecutive IDs spread evenly.
+     * @return index of the lane of the order.
+     */
+    private int laneIndex(WorkOrder order) {
+        if (shards == 1) {
+            return order.getLevelOrdinal();
+        }
+
+        long hash = order.getId() * 0x9E3779B97F4A7C15L;
+        int shard = (int) ((hash ^ (hash >>> 32)) & Integer.MAX_VALUE) % shards;
+        return shard * LEVELS.length + order.getLevelOrdinal();
+    }
+
+    /**
+     * Adds the order to the index and the lane, unless its ID
+     * is already present. Lane write lock.
+     * @param lane of the order.
+     * @param order to add.
+     * @return whether the order was added.
+     */
+    private boolean add(OrderLane lane, WorkOrder order) {
+        long ID = order.getId();
+        OrderIndex.Segment segment = index.segment(ID);
+        long stamp = segment.lock();
+        try {
+            if (segment.contains(ID)) {
+                return false;
+            }
+            lane.add(order);
+            segment.put(ID, order);
+
+            if (journal != null) {
+                journal.append(OrderJournal.ENQUEUE, ID, order.getEpochMillis());
+            }
+            return true;
+        } finally {
+            segment.unlock(stamp);
+        }
+    }
+
+    /**
+     * Removes the order from the index and its lane atomically,
+     * as long as the index still holds this exact order.
+     * @param order to remove.
+     * @param event journal event of the removal.
+     * @return whether this call removed the order.
+     */
+    private boolean claim(WorkOrder order, int event) {
+        OrderLane lane = laneOf(order);
+        long stamp = lane.lock();
+        try {
+            return remove(lane, order, event);
+        } finally {
+            lane.unlock(stamp);
+        }
+    }
+
+    /**
+     * Removes the order from the index and the lane, as long as
+     * the index still holds this exact order. Lane write lock.
+     * @param lane of the order.
+     * @param order to remove.
+     * @param event journal event of the removal.
+     * @return whether the order was removed.
+     */
+    private boolean remove(OrderLane lane, WorkOrder order, int event) {
+        long ID = order.getId();
+        OrderIndex.Segment segment = index.segment(ID);
+        long stamp = segment.lock();
+        try {
+            if (!segment.holds(ID, order.getEpochMillis())) {
+                return false;
+            }
+            segment.remove(ID);
+
+            if (journal != null) {
+                journal.append(event, ID, order.getEpochMillis());
+            }
+            return lane.remove(order);
+        } finally {
+            segment.unlock(stamp);
+        }
+    }
+
+    /**
+     * Commits new orders and hands them to parked consumers.
+     */
+    private void enqueued() {
+        commit();
+
+        if (waiting > 0) {
+            wakeWaiters();
+        }
+    }
+
+    /**
+     * Hands orders added elsewhere in the cluster to consumers
+     * parked on this node.
+     * @param added whether an order was added.
+     * @return added
+     */
+    private boolean clustered(boolean added) {
+        if (added && (waiting > 0)) {
+            wakeWaiters();
+        }
+        return added;
+    }
+
+    /**
+     * @param results of enqueueing orders in the cluster.
+     * @return results
+     */
+    private byte[] clustered(byte[] results) {
+        for (byte result : results) {
+            if (result == ADDED) {
+                clustered(true);
+                break;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Dequeues an order for each parked waiter, oldest waiter first,
+     * until one of them runs out. An order refused by every waiter is
+     * put back in the queue. If other nodes of the cluster cannot be
+     * reached the waiters stay parked, until the next enqueue or their
+     * timeout.
+     */
+    private void wakeWaiters() {
+        waiterLock.lock();
+        try {
+            while (!waiters.isEmpty()) {
+                WorkOrder order = dequeue();
+
+                if (order == null) {
+                    return;
+                }
+
+                boolean delivered = false;
+
+                while (!delivered && !waiters.isEmpty()) {
+                    delivered = waiters.pollFirst().offer(order);
+                    waiting = waiters.size();
+                }
+                if (!delivered) {
+                    enqueue(order);
+                }
+            }
+        } catch (ClusterException e) {
+            LOG.warn("Could not hand orders to waiting consumers", e);
+        } finally {
+            waiterLock.unlock();
+        }
+    }
+
+    /**
+     * Makes logged changes durable as the journal's policy asks.
+     * Called once the locks of the change are released.
+     */
+    private void commit() {
+        if (journal != null) {
+            journal.commit();
+        }
+    }
+
+    /**
+     * Read locks every lane in a fixed order, giving a consistent
+     * view of the whole queue. Writers of a lane wait until released.
+     * @return stamps to release with unlockReadLanes.
+     */
+    private long[] readLockLanes() {
+        long[] stamps = new long[lanes.length];
+
+        for (int i = 0; i < lanes.length; i++) {
+            stamps[i] = lanes[i].readLock();
+        }
+        return stamps;
+    }
+
+    private void unlockReadLanes(long[] stamps) {
+        for (int i = lanes.length - 1; i >= 0; i--) {
+            lanes[i].unlockRead(stamps[i]);
+        }
+    }
+
+    /**
+     * Runs a read of the lanes without locking them, and keeps its
+     * result only if no lane was changed meanwhile, so the result is
+     * that of one instant and writers are never held up. A read that
+     * keeps losing to writers is run once more with every lane read
+     * locked. The read may be run several times.
+     * @param read of the lanes, given the instant ranks are compared at.
+     * @return result of the read.
+     */
+    private <T> T readLanes(LaneRead<T> read) {
+        long[] stamps = new long[lanes.length];
+
+        for (int attempt = 0; attempt < OPTIMISTIC_READS; attempt++) {
+            long now = clock.millis();
+
+            if (!tryOptimisticReadLanes(stamps)) {
+                continue;
+            }
+            try {
+                T result = read.read(now);
+
+                if (validateLanes(stamps)) {
+                    return result;
+                }
+            } catch (RuntimeException e) {
+                // a torn read of a changing lane, unless every lane is still as stamped.
+                if (validateLanes(stamps)) {
+                    throw e;
+                }
+            }
+        }
+
+        stamps = readLockLanes();
+        try {
+            return read.read(clock.millis());
+        } finally {
+            unlockReadLanes(stamps);
+        }
+    }
+
+    /**
+     * @param stamps filled with an optimistic stamp of each lane.
+     * @return false if a lane is write locked.
+     */
+    private boolean tryOptimisticReadLanes(long[] stamps) {
+        for (int i = 0; i < lanes.length; i++) {
+            stamps[i] = lanes[i].tryOptimisticRead();
+
+            if (stamps[i] == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean validateLanes(long[] stamps) {
+        for (int i = 0; i < lanes.length; i++) {
+            if (!lanes[i].validate(stamps[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies all of this node's lanes as of one instant, see readLanes,
+     * so an order moved from one lane to another is copied exactly once.
+     * @return orders of each lane from oldest to newest.
+     */
+    WorkOrder[][] copyLanes() {
+        return readLanes(ignored -> {
+            WorkOrder[][] copies = new WorkOrder[lanes.length][];
+
+            for (int i = 0; i < lanes.length; i++) {
+                copies[i] = lanes[i].toArray();
+            }
+            return copies;
+        });
+    }
+
+    /**
+     * A read of several lanes, see readLanes.
+     */
+    private interface LaneRead<T> {
+        T read(long now);
+    }
+}
@@ -0,0 +1,44 @@
+package com.nathan.requests;
+
+/**
+ * Request object used to receive a WorkOrder ID and Date
+ * as one item of a batch.
+ *
+ * @author Nathan
+ */
+public class WorkOrderRequest {
+    private long ID;
+    private String date;
+
+    /**
+     * CONSTRUCTOR: Used when reading the request body.
+     */
+    public WorkOrderRequest() {
+    }
+
+    /**
+     * CONSTRUCTOR
+     * @param ID of work order
+     * @param date of work order, in string format or "now"
+     */
+    public WorkOrderRequest(long ID, String date) {
+        this.ID = ID;
+        this.date = date;
+    }
+
+    public long getID() {
+        return ID;
+    }
+
+    public void setID(long ID) {
+        this.ID = ID;
+    }
+
+    public String getDate() {
+        return date;
+    }
+
+    public void setDate(String date) {
+        this.date = date;
+    }
+}
@@ -8,6 +8,9 @@ package com.nathan.requests;
 public class WorkOrderResponse {
     private long ID;
     private String date;
+    private long epochMillis;
+    // Whether epochMillis holds the date, else it is parsed from the string.
+    private boolean dated;
 
     /**
      * CONSTRUCTOR
@@ -19,11 +22,32 @@ public class WorkOrderResponse {
         this.date = date;
     }
 
+    /**
+     * CONSTRUCTOR: Formats the date only if the response is sent as JSON.
+     * @param order to send.
+     */
+    WorkOrderResponse(WorkOrder order) {
+        this.ID = order.getId();
+        this.epochMillis = order.getEpochMillis();
+        this.dated = true;
+    }
+
     public long getID() {
         return ID;
     }
 
     public String getDate() {
+        if ((date == null) && dated) {
+            date = OrderDates.format(epochMillis);
+        }
         return date;
     }
+
+    /**
+     * Not public, so it is left out of the JSON body.
+     * @return date created, in epoch milliseconds.
+     */
+    long getEpochMillis() {
+        return dated ? epochMillis : OrderDates.parse(date);
+    }
 }
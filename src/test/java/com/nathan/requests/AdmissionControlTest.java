@@ -0,0 +1,389 @@
+package com.nathan.requests;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.restassured.path.json.JsonPath;
+import org.junit.*;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import static org.junit.Assert.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+import static com.nathan.requests.TestConstants.*;
+
+/**
+ * Tests AdmissionControl class, against a queue with a fixed clock.
+ *
+ * @author Nathan
+ */
+public class AdmissionControlTest {
+    private static final long NOW = 1500000000000L;
+    private static final String CLIENT = "client";
+    private static final String DATE = "2017-07-14_02:00";
+    private static final Clock CLOCK = Clock.fixed(Instant.ofEpochMilli(NOW), ZoneOffset.UTC);
+
+    private SimpleMeterRegistry registry;
+    private WorkOrderQueue queue;
+    private AdmissionProperties properties;
+
+    @Before
+    public void setUpAdmission() {
+        registry = new SimpleMeterRegistry();
+        queue = new WorkOrderQueue(CLOCK, DivisorRankingPolicy.DEFAULT, 4);
+        properties = new AdmissionProperties();
+    }
+
+    private AdmissionControl admission() {
+        return new AdmissionControl(queue, properties, new QueueMetrics(registry, queue));
+    }
+
+    private MockMvc controller() {
+        QueueMetrics metrics = new QueueMetrics(registry, queue);
+        return controller(queue, new AdmissionControl(queue, properties, metrics), metrics);
+    }
+
+    private static MockMvc controller(WorkOrderQueue queue, AdmissionControl admission, QueueMetrics metrics) {
+        return MockMvcBuilders.standaloneSetup(new QueueController(queue,
+                new PositionEvents(queue, new EventProperties()), new ReadCache(queue, 1000),
+                admission, metrics)).build();
+    }
+
+    /**
+     * @return a controller on node 0 of the cluster, every node limited by properties.
+     */
+    private MockMvc clusterController(LoopbackCluster cluster, int nodes) {
+        QueueMetrics metrics = null;
+
+        for (int node = nodes - 1; node >= 0; node--) {
+            metrics = new QueueMetrics((node == 0) ? registry : new SimpleMeterRegistry(), cluster.queue(node));
+            new AdmissionControl(cluster.queue(node), properties, metrics);
+        }
+        return controller(cluster.queue(0), cluster.queue(0).admission(), metrics);
+    }
+
+    private static long[] ownedBy(LoopbackCluster cluster, int node, int count) {
+        long[] IDs = new long[count];
+
+        for (long ID = 1, i = 0; i < count; ID++) {
+            if (cluster.ownerOf(ID) == node) {
+                IDs[(int) i++] = ID;
+            }
+        }
+        return IDs;
+    }
+
+    private long admitAndEnqueue(AdmissionControl admission, WorkOrder order) {
+        long wait = admission.admit(CLIENT, order);
+
+        if (wait == 0) {
+            queue.enqueue(order);
+        }
+        return wait;
+    }
+
+    private double outcomeCount(String outcome) {
+        return registry.get("queue.outcomes").tag("outcome", outcome).counter().count();
+    }
+
+    // --------------------------------------------------
+    // capacity
+    // --------------------------------------------------
+    @Test
+    public void admit_NoLimits_ShouldAdmitAll() {
+        AdmissionControl admission = admission();
+
+        for (long ID = 1; ID <= 100; ID++) {
+            assertEquals(0, admitAndEnqueue(admission, new WorkOrder(ID, NOW)));
+        }
+    }
+    @Test
+    public void admit_QueueFull_ShouldReturnRetryAfter() {
+        properties.setCapacity(2);
+        properties.setRetryAfterSeconds(7);
+        AdmissionControl admission = admission();
+
+        assertEquals(0, admitAndEnqueue(admission, new WorkOrder(NORMAL_ID, NOW)));
+        assertEquals(0, admitAndEnqueue(admission, new WorkOrder(NORMAL_ID + 1, NOW)));
+        assertEquals(7, admitAndEnqueue(admission, new WorkOrder(MANAGER_ID, NOW)));
+        assertEquals(1, outcomeCount("over_capacity"), 0);
+
+        queue.dequeue();
+        assertEquals(0, admitAndEnqueue(admission, new WorkOrder(MANAGER_ID, NOW)));
+    }
+    @Test
+    public void admit_LevelFull_ShouldRefuseOnlyThatLevel() {
+        properties.setNormalCapacity(1);
+        AdmissionControl admission = admission();
+
+        assertEquals(0, admitAndEnqueue(admission, new WorkOrder(NORMAL_ID, NOW)));
+        assertTrue(admitAndEnqueue(admission, new WorkOrder(NORMAL_ID + 1, NOW)) > 0);
+        assertEquals(0, admitAndEnqueue(admission, new WorkOrder(PRIORITY_ID, NOW)));
+    }
+    @Test
+    public void admit_OnlyReservesLeft_ShouldAdmitHigherLevels() {
+        properties.setCapacity(4);
+        properties.setVipReserve(1);
+        properties.setManagerReserve(1);
+        AdmissionControl admission = admission();
+
+        assertEquals(0, admitAndEnqueue(admission, new WorkOrder(NORMAL_ID, NOW)));
+        assertEquals(0, admitAndEnqueue(admission, new WorkOrder(PRIORITY_ID, NOW)));
+        assertTrue(admitAndEnqueue(admission, new WorkOrder(NORMAL_ID + 1, NOW)) > 0);
+
+        assertEquals(0, admitAndEnqueue(admission, new WorkOrder(VIP_ID, NOW)));
+        assertTrue(admitAndEnqueue(admission, new WorkOrder(2 * VIP_ID, NOW)) > 0);
+
+        assertEquals(0, admitAndEnqueue(admission, new WorkOrder(MANAGER_ID, NOW)));
+        assertTrue(admitAndEnqueue(admission, new WorkOrder(2 * MANAGER_ID, NOW)) > 0);
+    }
+    @Test
+    public void admit_BatchPending_ShouldCountAgainstCapacity() {
+        properties.setCapacity(2);
+        AdmissionControl admission = admission();
+        int[] pending = AdmissionControl.newPending();
+
+        assertEquals(0, admission.admit(CLIENT, new WorkOrder(NORMAL_ID, NOW), pending));
+        assertEquals(0, admission.admit(CLIENT, new WorkOrder(NORMAL_ID + 1, NOW), pending));
+        assertTrue(admission.admit(CLIENT, new WorkOrder(NORMAL_ID + 3, NOW), pending) > 0);
+        assertEquals(2, pending[pending.length - 1]);
+    }
+
+    // --------------------------------------------------
+    // rate
+    // --------------------------------------------------
+    @Test
+    public void admit_BurstUsedUp_ShouldRateLimitClient() {
+        properties.setRatePerSecond(0.5);
+        properties.setBurst(3);
+        AdmissionControl admission = admission();
+
+        for (long ID = 1; ID <= 3; ID++) {
+            assertEquals(0, admission.admit(CLIENT, new WorkOrder(ID, NOW)));
+        }
+
+        // One token every two seconds.
+        long wait = admission.admit(CLIENT, new WorkOrder(4, NOW));
+        assertTrue(wait >= 1 && wait <= 2);
+        assertEquals(1, outcomeCount("rate_limited"), 0);
+    }
+    @Test
+    public void admit_OtherClient_ShouldHaveOwnBucket() {
+        properties.setRatePerSecond(0.5);
+        properties.setBurst(1);
+        AdmissionControl admission = admission();
+
+        assertEquals(0, admission.admit(CLIENT, new WorkOrder(NORMAL_ID, NOW)));
+        assertTrue(admission.admit(CLIENT, new WorkOrder(NORMAL_ID + 1, NOW)) > 0);
+        assertEquals(0, admission.admit("other", new WorkOrder(NORMAL_ID + 1, NOW)));
+    }
+    @Test
+    public void admit_QueueFull_ShouldNotTakeToken() {
+        properties.setCapacity(1);
+        properties.setRatePerSecond(0.5);
+        properties.setBurst(2);
+        AdmissionControl admission = admission();
+
+        assertEquals(0, admitAndEnqueue(admission, new WorkOrder(NORMAL_ID, NOW)));
+        assertTrue(admitAndEnqueue(admission, new WorkOrder(NORMAL_ID + 1, NOW)) > 0);
+        queue.dequeue();
+
+        assertEquals(0, admitAndEnqueue(admission, new WorkOrder(NORMAL_ID + 1, NOW)));
+    }
+    @Test
+    public void admit_MaxClientsTracked_ShouldShareOneBucket() {
+        properties.setRatePerSecond(0.5);
+        properties.setBurst(1);
+        properties.setMaxClients(2);
+        AdmissionControl admission = admission();
+
+        assertEquals(0, admission.admit("a", new WorkOrder(NORMAL_ID, NOW)));
+        assertEquals(0, admission.admit("b", new WorkOrder(NORMAL_ID, NOW)));
+        assertEquals(0, admission.admit("c", new WorkOrder(NORMAL_ID, NOW)));
+        assertTrue(admission.admit("d", new WorkOrder(NORMAL_ID, NOW)) > 0);
+        assertEquals(2, admission.clients());
+    }
+    @Test
+    public void admit_FullBucketsTracked_ShouldForgetThem() throws InterruptedException {
+        properties.setRatePerSecond(1000);
+        properties.setBurst(1);
+        properties.setMaxClients(2);
+        AdmissionControl admission = admission();
+
+        assertEquals(0, admission.admit("a", new WorkOrder(NORMAL_ID, NOW)));
+        assertEquals(0, admission.admit("b", new WorkOrder(NORMAL_ID, NOW)));
+        Thread.sleep(10);
+
+        assertEquals(0, admission.admit("c", new WorkOrder(NORMAL_ID, NOW)));
+        assertEquals(1, admission.clients());
+    }
+    @Test
+    public void refund_TokenTaken_ShouldGiveItBack() {
+        properties.setRatePerSecond(0.5);
+        properties.setBurst(1);
+        AdmissionControl admission = admission();
+
+        assertEquals(0, admission.admit(CLIENT, new WorkOrder(NORMAL_ID, NOW)));
+        admission.refund(CLIENT);
+        assertEquals(0, admission.admit(CLIENT, new WorkOrder(NORMAL_ID + 1, NOW)));
+        assertTrue(admission.admit(CLIENT, new WorkOrder(NORMAL_ID + 2, NOW)) > 0);
+    }
+
+    // --------------------------------------------------
+    // controller
+    // --------------------------------------------------
+    @Test
+    public void enqueue_QueueFull_ShouldReturnTooManyRequests() throws Exception {
+        properties.setCapacity(1);
+        properties.setRetryAfterSeconds(5);
+        MockMvc mockMvc = controller();
+
+        mockMvc.perform(post("/queue/{id}/{date}", NORMAL_ID, DATE))
+                .andExpect(status().isCreated());
+        mockMvc.perform(post("/queue/{id}/{date}", MANAGER_ID, DATE))
+                .andExpect(status().isTooManyRequests())
+                .andExpect(header().string("Retry-After", "5"));
+        assertFalse(queue.contains(MANAGER_ID));
+    }
+    @Test
+    public void enqueue_ClientHeader_ShouldRateLimitEachClient() throws Exception {
+        properties.setRatePerSecond(0.5);
+        properties.setBurst(1);
+        properties.setClientHeader("X-Client-Id");
+        MockMvc mockMvc = controller();
+
+        mockMvc.perform(post("/queue/{id}/{date}", NORMAL_ID, DATE).header("X-Client-Id", "a"))
+                .andExpect(status().isCreated());
+        mockMvc.perform(post("/queue/{id}/{date}", PRIORITY_ID, DATE).header("X-Client-Id", "a"))
+                .andExpect(status().isTooManyRequests());
+        mockMvc.perform(post("/queue/{id}/{date}", PRIORITY_ID, DATE).header("X-Client-Id", "b"))
+                .andExpect(status().isCreated());
+    }
+    @Test
+    public void enqueue_ClientHeaderNotSet_ShouldRateLimitAddress() throws Exception {
+        properties.setRatePerSecond(0.5);
+        properties.setBurst(1);
+        MockMvc mockMvc = controller();
+
+        mockMvc.perform(post("/queue/{id}/{date}", NORMAL_ID, DATE).header("X-Client-Id", "a"))
+                .andExpect(status().isCreated());
+        mockMvc.perform(post("/queue/{id}/{date}", PRIORITY_ID, DATE).header("X-Client-Id", "b"))
+                .andExpect(status().isTooManyRequests());
+    }
+    @Test
+    public void enqueue_Conflict_ShouldNotUseRate() throws Exception {
+        properties.setRatePerSecond(0.5);
+        properties.setBurst(2);
+        MockMvc mockMvc = controller();
+
+        mockMvc.perform(post("/queue/{id}/{date}", NORMAL_ID, DATE))
+                .andExpect(status().isCreated());
+        mockMvc.perform(post("/queue/{id}/{date}", NORMAL_ID, DATE))
+                .andExpect(status().isConflict());
+        mockMvc.perform(post("/queue/{id}/{date}", PRIORITY_ID, DATE))
+                .andExpect(status().isCreated());
+    }
+    @Test
+    public void enqueueAll_RepeatedIds_ShouldNotUseRateOrCapacity() throws Exception {
+        properties.setCapacity(3);
+        properties.setRatePerSecond(0.5);
+        properties.setBurst(2);
+        MockMvc mockMvc = controller();
+        queue.enqueue(new WorkOrder(VIP_ID, NOW));
+        String body = "[{\"id\":" + VIP_ID + ",\"date\":\"now\"}," +
+                "{\"id\":" + NORMAL_ID + ",\"date\":\"now\"}," +
+                "{\"id\":" + NORMAL_ID + ",\"date\":\"now\"}," +
+                "{\"id\":" + NORMAL_ID + ",\"date\":\"now\"}]";
+
+        String resultString = mockMvc.perform(post("/queue/batch")
+                .contentType(MediaType.APPLICATION_JSON).content(body))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        JsonPath result = JsonPath.with(resultString);
+
+        assertEquals("CONFLICT", result.getString("[0].status"));
+        assertEquals("CREATED", result.getString("[1].status"));
+        assertEquals("CONFLICT", result.getString("[2].status"));
+        assertEquals("CONFLICT", result.getString("[3].status"));
+
+        mockMvc.perform(post("/queue/{id}/{date}", PRIORITY_ID, DATE))
+                .andExpect(status().isCreated());
+    }
+    @Test
+    public void enqueueAll_OverCapacity_ShouldRefuseRemainingItems() throws Exception {
+        properties.setCapacity(2);
+        MockMvc mockMvc = controller();
+        String body = "[{\"id\":" + NORMAL_ID + ",\"date\":\"now\"}," +
+                "{\"id\":" + PRIORITY_ID + ",\"date\":\"now\"}," +
+                "{\"id\":" + VIP_ID + ",\"date\":\"now\"}]";
+
+        String resultString = mockMvc.perform(post("/queue/batch")
+                .contentType(MediaType.APPLICATION_JSON).content(body))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Retry-After", "1"))
+                .andReturn().getResponse().getContentAsString();
+        JsonPath result = JsonPath.with(resultString);
+
+        assertEquals("CREATED", result.getString("[0].status"));
+        assertEquals("CREATED", result.getString("[1].status"));
+        assertEquals("TOO_MANY_REQUESTS", result.getString("[2].status"));
+        assertEquals(2, queue.size());
+    }
+
+    // --------------------------------------------------
+    // cluster
+    // --------------------------------------------------
+    @Test
+    public void enqueue_OwnerFull_ShouldRefuseOnOwner() throws Exception {
+        properties.setCapacity(2);
+        properties.setRetryAfterSeconds(3);
+
+        try (LoopbackCluster cluster = new LoopbackCluster(2, CLOCK)) {
+            MockMvc mockMvc = clusterController(cluster, 2);
+            long[] remote = ownedBy(cluster, 1, 3);
+
+            mockMvc.perform(post("/queue/{id}/{date}", remote[0], DATE))
+                    .andExpect(status().isCreated());
+            mockMvc.perform(post("/queue/{id}/{date}", remote[1], DATE))
+                    .andExpect(status().isCreated());
+            mockMvc.perform(post("/queue/{id}/{date}", remote[2], DATE))
+                    .andExpect(status().isTooManyRequests())
+                    .andExpect(header().string("Retry-After", "3"));
+            mockMvc.perform(post("/queue/{id}/{date}", ownedBy(cluster, 0, 1)[0], DATE))
+                    .andExpect(status().isCreated());
+
+            assertEquals(2, cluster.localSize(1));
+            assertEquals(1, outcomeCount("over_capacity"), 0);
+        }
+    }
+    @Test
+    public void enqueueAll_OwnerFull_ShouldRefuseRemainingItems() throws Exception {
+        properties.setCapacity(2);
+
+        try (LoopbackCluster cluster = new LoopbackCluster(2, CLOCK)) {
+            MockMvc mockMvc = clusterController(cluster, 2);
+            long[] remote = ownedBy(cluster, 1, 3);
+            String body = "[{\"id\":" + remote[0] + ",\"date\":\"now\"}," +
+                    "{\"id\":" + remote[0] + ",\"date\":\"now\"}," +
+                    "{\"id\":" + remote[1] + ",\"date\":\"now\"}," +
+                    "{\"id\":" + remote[2] + ",\"date\":\"now\"}]";
+
+            String resultString = mockMvc.perform(post("/queue/batch")
+                    .contentType(MediaType.APPLICATION_JSON).content(body))
+                    .andExpect(status().isOk())
+                    .andExpect(header().string("Retry-After", "1"))
+                    .andReturn().getResponse().getContentAsString();
+            JsonPath result = JsonPath.with(resultString);
+
+            assertEquals("CREATED", result.getString("[0].status"));
+            assertEquals("CONFLICT", result.getString("[1].status"));
+            assertEquals("CREATED", result.getString("[2].status"));
+            assertEquals("TOO_MANY_REQUESTS", result.getString("[3].status"));
+            assertEquals(2, cluster.localSize(1));
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.nathan.requests;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+import static com.nathan.requests.TestConstants.*;
+
+/**
+ * Tests DivisorRankingPolicy class
+ *
+ * @author Nathan
+ */
+public class DivisorRankingPolicyTest {
+    private static final double[] WAITS = {-3600, -1, 0, 0.5, 1, 1.0001, 2, 2.5, 60, 3600, 1e7};
+
+    private RankingProperties properties;
+
+    @Before
+    public void createProperties() {
+        properties = new RankingProperties();
+    }
+
+    // --------------------------------------------------
+    // levelOf
+    // --------------------------------------------------
+    @Test
+    public void levelOf_DefaultPolicy_ShouldUseDivisorsThreeAndFive() {
+        RankingPolicy policy = DivisorRankingPolicy.DEFAULT;
+
+        assertEquals(WorkOrder.ClassLevel.Normal, policy.levelOf(NORMAL_ID));
+        assertEquals(WorkOrder.ClassLevel.Priority, policy.levelOf(PRIORITY_ID));
+        assertEquals(WorkOrder.ClassLevel.VIP, policy.levelOf(VIP_ID));
+        assertEquals(WorkOrder.ClassLevel.Manager, policy.levelOf(MANAGER_ID));
+    }
+    @Test
+    public void levelOf_CustomDivisors_ShouldUseThem() {
+        properties.setPriorityDivisor(2);
+        properties.setVipDivisor(7);
+        RankingPolicy policy = new DivisorRankingPolicy(properties);
+
+        assertEquals(WorkOrder.ClassLevel.Normal, policy.levelOf(3));
+        assertEquals(WorkOrder.ClassLevel.Priority, policy.levelOf(4));
+        assertEquals(WorkOrder.ClassLevel.VIP, policy.levelOf(21));
+        assertEquals(WorkOrder.ClassLevel.Manager, policy.levelOf(14));
+    }
+    @Test(expected = IllegalArgumentException.class)
+    public void newPolicy_DivisorOfOne_ShouldThrow() {
+        properties.setVipDivisor(1);
+        new DivisorRankingPolicy(properties);
+    }
+
+    // --------------------------------------------------
+    // rank
+    // --------------------------------------------------
+    @Test
+    public void rank_DefaultPolicy_ShouldMatchOriginalFormulas() {
+        RankingPolicy policy = DivisorRankingPolicy.DEFAULT;
+
+        for (double n : WAITS) {
+            assertEquals(n, policy.rank(WorkOrder.ClassLevel.Normal, n), 0);
+            assertEquals(n, policy.rank(WorkOrder.ClassLevel.Manager, n), 0);
+            assertEquals((n > 1) ? Math.max(3, n * Math.log(n)) : 3,
+                    policy.rank(WorkOrder.ClassLevel.Priority, n), 0);
+            assertEquals((n > 1) ? Math.max(4, 2 * n * Math.log(n)) : 4,
+                    policy.rank(WorkOrder.ClassLevel.VIP, n), 0);
+        }
+    }
+    @Test
+    public void rank_EveryFunction_ShouldNeverDecrease() {
+        for (RankFunction function : RankFunction.values()) {
+            properties.setNormal(new RankingProperties.Level(function, 0.25, -2));
+            RankingPolicy policy = new DivisorRankingPolicy(properties);
+
+            for (int i = 1; i < WAITS.length; i++) {
+                assertTrue(policy.rank(WorkOrder.ClassLevel.Normal, WAITS[i - 1])
+                        <= policy.rank(WorkOrder.ClassLevel.Normal, WAITS[i]));
+            }
+        }
+    }
+    @Test(expected = IllegalArgumentException.class)
+    public void newPolicy_NegativeScale_ShouldThrow() {
+        properties.setPriority(new RankingProperties.Level(RankFunction.LINEAR, -1, 0));
+        new DivisorRankingPolicy(properties);
+    }
+
+    // --------------------------------------------------
+    // isFirst
+    // --------------------------------------------------
+    @Test
+    public void isFirst_DefaultPolicy_ShouldOnlyPinManagers() {
+        for (WorkOrder.ClassLevel level : WorkOrder.ClassLevel.values()) {
+            assertEquals(level == WorkOrder.ClassLevel.Manager, DivisorRankingPolicy.DEFAULT.isFirst(level));
+        }
+    }
+    @Test
+    public void isFirst_NoFirstLevel_ShouldLetManagersBeOutranked() {
+        properties.setFirst(null);
+        RankingPolicy policy = new DivisorRankingPolicy(properties);
+        long now = System.currentTimeMillis();
+        WorkOrder manager = new WorkOrder(MANAGER_ID, now, policy);
+        WorkOrder normal = new WorkOrder(NORMAL_ID, now - 60000, policy);
+
+        assertFalse(policy.isFirst(WorkOrder.ClassLevel.Manager));
+        assertTrue(normal.compareTo(manager, now) < 0);
+    }
+}
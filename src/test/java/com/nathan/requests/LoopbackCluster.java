@@ -0,0 +1,275 @@
+package com.nathan.requests;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs several cluster nodes in one JVM, talking over loopback
+ * sockets on free ports. Used by the cluster tests and benchmarks.
+ * Relayed nodes reach each other through a Relay, which can drop
+ * responses to simulate a connection failing after a node applied
+ * a request.
+ *
+ * @author Nathan
+ */
+public class LoopbackCluster implements Closeable {
+    private final WorkOrderQueue[] queues;
+    private final OrderCluster[] clusters;
+    // Relay to each node, null unless relayed.
+    private final Relay[] relays;
+
+    /**
+     * CONSTRUCTOR: Starts the nodes, all with the default ranking policy.
+     * @param nodes number of nodes.
+     * @param clock shared by every node's queue.
+     */
+    public LoopbackCluster(int nodes, Clock clock) {
+        this(nodes, clock, false);
+    }
+
+    /**
+     * CONSTRUCTOR: Starts the nodes, all with the default ranking policy.
+     * @param nodes number of nodes.
+     * @param clock shared by every node's queue.
+     * @param relayed whether the nodes reach each other through relays.
+     */
+    public LoopbackCluster(int nodes, Clock clock, boolean relayed) {
+        List<String> addresses = new ArrayList<String>();
+
+        for (int i = 0; i < nodes; i++) {
+            addresses.add("127.0.0.1:" + freePort());
+        }
+
+        queues = new WorkOrderQueue[nodes];
+        clusters = new OrderCluster[nodes];
+        relays = new Relay[nodes];
+
+        for (int i = 0; relayed && (i < nodes); i++) {
+            relays[i] = new Relay(new InetSocketAddress("127.0.0.1", port(addresses.get(i))));
+        }
+
+        for (int i = 0; i < nodes; i++) {
+            List<String> seen = new ArrayList<String>(addresses);
+            for (int j = 0; relayed && (j < nodes); j++) {
+                if (j != i) {
+                    seen.set(j, "127.0.0.1:" + relays[j].port());
+                }
+            }
+
+            ClusterProperties properties = new ClusterProperties();
+            properties.setEnabled(true);
+            properties.setNodes(seen);
+            properties.setSelf(i);
+
+            try {
+                clusters[i] = new OrderCluster(properties, DivisorRankingPolicy.DEFAULT);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            queues[i] = new WorkOrderQueue(clock, DivisorRankingPolicy.DEFAULT);
+            queues[i].joinCluster(clusters[i]);
+        }
+    }
+
+    /**
+     * @return queue of the node, which works on the whole cluster.
+     */
+    public WorkOrderQueue queue(int node) {
+        return queues[node];
+    }
+
+    /**
+     * @return index of the node owning the ID.
+     */
+    public int ownerOf(long ID) {
+        return clusters[0].owner(ID);
+    }
+
+    /**
+     * @return number of orders held by the node itself.
+     */
+    public int localSize(int node) {
+        return (int) queues[node].statsLocal(0)[0];
+    }
+
+    /**
+     * Stops one node, as if it had crashed.
+     */
+    public void stop(int node) {
+        queues[node].close();
+    }
+
+    /**
+     * Lets the node apply the next request of the operation sent to it,
+     * then closes that connection instead of passing on the response.
+     * @param node relayed node.
+     * @param operation ClusterProtocol operation.
+     */
+    public void dropNextResponse(int node, int operation) {
+        relays[node].drop.set(operation);
+    }
+
+    @Override
+    public void close() {
+        for (WorkOrderQueue queue : queues) {
+            queue.close();
+        }
+        for (Relay relay : relays) {
+            if (relay != null) {
+                relay.close();
+            }
+        }
+    }
+
+    private static int freePort() {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int port(String address) {
+        return Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+    }
+
+    /**
+     * Passes the connections to one node through, noting the operation
+     * of each request so that the response to one can be dropped.
+     */
+    private static final class Relay implements Closeable {
+        private final InetSocketAddress target;
+        private final ServerSocket server;
+        private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+        // Operation whose next response is dropped, -1 for none.
+        final AtomicInteger drop = new AtomicInteger(-1);
+
+        Relay(InetSocketAddress target) {
+            this.target = target;
+
+            try {
+                server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            daemon(this::accept);
+        }
+
+        int port() {
+            return server.getLocalPort();
+        }
+
+        @Override
+        public void close() {
+            closeQuietly(server);
+            for (Socket socket : sockets) {
+                closeQuietly(socket);
+            }
+        }
+
+        private void accept() {
+            while (!server.isClosed()) {
+                Socket client;
+                Socket node;
+                try {
+                    client = server.accept();
+                    node = new Socket(target.getAddress(), target.getPort());
+                } catch (IOException e) {
+                    continue;
+                }
+                sockets.add(client);
+                sockets.add(node);
+
+                AtomicInteger operation = new AtomicInteger(-1);
+                AtomicBoolean requestNext = new AtomicBoolean();
+                daemon(() -> requests(client, node, operation, requestNext));
+                daemon(() -> responses(client, node, operation, requestNext));
+            }
+        }
+
+        /**
+         * Passes requests on, noting the operation byte that starts each one.
+         */
+        private void requests(Socket client, Socket node, AtomicInteger operation, AtomicBoolean requestNext) {
+            byte[] buffer = new byte[8192];
+
+            try {
+                DataInputStream in = new DataInputStream(client.getInputStream());
+                OutputStream out = node.getOutputStream();
+
+                in.readFully(buffer, 0, 4);
+                out.write(buffer, 0, 4);
+                requestNext.set(true);
+
+                for (int read = in.read(buffer); read > 0; read = in.read(buffer)) {
+                    if (requestNext.getAndSet(false)) {
+                        operation.set(buffer[0] & 0xFF);
+                    }
+                    out.write(buffer, 0, read);
+                }
+            } catch (IOException e) {
+                // either side closed.
+            } finally {
+                closeQuietly(client);
+                closeQuietly(node);
+            }
+        }
+
+        /**
+         * Passes responses back, unless the request answered is to be dropped.
+         */
+        private void responses(Socket client, Socket node, AtomicInteger operation, AtomicBoolean requestNext) {
+            byte[] buffer = new byte[8192];
+
+            try {
+                InputStream in = node.getInputStream();
+                OutputStream out = client.getOutputStream();
+
+                for (int read = in.read(buffer); read > 0; read = in.read(buffer)) {
+                    int answered = operation.get();
+
+                    if ((answered >= 0) && drop.compareAndSet(answered, -1)) {
+                        return;
+                    }
+                    // the client only sends its next request once it has this response.
+                    requestNext.set(true);
+                    out.write(buffer, 0, read);
+                }
+            } catch (IOException e) {
+                // either side closed.
+            } finally {
+                closeQuietly(client);
+                closeQuietly(node);
+            }
+        }
+
+        private static void daemon(Runnable runnable) {
+            Thread thread = new Thread(runnable, "relay");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private static void closeQuietly(Closeable closeable) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing left to release.
+            }
+        }
+    }
+}
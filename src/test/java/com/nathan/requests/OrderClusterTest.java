@@ -0,0 +1,247 @@
+package com.nathan.requests;
+
+import org.junit.*;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+import static com.nathan.requests.TestConstants.*;
+
+/**
+ * Tests OrderCluster class, with three nodes on loopback sockets
+ * checked against one standalone queue holding the same orders.
+ *
+ * @author Nathan
+ */
+public class OrderClusterTest {
+    private static final Clock CLOCK = Clock.fixed(Instant.now(), ZoneOffset.UTC);
+
+    private LoopbackCluster cluster;
+
+    @Before
+    public void startCluster() {
+        cluster = new LoopbackCluster(3, CLOCK);
+    }
+    @After
+    public void stopCluster() {
+        cluster.close();
+    }
+
+    // --------------------------------------------------
+    // enqueue
+    // --------------------------------------------------
+    @Test
+    public void enqueue_ThroughAnyNode_ShouldStoreOnOwner() {
+        WorkOrderQueueTest.addMixedOrders(cluster.queue(0), 300);
+
+        int total = 0;
+        for (int node = 0; node < 3; node++) {
+            assertTrue(cluster.localSize(node) > 0);
+            total += cluster.localSize(node);
+        }
+        assertEquals(300, total);
+        for (long ID = 1; ID <= 300; ID += 17) {
+            assertNotNull(cluster.queue(cluster.ownerOf(ID)).getLocal(ID));
+        }
+    }
+    @Test
+    public void enqueue_SameIDOnTwoNodes_ShouldOnlyAddOnce() {
+        assertTrue(cluster.queue(0).enqueue(new WorkOrder(NORMAL_ID, CURRENT_TIME)));
+        assertFalse(cluster.queue(1).enqueue(new WorkOrder(NORMAL_ID, CURRENT_TIME)));
+        assertFalse(cluster.queue(2).enqueue(new WorkOrder(NORMAL_ID, CURRENT_TIME)));
+
+        assertEquals(1, cluster.queue(2).size());
+        assertTrue(cluster.queue(1).contains(NORMAL_ID));
+    }
+    @Test
+    public void enqueueAll_MixedOwners_ShouldReportEachOrder() {
+        cluster.queue(1).enqueue(new WorkOrder(VIP_ID, CURRENT_TIME));
+        List<WorkOrder> orders = new ArrayList<WorkOrder>();
+
+        for (long ID = 1; ID <= 50; ID++) {
+            orders.add(new WorkOrder(ID, CURRENT_TIME));
+        }
+        boolean[] added = cluster.queue(2).enqueueAll(orders);
+
+        for (int i = 0; i < added.length; i++) {
+            assertEquals(orders.get(i).getId() != VIP_ID, added[i]);
+        }
+        assertEquals(50, cluster.queue(0).size());
+    }
+
+    // --------------------------------------------------
+    // reads
+    // --------------------------------------------------
+    @Test
+    public void reads_MixedOrders_ShouldMatchStandaloneQueue() {
+        WorkOrderQueue single = new WorkOrderQueue(CLOCK);
+        WorkOrderQueueTest.addMixedOrders(single, 400);
+        WorkOrderQueueTest.addMixedOrders(cluster.queue(1), 400);
+
+        for (int node = 0; node < 3; node++) {
+            WorkOrderQueue queue = cluster.queue(node);
+
+            assertEquals(single.getListOfIDs(), queue.getListOfIDs());
+            assertEquals(single.size(), queue.size());
+            assertEquals(single.getAverageWaitTime(), queue.getAverageWaitTime(), 1e-6);
+            assertEquals(single.getPositionOfOrder(123), queue.getPositionOfOrder(123));
+        }
+
+        long[] IDs = {1, 15, 77, 400, 401, 250};
+        assertArrayEquals(single.getPositionsOfOrders(IDs), cluster.queue(2).getPositionsOfOrders(IDs));
+    }
+
+    // --------------------------------------------------
+    // dequeue
+    // --------------------------------------------------
+    @Test
+    public void dequeue_MixedOrders_ShouldMergeNodesLikeStandaloneQueue() {
+        WorkOrderQueue single = new WorkOrderQueue(CLOCK);
+        WorkOrderQueueTest.addMixedOrders(single, 300);
+        WorkOrderQueueTest.addMixedOrders(cluster.queue(0), 300);
+
+        for (int i = 0; i < 20; i++) {
+            assertEquals(single.dequeue(), cluster.queue(i % 3).dequeue());
+        }
+        assertEquals(single.dequeue(100), cluster.queue(1).dequeue(100));
+        assertTrue(single.removeOrder(299));
+        assertTrue(cluster.queue(2).removeOrder(299));
+        assertEquals(single.getListOfIDs(), cluster.queue(0).getListOfIDs());
+    }
+    @Test
+    public void dequeue_EmptyCluster_ShouldReturnNull() {
+        assertNull(cluster.queue(0).dequeue());
+        assertTrue(cluster.queue(1).dequeue(5).isEmpty());
+    }
+    @Test
+    public void dequeue_ConcurrentConsumersOnAllNodes_ShouldTakeEachOrderOnce() throws Exception {
+        WorkOrderQueueTest.addMixedOrders(cluster.queue(0), 600);
+        ExecutorService executor = Executors.newFixedThreadPool(6);
+        List<Future<List<Long>>> futures = new ArrayList<Future<List<Long>>>();
+
+        for (int t = 0; t < 6; t++) {
+            WorkOrderQueue queue = cluster.queue(t % 3);
+            futures.add(executor.submit(() -> {
+                List<Long> IDs = new ArrayList<Long>();
+                for (WorkOrder order = queue.dequeue(); order != null; order = queue.dequeue()) {
+                    IDs.add(order.getId());
+                }
+                return IDs;
+            }));
+        }
+
+        List<Long> all = new ArrayList<Long>();
+        for (Future<List<Long>> future : futures) {
+            all.addAll(future.get());
+        }
+        executor.shutdown();
+
+        Collections.sort(all);
+        assertEquals(600, all.size());
+        assertEquals(600, all.stream().distinct().count());
+    }
+    @Test
+    public void awaitOrder_OrderOwnedByOtherNode_ShouldWakeWaiter() throws Exception {
+        long ID = 1;
+        while (cluster.ownerOf(ID) == 0) {
+            ID++;
+        }
+        CompletableFuture<WorkOrder> handed = new CompletableFuture<WorkOrder>();
+        cluster.queue(0).awaitOrder(handed::complete);
+
+        cluster.queue(0).enqueue(new WorkOrder(ID, CURRENT_TIME));
+
+        assertEquals(ID, handed.get(5, TimeUnit.SECONDS).getId());
+        assertEquals(0, cluster.queue(1).size());
+    }
+
+    // --------------------------------------------------
+    // failures
+    // --------------------------------------------------
+    @Test(expected = ClusterException.class)
+    public void size_NodeDown_ShouldThrow() {
+        cluster.stop(2);
+        cluster.queue(0).size();
+    }
+    @Test
+    public void controller_NodeDown_ShouldReturnServiceUnavailable() throws Exception {
+        MockMvc mockMvc = MockMvcBuilders.standaloneSetup(new QueueController(cluster.queue(0))).build();
+        cluster.stop(1);
+
+        mockMvc.perform(get("/queue"))
+                .andExpect(status().isServiceUnavailable());
+    }
+
+    // --------------------------------------------------
+    // lost responses
+    // --------------------------------------------------
+    @Test
+    public void enqueue_ResponseLostAfterApplied_ShouldAddOnceAndReportAdded() {
+        try (LoopbackCluster relayed = new LoopbackCluster(2, CLOCK, true)) {
+            long ID = ownedBy(relayed, 1);
+            relayed.dropNextResponse(1, ClusterProtocol.ENQUEUE);
+
+            assertTrue(relayed.queue(0).enqueue(new WorkOrder(ID, CURRENT_TIME)));
+            assertEquals(1, relayed.localSize(1));
+            assertFalse(relayed.queue(0).enqueue(new WorkOrder(ID, CURRENT_TIME)));
+        }
+    }
+    @Test
+    public void removeOrder_ResponseLostAfterApplied_ShouldReportRemoved() {
+        try (LoopbackCluster relayed = new LoopbackCluster(2, CLOCK, true)) {
+            long ID = ownedBy(relayed, 1);
+            relayed.queue(1).enqueue(new WorkOrder(ID, CURRENT_TIME));
+            relayed.dropNextResponse(1, ClusterProtocol.TAKE);
+
+            assertTrue(relayed.queue(0).removeOrder(ID));
+            assertEquals(0, relayed.localSize(1));
+        }
+    }
+    @Test
+    public void dequeue_ResponseLostAfterApplied_ShouldHandOutTakenOrder() {
+        try (LoopbackCluster relayed = new LoopbackCluster(2, CLOCK, true)) {
+            long ID = ownedBy(relayed, 1);
+            relayed.queue(1).enqueue(new WorkOrder(ID, CURRENT_TIME));
+            relayed.dropNextResponse(1, ClusterProtocol.TAKE);
+
+            WorkOrder order = relayed.queue(0).dequeue();
+
+            assertNotNull(order);
+            assertEquals(ID, order.getId());
+            assertEquals(0, relayed.queue(0).size());
+        }
+    }
+
+    private static long ownedBy(LoopbackCluster cluster, int node) {
+        long ID = 1;
+        while (cluster.ownerOf(ID) != node) {
+            ID++;
+        }
+        return ID;
+    }
+
+    // --------------------------------------------------
+    // binding
+    // --------------------------------------------------
+    @Test(expected = IOException.class)
+    public void constructor_HostNotOnThisMachine_ShouldNotBindOtherInterfaces() throws IOException {
+        ClusterProperties properties = new ClusterProperties();
+        properties.setEnabled(true);
+        // documentation address, never assigned to a local interface.
+        properties.setNodes(Arrays.asList("192.0.2.1:0"));
+
+        new OrderCluster(properties, DivisorRankingPolicy.DEFAULT).close();
+    }
+}
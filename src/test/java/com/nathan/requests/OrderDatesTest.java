@@ -0,0 +1,81 @@
+package com.nathan.requests;
+
+import org.junit.*;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static com.nathan.requests.TestConstants.*;
+
+/**
+ * Tests OrderDates class
+ *
+ * @author Nathan
+ */
+public class OrderDatesTest {
+    // --------------------------------------------------
+    // parse
+    // --------------------------------------------------
+    @Test
+    public void parse_Now_ShouldBeCurrentTime() {
+        long before = System.currentTimeMillis();
+        long parsed = OrderDates.parse("NOW");
+
+        assertTrue(parsed >= before);
+        assertTrue(parsed <= System.currentTimeMillis());
+    }
+    @Test
+    public void parse_RandomDates_ShouldMatchSimpleDateFormat() throws Exception {
+        SimpleDateFormat format = new SimpleDateFormat(OrderDates.PATTERN);
+        Random random = new Random(3);
+
+        for (int i = 0; i < 5000; i++) {
+            // daytime after 1970 only, the old Date API resolves repeated DST
+            // hours and historic local mean time differently.
+            String day = format.format(new Date(Math.abs(random.nextLong() % 4000000000000L))).substring(0, 11);
+            String dateString = String.format("%s%02d:%02d", day, 10 + random.nextInt(10), random.nextInt(60));
+            assertEquals(dateString, format.parse(dateString).getTime(), OrderDates.parse(dateString));
+        }
+    }
+    @Test(expected = InvalidOrderDateException.class)
+    public void parse_WrongLayout_ShouldThrow() {
+        OrderDates.parse("2017/06/01 12:23");
+    }
+    @Test(expected = InvalidOrderDateException.class)
+    public void parse_NonDigit_ShouldThrow() {
+        OrderDates.parse("2017-06-0x_12:23");
+    }
+    @Test(expected = InvalidOrderDateException.class)
+    public void parse_ImpossibleDate_ShouldThrow() {
+        OrderDates.parse("2017-02-30_12:23");
+    }
+    @Test(expected = InvalidOrderDateException.class)
+    public void parse_Null_ShouldThrow() {
+        OrderDates.parse(null);
+    }
+
+    // --------------------------------------------------
+    // format
+    // --------------------------------------------------
+    @Test
+    public void format_ParsedDate_ShouldRoundTrip() {
+        String expected = "2017-06-01_12:23";
+        assertEquals(expected, OrderDates.format(OrderDates.parse(expected)));
+    }
+    @Test
+    public void format_SameMinute_ShouldReuseCachedString() {
+        long minute = OrderDates.parse("2017-06-01_12:23");
+
+        assertSame(OrderDates.format(minute + 1000), OrderDates.format(minute + 59000));
+    }
+    @Test
+    public void format_CurrentTime_ShouldMatchSimpleDateFormat() {
+        long now = System.currentTimeMillis();
+        String expected = new SimpleDateFormat(OrderDates.PATTERN).format(new Date(now));
+
+        assertEquals(expected, OrderDates.format(now));
+        assertEquals(expected, new WorkOrder(NORMAL_ID, now).getDateString());
+    }
+}
@@ -0,0 +1,107 @@
+package com.nathan.requests;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.*;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import static org.junit.Assert.*;
+import static com.nathan.requests.TestConstants.*;
+
+/**
+ * Tests OrderExpiry class, against a queue with a fixed clock.
+ *
+ * @author Nathan
+ */
+public class OrderExpiryTest {
+    private static final long NOW = 1500000000000L;
+    private static final long TTL = 5000;
+
+    private SimpleMeterRegistry registry;
+    private WorkOrderQueue queue;
+    private ExpiryProperties properties;
+    private OrderExpiry expiry;
+
+    @Before
+    public void setUpExpiry() {
+        registry = new SimpleMeterRegistry();
+        queue = new WorkOrderQueue(Clock.fixed(Instant.ofEpochMilli(NOW), ZoneOffset.UTC),
+                DivisorRankingPolicy.DEFAULT, 4);
+        properties = new ExpiryProperties();
+        properties.setNormalTtlMillis(TTL);
+        expiry = new OrderExpiry(queue, properties, new QueueMetrics(registry, queue));
+    }
+    @After
+    public void tearDownExpiry() {
+        expiry.close();
+    }
+
+    // --------------------------------------------------
+    // tick
+    // --------------------------------------------------
+    @Test
+    public void tick_OldAndYoungOrders_ShouldEvictOnlyOldOnes() {
+        queue.enqueue(new WorkOrder(NORMAL_ID, NOW - TTL));
+        queue.enqueue(new WorkOrder(NORMAL_ID + 1, NOW - TTL + 1));
+        queue.enqueue(new WorkOrder(PRIORITY_ID, NOW - 10 * TTL));
+
+        assertEquals(1, expiry.tick());
+        assertFalse(queue.contains(NORMAL_ID));
+        assertTrue(queue.contains(NORMAL_ID + 1));
+        // Priority has no TTL.
+        assertTrue(queue.contains(PRIORITY_ID));
+    }
+    @Test
+    public void tick_EvictedOrders_ShouldBeCountedByLevel() {
+        queue.enqueue(new WorkOrder(NORMAL_ID, NOW - TTL));
+        properties.setVipTtlMillis(TTL);
+        queue.enqueue(new WorkOrder(VIP_ID, NOW - TTL));
+        queue.enqueue(new WorkOrder(2 * VIP_ID, NOW - TTL));
+        expiry.tick();
+
+        assertEquals(1, registry.get("queue.expired").tag("level", "normal").counter().count(), 0);
+        assertEquals(2, registry.get("queue.expired").tag("level", "vip").counter().count(), 0);
+        assertEquals(0, registry.get("queue.expired").tag("level", "manager").counter().count(), 0);
+    }
+    @Test
+    public void tick_MoreThanOneBatchPerLane_ShouldEvictAll() {
+        int expired = 0;
+
+        for (long ID = 1; ID <= 5000; ID++) {
+            if (DivisorRankingPolicy.DEFAULT.levelOf(ID) == WorkOrder.ClassLevel.Normal) {
+                queue.enqueue(new WorkOrder(ID, NOW - TTL - ID));
+                expired++;
+            }
+        }
+        queue.enqueue(new WorkOrder(NORMAL_ID + 10000, NOW));
+
+        assertEquals(expired, expiry.tick());
+        assertEquals(1, queue.size());
+        assertEquals(0, expiry.tick());
+    }
+    @Test
+    public void tick_NoTtl_ShouldKeepOrders() {
+        properties.setNormalTtlMillis(0);
+        queue.enqueue(new WorkOrder(NORMAL_ID, NOW - 100 * TTL));
+
+        assertEquals(0, expiry.tick());
+        assertTrue(queue.contains(NORMAL_ID));
+    }
+
+    // --------------------------------------------------
+    // start
+    // --------------------------------------------------
+    @Test
+    public void start_ExpiredOrder_ShouldBeEvictedInBackground() throws Exception {
+        properties.setTickMillis(10);
+        queue.enqueue(new WorkOrder(NORMAL_ID, NOW - TTL));
+        expiry.start();
+
+        for (int i = 0; (i < 200) && queue.contains(NORMAL_ID); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(queue.contains(NORMAL_ID));
+    }
+}
@@ -0,0 +1,301 @@
+package com.nathan.requests;
+
+import io.restassured.path.json.JsonPath;
+import org.junit.*;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static com.nathan.requests.TestConstants.*;
+
+/**
+ * Tests OrderHttpServer class, over a socket on a free port.
+ *
+ * @author Nathan
+ */
+public class OrderHttpServerTest {
+    private static final long NOW = 1500000000000L;
+    private static final String DATE = "2017-07-14_02:00";
+
+    private WorkOrderQueue queue;
+    private OrderHttpServer server;
+    private Socket socket;
+    private InputStream in;
+
+    @Before
+    public void setUpServer() throws IOException {
+        HttpProperties properties = new HttpProperties();
+        properties.setEnabled(true);
+        properties.setPort(0);
+        properties.setBufferSize(512);
+        AdmissionProperties admission = new AdmissionProperties();
+        admission.setPriorityCapacity(1);
+
+        queue = new WorkOrderQueue(Clock.fixed(Instant.ofEpochMilli(NOW), ZoneOffset.UTC),
+                DivisorRankingPolicy.DEFAULT, 4);
+        server = new OrderHttpServer(queue, new ReadCache(queue, 1000),
+                new AdmissionControl(queue, admission, QueueMetrics.disabled(queue)),
+                properties, QueueMetrics.disabled(queue));
+        server.start();
+
+        socket = new Socket("localhost", server.getPort());
+        socket.setSoTimeout(5000);
+        in = new BufferedInputStream(socket.getInputStream());
+    }
+    @After
+    public void tearDownServer() throws IOException {
+        socket.close();
+        server.close();
+    }
+
+    private void send(String request) throws IOException {
+        socket.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+        socket.getOutputStream().flush();
+    }
+
+    private Response call(String method, String path) throws IOException {
+        send(method + " " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        return Response.read(in);
+    }
+
+    /**
+     * Status, headers and body of one answer.
+     */
+    private static class Response {
+        int status;
+        Map<String, String> headers = new HashMap<String, String>();
+        String body;
+
+        static Response read(InputStream in) throws IOException {
+            Response response = new Response();
+            String line = readLine(in);
+
+            if (line == null) {
+                return null;
+            }
+            response.status = Integer.parseInt(line.split(" ")[1]);
+            for (line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+                int colon = line.indexOf(':');
+                response.headers.put(line.substring(0, colon).toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+            }
+
+            byte[] body = new byte[Integer.parseInt(response.headers.get("content-length"))];
+            for (int read = 0; read < body.length; ) {
+                read += in.read(body, read, body.length - read);
+            }
+            response.body = new String(body, StandardCharsets.UTF_8);
+            return response;
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+
+            for (int c = in.read(); c != '\n'; c = in.read()) {
+                if (c < 0) {
+                    return null;
+                }
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+    }
+
+    // --------------------------------------------------
+    // enqueue
+    // --------------------------------------------------
+    @Test
+    public void enqueue_NewOrder_ShouldReturnCreatedOrder() throws IOException {
+        Response response = call("POST", "/queue/" + VIP_ID + "/" + DATE);
+
+        assertEquals(201, response.status);
+        assertEquals("application/json;charset=UTF-8", response.headers.get("content-type"));
+        assertEquals(VIP_ID, JsonPath.with(response.body).getLong("id"));
+        assertEquals(DATE, JsonPath.with(response.body).getString("date"));
+        assertTrue(queue.contains(VIP_ID));
+    }
+    @Test
+    public void enqueue_DuplicateID_ShouldReturnConflict() throws IOException {
+        call("POST", "/queue/" + NORMAL_ID + "/" + DATE);
+
+        assertEquals(409, call("POST", "/queue/" + NORMAL_ID + "/" + DATE).status);
+    }
+    @Test
+    public void enqueue_InvalidIdOrDate_ShouldReturnBadRequest() throws IOException {
+        assertEquals(400, call("POST", "/queue/0/" + DATE).status);
+        assertEquals(400, call("POST", "/queue/abc/" + DATE).status);
+        assertEquals(400, call("POST", "/queue/" + NORMAL_ID + "/yesterday").status);
+        assertEquals(0, queue.size());
+    }
+    @Test
+    public void enqueue_LevelFull_ShouldReturnTooManyRequests() throws IOException {
+        assertEquals(201, call("POST", "/queue/" + PRIORITY_ID + "/" + DATE).status);
+
+        Response response = call("POST", "/queue/" + (2 * PRIORITY_ID) + "/" + DATE);
+        assertEquals(429, response.status);
+        assertEquals("1", response.headers.get("retry-after"));
+        assertFalse(queue.contains(2 * PRIORITY_ID));
+    }
+    @Test
+    public void enqueue_EscapedDate_ShouldBeDecoded() throws IOException {
+        assertEquals(201, call("POST", "/queue/" + NORMAL_ID + "/2017-07-14_02%3A00").status);
+    }
+
+    // --------------------------------------------------
+    // reads
+    // --------------------------------------------------
+    @Test
+    public void list_QueuedOrders_ShouldReturnIDsByRank() throws IOException {
+        assertEquals("[]", call("GET", "/queue").body);
+
+        queue.enqueue(new WorkOrder(NORMAL_ID, NOW - 1000));
+        queue.enqueue(new WorkOrder(MANAGER_ID, NOW));
+
+        assertEquals("[" + MANAGER_ID + "," + NORMAL_ID + "]", call("GET", "/queue").body);
+    }
+    @Test
+    public void position_QueuedAndMissingOrders_ShouldReturnPosition() throws IOException {
+        queue.enqueue(new WorkOrder(NORMAL_ID, NOW - 1000));
+        queue.enqueue(new WorkOrder(MANAGER_ID, NOW));
+
+        assertEquals("1", call("GET", "/queue/" + NORMAL_ID).body);
+        assertEquals("-1", call("GET", "/queue/" + PRIORITY_ID).body);
+    }
+    @Test
+    public void waitTime_QueuedOrders_ShouldReturnMeanWait() throws IOException {
+        queue.enqueue(new WorkOrder(NORMAL_ID, NOW - 2000));
+        queue.enqueue(new WorkOrder(PRIORITY_ID, NOW - 4000));
+
+        assertEquals(3.0, Double.parseDouble(call("GET", "/queue/meantime").body), 0.001);
+    }
+
+    @Test
+    public void list_MatchingETag_ShouldReturnNotModified() throws IOException {
+        queue.enqueue(new WorkOrder(NORMAL_ID, NOW));
+        String eTag = call("GET", "/queue").headers.get("etag");
+
+        send("GET /queue HTTP/1.1\r\nIf-None-Match: " + eTag + "\r\n\r\n");
+        Response response = Response.read(in);
+
+        assertEquals(304, response.status);
+        assertEquals("", response.body);
+        assertEquals(eTag, response.headers.get("etag"));
+    }
+
+    // --------------------------------------------------
+    // dequeue and remove
+    // --------------------------------------------------
+    @Test
+    public void dequeue_QueuedAndEmpty_ShouldReturnTopThenNotFound() throws IOException {
+        queue.enqueue(new WorkOrder(NORMAL_ID, NOW));
+
+        Response response = call("DELETE", "/queue");
+        assertEquals(200, response.status);
+        assertEquals(NORMAL_ID, JsonPath.with(response.body).getLong("id"));
+
+        assertEquals(404, call("DELETE", "/queue").status);
+    }
+    @Test
+    public void dequeue_Count_ShouldReturnTopOrdersThenNotFound() throws IOException {
+        queue.enqueue(new WorkOrder(NORMAL_ID, NOW));
+        queue.enqueue(new WorkOrder(VIP_ID, NOW));
+        queue.enqueue(new WorkOrder(MANAGER_ID, NOW));
+
+        Response response = call("DELETE", "/queue?count=2");
+        assertEquals(200, response.status);
+        assertEquals(MANAGER_ID, JsonPath.with(response.body).getLong("[0].id"));
+        assertEquals(2, JsonPath.with(response.body).getList("").size());
+        assertEquals(1, queue.size());
+
+        assertEquals(200, call("DELETE", "/queue?count=5").status);
+        assertEquals(404, call("DELETE", "/queue?count=5").status);
+    }
+    @Test
+    public void dequeue_InvalidCount_ShouldReturnBadRequest() throws IOException {
+        queue.enqueue(new WorkOrder(NORMAL_ID, NOW));
+
+        assertEquals(400, call("DELETE", "/queue?count=0").status);
+        assertEquals(400, call("DELETE", "/queue?count=many").status);
+        assertEquals(400, call("DELETE", "/queue?count").status);
+        assertEquals(1, queue.size());
+    }
+    @Test
+    public void dequeue_Timeout_ShouldBeRefusedWithoutDequeuing() throws IOException {
+        queue.enqueue(new WorkOrder(NORMAL_ID, NOW));
+
+        assertEquals(501, call("DELETE", "/queue?timeout=1000").status);
+        assertEquals(400, call("DELETE", "/queue?count=2&timeout=1000").status);
+        assertEquals(1, queue.size());
+    }
+    @Test
+    public void remove_QueuedAndMissingOrders_ShouldReturnID() throws IOException {
+        queue.enqueue(new WorkOrder(NORMAL_ID, NOW));
+
+        Response removed = call("DELETE", "/queue/" + NORMAL_ID);
+        assertEquals(200, removed.status);
+        assertEquals(Long.toString(NORMAL_ID), removed.body);
+
+        assertEquals(404, call("DELETE", "/queue/" + NORMAL_ID).status);
+        assertEquals(400, call("DELETE", "/queue/" + NEGATIVE_ID).status);
+    }
+
+    // --------------------------------------------------
+    // protocol
+    // --------------------------------------------------
+    @Test
+    public void route_NotServed_ShouldReturnNotFound() throws IOException {
+        assertEquals(404, call("GET", "/queue/stream").status);
+        assertEquals(404, call("GET", "/queue/1/events").status);
+        assertEquals(404, call("POST", "/queue/batch").status);
+        assertEquals(404, call("GET", "/other").status);
+    }
+    @Test
+    public void pipelined_ManyRequestsInOneWrite_ShouldAnswerInOrder() throws IOException {
+        send("POST /queue/" + NORMAL_ID + "/" + DATE + " HTTP/1.1\r\n\r\n"
+                + "POST /queue/" + MANAGER_ID + "/" + DATE + " HTTP/1.1\r\nContent-Length: 2\r\n\r\n{}"
+                + "GET /queue HTTP/1.1\r\n\r\n");
+
+        assertEquals(201, Response.read(in).status);
+        assertEquals(201, Response.read(in).status);
+        assertEquals("[" + MANAGER_ID + "," + NORMAL_ID + "]", Response.read(in).body);
+    }
+    @Test
+    public void list_LargerThanBuffers_ShouldBeSentWhole() throws IOException {
+        for (long ID = 1; ID <= 5000; ID++) {
+            queue.enqueue(new WorkOrder(ID, NOW - ID));
+        }
+
+        Response response = call("GET", "/queue");
+
+        assertEquals(200, response.status);
+        assertEquals(5000, JsonPath.with(response.body).getList("$").size());
+    }
+    @Test
+    public void close_RequestedByClient_ShouldCloseAfterAnswer() throws IOException {
+        send("GET /queue HTTP/1.1\r\nConnection: close\r\n\r\n");
+
+        Response response = Response.read(in);
+        assertEquals("close", response.headers.get("connection"));
+        assertEquals(-1, in.read());
+    }
+    @Test
+    public void head_LongerThanBuffer_ShouldAnswerAndClose() throws IOException {
+        StringBuilder header = new StringBuilder();
+        for (int i = 0; i < 600; i++) {
+            header.append('x');
+        }
+        send("GET /queue HTTP/1.1\r\nX-Long: " + header + "\r\n\r\n");
+
+        assertEquals(431, Response.read(in).status);
+        assertEquals(-1, in.read());
+    }
+}
@@ -0,0 +1,144 @@
+package com.nathan.requests;
+
+import org.junit.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static com.nathan.requests.TestConstants.*;
+
+/**
+ * Tests OrderIndex class
+ *
+ * @author Nathan
+ */
+public class OrderIndexTest {
+    private OrderIndex index;
+
+    @Before
+    public void createIndex() {
+        index = new OrderIndex(4);
+    }
+
+    // --------------------------------------------------
+    // put / get
+    // --------------------------------------------------
+    @Test
+    public void put_AddOrder_ShouldBeFoundByID() {
+        WorkOrder order = new WorkOrder(NORMAL_ID, CURRENT_TIME);
+        put(order);
+
+        assertSame(order, index.get(NORMAL_ID));
+        assertTrue(index.contains(NORMAL_ID));
+        assertEquals(1, index.size());
+    }
+    @Test
+    public void get_NonPresentID_ShouldReturnNull() {
+        put(new WorkOrder(NORMAL_ID, CURRENT_TIME));
+
+        assertNull(index.get(VIP_ID));
+        assertNull(index.get(0));
+        assertNull(index.get(NEGATIVE_ID));
+    }
+
+    // --------------------------------------------------
+    // remove
+    // --------------------------------------------------
+    @Test
+    public void remove_PresentID_ShouldReturnOrderAndForgetIt() {
+        WorkOrder order = new WorkOrder(NORMAL_ID, CURRENT_TIME);
+        put(order);
+
+        assertSame(order, remove(NORMAL_ID));
+        assertFalse(index.contains(NORMAL_ID));
+        assertEquals(0, index.size());
+    }
+    @Test
+    public void remove_NonPresentID_ShouldReturnNull() {
+        assertNull(remove(NORMAL_ID));
+    }
+
+    // --------------------------------------------------
+    // mixed operations
+    // --------------------------------------------------
+    @Test
+    public void randomOperations_ManyIDs_ShouldMatchHashMap() {
+        Map<Long, WorkOrder> expected = new HashMap<Long, WorkOrder>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 200000; i++) {
+            // small key range forces long probe chains and many removals.
+            long ID = 1 + random.nextInt(5000);
+
+            if (random.nextBoolean()) {
+                WorkOrder order = new WorkOrder(ID, CURRENT_TIME);
+                put(order);
+                expected.put(ID, order);
+            }
+            else {
+                assertSame(expected.remove(ID), remove(ID));
+            }
+        }
+
+        assertEquals(expected.size(), index.size());
+        for (long ID = 1; ID <= 5000; ID++) {
+            assertSame(expected.get(ID), index.get(ID));
+        }
+    }
+
+    @Test
+    public void randomOperations_OffHeap_ShouldMatchHashMap() {
+        index = new OrderIndex(4, OrderStorage.OFF_HEAP, DivisorRankingPolicy.DEFAULT);
+        Map<Long, WorkOrder> expected = new HashMap<Long, WorkOrder>();
+        Random random = new Random(43);
+        long epoch = System.currentTimeMillis();
+
+        for (int i = 0; i < 200000; i++) {
+            long ID = 1 + random.nextInt(5000);
+
+            if (random.nextBoolean()) {
+                WorkOrder order = new WorkOrder(ID, epoch - random.nextInt(1000));
+                put(order);
+                expected.put(ID, order);
+            }
+            else {
+                assertEquals(expected.remove(ID), remove(ID));
+            }
+        }
+
+        assertEquals(expected.size(), index.size());
+        for (long ID = 1; ID <= 5000; ID++) {
+            WorkOrder order = expected.get(ID);
+
+            assertEquals(order, index.get(ID));
+            assertEquals(order != null, index.contains(ID));
+            if (order != null) {
+                assertEquals(order.getEpochMillis(), index.get(ID).getEpochMillis());
+                assertTrue(index.holds(order));
+                assertFalse(index.holds(new WorkOrder(ID, order.getEpochMillis() + 1)));
+            }
+        }
+    }
+
+    private void put(WorkOrder order) {
+        OrderIndex.Segment segment = index.segment(order.getId());
+        long stamp = segment.lock();
+        try {
+            segment.put(order.getId(), order);
+        } finally {
+            segment.unlock(stamp);
+        }
+    }
+
+    private WorkOrder remove(long ID) {
+        OrderIndex.Segment segment = index.segment(ID);
+        long stamp = segment.lock();
+        try {
+            return segment.remove(ID);
+        } finally {
+            segment.unlock(stamp);
+        }
+    }
+}
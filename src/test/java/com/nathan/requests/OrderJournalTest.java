@@ -0,0 +1,218 @@
+package com.nathan.requests;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+import static com.nathan.requests.TestConstants.*;
+
+/**
+ * Tests OrderJournal class, through the queues it restores.
+ *
+ * @author Nathan
+ */
+public class OrderJournalTest {
+    private static final Clock CLOCK = Clock.fixed(Instant.parse("2017-06-01T12:00:00Z"), ZoneOffset.UTC);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private JournalProperties properties;
+
+    @Before
+    public void createProperties() {
+        properties = new JournalProperties();
+        properties.setEnabled(true);
+        properties.setDirectory(folder.getRoot().getPath());
+        properties.setSnapshotIntervalMillis(0);
+    }
+
+    // --------------------------------------------------
+    // replay
+    // --------------------------------------------------
+    @Test
+    public void replay_EmptyDirectory_ShouldGiveEmptyQueue() throws IOException {
+        WorkOrderQueue queue = open();
+
+        assertEquals(0, queue.size());
+        queue.close();
+    }
+    @Test
+    public void replay_AfterCrash_ShouldRestoreQueuedOrders() throws IOException {
+        WorkOrderQueue queue = open();
+        queue.enqueue(new WorkOrder(NORMAL_ID, "2017-06-01_10:00"));
+        queue.enqueue(new WorkOrder(PRIORITY_ID, "2017-06-01_11:00"));
+        queue.enqueue(new WorkOrder(VIP_ID, "2017-06-01_11:30"));
+        queue.enqueue(new WorkOrder(MANAGER_ID, "2017-06-01_11:45"));
+        queue.dequeue();
+        queue.removeOrder(PRIORITY_ID);
+        List<Long> expected = queue.getListOfIDs();
+
+        // no close, as if the process had died.
+        WorkOrderQueue restored = open();
+
+        assertEquals(expected, restored.getListOfIDs());
+        assertEquals(queue.getAverageWaitTime(), restored.getAverageWaitTime(), 0);
+        assertFalse(restored.contains(MANAGER_ID));
+        restored.close();
+    }
+    @Test
+    public void replay_AfterClose_ShouldRestoreFromSnapshotOnly() throws IOException {
+        WorkOrderQueue queue = open();
+        WorkOrderQueueTest.addMixedOrders(queue, 500);
+        queue.dequeue(50);
+        List<Long> expected = queue.getListOfIDs();
+        queue.close();
+
+        assertEquals(1, folder.getRoot().list((dir, name) -> name.startsWith("snapshot-")).length);
+        assertEquals(1, folder.getRoot().list((dir, name) -> name.startsWith("journal-")).length);
+
+        WorkOrderQueue restored = open();
+        assertEquals(expected, restored.getListOfIDs());
+        restored.close();
+    }
+    @Test
+    public void replay_SnapshotThenMoreChanges_ShouldApplyTailToSnapshot() throws IOException {
+        WorkOrderQueue queue = open();
+        WorkOrderQueueTest.addMixedOrders(queue, 200);
+        queue.snapshot();
+        queue.removeOrder(7);
+        queue.dequeue(10);
+        queue.enqueue(new WorkOrder(1000, "2017-06-01_09:00"));
+        List<Long> expected = queue.getListOfIDs();
+
+        WorkOrderQueue restored = open();
+
+        assertEquals(expected, restored.getListOfIDs());
+        restored.close();
+    }
+    @Test
+    public void replay_SmallLogFiles_ShouldReadAcrossRollovers() throws IOException {
+        // room for three records per file.
+        properties.setFileSize(64);
+        WorkOrderQueue queue = open();
+        WorkOrderQueueTest.addMixedOrders(queue, 40);
+        queue.dequeue(5);
+        List<Long> expected = queue.getListOfIDs();
+
+        assertTrue(folder.getRoot().list().length > 10);
+        assertEquals(expected, open().getListOfIDs());
+    }
+    @Test
+    public void close_AfterRollovers_ShouldDeleteLogMappedAhead() throws IOException {
+        properties.setFileSize(64);
+        WorkOrderQueue queue = open();
+        WorkOrderQueueTest.addMixedOrders(queue, 10);
+        List<Long> expected = queue.getListOfIDs();
+        queue.close();
+
+        assertEquals(0, folder.getRoot().list((dir, name) -> name.startsWith("spare-")).length);
+        assertEquals(1, folder.getRoot().list((dir, name) -> name.startsWith("journal-")).length);
+        assertEquals(expected, open().getListOfIDs());
+    }
+    @Test(timeout = 10000)
+    public void append_NextLogNotMapped_ShouldHoldRecordsUntilCommit() throws Exception {
+        properties.setFileSize(64);
+        properties.setSnapshotIntervalMillis(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        OrderJournal journal = new OrderJournal(properties);
+        journal.replay(new WorkOrderQueue(CLOCK, DivisorRankingPolicy.DEFAULT, 1));
+
+        // the journal thread maps the first spare, then is stuck in the snapshot task.
+        journal.start(() -> {
+            blocked.countDown();
+            awaitQuietly(release);
+        });
+        blocked.await();
+        WorkOrderQueue expected = new WorkOrderQueue(CLOCK, DivisorRankingPolicy.DEFAULT, 1);
+        for (long ID = 1; ID <= 10; ID++) {
+            journal.append(OrderJournal.ENQUEUE, ID, CLOCK.millis() - ID * 1000);
+            expected.enqueue(new WorkOrder(ID, CLOCK.millis() - ID * 1000, DivisorRankingPolicy.DEFAULT));
+        }
+
+        assertEquals(2, folder.getRoot().list((dir, name) -> name.startsWith("journal-")).length);
+        release.countDown();
+        journal.commit();
+        journal.close();
+
+        properties.setSnapshotIntervalMillis(0);
+        assertEquals(expected.getListOfIDs(), open().getListOfIDs());
+    }
+    @Test
+    public void replay_EveryFsyncPolicy_ShouldRestoreSameQueue() throws IOException {
+        for (JournalProperties.FsyncPolicy policy : JournalProperties.FsyncPolicy.values()) {
+            File directory = folder.newFolder(policy.name());
+            properties.setDirectory(directory.getPath());
+            properties.setFsync(policy);
+            properties.setBatchSize(3);
+            properties.setIntervalMillis(1);
+
+            WorkOrderQueue queue = open();
+            queue.enqueueAll(Arrays.asList(new WorkOrder(NORMAL_ID, CURRENT_TIME),
+                    new WorkOrder(VIP_ID, CURRENT_TIME), new WorkOrder(MANAGER_ID, CURRENT_TIME)));
+            queue.removeOrder(VIP_ID);
+            queue.close();
+
+            WorkOrderQueue restored = open();
+            assertEquals(Arrays.asList(MANAGER_ID, NORMAL_ID), restored.getListOfIDs());
+            restored.close();
+        }
+    }
+
+    // --------------------------------------------------
+    // corruption
+    // --------------------------------------------------
+    @Test
+    public void replay_TornRecordAtEndOfLog_ShouldStopBeforeIt() throws IOException {
+        WorkOrderQueue queue = open();
+        queue.enqueue(new WorkOrder(NORMAL_ID, CURRENT_TIME));
+        queue.enqueue(new WorkOrder(VIP_ID, CURRENT_TIME));
+
+        // the second record lost its type word.
+        File log = folder.getRoot().listFiles((dir, name) -> name.startsWith("journal-"))[0];
+        try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+            file.seek(16 + 16 + 8);
+            file.writeLong(0);
+        }
+
+        WorkOrderQueue restored = open();
+        assertEquals(Arrays.asList(NORMAL_ID), restored.getListOfIDs());
+        restored.close();
+    }
+    @Test(expected = IOException.class)
+    public void replay_CorruptSnapshot_ShouldThrow() throws IOException {
+        WorkOrderQueue queue = open();
+        WorkOrderQueueTest.addMixedOrders(queue, 10);
+        queue.close();
+
+        File snapshot = folder.getRoot().listFiles((dir, name) -> name.startsWith("snapshot-"))[0];
+        try (RandomAccessFile file = new RandomAccessFile(snapshot, "rw")) {
+            file.seek(24);
+            file.writeLong(123456789);
+        }
+        open();
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private WorkOrderQueue open() throws IOException {
+        return new WorkOrderQueue(CLOCK, DivisorRankingPolicy.DEFAULT, 1, new OrderJournal(properties));
+    }
+}
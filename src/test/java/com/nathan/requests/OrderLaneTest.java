@@ -0,0 +1,176 @@
+package com.nathan.requests;
+
+import org.junit.*;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static com.nathan.requests.TestConstants.*;
+
+/**
+ * Tests OrderLane class
+ *
+ * @author Nathan
+ */
+public class OrderLaneTest {
+    private OrderLane lane;
+
+    @Before
+    public void createLane() {
+        lane = new OrderLane();
+    }
+
+    // --------------------------------------------------
+    // add / peek
+    // --------------------------------------------------
+    @Test
+    public void peek_EmptyLane_ShouldReturnNull() {
+        assertNull(lane.peek());
+        assertEquals(0, lane.size());
+    }
+    @Test
+    public void peek_OrdersAddedOutOfDateOrder_ShouldReturnOldest() {
+        lane.add(new WorkOrder(1, "2017-06-01_12:30"));
+        lane.add(new WorkOrder(2, "2017-06-01_12:10"));
+        lane.add(new WorkOrder(4, "2017-06-01_12:20"));
+
+        assertEquals(2, lane.peek().getId());
+        assertEquals(3, lane.size());
+    }
+    @Test
+    public void toArray_SameDate_ShouldBeOrderedByID() {
+        lane.add(new WorkOrder(7, "2017-06-01_12:30"));
+        lane.add(new WorkOrder(2, "2017-06-01_12:30"));
+
+        WorkOrder[] orders = lane.toArray();
+        assertEquals(2, orders[0].getId());
+        assertEquals(7, orders[1].getId());
+    }
+
+    // --------------------------------------------------
+    // remove
+    // --------------------------------------------------
+    @Test
+    public void remove_PresentOrder_ShouldReturnTrueAndShrink() {
+        WorkOrder order = new WorkOrder(NORMAL_ID, CURRENT_TIME);
+        lane.add(order);
+
+        assertTrue(lane.remove(order));
+        assertEquals(0, lane.size());
+        assertNull(lane.peek());
+    }
+    @Test
+    public void remove_NonPresentOrder_ShouldReturnFalse() {
+        lane.add(new WorkOrder(NORMAL_ID, CURRENT_TIME));
+        assertFalse(lane.remove(new WorkOrder(PRIORITY_ID, CURRENT_TIME)));
+        assertEquals(1, lane.size());
+    }
+
+    // --------------------------------------------------
+    // countAhead
+    // --------------------------------------------------
+    @Test
+    public void countAhead_RandomAddsAndRemoves_ShouldMatchLinearCount() {
+        Random random = new Random(7);
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd_HH:mm");
+        long now = System.currentTimeMillis();
+        List<WorkOrder> expected = new ArrayList<WorkOrder>();
+
+        for (int id = 1; id <= 3000; id++) {
+            // lane of normal orders only, as the queue would hold.
+            if ((id % 3 == 0) || (id % 5 == 0)) {
+                continue;
+            }
+            WorkOrder order = new WorkOrder(id, format.format(new Date(now - random.nextInt(600) * 60000L)));
+            lane.add(order);
+            expected.add(order);
+
+            if (random.nextInt(4) == 0) {
+                WorkOrder removed = expected.remove(random.nextInt(expected.size()));
+                assertTrue(lane.remove(removed));
+            }
+        }
+
+        assertEquals(expected.size(), lane.size());
+        WorkOrder[] targets = {
+                new WorkOrder(MANAGER_ID, "2017-06-01_12:30"),
+                new WorkOrder(PRIORITY_ID, format.format(new Date(now - 90 * 60000L))),
+                new WorkOrder(VIP_ID, format.format(new Date(now - 300 * 60000L))),
+                expected.get(expected.size() / 2)
+        };
+
+        for (WorkOrder target : targets) {
+            int linear = 0;
+            for (WorkOrder order : expected) {
+                if (order.compareTo(target, now) < 0) {
+                    linear++;
+                }
+            }
+            assertEquals(linear, lane.countAhead(target, now, OrderRanking.DEFAULT));
+        }
+    }
+
+    // --------------------------------------------------
+    // off-heap
+    // --------------------------------------------------
+    @Test
+    public void offHeap_RandomAddsAndRemovesOverManySlabs_ShouldMatchHeapLane() {
+        OrderLane offHeap = new OrderLane(WorkOrder.ClassLevel.Normal, OrderStorage.OFF_HEAP,
+                DivisorRankingPolicy.DEFAULT);
+        Random random = new Random(11);
+        long now = System.currentTimeMillis();
+        List<WorkOrder> queued = new ArrayList<WorkOrder>();
+
+        for (int id = 1; id <= 30000; id++) {
+            if ((id % 3 == 0) || (id % 5 == 0)) {
+                continue;
+            }
+            WorkOrder order = new WorkOrder(id, now - random.nextInt(36000) * 1000L);
+            lane.add(order);
+            offHeap.add(order);
+            queued.add(order);
+
+            if (random.nextInt(4) == 0) {
+                WorkOrder removed = queued.remove(random.nextInt(queued.size()));
+                assertTrue(lane.remove(removed));
+                assertTrue(offHeap.remove(removed));
+            }
+        }
+
+        assertEquals(lane.size(), offHeap.size());
+        assertEquals(lane.peek(), offHeap.peek());
+        assertEquals(lane.totalWaitTime(now), offHeap.totalWaitTime(now), 0.001);
+        assertArrayEquals(lane.toArray(), offHeap.toArray());
+        for (int i = 0; i < queued.size(); i += 97) {
+            WorkOrder target = queued.get(i);
+            assertEquals(lane.countAhead(target, now, OrderRanking.DEFAULT),
+                    offHeap.countAhead(target, now, OrderRanking.DEFAULT));
+        }
+    }
+
+    // --------------------------------------------------
+    // totalWaitTime
+    // --------------------------------------------------
+    @Test
+    public void totalWaitTime_AfterAddsAndRemoves_ShouldMatchSumOfWaitTimes() {
+        WorkOrder first = new WorkOrder(1, "2017-06-01_12:30");
+        WorkOrder second = new WorkOrder(2, "1994-01-07_12:02");
+        WorkOrder third = new WorkOrder(4, CURRENT_TIME);
+        lane.add(first);
+        lane.add(second);
+        lane.add(third);
+        lane.remove(first);
+
+        long now = System.currentTimeMillis();
+        double expected = second.getWaitTime(now) + third.getWaitTime(now);
+        assertEquals(expected, lane.totalWaitTime(now), 0.001);
+    }
+    @Test
+    public void totalWaitTime_EmptyLane_ShouldBeZero() {
+        assertEquals(0, lane.totalWaitTime(System.currentTimeMillis()), 0);
+    }
+}
@@ -0,0 +1,80 @@
+package com.nathan.requests;
+
+import org.junit.*;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static com.nathan.requests.TestConstants.*;
+
+/**
+ * Tests OrderRanking class against WorkOrder.compareTo
+ *
+ * @author Nathan
+ */
+public class OrderRankingTest {
+    private static final long NOW = 1496318400000L;
+
+    // --------------------------------------------------
+    // compare
+    // --------------------------------------------------
+    @Test
+    public void compare_DefaultPolicy_ShouldMatchCompareTo() {
+        assertMatchesCompareTo(OrderRanking.DEFAULT, new Random(11));
+    }
+    @Test
+    public void compare_CustomPolicy_ShouldMatchCompareTo() {
+        RankingProperties properties = new RankingProperties();
+        properties.setFirst(null);
+        properties.setNormal(new RankingProperties.Level(RankFunction.N_LOG_N, 0.5, 1));
+        properties.setPriority(new RankingProperties.Level(RankFunction.LINEAR, 10, 0));
+        properties.setVip(new RankingProperties.Level(RankFunction.LINEAR, 3, Double.NEGATIVE_INFINITY));
+        properties.setManager(new RankingProperties.Level(RankFunction.N_LOG_N, 4, 100));
+
+        assertMatchesCompareTo(new OrderRanking(new DivisorRankingPolicy(properties)), new Random(12));
+    }
+    @Test
+    public void compare_NearCrossover_ShouldMatchCompareTo() {
+        // a Priority order of 1000 s ranks about 6908, as a Normal order of 6908 s.
+        WorkOrder priority = new WorkOrder(PRIORITY_ID, NOW - 1000000);
+
+        for (long millis = 6900000; millis <= 6915000; millis++) {
+            WorkOrder normal = new WorkOrder(NORMAL_ID, NOW - millis);
+
+            assertEquals(Integer.signum(normal.compareTo(priority, NOW)),
+                    Integer.signum(OrderRanking.DEFAULT.compare(normal, priority, NOW)));
+            assertEquals(Integer.signum(priority.compareTo(normal, NOW)),
+                    Integer.signum(OrderRanking.DEFAULT.compare(priority, normal, NOW)));
+        }
+    }
+    @Test
+    public void compare_SameLevel_ShouldUseDateThenID() {
+        WorkOrder older = new WorkOrder(VIP_ID, NOW - 1000);
+        WorkOrder newer = new WorkOrder(20, NOW);
+        WorkOrder twin = new WorkOrder(25, NOW);
+
+        assertTrue(OrderRanking.DEFAULT.compare(older, newer, NOW) < 0);
+        assertTrue(OrderRanking.DEFAULT.compare(twin, newer, NOW) > 0);
+        assertEquals(0, OrderRanking.DEFAULT.compare(twin, twin, NOW));
+    }
+
+    private static void assertMatchesCompareTo(OrderRanking ranking, Random random) {
+        for (int i = 0; i < 200000; i++) {
+            WorkOrder x = randomOrder(random, ranking.getPolicy());
+            WorkOrder y = randomOrder(random, ranking.getPolicy());
+
+            assertEquals(x.getId() + " " + y.getId(), Integer.signum(x.compareTo(y, NOW)),
+                    Integer.signum(ranking.compare(x, y, NOW)));
+        }
+    }
+
+    /**
+     * Orders from a day in the future to about a year ago,
+     * most waits near a few minutes.
+     */
+    private static WorkOrder randomOrder(Random random, RankingPolicy policy) {
+        long ID = 1 + random.nextInt(1000);
+        long age = (long) Math.pow(10, random.nextDouble() * 10.5) - 1;
+
+        return new WorkOrder(ID, (random.nextInt(20) == 0) ? NOW + age % 86400000 : NOW - age, policy);
+    }}
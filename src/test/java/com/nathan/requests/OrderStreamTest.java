@@ -0,0 +1,95 @@
+package com.nathan.requests;
+
+import org.junit.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static com.nathan.requests.TestConstants.*;
+
+/**
+ * Tests OrderStream and OrderCursor classes
+ *
+ * @author Nathan
+ */
+public class OrderStreamTest {
+    private WorkOrderQueue orderQueue;
+
+    /**
+     * The clock is fixed so every cursor compares ranks at the same instant.
+     */
+    @Before
+    public void createWorkOrderQueue() {
+        orderQueue = new WorkOrderQueue(Clock.fixed(Instant.now(), ZoneOffset.UTC));
+    }
+
+    // --------------------------------------------------
+    // cursor
+    // --------------------------------------------------
+    @Test
+    public void cursor_MixedLevelsAndDates_ShouldMatchListOfIDs() {
+        WorkOrderQueueTest.addMixedOrders(orderQueue, 300);
+        List<Long> expected = orderQueue.getListOfIDs();
+        OrderCursor cursor = orderQueue.cursor();
+
+        assertEquals(300, cursor.remaining());
+        assertEquals(100, cursor.skip(100));
+        assertEquals((long) expected.get(100), cursor.next().getId());
+        assertEquals(199, cursor.skip(1000));
+        assertNull(cursor.next());
+    }
+
+    // --------------------------------------------------
+    // formats
+    // --------------------------------------------------
+    @Test
+    public void writeTo_Json_ShouldWriteSameArrayAsList() throws IOException {
+        WorkOrderQueueTest.addMixedOrders(orderQueue, 3000);
+        String expected = orderQueue.getListOfIDs().toString().replace(" ", "");
+
+        assertEquals(expected, write(Long.MAX_VALUE, OrderStream.Format.JSON));
+    }
+    @Test
+    public void writeTo_JsonEmptyQueue_ShouldWriteEmptyArray() throws IOException {
+        assertEquals("[]", write(Long.MAX_VALUE, OrderStream.Format.JSON));
+    }
+    @Test
+    public void writeTo_NdjsonWithLimit_ShouldWriteOneIDPerLine() throws IOException {
+        orderQueue.enqueue(new WorkOrder(NORMAL_ID, CURRENT_TIME));
+        orderQueue.enqueue(new WorkOrder(MANAGER_ID, CURRENT_TIME));
+        orderQueue.enqueue(new WorkOrder(Long.MAX_VALUE, CURRENT_TIME));
+
+        assertEquals(MANAGER_ID + "\n" + NORMAL_ID + "\n", write(2, OrderStream.Format.NDJSON));
+    }
+    @Test
+    public void writeTo_Binary_ShouldWriteBigEndianLongs() throws IOException {
+        orderQueue.enqueue(new WorkOrder(NORMAL_ID, CURRENT_TIME));
+        orderQueue.enqueue(new WorkOrder(Long.MAX_VALUE, CURRENT_TIME));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        new OrderStream(orderQueue.cursor(), Long.MAX_VALUE, OrderStream.Format.BINARY).writeTo(out);
+        ByteBuffer IDs = ByteBuffer.wrap(out.toByteArray());
+
+        assertEquals(16, IDs.remaining());
+        assertEquals(NORMAL_ID, IDs.getLong());
+        assertEquals(Long.MAX_VALUE, IDs.getLong());
+    }
+    @Test
+    public void writeTo_ZeroLimit_ShouldWriteNoIDs() throws IOException {
+        orderQueue.enqueue(new WorkOrder(NORMAL_ID, CURRENT_TIME));
+        assertEquals("[]", write(0, OrderStream.Format.JSON));
+    }
+
+    private String write(long limit, OrderStream.Format format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new OrderStream(orderQueue.cursor(), limit, format).writeTo(out);
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,68 @@
+package com.nathan.requests;
+
+import org.junit.*;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests OrderTournament class against a linear scan of the heads
+ *
+ * @author Nathan
+ */
+public class OrderTournamentTest {
+    private static final long NOW = 1496318400000L;
+
+    // --------------------------------------------------
+    // best
+    // --------------------------------------------------
+    @Test
+    public void best_NoLanes_ShouldBeMinusOne() {
+        OrderTournament tournament = new OrderTournament(new WorkOrder[0], OrderRanking.DEFAULT);
+        tournament.reset(NOW);
+
+        assertEquals(-1, tournament.best());
+    }
+    @Test
+    public void best_OneLane_ShouldFollowItsHead() {
+        WorkOrder[] heads = new WorkOrder[1];
+        OrderTournament tournament = new OrderTournament(heads, OrderRanking.DEFAULT);
+        tournament.reset(NOW);
+        assertEquals(-1, tournament.best());
+
+        heads[0] = new WorkOrder(1, NOW);
+        tournament.update(0);
+        assertEquals(0, tournament.best());
+    }
+    @Test
+    public void best_RandomUpdates_ShouldMatchLinearScan() {
+        Random random = new Random(17);
+
+        for (int lanes : new int[] {3, 4, 7, 32, 33}) {
+            WorkOrder[] heads = new WorkOrder[lanes];
+            OrderTournament tournament = new OrderTournament(heads, OrderRanking.DEFAULT);
+            tournament.reset(NOW);
+
+            for (int i = 0; i < 2000; i++) {
+                int lane = random.nextInt(lanes);
+                heads[lane] = (random.nextInt(4) == 0) ? null
+                        : new WorkOrder(1 + random.nextInt(100000), NOW - random.nextInt(1000000000));
+                tournament.update(lane);
+
+                assertEquals(linearBest(heads), tournament.best());
+            }
+        }
+    }
+
+    private static int linearBest(WorkOrder[] heads) {
+        int best = -1;
+
+        for (int i = 0; i < heads.length; i++) {
+            if ((heads[i] != null) && ((best < 0) || (heads[i].compareTo(heads[best], NOW) < 0))) {
+                best = i;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,121 @@
+package com.nathan.requests;
+
+import org.junit.*;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.mock.http.MockHttpOutputMessage;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+import static com.nathan.requests.TestConstants.*;
+
+/**
+ * Used to test OrderWireConverter class, on its own and
+ * negotiated by the controller after the JSON converter.
+ */
+public class OrderWireConverterTest {
+    private static final String DATE = "2017-06-01_12:30";
+
+    private MockMvc mockMvc;
+    private QueueController controller;
+
+    @Before
+    public void setUpController() {
+        controller = new QueueController();
+        mockMvc = MockMvcBuilders.standaloneSetup(controller)
+                .setMessageConverters(new MappingJackson2HttpMessageConverter(), new OrderWireConverter())
+                .build();
+    }
+    @After
+    public void tearDownController() {
+        controller.clearQueue();
+    }
+
+    // ---------------------------------------------
+    // responses
+    // ---------------------------------------------
+    @Test
+    public void enqueue_AcceptBinary_ShouldReturnIDAndEpochMillis() throws Exception {
+        byte[] body = mockMvc.perform(post("/queue/{id}/{date}", NORMAL_ID, DATE).accept(OrderWireConverter.MEDIA_TYPE))
+                .andExpect(status().isCreated())
+                .andExpect(content().contentType(OrderWireConverter.MEDIA_TYPE))
+                .andReturn().getResponse().getContentAsByteArray();
+        ByteBuffer record = ByteBuffer.wrap(body);
+
+        assertEquals(OrderWireConverter.RECORD_LENGTH, body.length);
+        assertEquals(NORMAL_ID, record.getLong());
+        assertEquals(OrderDates.parse(DATE), record.getLong());
+    }
+    @Test
+    public void dequeueCount_AcceptBinary_ShouldReturnRecordsInRankedOrder() throws Exception {
+        mockMvc.perform(post("/queue/{id}/{date}", NORMAL_ID, DATE));
+        mockMvc.perform(post("/queue/{id}/{date}", MANAGER_ID, DATE));
+        mockMvc.perform(post("/queue/{id}/{date}", VIP_ID, DATE));
+
+        byte[] body = mockMvc.perform(delete("/queue").param("count", "2").accept(OrderWireConverter.MEDIA_TYPE))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsByteArray();
+        ByteBuffer records = ByteBuffer.wrap(body);
+
+        assertEquals(2 * OrderWireConverter.RECORD_LENGTH, body.length);
+        assertEquals(MANAGER_ID, records.getLong());
+        assertEquals(OrderDates.parse(DATE), records.getLong());
+        assertEquals(VIP_ID, records.getLong());
+    }
+    @Test
+    public void list_AcceptBinary_ShouldReturnIDsInRankedOrder() throws Exception {
+        mockMvc.perform(post("/queue/{id}/{date}", NORMAL_ID, DATE));
+        mockMvc.perform(post("/queue/{id}/{date}", MANAGER_ID, DATE));
+
+        byte[] body = mockMvc.perform(get("/queue").accept(OrderWireConverter.MEDIA_TYPE))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Length", "16"))
+                .andReturn().getResponse().getContentAsByteArray();
+        ByteBuffer IDs = ByteBuffer.wrap(body);
+
+        assertEquals(MANAGER_ID, IDs.getLong());
+        assertEquals(NORMAL_ID, IDs.getLong());
+    }
+    @Test
+    public void list_AcceptAnything_ShouldReturnJson() throws Exception {
+        mockMvc.perform(post("/queue/{id}/{date}", NORMAL_ID, DATE));
+
+        mockMvc.perform(get("/queue").accept(MediaType.ALL))
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                .andExpect(content().string("[" + NORMAL_ID + "]"));
+    }
+    @Test
+    public void position_AcceptOnlyBinary_ShouldReturnNotAcceptableCode() throws Exception {
+        mockMvc.perform(get("/queue/{id}", NORMAL_ID).accept(OrderWireConverter.MEDIA_TYPE))
+                .andExpect(status().isNotAcceptable());
+    }
+
+    // ---------------------------------------------
+    // write
+    // ---------------------------------------------
+    @Test
+    public void write_ListLargerThanBuffer_ShouldWriteEveryRecord() throws Exception {
+        List<WorkOrderResponse> responses = new ArrayList<WorkOrderResponse>();
+        for (long ID = 1; ID <= 1000; ID++) {
+            responses.add(new WorkOrderResponse(new WorkOrder(ID, ID * 60000, DivisorRankingPolicy.DEFAULT)));
+        }
+
+        MockHttpOutputMessage message = new MockHttpOutputMessage();
+        new OrderWireConverter().write(responses, OrderWireConverter.MEDIA_TYPE, message);
+        ByteBuffer records = ByteBuffer.wrap(message.getBodyAsBytes());
+
+        assertEquals(1000 * OrderWireConverter.RECORD_LENGTH, records.remaining());
+        assertEquals(1000 * OrderWireConverter.RECORD_LENGTH, message.getHeaders().getContentLength());
+        for (long ID = 1; ID <= 1000; ID++) {
+            assertEquals(ID, records.getLong());
+            assertEquals(ID * 60000, records.getLong());
+        }
+    }
+}
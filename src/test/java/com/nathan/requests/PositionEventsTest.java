@@ -0,0 +1,110 @@
+package com.nathan.requests;
+
+import org.junit.*;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import static org.junit.Assert.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+import static com.nathan.requests.TestConstants.*;
+
+/**
+ * Tests PositionEvents class through GET /queue/{id}/events.
+ * The background thread never runs, ticks are made by the tests.
+ *
+ * @author Nathan
+ */
+public class PositionEventsTest {
+    private WorkOrderQueue orderQueue;
+    private PositionEvents events;
+    private EventProperties properties;
+    private MockMvc mockMvc;
+
+    @Before
+    public void setUpController() {
+        properties = new EventProperties();
+        properties.setIntervalMillis(60 * 60 * 1000);
+        properties.setMinGapMillis(0);
+
+        orderQueue = new WorkOrderQueue();
+        events = new PositionEvents(orderQueue, properties);
+        mockMvc = MockMvcBuilders.standaloneSetup(new QueueController(orderQueue, events, QueueMetrics.disabled(orderQueue))).build();
+    }
+    @After
+    public void tearDownController() {
+        events.close();
+    }
+
+    // --------------------------------------------------
+    // subscribe
+    // --------------------------------------------------
+    @Test
+    public void events_QueuedOrder_ShouldSendCurrentPosition() throws Exception {
+        orderQueue.enqueue(new WorkOrder(VIP_ID, CURRENT_TIME));
+        orderQueue.enqueue(new WorkOrder(NORMAL_ID, CURRENT_TIME));
+
+        MvcResult result = subscribe(NORMAL_ID);
+
+        assertEquals("event:position\ndata:1\n\n", result.getResponse().getContentAsString());
+        assertEquals(1, events.size());
+    }
+    @Test
+    public void events_NonPresentOrder_ShouldReturnNotFoundCode() throws Exception {
+        mockMvc.perform(get("/queue/{id}/events", NORMAL_ID))
+                .andExpect(status().isNotFound());
+    }
+
+    // --------------------------------------------------
+    // tick
+    // --------------------------------------------------
+    @Test
+    public void tick_PositionChanged_ShouldSendNewPositionOnce() throws Exception {
+        orderQueue.enqueue(new WorkOrder(NORMAL_ID, CURRENT_TIME));
+        MvcResult result = subscribe(NORMAL_ID);
+
+        orderQueue.enqueue(new WorkOrder(MANAGER_ID, CURRENT_TIME));
+        orderQueue.enqueue(new WorkOrder(VIP_ID, CURRENT_TIME));
+        events.tick();
+        events.tick();
+
+        assertEquals("event:position\ndata:0\n\nevent:position\ndata:2\n\n",
+                result.getResponse().getContentAsString());
+    }
+    @Test
+    public void tick_WithinMinGap_ShouldCoalesceToLatestPosition() throws Exception {
+        properties.setMinGapMillis(60 * 60 * 1000);
+        orderQueue.enqueue(new WorkOrder(NORMAL_ID, CURRENT_TIME));
+        MvcResult result = subscribe(NORMAL_ID);
+
+        orderQueue.enqueue(new WorkOrder(MANAGER_ID, CURRENT_TIME));
+        events.tick();
+        orderQueue.enqueue(new WorkOrder(VIP_ID, CURRENT_TIME));
+        events.tick();
+        assertEquals("event:position\ndata:0\n\n", result.getResponse().getContentAsString());
+
+        properties.setMinGapMillis(0);
+        events.tick();
+        assertEquals("event:position\ndata:0\n\nevent:position\ndata:2\n\n",
+                result.getResponse().getContentAsString());
+    }
+    @Test
+    public void tick_OrderRemoved_ShouldSendMinusOneAndEndStream() throws Exception {
+        orderQueue.enqueue(new WorkOrder(NORMAL_ID, CURRENT_TIME));
+        MvcResult result = subscribe(NORMAL_ID);
+
+        orderQueue.dequeue();
+        events.tick();
+
+        assertEquals("event:position\ndata:0\n\nevent:position\ndata:-1\n\n",
+                result.getResponse().getContentAsString());
+        assertEquals(0, events.size());
+    }
+
+    private MvcResult subscribe(long ID) throws Exception {
+        return mockMvc.perform(get("/queue/{id}/events", ID))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+    }
+}
@@ -2,7 +2,9 @@ package com.nathan.requests;
 
 import io.restassured.path.json.JsonPath;
 import org.junit.*;
+import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 
 import static org.junit.Assert.*;
@@ -56,6 +58,12 @@ public class QueueControllerTest {
                 .andExpect(status().isBadRequest());
     }
 
+    @Test
+    public void enqueue_AddInvalidDate_ShouldReturnBadRequestCode() throws Exception {
+        mockMvc.perform(post("/queue/{id}/{date}", NORMAL_ID, "2017-13-01_12:00"))
+                .andExpect(status().isBadRequest());
+    }
+
     // ---------------------------------------------
     // dequeue
     // ---------------------------------------------
@@ -80,6 +88,101 @@ public class QueueControllerTest {
         assertEquals(NORMAL_ID, actualID);
     }
 
+    // ---------------------------------------------
+    // batch
+    // ---------------------------------------------
+    @Test
+    public void enqueueAll_MixedItems_ShouldReturnStatusPerItem() throws Exception {
+        mockMvc.perform(post("/queue/{id}/{date}", VIP_ID, CURRENT_TIME));
+        String body = "[{\"id\":" + NORMAL_ID + ",\"date\":\"now\"}," +
+                "{\"id\":" + VIP_ID + ",\"date\":\"now\"}," +
+                "{\"id\":" + NEGATIVE_ID + ",\"date\":\"now\"}," +
+                "{\"id\":" + PRIORITY_ID + ",\"date\":\"2017-13-01_12:00\"}," +
+                "{\"id\":" + NORMAL_ID + ",\"date\":\"now\"}]";
+
+        String resultString = mockMvc.perform(post("/queue/batch")
+                .contentType(MediaType.APPLICATION_JSON).content(body))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        JsonPath result = JsonPath.with(resultString);
+
+        assertEquals("CREATED", result.getString("[0].status"));
+        assertEquals("CONFLICT", result.getString("[1].status"));
+        assertEquals("BAD_REQUEST", result.getString("[2].status"));
+        assertEquals("BAD_REQUEST", result.getString("[3].status"));
+        assertEquals("CONFLICT", result.getString("[4].status"));
+        assertEquals(NORMAL_ID, result.getLong("[0].id"));
+    }
+    @Test
+    public void dequeueCount_GetTopOrders_ShouldReturnThemInRankedOrder() throws Exception {
+        mockMvc.perform(post("/queue/{id}/{date}", NORMAL_ID, CURRENT_TIME));
+        mockMvc.perform(post("/queue/{id}/{date}", MANAGER_ID, CURRENT_TIME));
+        mockMvc.perform(post("/queue/{id}/{date}", VIP_ID, CURRENT_TIME));
+
+        String resultString = mockMvc.perform(delete("/queue").param("count", "2"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        JsonPath result = JsonPath.with(resultString);
+
+        assertEquals(2, result.getList("").size());
+        assertEquals(MANAGER_ID, result.getLong("[0].id"));
+    }
+    @Test
+    public void dequeueCount_EmptyQueue_ShouldReturnNotFoundCode() throws Exception {
+        mockMvc.perform(delete("/queue").param("count", "3"))
+                .andExpect(status().isNotFound());
+    }
+    @Test
+    public void dequeueCount_ZeroCount_ShouldReturnBadRequestCode() throws Exception {
+        mockMvc.perform(delete("/queue").param("count", "0"))
+                .andExpect(status().isBadRequest());
+    }
+
+    // ---------------------------------------------
+    // waiting dequeue
+    // ---------------------------------------------
+    @Test
+    public void dequeueWait_OrderArrivesLater_ShouldReturnIt() throws Exception {
+        MvcResult result = mockMvc.perform(delete("/queue").param("timeout", "5000"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mockMvc.perform(post("/queue/{id}/{date}", VIP_ID, CURRENT_TIME));
+
+        String resultString = mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        assertEquals(VIP_ID, JsonPath.with(resultString).getLong("id"));
+
+        mockMvc.perform(get("/queue/{id}", VIP_ID))
+                .andExpect(content().string("-1"));
+    }
+    @Test
+    public void dequeueWait_OrderQueued_ShouldReturnItAtOnce() throws Exception {
+        mockMvc.perform(post("/queue/{id}/{date}", NORMAL_ID, CURRENT_TIME));
+        MvcResult result = mockMvc.perform(delete("/queue").param("timeout", "5000"))
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk());
+    }
+    @Test
+    public void dequeueWait_WithCount_ShouldReturnBadRequestCode() throws Exception {
+        mockMvc.perform(post("/queue/{id}/{date}", NORMAL_ID, CURRENT_TIME));
+
+        mockMvc.perform(delete("/queue").param("count", "2").param("timeout", "5000"))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(get("/queue/{id}", NORMAL_ID))
+                .andExpect(content().string("0"));
+    }
+    @Test
+    public void dequeueWait_TimeoutOutOfRange_ShouldReturnBadRequestCode() throws Exception {
+        MvcResult result = mockMvc.perform(delete("/queue").param("timeout", "0"))
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isBadRequest());
+    }
+
     // ---------------------------------------------
     // remove
     // ---------------------------------------------
@@ -108,6 +211,59 @@ public class QueueControllerTest {
         mockMvc.perform(get("/queue"))
                 .andExpect(status().isOk());
     }
+    @Test
+    public void list_MatchingETag_ShouldReturnNotModifiedCode() throws Exception {
+        mockMvc.perform(post("/queue/{id}/{date}", NORMAL_ID, CURRENT_TIME));
+        String eTag = mockMvc.perform(get("/queue"))
+                .andExpect(content().string("[" + NORMAL_ID + "]"))
+                .andReturn().getResponse().getHeader("ETag");
+
+        mockMvc.perform(get("/queue").header("If-None-Match", eTag))
+                .andExpect(status().isNotModified())
+                .andExpect(content().string(""));
+    }
+    @Test
+    public void list_ChangedQueue_ShouldReturnNewList() throws Exception {
+        String eTag = mockMvc.perform(get("/queue"))
+                .andReturn().getResponse().getHeader("ETag");
+        mockMvc.perform(post("/queue/{id}/{date}", NORMAL_ID, CURRENT_TIME));
+
+        mockMvc.perform(get("/queue").header("If-None-Match", eTag))
+                .andExpect(status().isOk())
+                .andExpect(content().string("[" + NORMAL_ID + "]"));
+    }
+
+    // ---------------------------------------------
+    // stream
+    // ---------------------------------------------
+    @Test
+    public void stream_NdjsonPage_ShouldReturnRequestedIDs() throws Exception {
+        mockMvc.perform(post("/queue/{id}/{date}", NORMAL_ID, CURRENT_TIME));
+        mockMvc.perform(post("/queue/{id}/{date}", VIP_ID, CURRENT_TIME));
+        mockMvc.perform(post("/queue/{id}/{date}", MANAGER_ID, CURRENT_TIME));
+
+        MvcResult result = mockMvc.perform(get("/queue/stream")
+                .param("offset", "1").param("limit", "1").param("format", "ndjson"))
+                .andExpect(request().asyncStarted())
+                .andExpect(header().string("X-Total-Count", "3"))
+                .andExpect(content().contentType("application/x-ndjson"))
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk());
+        // the body is streamed into the original response.
+        assertEquals(VIP_ID + "\n", result.getResponse().getContentAsString());
+    }
+    @Test
+    public void stream_UnknownFormat_ShouldReturnBadRequestCode() throws Exception {
+        mockMvc.perform(get("/queue/stream").param("format", "xml"))
+                .andExpect(status().isBadRequest());
+    }
+    @Test
+    public void stream_NegativeOffset_ShouldReturnBadRequestCode() throws Exception {
+        mockMvc.perform(get("/queue/stream").param("offset", "-1"))
+                .andExpect(status().isBadRequest());
+    }
 
     // ---------------------------------------------
     // position
@@ -126,4 +282,13 @@ public class QueueControllerTest {
         mockMvc.perform(get("/queue/meantime"))
                 .andExpect(status().isOk());
     }
+    @Test
+    public void waitTime_MatchingETag_ShouldReturnNotModifiedCode() throws Exception {
+        String eTag = mockMvc.perform(get("/queue/meantime"))
+                .andExpect(content().string("0.0"))
+                .andReturn().getResponse().getHeader("ETag");
+
+        mockMvc.perform(get("/queue/meantime").header("If-None-Match", eTag))
+                .andExpect(status().isNotModified());
+    }
 }
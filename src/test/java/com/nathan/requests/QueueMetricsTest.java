@@ -0,0 +1,145 @@
+package com.nathan.requests;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.*;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import static org.junit.Assert.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+import static com.nathan.requests.TestConstants.*;
+
+/**
+ * Tests QueueMetrics class, through requests to the controller.
+ *
+ * @author Nathan
+ */
+public class QueueMetricsTest {
+    private static final Clock CLOCK = Clock.fixed(Instant.now(), ZoneOffset.UTC);
+
+    private SimpleMeterRegistry registry;
+    private WorkOrderQueue queue;
+    private MockMvc mockMvc;
+
+    @Before
+    public void setUpController() {
+        registry = new SimpleMeterRegistry();
+        queue = new WorkOrderQueue(CLOCK);
+        QueueMetrics metrics = new QueueMetrics(registry, queue);
+        PositionEvents events = new PositionEvents(queue, new EventProperties());
+        mockMvc = MockMvcBuilders.standaloneSetup(new QueueController(queue, events, metrics)).build();
+    }
+
+    // --------------------------------------------------
+    // timers
+    // --------------------------------------------------
+    @Test
+    public void record_EachEndpoint_ShouldTimeItsRequests() throws Exception {
+        mockMvc.perform(post("/queue/{id}/{date}", NORMAL_ID, CURRENT_TIME));
+        mockMvc.perform(post("/queue/{id}/{date}", VIP_ID, CURRENT_TIME));
+        mockMvc.perform(get("/queue"));
+        mockMvc.perform(get("/queue/{id}", VIP_ID));
+        mockMvc.perform(get("/queue/meantime"));
+        mockMvc.perform(delete("/queue/{id}", NORMAL_ID));
+        mockMvc.perform(delete("/queue"));
+
+        assertEquals(2, timerCount("enqueue"));
+        assertEquals(1, timerCount("list"));
+        assertEquals(1, timerCount("position"));
+        assertEquals(1, timerCount("meantime"));
+        assertEquals(1, timerCount("remove"));
+        assertEquals(1, timerCount("dequeue"));
+        assertEquals(0, timerCount("batch"));
+    }
+    @Test
+    public void record_WaitingDequeue_ShouldTimeWhenOrderArrives() throws Exception {
+        mockMvc.perform(delete("/queue").param("timeout", "5000"))
+                .andExpect(request().asyncStarted());
+        assertEquals(0, timerCount("dequeue"));
+
+        mockMvc.perform(post("/queue/{id}/{date}", NORMAL_ID, CURRENT_TIME));
+
+        assertEquals(1, timerCount("dequeue"));
+    }
+    @Test
+    public void record_BadRequest_ShouldNotTime() throws Exception {
+        mockMvc.perform(post("/queue/{id}/{date}", NEGATIVE_ID, CURRENT_TIME));
+
+        assertEquals(0, timerCount("enqueue"));
+    }
+
+    // --------------------------------------------------
+    // counters
+    // --------------------------------------------------
+    @Test
+    public void count_ConflictAndBadRequest_ShouldCountOutcomes() throws Exception {
+        mockMvc.perform(post("/queue/{id}/{date}", NORMAL_ID, CURRENT_TIME));
+        mockMvc.perform(post("/queue/{id}/{date}", NORMAL_ID, CURRENT_TIME))
+                .andExpect(status().isConflict());
+        mockMvc.perform(post("/queue/{id}/{date}", NORMAL_ID, "2017-13-01_12:00"))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(delete("/queue").param("count", "0"))
+                .andExpect(status().isBadRequest());
+
+        assertEquals(1, outcomeCount("conflict"), 0);
+        assertEquals(2, outcomeCount("bad_request"), 0);
+        assertEquals(0, outcomeCount("empty_dequeue"), 0);
+    }
+    @Test
+    public void count_DequeueEmptyQueue_ShouldCountEmptyDequeues() throws Exception {
+        mockMvc.perform(delete("/queue"))
+                .andExpect(status().isNotFound());
+        mockMvc.perform(delete("/queue").param("count", "3"))
+                .andExpect(status().isNotFound());
+
+        assertEquals(2, outcomeCount("empty_dequeue"), 0);
+    }
+
+    // --------------------------------------------------
+    // gauges
+    // --------------------------------------------------
+    @Test
+    public void gauges_MixedOrders_ShouldReportEachLevel() {
+        long now = CLOCK.millis();
+        queue.enqueue(new WorkOrder(NORMAL_ID, now - 1000));
+        queue.enqueue(new WorkOrder(2, now - 5000));
+        queue.enqueue(new WorkOrder(VIP_ID, now - 30000));
+
+        assertEquals(2, gauge("queue.depth", "normal"), 0);
+        assertEquals(1, gauge("queue.depth", "vip"), 0);
+        assertEquals(0, gauge("queue.depth", "manager"), 0);
+        assertEquals(5, gauge("queue.oldest.age", "normal"), 1e-9);
+        assertEquals(30, gauge("queue.oldest.age", "vip"), 1e-9);
+        assertEquals(0, gauge("queue.oldest.age", "priority"), 0);
+    }
+    @Test
+    public void gauges_ShardedQueue_ShouldSumShards() {
+        WorkOrderQueue sharded = new WorkOrderQueue(CLOCK, DivisorRankingPolicy.DEFAULT, 4);
+        registry = new SimpleMeterRegistry();
+        new QueueMetrics(registry, queue).watch(sharded);
+        long now = CLOCK.millis();
+
+        for (long ID = 1; ID <= 100; ID++) {
+            sharded.enqueue(new WorkOrder(ID * 15, now - ID * 1000));
+        }
+        assertEquals(100, gauge("queue.depth", "manager"), 0);
+        assertEquals(100, gauge("queue.oldest.age", "manager"), 1e-9);
+    }
+
+    private long timerCount(String endpoint) {
+        return registry.get("queue.requests").tag("endpoint", endpoint).timer().count();
+    }
+
+    private double outcomeCount(String outcome) {
+        return registry.get("queue.outcomes").tag("outcome", outcome).counter().count();
+    }
+
+    private double gauge(String name, String level) {
+        return registry.get(name).tag("level", level).gauge().value();
+    }
+}
@@ -0,0 +1,106 @@
+package com.nathan.requests;
+
+import org.junit.*;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static com.nathan.requests.TestConstants.*;
+
+/**
+ * Tests ReadCache class, against a queue with a fixed clock.
+ *
+ * @author Nathan
+ */
+public class ReadCacheTest {
+    private static final long NOW = 1500000000000L;
+
+    private WorkOrderQueue queue;
+    private ReadCache cache;
+
+    @Before
+    public void setUpCache() {
+        queue = new WorkOrderQueue(Clock.fixed(Instant.ofEpochMilli(NOW), ZoneOffset.UTC),
+                DivisorRankingPolicy.DEFAULT, 4);
+        cache = new ReadCache(queue, 60000);
+    }
+
+    // --------------------------------------------------
+    // list
+    // --------------------------------------------------
+    @Test
+    public void list_UnchangedQueue_ShouldReturnSameAnswer() {
+        queue.enqueue(new WorkOrder(NORMAL_ID, NOW));
+
+        ReadCache.Answer<List<Long>> first = cache.list();
+
+        assertSame(first, cache.list());
+        assertEquals(Arrays.asList(NORMAL_ID), first.getValue());
+        assertEquals("[" + NORMAL_ID + "]", new String(first.getJson(), StandardCharsets.US_ASCII));
+    }
+    @Test
+    public void list_ChangedQueue_ShouldReturnNewETag() {
+        queue.enqueue(new WorkOrder(NORMAL_ID, NOW));
+        String before = cache.list().getETag();
+
+        queue.enqueue(new WorkOrder(MANAGER_ID, NOW));
+        ReadCache.Answer<List<Long>> after = cache.list();
+
+        assertNotEquals(before, after.getETag());
+        assertEquals(Arrays.asList(MANAGER_ID, NORMAL_ID), after.getValue());
+    }
+    @Test
+    public void list_ChangedBackToSameBody_ShouldKeepETag() {
+        queue.enqueue(new WorkOrder(NORMAL_ID, NOW));
+        String before = cache.list().getETag();
+
+        queue.enqueue(new WorkOrder(MANAGER_ID, NOW));
+        queue.removeOrder(MANAGER_ID);
+
+        assertEquals(before, cache.list().getETag());
+    }
+    @Test
+    public void list_RefreshTimePassed_ShouldRebuild() {
+        ReadCache expiring = new ReadCache(queue, 0);
+        ReadCache.Answer<List<Long>> first = expiring.list();
+
+        assertNotSame(first, expiring.list());
+        assertEquals(first.getETag(), expiring.list().getETag());
+    }
+    @Test
+    public void list_OtherCache_ShouldNotShareETags() {
+        assertNotEquals(cache.list().getETag(), new ReadCache(queue, 60000).list().getETag());
+    }
+
+    // --------------------------------------------------
+    // waitTime
+    // --------------------------------------------------
+    @Test
+    public void waitTime_QueuedOrders_ShouldReturnMeanWait() {
+        queue.enqueue(new WorkOrder(NORMAL_ID, NOW - 2000));
+        queue.enqueue(new WorkOrder(PRIORITY_ID, NOW - 4000));
+
+        ReadCache.Answer<Double> answer = cache.waitTime();
+
+        assertEquals(3.0, answer.getValue(), 0.001);
+        assertEquals("3.0", new String(answer.getJson(), StandardCharsets.US_ASCII));
+        assertSame(answer, cache.waitTime());
+    }
+
+    // --------------------------------------------------
+    // matches
+    // --------------------------------------------------
+    @Test
+    public void matches_IfNoneMatchValues_ShouldCompareEachTag() {
+        assertTrue(ReadCache.matches("\"a\"", "\"a\""));
+        assertTrue(ReadCache.matches("\"b\", W/\"a\"", "\"a\""));
+        assertTrue(ReadCache.matches("*", "\"a\""));
+        assertFalse(ReadCache.matches("\"b\"", "\"a\""));
+        assertFalse(ReadCache.matches(null, "\"a\""));
+    }
+}
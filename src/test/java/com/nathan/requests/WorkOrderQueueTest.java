@@ -2,9 +2,21 @@ package com.nathan.requests;
 
 import org.junit.*;
 
+import com.sun.management.ThreadMXBean;
+
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 import static org.hamcrest.CoreMatchers.*;
@@ -104,6 +116,18 @@ public class WorkOrderQueueTest {
         assertThat(IDs, is(expected));
     }
     @Test
+    public void getListOfIDs_MixedLevelsAndDates_ShouldMatchCompareTo() {
+        List<WorkOrder> orders = addMixedOrders(orderQueue, 200);
+        List<Long> IDs = orderQueue.getListOfIDs();
+
+        assertEquals(orders.size(), IDs.size());
+        for (int i = 1; i < IDs.size(); i++) {
+            WorkOrder previous = new WorkOrder(IDs.get(i - 1), dateOf(orders, IDs.get(i - 1)));
+            WorkOrder current = new WorkOrder(IDs.get(i), dateOf(orders, IDs.get(i)));
+            assertTrue(previous.compareTo(current) < 0);
+        }
+    }
+    @Test
     public void getListOfIDs_TryGetListFromEmpty_ShouldBeEmptyList() {
         List<Long> expected = new ArrayList<Long>();
         List<Long> IDs = orderQueue.getListOfIDs();
@@ -164,6 +188,38 @@ public class WorkOrderQueueTest {
         assertEquals(actualPosition, expectedPosition);
     }
     @Test
+    public void getPositionOfOrder_MixedLevelsAndDates_ShouldMatchListIndex() {
+        addMixedOrders(orderQueue, 200);
+        List<Long> IDs = orderQueue.getListOfIDs();
+
+        for (int i = 0; i < IDs.size(); i++) {
+            assertEquals(i, orderQueue.getPositionOfOrder(IDs.get(i)));
+        }
+    }
+    @Test
+    public void getPositionOfOrder_AfterRemovals_ShouldMatchListIndex() {
+        addMixedOrders(orderQueue, 300);
+        for (long ID = 1; ID <= 300; ID += 4) {
+            orderQueue.removeOrder(ID);
+        }
+        orderQueue.dequeue();
+        List<Long> IDs = orderQueue.getListOfIDs();
+
+        for (int i = 0; i < IDs.size(); i++) {
+            assertEquals(i, orderQueue.getPositionOfOrder(IDs.get(i)));
+        }
+    }
+    @Test
+    public void getPositionsOfOrders_MixedLevelsAndDates_ShouldMatchListIndex() {
+        addMixedOrders(orderQueue, 300);
+        List<Long> list = orderQueue.getListOfIDs();
+        long[] IDs = {list.get(0), list.get(150), list.get(299), 1000, NEGATIVE_ID};
+
+        int[] positions = orderQueue.getPositionsOfOrders(IDs);
+
+        assertTrue(Arrays.equals(new int[] {0, 150, 299, -1, -1}, positions));
+    }
+    @Test
     public void getPositionOfOrder_TryGetNonPresentID_ShouldReturnMinusOne() {
         orderQueue.enqueue(new WorkOrder(MANAGER_ID, CURRENT_TIME));
         orderQueue.enqueue(new WorkOrder(NORMAL_ID, CURRENT_TIME));
@@ -195,7 +251,600 @@ public class WorkOrderQueueTest {
         assertEquals(expectedAverage, actualAverage, 0.1);
     }
     @Test
+    public void getAverageWaitTime_AfterDequeueAndRemove_ShouldOnlyCountQueuedOrders() {
+        orderQueue.enqueue(new WorkOrder(NORMAL_ID, "2017-06-01_12:30"));
+        orderQueue.enqueue(new WorkOrder(PRIORITY_ID, "2017-06-01_12:00"));
+        orderQueue.enqueue(new WorkOrder(VIP_ID, CURRENT_TIME));
+        orderQueue.enqueue(new WorkOrder(MANAGER_ID, CURRENT_TIME));
+        orderQueue.dequeue();
+        orderQueue.removeOrder(VIP_ID);
+
+        WorkOrder normal = new WorkOrder(NORMAL_ID, "2017-06-01_12:30");
+        WorkOrder priority = new WorkOrder(PRIORITY_ID, "2017-06-01_12:00");
+        double expectedAverage = (normal.getWaitTime() + priority.getWaitTime()) / 2;
+
+        assertEquals(expectedAverage, orderQueue.getAverageWaitTime(), 0.1);
+    }
+    @Test
     public void getAverageWaitTime_GetAverageFromEmptyList_ShouldReturnZero() {
         assertEquals(0, orderQueue.getAverageWaitTime(), 0);
     }
+
+    // --------------------------------------------------
+    // clock
+    // --------------------------------------------------
+    @Test
+    public void getAverageWaitTime_FixedClock_ShouldBeExact() {
+        long epoch = 1496319780000L;
+        WorkOrderQueue fixedQueue = new WorkOrderQueue(Clock.fixed(Instant.ofEpochMilli(epoch + 10000), ZoneOffset.UTC));
+        fixedQueue.enqueue(new WorkOrder(NORMAL_ID, epoch));
+        fixedQueue.enqueue(new WorkOrder(VIP_ID, epoch + 4000));
+
+        assertEquals(8, fixedQueue.getAverageWaitTime(), 0);
+    }
+    @Test
+    public void dequeue_FixedClock_ShouldCompareRanksAtClockTime() {
+        long epoch = 1496319780000L;
+        WorkOrderQueue fixedQueue = new WorkOrderQueue(Clock.fixed(Instant.ofEpochMilli(epoch + 10000), ZoneOffset.UTC));
+        // at 10s the VIP rank is 2 * 10 * ln 10 = 46, above the normal rank of 30.
+        fixedQueue.enqueue(new WorkOrder(NORMAL_ID, epoch - 20000));
+        fixedQueue.enqueue(new WorkOrder(VIP_ID, epoch));
+
+        assertEquals(VIP_ID, fixedQueue.dequeue().getId());
+    }
+
+    // --------------------------------------------------
+    // allocation
+    // --------------------------------------------------
+    @Test
+    public void enqueueAndDequeue_SteadyState_ShouldNotAllocate() {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        long epoch = System.currentTimeMillis();
+        WorkOrder[] orders = new WorkOrder[1000];
+        for (int i = 0; i < orders.length; i++) {
+            orders[i] = new WorkOrder(i + 1, epoch - (i % 60) * 1000);
+        }
+
+        // grow the lanes and index, and let the JIT settle.
+        for (int round = 0; round < 50; round++) {
+            cycle(orderQueue, orders);
+        }
+
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int round = 0; round < 20; round++) {
+            cycle(orderQueue, orders);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        // 40000 operations, a single object per operation would be far above this.
+        assertTrue("allocated " + allocated + " bytes", allocated < 4096);
+    }
+
+    private static void cycle(WorkOrderQueue queue, WorkOrder[] orders) {
+        for (WorkOrder order : orders) {
+            queue.enqueue(order);
+        }
+        while (queue.dequeue() != null) {
+            // drain
+        }
+    }
+
+    // --------------------------------------------------
+    // concurrency
+    // --------------------------------------------------
+    @Test
+    public void concurrentAccess_ProducersConsumersAndRemovers_NoOrderLostOrDuplicated() throws Exception {
+        final int producers = 8;
+        final int ordersPerProducer = 5000;
+        final int total = producers * ordersPerProducer;
+        final Set<Long> taken = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        final AtomicInteger duplicates = new AtomicInteger();
+        final AtomicInteger producersLeft = new AtomicInteger(producers);
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(producers + 4);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+
+        for (int p = 0; p < producers; p++) {
+            final int first = p * ordersPerProducer + 1;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    for (long id = first; id < first + ordersPerProducer; id++) {
+                        assertTrue(orderQueue.enqueue(new WorkOrder(id, CURRENT_TIME)));
+                    }
+                    producersLeft.decrementAndGet();
+                    return null;
+                }
+            }));
+        }
+        for (int c = 0; c < 3; c++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    int reads = 0;
+                    while ((producersLeft.get() > 0) || (orderQueue.size() > 0)) {
+                        WorkOrder order = orderQueue.dequeue();
+                        if ((order != null) && !taken.add(order.getId())) {
+                            duplicates.incrementAndGet();
+                        }
+                        if (++reads % 500 == 0) {
+                            orderQueue.getListOfIDs();
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        futures.add(executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                start.await();
+                for (long id = 1; id <= total; id += 7) {
+                    if (orderQueue.removeOrder(id) && !taken.add(id)) {
+                        duplicates.incrementAndGet();
+                    }
+                }
+                return null;
+            }
+        }));
+
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        assertEquals(0, duplicates.get());
+        assertEquals(0, orderQueue.size());
+        assertEquals(total, taken.size());
+    }
+    @Test
+    public void readers_WriterAddingAndTakingPairs_ShouldOnlySeeWholePairs() throws Exception {
+        final long epoch = 1500000000000L;
+        final WorkOrderQueue queue = new WorkOrderQueue(Clock.fixed(Instant.ofEpochMilli(epoch), ZoneOffset.UTC));
+        final AtomicInteger torn = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+
+        // the newest order, never taken. Every other order comes as one of a pair.
+        queue.enqueue(new WorkOrder(NORMAL_ID, epoch));
+
+        final Future<?> writer = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                start.await();
+                long ID = NORMAL_ID;
+                for (int pair = 0; pair < 20000; pair++) {
+                    List<WorkOrder> orders = new ArrayList<WorkOrder>();
+                    while (orders.size() < 2) {
+                        // Normal IDs only, dated in the order they are added.
+                        if ((++ID % 3 != 0) && (ID % 5 != 0)) {
+                            orders.add(new WorkOrder(ID, epoch - 1000000 + ID));
+                        }
+                    }
+                    queue.enqueueAll(orders);
+                    if (pair % 3 != 0) {
+                        // the oldest two, so always one whole pair.
+                        assertEquals(2, queue.dequeue(2).size());
+                    }
+                }
+                return null;
+            }
+        });
+        for (int r = 0; r < 3; r++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    while (!writer.isDone()) {
+                        if (queue.getPositionOfOrder(NORMAL_ID) % 2 != 0) {
+                            torn.incrementAndGet();
+                        }
+                        List<Long> IDs = queue.getListOfIDs();
+                        if ((IDs.size() % 2 != 1) || (IDs.get(IDs.size() - 1) != NORMAL_ID)) {
+                            torn.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        start.countDown();
+        writer.get(60, TimeUnit.SECONDS);
+        for (Future<?> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        assertEquals(0, torn.get());
+    }
+    @Test
+    public void readers_OrderMovingBetweenLanes_ShouldSeeItInEveryList() throws Exception {
+        final long epoch = 1500000000000L;
+        final WorkOrderQueue queue = new WorkOrderQueue(Clock.fixed(Instant.ofEpochMilli(epoch), ZoneOffset.UTC));
+        final AtomicInteger torn = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+
+        // a Normal and a Manager order in two lanes, the new one is added before the old one goes.
+        queue.enqueue(new WorkOrder(NORMAL_ID, epoch));
+
+        final Future<?> writer = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                start.await();
+                for (int move = 0; move < 20000; move++) {
+                    long from = (move % 2 == 0) ? NORMAL_ID : MANAGER_ID;
+                    long to = (move % 2 == 0) ? MANAGER_ID : NORMAL_ID;
+                    queue.enqueue(new WorkOrder(to, epoch));
+                    queue.removeOrder(from);
+                }
+                return null;
+            }
+        });
+        for (int r = 0; r < 2; r++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    while (!writer.isDone()) {
+                        if (queue.getListOfIDs().isEmpty() || (queue.cursor().remaining() == 0)) {
+                            torn.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        start.countDown();
+        writer.get(60, TimeUnit.SECONDS);
+        for (Future<?> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        assertEquals(0, torn.get());
+    }
+
+    // --------------------------------------------------
+    // batches
+    // --------------------------------------------------
+    @Test
+    public void enqueueAll_MixedBatch_ShouldReportEachOrder() {
+        orderQueue.enqueue(new WorkOrder(VIP_ID, CURRENT_TIME));
+        List<WorkOrder> batch = Arrays.asList(
+                new WorkOrder(NORMAL_ID, CURRENT_TIME),
+                new WorkOrder(VIP_ID, CURRENT_TIME),
+                new WorkOrder(NEGATIVE_ID, CURRENT_TIME),
+                new WorkOrder(MANAGER_ID, CURRENT_TIME),
+                new WorkOrder(NORMAL_ID, CURRENT_TIME));
+
+        boolean[] added = orderQueue.enqueueAll(batch);
+
+        assertTrue(Arrays.equals(new boolean[] {true, false, false, true, false}, added));
+        assertEquals(3, orderQueue.size());
+        assertEquals(0, orderQueue.getPositionOfOrder(MANAGER_ID));
+    }
+    @Test
+    public void dequeueCount_MixedLevelsAndDates_ShouldMatchListPrefix() {
+        addMixedOrders(orderQueue, 300);
+        List<Long> expected = orderQueue.getListOfIDs();
+
+        List<WorkOrder> first = orderQueue.dequeue(100);
+        List<WorkOrder> rest = orderQueue.dequeue(1000);
+
+        assertEquals(100, first.size());
+        assertEquals(200, rest.size());
+        for (int i = 0; i < expected.size(); i++) {
+            WorkOrder order = (i < 100) ? first.get(i) : rest.get(i - 100);
+            assertEquals((long) expected.get(i), order.getId());
+        }
+        assertEquals(0, orderQueue.size());
+        assertNull(orderQueue.dequeue());
+    }
+    @Test
+    public void dequeueCount_EmptyQueueOrZeroCount_ShouldReturnEmptyList() {
+        assertTrue(orderQueue.dequeue(5).isEmpty());
+        orderQueue.enqueue(new WorkOrder(NORMAL_ID, CURRENT_TIME));
+        assertTrue(orderQueue.dequeue(0).isEmpty());
+        assertEquals(1, orderQueue.size());
+    }
+
+    // --------------------------------------------------
+    // waiters
+    // --------------------------------------------------
+    @Test
+    public void awaitOrder_OrderQueued_ShouldBeHandedAtOnce() {
+        orderQueue.enqueue(new WorkOrder(NORMAL_ID, CURRENT_TIME));
+        List<WorkOrder> received = new ArrayList<WorkOrder>();
+
+        orderQueue.awaitOrder(received::add);
+
+        assertEquals(1, received.size());
+        assertEquals(NORMAL_ID, received.get(0).getId());
+        assertEquals(0, orderQueue.size());
+    }
+    @Test
+    public void awaitOrder_EmptyQueue_ShouldHandOrdersToOldestWaiterFirst() {
+        List<WorkOrder> first = new ArrayList<WorkOrder>();
+        List<WorkOrder> second = new ArrayList<WorkOrder>();
+        orderQueue.awaitOrder(first::add);
+        orderQueue.awaitOrder(second::add);
+
+        orderQueue.enqueue(new WorkOrder(NORMAL_ID, CURRENT_TIME));
+        assertEquals(1, first.size());
+        assertTrue(second.isEmpty());
+
+        orderQueue.enqueue(new WorkOrder(VIP_ID, CURRENT_TIME));
+        orderQueue.enqueue(new WorkOrder(MANAGER_ID, CURRENT_TIME));
+        assertEquals(1, first.size());
+        assertEquals(VIP_ID, second.get(0).getId());
+        // no waiters left, the last order stays queued.
+        assertTrue(orderQueue.contains(MANAGER_ID));
+    }
+    @Test
+    public void awaitOrder_WaiterRefuses_ShouldOfferNextWaiterOrRequeue() {
+        List<WorkOrder> received = new ArrayList<WorkOrder>();
+        orderQueue.awaitOrder(order -> false);
+        orderQueue.awaitOrder(received::add);
+        orderQueue.awaitOrder(order -> false);
+
+        orderQueue.enqueue(new WorkOrder(NORMAL_ID, CURRENT_TIME));
+        assertEquals(1, received.size());
+
+        orderQueue.enqueue(new WorkOrder(VIP_ID, CURRENT_TIME));
+        assertTrue(orderQueue.contains(VIP_ID));
+    }
+    @Test
+    public void cancelAwait_ParkedWaiter_ShouldNotReceiveOrders() {
+        List<WorkOrder> received = new ArrayList<WorkOrder>();
+        OrderWaiter waiter = received::add;
+        orderQueue.awaitOrder(waiter);
+
+        assertTrue(orderQueue.cancelAwait(waiter));
+        assertFalse(orderQueue.cancelAwait(waiter));
+        orderQueue.enqueue(new WorkOrder(NORMAL_ID, CURRENT_TIME));
+
+        assertTrue(received.isEmpty());
+        assertTrue(orderQueue.contains(NORMAL_ID));
+    }
+    @Test
+    public void awaitOrder_ConcurrentProducers_EveryWaiterGetsOneOrder() throws Exception {
+        int count = 2000;
+        CountDownLatch delivered = new CountDownLatch(count);
+        Set<Long> IDs = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        ExecutorService producers = Executors.newFixedThreadPool(4);
+
+        for (int i = 0; i < count; i++) {
+            final long ID = i + 1;
+            if (i % 2 == 0) {
+                orderQueue.awaitOrder(order -> IDs.add(order.getId()) && countDown(delivered));
+            }
+            producers.execute(() -> orderQueue.enqueue(new WorkOrder(ID, CURRENT_TIME)));
+            if (i % 2 == 1) {
+                orderQueue.awaitOrder(order -> IDs.add(order.getId()) && countDown(delivered));
+            }
+        }
+
+        producers.shutdown();
+        assertTrue(delivered.await(30, TimeUnit.SECONDS));
+        assertEquals(count, IDs.size());
+        assertEquals(0, orderQueue.size());
+    }
+
+    private static boolean countDown(CountDownLatch latch) {
+        latch.countDown();
+        return true;
+    }
+
+    // --------------------------------------------------
+    // ranking policy
+    // --------------------------------------------------
+    @Test
+    public void dequeue_CustomPolicy_ShouldRankByIt() {
+        RankingProperties properties = new RankingProperties();
+        properties.setFirst(WorkOrder.ClassLevel.Normal);
+        properties.setVip(new RankingProperties.Level(RankFunction.LINEAR, 100, 0));
+        RankingPolicy policy = new DivisorRankingPolicy(properties);
+        Clock clock = Clock.fixed(Instant.parse("2017-06-01T12:00:00Z"), ZoneOffset.UTC);
+        long now = clock.millis();
+        WorkOrderQueue queue = new WorkOrderQueue(clock, policy);
+
+        queue.enqueue(new WorkOrder(MANAGER_ID, now - 3600000, policy));
+        queue.enqueue(new WorkOrder(PRIORITY_ID, now - 600000, policy));
+        queue.enqueue(new WorkOrder(VIP_ID, now - 60000, policy));
+        queue.enqueue(new WorkOrder(NORMAL_ID, now, policy));
+
+        // Normal is pinned, a minute of VIP (6000) beats ten minutes
+        // of Priority (3838) and an hour of an unpinned Manager (3600).
+        assertEquals(Arrays.asList(NORMAL_ID, VIP_ID, PRIORITY_ID, MANAGER_ID), queue.getListOfIDs());
+        assertEquals(3, queue.getPositionOfOrder(MANAGER_ID));
+        assertEquals(NORMAL_ID, queue.dequeue().getId());
+        assertEquals(VIP_ID, queue.dequeue().getId());
+    }
+    @Test(expected = IllegalArgumentException.class)
+    public void enqueue_OrderOfOtherPolicy_ShouldThrow() {
+        WorkOrderQueue queue = new WorkOrderQueue(Clock.systemUTC(), new DivisorRankingPolicy(new RankingProperties()));
+        queue.enqueue(new WorkOrder(NORMAL_ID, CURRENT_TIME));
+    }
+    @Test
+    public void enqueueAll_OrderOfOtherPolicy_ShouldAddNone() {
+        WorkOrderQueue queue = new WorkOrderQueue(Clock.systemUTC(), new DivisorRankingPolicy(new RankingProperties()));
+
+        try {
+            queue.enqueueAll(Arrays.asList(new WorkOrder(NORMAL_ID, CURRENT_TIME, queue.getRankingPolicy()),
+                    new WorkOrder(VIP_ID, CURRENT_TIME)));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals(0, queue.size());
+        }
+    }
+
+    // --------------------------------------------------
+    // shards
+    // --------------------------------------------------
+    @Test
+    public void shards_MixedOrders_ShouldBehaveLikeOneShard() {
+        Clock clock = Clock.fixed(Instant.now(), ZoneOffset.UTC);
+        WorkOrderQueue single = new WorkOrderQueue(clock, DivisorRankingPolicy.DEFAULT, 1);
+        WorkOrderQueue sharded = new WorkOrderQueue(clock, DivisorRankingPolicy.DEFAULT, 7);
+        addMixedOrders(single, 600);
+        addMixedOrders(sharded, 600);
+
+        assertEquals(7, sharded.getShards());
+        assertEquals(single.getListOfIDs(), sharded.getListOfIDs());
+        assertEquals(single.getAverageWaitTime(), sharded.getAverageWaitTime(), 1e-9);
+        for (long ID = 1; ID <= 600; ID += 37) {
+            assertEquals(single.getPositionOfOrder(ID), sharded.getPositionOfOrder(ID));
+        }
+
+        assertTrue(sharded.removeOrder(300));
+        assertTrue(single.removeOrder(300));
+        assertEquals(single.dequeue(50), sharded.dequeue(50));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(single.dequeue(), sharded.dequeue());
+        }
+        assertEquals(single.getListOfIDs(), sharded.getListOfIDs());
+    }
+    @Test
+    public void enqueueAll_ManyShards_ShouldGroupByLane() {
+        WorkOrderQueue sharded = new WorkOrderQueue(Clock.systemUTC(), DivisorRankingPolicy.DEFAULT, 5);
+        List<WorkOrder> orders = new ArrayList<WorkOrder>();
+
+        for (long ID = 1; ID <= 200; ID++) {
+            orders.add(new WorkOrder(ID, CURRENT_TIME));
+        }
+        orders.add(new WorkOrder(NORMAL_ID, CURRENT_TIME));
+        boolean[] added = sharded.enqueueAll(orders);
+
+        for (int i = 0; i < 200; i++) {
+            assertTrue(added[i]);
+        }
+        assertFalse(added[200]);
+        assertEquals(200, sharded.size());
+    }
+    @Test
+    public void enqueue_ConcurrentProducersOnShards_ShouldKeepEveryOrder() throws Exception {
+        WorkOrderQueue sharded = new WorkOrderQueue(Clock.systemUTC(), DivisorRankingPolicy.DEFAULT, 8);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+
+        for (int t = 0; t < 8; t++) {
+            final long base = t * 10000L;
+            futures.add(executor.submit(() -> {
+                for (long ID = base + 1; ID <= base + 2000; ID++) {
+                    assertTrue(sharded.enqueue(new WorkOrder(ID, CURRENT_TIME)));
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        assertEquals(16000, sharded.size());
+        assertEquals(16000, sharded.dequeue(20000).size());
+    }
+    @Test(expected = IllegalArgumentException.class)
+    public void newQueue_NoShards_ShouldThrow() {
+        new WorkOrderQueue(Clock.systemUTC(), DivisorRankingPolicy.DEFAULT, 0);
+    }
+
+    // --------------------------------------------------
+    // storage
+    // --------------------------------------------------
+    @Test
+    public void storage_OffHeap_ShouldBehaveLikeHeap() {
+        Clock clock = Clock.fixed(Instant.now(), ZoneOffset.UTC);
+        WorkOrderQueue heap = new WorkOrderQueue(clock, DivisorRankingPolicy.DEFAULT, 3, OrderStorage.HEAP);
+        WorkOrderQueue offHeap = new WorkOrderQueue(clock, DivisorRankingPolicy.DEFAULT, 3, OrderStorage.OFF_HEAP);
+        List<WorkOrder> orders = addMixedOrders(heap, 5000);
+        addMixedOrders(offHeap, 5000);
+
+        assertEquals(OrderStorage.OFF_HEAP, offHeap.getStorage());
+        assertFalse(offHeap.enqueue(orders.get(10)));
+        assertEquals(heap.size(), offHeap.size());
+        assertEquals(heap.getListOfIDs(), offHeap.getListOfIDs());
+        assertEquals(heap.getAverageWaitTime(), offHeap.getAverageWaitTime(), 1e-9);
+        long[] IDs = {1, 15, 77, 2500, 4999, 6000};
+        assertArrayEquals(heap.getPositionsOfOrders(IDs), offHeap.getPositionsOfOrders(IDs));
+
+        for (int i = 0; i < 100; i++) {
+            WorkOrder expected = heap.dequeue();
+            WorkOrder actual = offHeap.dequeue();
+
+            assertEquals(expected, actual);
+            assertEquals(expected.getEpochMillis(), actual.getEpochMillis());
+        }
+        assertEquals(heap.dequeue(500), offHeap.dequeue(500));
+        assertTrue(offHeap.removeOrder(4000));
+        assertTrue(heap.removeOrder(4000));
+        assertFalse(offHeap.contains(4000));
+        assertEquals(heap.getListOfIDs(), offHeap.getListOfIDs());
+    }
+    @Test
+    public void storage_OffHeapEnqueue_ShouldNotGrowHeapWithQueue() {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        WorkOrderQueue offHeap = new WorkOrderQueue(Clock.systemUTC(), DivisorRankingPolicy.DEFAULT, 1,
+                OrderStorage.OFF_HEAP);
+        long epoch = System.currentTimeMillis();
+        WorkOrder[] orders = new WorkOrder[200000];
+        for (int i = 0; i < orders.length; i++) {
+            orders[i] = new WorkOrder(i + 1, epoch - (i % 3600) * 1000);
+        }
+
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (WorkOrder order : orders) {
+            offHeap.enqueue(order);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        // only slab and table headers are on the heap, heap storage needs over 50 bytes per order.
+        assertEquals(orders.length, offHeap.size());
+        assertTrue("allocated " + allocated + " bytes", allocated < orders.length);
+    }
+
+    // --------------------------------------------------
+    // helpers
+    // --------------------------------------------------
+    /**
+     * Adds orders of every ClassLevel, spread over the last few hours
+     * so that levels with different rank functions overtake each other.
+     */
+    static List<WorkOrder> addMixedOrders(WorkOrderQueue queue, int count) {
+        List<WorkOrder> orders = new ArrayList<WorkOrder>();
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd_HH:mm");
+        long now = System.currentTimeMillis();
+
+        for (int id = 1; id <= count; id++) {
+            long minutesAgo = (id * 7919L) % 240;
+            String date = format.format(new Date(now - minutesAgo * 60000));
+            WorkOrder order = new WorkOrder(id, date);
+
+            assertTrue(queue.enqueue(order));
+            orders.add(order);
+        }
+        return orders;
+    }
+
+    private static String dateOf(List<WorkOrder> orders, long ID) {
+        for (WorkOrder order : orders) {
+            if (order.getId() == ID) {
+                return order.getDateString();
+            }
+        }
+        return CURRENT_TIME;
+    }
 }
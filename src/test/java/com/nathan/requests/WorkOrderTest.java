@@ -45,6 +45,15 @@ public class WorkOrderTest {
 
         assertEquals(testDate, workOrder.getDate());
     }
+    @Test
+    public void WorkOrder_EpochConstructor_ShouldKeepMillis() {
+        long epoch = 1496319780000L;
+        WorkOrder workOrder = new WorkOrder(VIP_ID, epoch);
+
+        assertEquals(epoch, workOrder.getEpochMillis());
+        assertEquals(epoch, workOrder.getDate().getTime());
+        assertEquals(WorkOrder.ClassLevel.VIP.ordinal(), workOrder.getLevelOrdinal());
+    }
 
 
     // --------------------------------------------------
@@ -103,6 +112,12 @@ public class WorkOrderTest {
         assertEquals(rank, waitTime, 0.01);
     }
 
+    @Test
+    public void getWaitTime_GivenInstant_ShouldBeSecondsSinceDate() {
+        WorkOrder workOrder = new WorkOrder(NORMAL_ID, 1000L);
+        assertEquals(2.5, workOrder.getWaitTime(3500L), 0);
+    }
+
     // --------------------------------------------------
     // compareTo
     // --------------------------------------------------